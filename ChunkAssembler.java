@@ -0,0 +1,103 @@
+/**
+ * ChunkAssembler.java
+ */
+
+
+package SSF.OS.BGP4;
+
+
+// ===== class SSF.OS.BGP4.ChunkAssembler ================================== //
+/**
+ * Reassembles records which were streamed as a sequence of chunk records.
+ * Records which are too large to be sent in one piece, such as dumps of
+ * entire RIBs or forwarding tables, are split by the monitor into chunks.
+ * Each chunk is a record of its own, laid out as follows:
+ * <pre>
+ *   byte 0     Monitor.CHUNK
+ *   byte 1     the type of the original record
+ *   byte 2     1 if more chunks of the same record follow, 0 if this is the
+ *              last one
+ *   bytes 3-6  the sequence number of the chunk within the record, starting
+ *              from 0 (big-endian)
+ *   bytes 7-   the next piece of the body of the original record (everything
+ *              after its type byte)
+ * </pre>
+ * The chunks of one record are never interleaved with other records from the
+ * same host, so a player needs one assembler per host (or per stream).  Each
+ * chunk record is passed to {@link #add}, which returns the original record
+ * once its last chunk has arrived.
+ */
+public class ChunkAssembler {
+
+  // ......................... constants ......................... //
+
+  /** The number of bytes in the header of each chunk record. */
+  public static final int HEADER_SIZE = 7;
+
+
+  // ........................ member data ........................ //
+
+  /** The buffer in which the original record is rebuilt. */
+  private byte[] buf = new byte[8192];
+
+  /** The number of bytes of the original record rebuilt so far.  It is zero
+   *  when no record is in progress. */
+  private int len = 0;
+
+  /** The sequence number expected on the next chunk. */
+  private int nextseq = 0;
+
+
+  // ----- add ------------------------------------------------------------- //
+  /**
+   * Adds a chunk record to the record being reassembled.
+   *
+   * @param rec     A buffer holding a chunk record.
+   * @param offset  The index of the first byte of the chunk record.
+   * @param reclen  The number of bytes in the chunk record.
+   * @return the original record, if this was its last chunk, or null
+   *         otherwise
+   */
+  public byte[] add(byte[] rec, int offset, int reclen) {
+    if (rec[offset] != (byte)Monitor.CHUNK) {
+      Debug.gerr("not a chunk record: type " + rec[offset]);
+      return null;
+    }
+    int seq = ((rec[offset+3] & 0xff) << 24) | ((rec[offset+4] & 0xff) << 16) |
+              ((rec[offset+5] & 0xff) << 8) | (rec[offset+6] & 0xff);
+    if (seq != nextseq) {
+      Debug.gerr("chunk record out of sequence: expected " + nextseq +
+                 ", got " + seq);
+      return null;
+    }
+
+    if (len == 0) {
+      buf[len++] = rec[offset+1]; // the original record type
+    } else if (buf[0] != rec[offset+1]) {
+      Debug.gerr("chunk record type mismatch: expected " + buf[0] +
+                 ", got " + rec[offset+1]);
+      return null;
+    }
+
+    int n = reclen - HEADER_SIZE;
+    if (len + n > buf.length) {
+      byte[] newbuf = new byte[Math.max(2*buf.length, len+n)];
+      System.arraycopy(buf, 0, newbuf, 0, len);
+      buf = newbuf;
+    }
+    System.arraycopy(rec, offset+HEADER_SIZE, buf, len, n);
+    len += n;
+
+    if (rec[offset+2] != 0) { // more chunks to come
+      nextseq++;
+      return null;
+    }
+
+    byte[] whole = new byte[len];
+    System.arraycopy(buf, 0, whole, 0, len);
+    len = 0;
+    nextseq = 0;
+    return whole;
+  }
+
+} // end class ChunkAssembler
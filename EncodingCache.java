@@ -0,0 +1,191 @@
+/**
+ * EncodingCache.java
+ */
+
+
+package SSF.OS.BGP4;
+
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+
+// ===== class SSF.OS.BGP4.EncodingCache =================================== //
+/**
+ * A bounded cache of pre-encoded byte sequences, used by the monitor to
+ * avoid re-encoding the same NHI addresses, AS numbers, and prefixes in every
+ * record.  Encodings may be keyed either by a <code>long</code> (such as an
+ * AS number or a packed prefix), which is never boxed, or by an object (such
+ * as an NHI address string).
+ * <p>
+ * The cache is direct-mapped: each key has exactly one slot in which it may
+ * be kept, and caching an encoding replaces whatever was in its slot.  The
+ * entries in the slots are immutable, so lookups and insertions take no
+ * locks, and BGP speakers running in different threads never contend with
+ * one another.  Two threads which encode the same key at once simply both
+ * cache it, and one of the (identical) encodings wins.
+ * <p>
+ * Encodings depend on the number of bytes used per integer, so caches must be
+ * cleared whenever that changes.
+ * @see Monitor#set_bytes_per_int
+ */
+public class EncodingCache {
+
+  // ===== inner class Entry =============================================== //
+  /**
+   * A cached encoding and its key.
+   */
+  private static final class Entry {
+    /** The key, when the key is a <code>long</code>. */
+    final long key;
+
+    /** The key, when the key is an object, or null otherwise. */
+    final Object okey;
+
+    /** The encoding. */
+    final byte[] enc;
+
+    Entry(long k, Object ok, byte[] e) {
+      key = k;
+      okey = ok;
+      enc = e;
+    }
+  } // end inner class Entry
+
+
+  // ........................ member data ........................ //
+
+  /** The slots, each of which holds at most one entry. */
+  private final AtomicReferenceArray slots;
+
+  /** One less than the number of slots, which is a power of two. */
+  private final int mask;
+
+  /** The number of lookups which found an encoding. */
+  private final LongAdder hits = new LongAdder();
+
+  /** The number of lookups which did not find an encoding. */
+  private final LongAdder misses = new LongAdder();
+
+
+  // ----- EncodingCache(int) ---------------------------------------------- //
+  /**
+   * Constructs a cache which holds at most the given number of encodings,
+   * rounded up to a power of two.
+   *
+   * @param capacity  The maximum number of encodings to hold.
+   */
+  public EncodingCache(int capacity) {
+    int n = 1;
+    while (n < capacity) {
+      n <<= 1;
+    }
+    slots = new AtomicReferenceArray(n);
+    mask = n - 1;
+  }
+
+  // ----- slot ------------------------------------------------------------ //
+  /**
+   * Returns the slot in which an entry with the given hash code belongs.
+   */
+  private int slot(int h) {
+    h ^= (h >>> 16);
+    h *= 0x85ebca6b;
+    h ^= (h >>> 13);
+    return h & mask;
+  }
+
+  // ----- slot ------------------------------------------------------------ //
+  /**
+   * Returns the slot in which an entry with the given <code>long</code> key
+   * belongs.
+   */
+  private int slot(long key) {
+    return slot((int)(key ^ (key >>> 32)));
+  }
+
+  // ----- found ----------------------------------------------------------- //
+  /**
+   * Counts a lookup and returns its result.
+   */
+  private byte[] found(byte[] enc) {
+    if (enc == null) {
+      misses.increment();
+    } else {
+      hits.increment();
+    }
+    return enc;
+  }
+
+  // ----- get(long) ------------------------------------------------------- //
+  /**
+   * Returns the encoding cached for the given key.
+   *
+   * @param key  The key whose encoding is wanted.
+   * @return the encoding, or null if none is cached
+   */
+  public byte[] get(long key) {
+    Entry e = (Entry)slots.get(slot(key));
+    return found((e != null && e.okey == null && e.key == key) ? e.enc
+                                                                 : null);
+  }
+
+  // ----- get(Object) ----------------------------------------------------- //
+  /**
+   * Returns the encoding cached for the given key.
+   *
+   * @param key  The key whose encoding is wanted.
+   * @return the encoding, or null if none is cached
+   */
+  public byte[] get(Object key) {
+    Entry e = (Entry)slots.get(slot(key.hashCode()));
+    return found((e != null && key.equals(e.okey)) ? e.enc : null);
+  }
+
+  // ----- put(long,byte[]) ------------------------------------------------ //
+  /**
+   * Caches an encoding for the given key.  The encoding must not be modified
+   * afterwards.
+   *
+   * @param key  The key.
+   * @param enc  The encoding.
+   */
+  public void put(long key, byte[] enc) {
+    slots.set(slot(key), new Entry(key, null, enc));
+  }
+
+  // ----- put(Object,byte[]) ---------------------------------------------- //
+  /**
+   * Caches an encoding for the given key.  The encoding must not be modified
+   * afterwards.
+   *
+   * @param key  The key.
+   * @param enc  The encoding.
+   */
+  public void put(Object key, byte[] enc) {
+    slots.set(slot(key.hashCode()), new Entry(0L, key, enc));
+  }
+
+  // ----- clear ----------------------------------------------------------- //
+  /**
+   * Removes all cached encodings.
+   */
+  public void clear() {
+    for (int i=0; i<=mask; i++) {
+      slots.set(i, null);
+    }
+  }
+
+  // ----- toString -------------------------------------------------------- //
+  /**
+   * Returns a summary of the cache's effectiveness.  No lookup is ever
+   * missed by the counts, though lookups made while the summary is being
+   * taken may or may not be included.
+   *
+   * @return a summary of the cache's effectiveness
+   */
+  public String toString() {
+    return hits.sum() + " hits, " + misses.sum() + " misses";
+  }
+
+} // end class EncodingCache
@@ -390,6 +390,43 @@ public class Global {
    *  options which can be overridden by individual BGP instances.  */
   public static boolean[] opt;
 
+  /** The global default values of the same options as <code>opt</code>, one
+   *  bit per option, with bit <i>i</i> holding <code>opt[i]</code>. */
+  public static long opts = 0L;
+
+  /** The global default fraction of records of each type which are kept,
+   *  indexed by record type.  It is null if no sampling ratios were
+   *  configured, in which case every record is kept.
+   *  @see Monitor#opt_base_name */
+  public static double[] sample_ratio = null;
+
+  /** The global default limit on the number of records of each type which
+   *  are kept per second of simulation time, indexed by record type.  Zero
+   *  means no limit.  It is null if no rate limits were configured. */
+  public static double[] rate_limit = null;
+
+  /** The seed used to derive each BGP speaker's record sampler, so that runs
+   *  which use sampling are reproducible. */
+  public static long sample_seed = 0L;
+
+  /** The global default width, in seconds of simulation time, of the bins
+   *  into which events are counted instead of being recorded individually.
+   *  Zero (the default) means that events are recorded individually.
+   *  @see Monitor#BIN_EVENT */
+  public static double bin_width = 0.0;
+
+  /** Whether or not performance metrics are collected and summarized at
+   *  wrapup.
+   *  @see Metrics */
+  public static boolean metrics = false;
+
+  /** Whether or not flows between hosts are tracked through the BGP
+   *  speakers' forwarding tables.  Since it is read before any BGP speaker
+   *  is configured, every speaker's monitor reports forwarding table
+   *  changes to the tracker, no matter when the tracker is installed.
+   *  @see Monitor#fwd_listener */
+  public static boolean track_flows = false;
+
   /** Whether or not a BGP speaker should automatically advertise its AS's
    *  network prefix to all neighbors. */
   public static boolean auto_advertise = true;
@@ -441,25 +478,22 @@ public class Global {
    *  described. */
   public static boolean simple_policy = false;
 
-  /** Not intended for general use.  Whether or not the simulation should
-   *  automatically end once a given period of time has elapsed during which no
-   *  BGP speakers sent any updates.  The functionality is tied to a specific
-   *  type of experiment, and will not work properly in general. */
+  /** Whether or not the simulation should automatically end once a given
+   *  period of time has elapsed during which every BGP speaker was stable and
+   *  no updates were in flight.  Wrap-up functions (such as table dumps) are
+   *  still run.  It has no effect in a distributed simulation.
+   *  @see Quiescence */
   public static boolean autoexit = false;
 
-  /** Not intended for general use.  The minimum number of seconds which must
-   *  elapse, during which no BGP speaker sent any updates, before a simulation
-   *  can automatically exit early. */
+  /** The minimum number of seconds which must elapse, during which every BGP
+   *  speaker was stable, before a simulation can automatically exit early. */
   public static int autoexit_interval = 1000;
 
   /** The total number of BGP speakers in the simulation.  This is not accurate
-   *  in a distributed simulation. */
+   *  in a distributed simulation.
+   *  @see Quiescence#num_speakers */
   public static int numbgps = 0;
 
-  /** The total number of BGP speakers which have indicated that they have
-   *  reached a static state and are ready to exit the simulation. */
-  public static int exitbgps = 0;
-
   /** Indicates whether or not this simulation is a validation test (-1 means
    *  it isn't, non-negative means it is) and if so, which test number it
    *  is. */
@@ -482,6 +516,47 @@ public class Global {
    *  turned on. */
   public static boolean printing = true;
 
+  /** Whether or not output records should be handed off to a background
+   *  thread to be streamed and/or printed, rather than being written out
+   *  inline by the BGP speaker which generated them.  The default is that
+   *  records are written out inline.
+   *  @see TraceWriter */
+  public static boolean async_output = false;
+
+  /** The number of records which can be waiting to be written out at once
+   *  when <code>async_output</code> is in use.  It is rounded up to a power
+   *  of two. */
+  public static int async_queue_size = 8192;
+
+  /** What to do with a record when <code>async_output</code> is in use and
+   *  the queue of records waiting to be written out is full.  The default is
+   *  to wait for room in the queue.
+   *  @see TraceWriter#BLOCK
+   *  @see TraceWriter#DROP
+   *  @see TraceWriter#SPILL */
+  public static int async_backpressure = TraceWriter.BLOCK;
+
+  /** Whether or not integers in output records should be encoded using a
+   *  variable number of bytes, rather than a fixed number.  Small values,
+   *  which are the most common, then take only one byte, and there is no
+   *  limit on the size of NHI address components or AS numbers.  The default
+   *  is to use a fixed number of bytes.
+   *  @see Monitor#varint2bytes */
+  public static boolean varint_records = false;
+
+  /** Whether or not IP address prefixes and AS paths in output records
+   *  should be replaced by references into a per-speaker dictionary, with
+   *  each one being written out in full only the first time it is seen.  The
+   *  default is to write them out in full every time.
+   *  @see TraceDictionary */
+  public static boolean dictionary_records = false;
+
+  /** The name of the indexed trace file to which streamed records are also
+   *  written, or null if there is none.  It is shared by all BGP speakers in
+   *  the JVM.
+   *  @see TraceFileWriter */
+  public static String trace_file = null;
+
   /** Whether or not the down phase of a certain type of experiment has yet
    *  begun.  Not to be used in normal BGP operation. */
   public static boolean downphase = false;
@@ -501,16 +576,6 @@ public class Global {
    */
   public static long synch_time = -1;
 
-  /** Keeps track of the last time a BGP speaker indicated a change in its
-   *  stability status.  For use with the autoexit option. */
-  private static double last_stability_change = 0.0;
-
-  /** A timer used with the autoexit option to decrease the probability of a
-   *  simulation exiting before all BGP speakers stabilize.  It basically
-   *  causes the simulation to wait an extra autoexit_interval before actually
-   *  ending. */
-  private static AutoExitConfirmTimer exitTimer;
-
 
   // ----- config ---------------------------------------------------------- //
   /**
@@ -546,6 +611,56 @@ public class Global {
       if (str != null) {
         opt[i] = Boolean.valueOf(str).booleanValue();
         is_output = is_output || opt[i];
+        if (opt[i]) {
+          opts |= (1L << i);
+        }
+      }
+    }
+
+    // handle the per-type sampling ratios and rate limits, which are looked
+    // for only if there is a record_limits block
+    Configuration lcfg = (Configuration)cfg.findSingle("record_limits");
+    if (lcfg != null) {
+      for (int i=0; i<Monitor.num_bool_opts; i++) {
+        str = (String)lcfg.findSingle(Monitor.sample_opt_names[i]);
+        if (str != null) {
+          if (sample_ratio == null) {
+            sample_ratio = new double[Monitor.num_bool_opts];
+            Arrays.fill(sample_ratio, 1.0);
+          }
+          sample_ratio[i] = Double.parseDouble(str);
+        }
+        str = (String)lcfg.findSingle(Monitor.rate_limit_opt_names[i]);
+        if (str != null) {
+          if (rate_limit == null) {
+            rate_limit = new double[Monitor.num_bool_opts];
+          }
+          rate_limit[i] = Double.parseDouble(str);
+        }
+      }
+    }
+
+    str = (String)cfg.findSingle("sample_seed");
+    if (str != null) {
+      sample_seed = Long.parseLong(str);
+    }
+
+    str = (String)cfg.findSingle("metrics");
+    if (str != null) {
+      metrics = Boolean.valueOf(str).booleanValue();
+      Metrics.enabled = metrics;
+    }
+
+    str = (String)cfg.findSingle("track_flows");
+    if (str != null) {
+      track_flows = Boolean.valueOf(str).booleanValue();
+    }
+
+    str = (String)cfg.findSingle("bin_width");
+    if (str != null) {
+      bin_width = Double.parseDouble(str);
+      if (bin_width < 0.0) {
+        Debug.gerr("bin_width must be >= 0");
       }
     }
 
@@ -560,6 +675,53 @@ public class Global {
       printing = Boolean.valueOf(str).booleanValue();
     }
 
+    str = (String)cfg.findSingle("varint_records");
+    if (str != null) {
+      varint_records = Boolean.valueOf(str).booleanValue();
+      if (varint_records) {
+        Monitor.set_bytes_per_int(0);
+      }
+    }
+
+    str = (String)cfg.findSingle("dictionary_records");
+    if (str != null) {
+      dictionary_records = Boolean.valueOf(str).booleanValue();
+    }
+
+    str = (String)cfg.findSingle("trace_file");
+    if (str != null) {
+      trace_file = str;
+    }
+
+    str = (String)cfg.findSingle("async_output");
+    if (str != null) {
+      async_output = Boolean.valueOf(str).booleanValue();
+    }
+
+    str = (String)cfg.findSingle("async_queue_size");
+    if (str != null) {
+      int size = 0;
+      try {
+        size = Integer.parseInt(str);
+      } catch (NumberFormatException e) {
+        // reported below
+      }
+      if (size < 1) {
+        Debug.gerr("async_queue_size must be an integer > 0: " + str);
+      } else {
+        async_queue_size = size;
+      }
+    }
+
+    str = (String)cfg.findSingle("async_backpressure");
+    if (str != null) {
+      async_backpressure = TraceWriter.policy_code(str);
+      if (async_backpressure < 0) {
+        Debug.gerr("unrecognized async_backpressure value: " + str +
+                   " (must be 'block', 'drop', or 'spill')");
+      }
+    }
+
     str = (String)cfg.findSingle("use_nhi_addressing");
     if (str != null) {
       Monitor.usenhi = Boolean.valueOf(str).booleanValue();
@@ -1172,54 +1334,18 @@ public class Global {
 
   } // end of config()
 
-  // ===== inner class AutoExitConfirmTimer ================================ //
-  /**
-   * A timer used to give BGP speakers a little extra time to make sure they're
-   * stable before an early exit is executed.
-   */
-  private static class AutoExitConfirmTimer extends SSF.OS.Timer {
-    private BGPSession b;
-
-    /** Construct a timer with the given duration. */
-    public AutoExitConfirmTimer(BGPSession bs) {
-      super(bs.inGraph(), Net.seconds(Global.autoexit_interval));
-      b = bs;
-    }
-
-    /** A method to be performed when the timer expires.  It checks to see if
-     *  all BGPs are still stable since it was set.  If so, it exits. */
-    public void callback() {
-      if (exitbgps == numbgps &&
-          Global.last_stability_change <= 
-                                 b.nowsec()-(double)Global.autoexit_interval) {
-        Debug.gmsg(b.nowsec() + "  all BGPs stable; exiting simulation early");
-        System.exit(0);
-      }
-    }
-  } // end inner class AutoExitTimer
-
   // ----- exit_ok --------------------------------------------------------- //
   /**
-   * Increments or decrements the number of stable BGP speakers in the
-   * simulation.  If the total reaches the number of BGP speakers, the
-   * simulation exits early.
+   * Records a change in a BGP speaker's stability status.  If every BGP
+   * speaker is stable and the <code>autoexit</code> option is in use, the
+   * simulation ends early.
+   * @see Quiescence
    *
    * @param b   The BGPSession whose stability status is changing.
-   * @param ok  Whether to increment or decrement.
+   * @param ok  Whether it has become stable or unstable.
    */
-  public static synchronized void exit_ok(BGPSession b, boolean ok) {
-    if (ok) {
-      exitbgps++;
-    } else {
-      exitbgps--;
-    }
-    last_stability_change = b.nowsec();
-    if (exitbgps >= numbgps-1) {
-      if (exitbgps == numbgps) {
-        exitTimer = new AutoExitConfirmTimer(b);
-        exitTimer.set();
-      }
-    }
+  public static void exit_ok(BGPSession b, boolean ok) {
+    Quiescence.stable(b, ok);
   }
 
   // ----- validation_msg -------------------------------------------------- //
@@ -1496,17 +1622,15 @@ public class Global {
                            "below and no TEST FAILED messages follow it");
         System.out.println(hr + "\n" + pf);
         break;
-      case 1:
-        numdata[0]++;
-        // if (numdata[0]%(32*31)==0) {
-        System.out.println(numdata[0] + " Messages received\n");
-          // each of the 32 hosts sends one message to every other host
-          // System.out.println(pf + " ALL MESSAGES RECEIVED\n" + pf);
-        // } 
-        // else if (numdata[0] > 32*31) {
-        //   System.out.println(failuremsg +
-        //                      "   (too many messages were received)");
-        // }
+      case 1: // periodic progress summary from the delivery matrix
+        System.out.println(pf + " " + o);
+        break;
+      case 2: // final verdict from the delivery matrix
+        if (((Boolean)o).booleanValue()) {
+          System.out.println(pf + " ALL MESSAGES RECEIVED\n" + pf);
+        } else {
+          System.out.println(failuremsg + "   (see the delivery report)");
+        }
         break;
       }
       break;      
@@ -0,0 +1,325 @@
+/**
+ * MRTInjector.java
+ */
+
+
+package SSF.OS.BGP4;
+
+
+import java.io.*;
+import java.nio.*;
+import com.renesys.raceway.SSF.*;
+import com.renesys.raceway.DML.*;
+import SSF.Net.*;
+import SSF.OS.*;
+import SSF.OS.BGP4.Comm.*;
+import SSF.OS.BGP4.Timing.Timer;
+import SSF.OS.BGP4.Path.*;
+import SSF.OS.BGP4.Util.*;
+
+
+// ===== class SSF.OS.BGP4.MRTInjector ===================================== //
+/**
+ * Replays the routes and updates in an MRT file (see {@link MRTReader}) into
+ * a simulated network.  Like the testers, it masquerades as a
+ * ProtocolSession so that it can be dropped into a simulation by modifying
+ * only the DML file.  It must be placed in the protocol graph of a BGP
+ * speaker, and it sends everything it reads from the file to one of that
+ * speaker's neighbors, as though the speaker itself had advertised it.  For
+ * example:
+ * <pre>
+ *   ProtocolSession [ name mrt use SSF.OS.BGP4.MRTInjector
+ *     mrt_file "rib.20250101.0000.mrt"
+ *     peer     "2:1"       # NHI of the neighbor to inject into
+ *     start    10.0        # when to begin, in seconds of simulation time
+ *     mrt_peer 192.0.2.1   # (optional) collector peer to replay
+ *   ]
+ * </pre>
+ * A TABLE_DUMP_V2 RIB dump is sent as one burst at the start time, since
+ * every record in it carries the same dump time.  Updates from BGP4MP
+ * records are sent at the start time plus their offset from the first record
+ * in the file, so a RIB dump followed by the update dumps which succeed it
+ * (concatenated into one file) first loads the neighbor's tables and then
+ * plays back the recorded churn.  If <code>mrt_peer</code> is given, only
+ * routes and updates from that collector peer are replayed.  Otherwise the
+ * first route for each prefix in a RIB dump is used, and updates from every
+ * collector peer are replayed.
+ * <p>
+ * Each route's AS path is the one from the file with the AS of the injecting
+ * speaker prepended, and its next hop is the injecting speaker.  AS numbers
+ * from the file are used as AS NHI prefixes, so a path loops back only if
+ * the simulated topology happens to reuse one of them.  The file is streamed
+ * from a memory-mapped window, so dumps of full tables can be replayed
+ * without being loaded onto the heap first.
+ */
+public class MRTInjector extends ProtocolSession {
+
+  // ........................ member data .......................... //
+
+  /** The BGPSession with which this injector is associated. */
+  private BGPSession bgp;
+
+  /** The name of the MRT file to replay. */
+  private String mrt_file;
+
+  /** The NHI address of the neighbor to which routes are injected. */
+  private String peer_nh;
+
+  /** The simulation time, in seconds, at which to begin the replay. */
+  private double start = 10.0;
+
+  /** The IPv4 address of the collector peer whose routes are replayed, or
+   *  zero to replay those of all collector peers. */
+  private int mrt_peer = 0;
+
+  /** Whether or not the setup work has been done yet. */
+  private boolean setup = false;
+
+  // ----- MRTInjector() --------------------------------------------------- //
+  /**
+   * We must have a zero-argument, public constructor (so that
+   * <code>newInstance()</code> can be used to create a new
+   * <code>MRTInjector</code> instance).
+   */
+  public MRTInjector() {
+  }
+
+  // ----- config ---------------------------------------------------------- //
+  /**
+   * Set the configurable values (specified in DML file).
+   */
+  public void config(Configuration cfg) throws configException {
+    super.config(cfg);
+
+    mrt_file = (String)cfg.findSingle("mrt_file");
+    if (mrt_file == null) {
+      Debug.gerr("MRTInjector requires the mrt_file attribute");
+    }
+    peer_nh = (String)cfg.findSingle("peer");
+    if (peer_nh == null) {
+      Debug.gerr("MRTInjector requires the peer attribute");
+    }
+
+    String str = (String)cfg.findSingle("start");
+    if (str != null) {
+      start = Double.parseDouble(str);
+    }
+    str = (String)cfg.findSingle("mrt_peer");
+    if (str != null) {
+      mrt_peer = new IPaddress(str).intval();
+    }
+  }
+
+  // ----- init ------------------------------------------------------------ //
+  /**
+   * Creates the SSF process which replays the file.
+   */
+  public void init() throws ProtocolException {
+    new Replay(inGraph());
+  }
+
+  // ----- now ------------------------------------------------------------- //
+  /**
+   * Returns the current simulation time.
+   *
+   * @return the current simulation time, in seconds
+   */
+  public double now() {
+    return ((double)(inGraph().now()))/((double)Net.frequency);
+  }
+
+  // ----- push ------------------------------------------------------------ //
+  /**
+   * Handles incoming events.
+   */
+  public boolean push(ProtocolMessage message, ProtocolSession fromSession) {
+    // there will never be any incoming events in this pseudo-ProtocolSession
+    throw new Error("MRTInjector.push() called");
+  }
+
+
+  // ===== inner class Replay ============================================== //
+  /**
+   * The SSF process which reads the MRT file and sends its contents to the
+   * neighbor, waiting as necessary so that each record is sent at the
+   * simulation time corresponding to its time in the file.
+   */
+  private class Replay extends process implements MRTReader.Handler {
+
+    /** The neighbor to which routes are injected. */
+    private PeerEntry peer;
+
+    /** The time of the first record in the file, in seconds, or a negative
+     *  number if no record has been read yet. */
+    private double first = -1.0;
+
+    /** The IPv4 addresses of the collector peers in the most recent peer
+     *  index table. */
+    private int[] peerips = new int[0];
+
+    /** The prefix of the previous RIB entry, so that only one route per
+     *  prefix is used when no collector peer is given. */
+    private IPaddress lastprefix = null;
+
+    /** The number of routes advertised to the neighbor so far. */
+    private long numads = 0;
+
+    /** The number of withdrawals sent to the neighbor so far. */
+    private long numwds = 0;
+
+    // ----- Replay(ProtocolGraph) ----------------------------------------- //
+    /**
+     * Constructs the replay process.
+     */
+    Replay(ProtocolGraph g) {
+      super(g);
+    }
+
+    // ----- isSimple ------------------------------------------------------ //
+    /**
+     * The process waits in the middle of reading the file, so it isn't a
+     * simple process.
+     */
+    public boolean isSimple() {
+      return false;
+    }
+
+    // ----- action -------------------------------------------------------- //
+    /**
+     * Finds the BGP session and neighbor on the first call, and replays the
+     * file on the second.
+     */
+    public void action() {
+      if (!setup) {
+        try {
+          bgp = (BGPSession)inGraph().SessionForName("bgp");
+        } catch (ProtocolException pex) {
+          throw new Error("MRTInjector couldn't get handle to BGP");
+        }
+        int peerind = bgp.nh2peerind(peer_nh);
+        if (peerind < 0) {
+          Debug.gerr("MRTInjector: " + peer_nh + " is not a neighbor of " +
+                     bgp.nh);
+        }
+        peer = bgp.nbs[peerind];
+        setup = true;
+      } else {
+        if (start > now()) {
+          waitFor(Net.seconds(start - now()));
+        }
+        try {
+          MRTReader reader = new MRTReader(mrt_file);
+          reader.read(this);
+          reader.close();
+        } catch (IOException ioe) {
+          Debug.gerr("couldn't read MRT file " + mrt_file + ": " + ioe);
+        }
+        bgp.debug.msg("MRT replay done: " + numads + " routes and " +
+                      numwds + " withdrawals sent to " + peer_nh);
+        waitForever();
+      }
+    }
+
+    // ----- wait_until ---------------------------------------------------- //
+    /**
+     * Waits until the simulation time corresponding to the given time in
+     * the file.
+     */
+    private void wait_until(double time) {
+      if (first < 0.0) {
+        first = time;
+      }
+      double target = start + (time - first);
+      if (target > now()) {
+        waitFor(Net.seconds(target - now()));
+      }
+    }
+
+    // ----- make_route ---------------------------------------------------- //
+    /**
+     * Builds a route to the given prefix from encoded path attributes.
+     */
+    private Route make_route(IPaddress prefix, ByteBuffer attribs,
+                             boolean as4) {
+      Route rte = new Route();
+      rte.set_nlri(prefix);
+      if (!Global.basic_attribs) {
+        ByteBuffer origin = MRTReader.find_attribute(attribs, 1);
+        // MRT files use the BGP origin codes, as do the Origin constants
+        rte.set_origin((origin == null) ? Origin.IGP : (origin.get(0)&0xff));
+      }
+      int[] path = MRTReader.aspath(attribs, as4);
+      for (int i=path.length-1; i>=0; i--) {
+        rte.prepend_as("" + (path[i] & 0xffffffffL));
+      }
+      rte.prepend_as(bgp.as_nh);
+      rte.set_nexthop(peer.return_ip);
+      return rte;
+    }
+
+    // ----- send ---------------------------------------------------------- //
+    /**
+     * Sends an update message to the neighbor.
+     */
+    private void send(UpdateMessage msg) {
+      bgp.force_send(msg, peer, 0);
+      bgp.reset_timer(peer, Timer.KEEPALIVE);
+      bgp.reset_timer(peer, Timer.HOLD);
+    }
+
+    // ----- peer_index ---------------------------------------------------- //
+    /**
+     * Remembers the collector peers so that RIB entries can be matched
+     * against <code>mrt_peer</code>.
+     */
+    public void peer_index(int collector, int[] peerips, int[] peerases) {
+      this.peerips = peerips;
+    }
+
+    // ----- rib_entry ----------------------------------------------------- //
+    /**
+     * Advertises one route from a RIB dump.
+     */
+    public void rib_entry(double time, IPaddress prefix, int peerind,
+                          int otime, ByteBuffer attribs) {
+      if (mrt_peer != 0) {
+        if (peerind >= peerips.length || peerips[peerind] != mrt_peer) {
+          return;
+        }
+      } else if (prefix == lastprefix) {
+        return; // already have a route to this prefix
+      }
+      lastprefix = prefix;
+      wait_until(time);
+      send(new UpdateMessage(bgp.nh, make_route(prefix, attribs, true)));
+      numads++;
+    }
+
+    // ----- update -------------------------------------------------------- //
+    /**
+     * Sends the withdrawals and advertisements from a recorded update.
+     */
+    public void update(double time, int peeras, int peerip, IPaddress[] wds,
+                       ByteBuffer attribs, IPaddress[] nlri, boolean as4) {
+      if (mrt_peer != 0 && peerip != mrt_peer) {
+        return;
+      }
+      if (wds.length == 0 && nlri.length == 0) {
+        return; // nothing to replay
+      }
+      wait_until(time);
+      UpdateMessage msg = new UpdateMessage(bgp.nh);
+      for (int i=0; i<wds.length; i++) {
+        msg.add_wd(wds[i]);
+      }
+      for (int i=0; i<nlri.length; i++) {
+        msg.add_route(make_route(nlri[i], attribs, as4));
+      }
+      send(msg);
+      numwds += wds.length;
+      numads += nlri.length;
+    }
+
+  } // end inner class Replay
+
+} // end class MRTInjector
@@ -0,0 +1,415 @@
+/**
+ * MRTReader.java
+ */
+
+
+package SSF.OS.BGP4;
+
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import SSF.OS.BGP4.Util.*;
+
+
+// ===== class SSF.OS.BGP4.MRTReader ======================================= //
+/**
+ * Reads BGP routing data from a file in MRT format (RFC 6396), such as the
+ * RIB dumps and update dumps published by route collectors.
+ * <code>TABLE_DUMP_V2</code> peer index tables and IPv4 unicast RIB entries
+ * are understood, as are <code>BGP4MP_MESSAGE</code> and
+ * <code>BGP4MP_MESSAGE_AS4</code> records holding update messages.  Other
+ * records are skipped.
+ * <p>
+ * The file is memory-mapped, a window at a time, so that dumps of full
+ * Internet tables can be streamed without being copied onto the heap.  Each
+ * record is decoded and passed to a {@link Handler}, which decides what to do
+ * with it (for example, loading routes into the RIBs of a BGP speaker before
+ * the simulation starts, or scheduling updates to be injected at the
+ * simulation times recorded in the dump).  Path attributes are handed over
+ * still encoded, as a view of the mapped file; the static
+ * <code>find_attribute</code> and <code>aspath</code> methods can be used to
+ * pick them apart.
+ */
+public class MRTReader {
+
+  // ......................... constants ......................... //
+
+  /** The BGP4MP subtype for BGP messages with two-byte AS numbers. */
+  public static final int BGP4MP_MESSAGE = 1;
+
+  /** The size of the window of the file which is mapped at one time. */
+  private static final long WINDOW_SIZE = 1L<<30;
+
+
+  // ===== interface Handler =============================================== //
+  /**
+   * Receives the decoded contents of an MRT file.
+   */
+  public interface Handler {
+    /**
+     * Handles a TABLE_DUMP_V2 peer index table.  RIB entries which follow it
+     * refer to peers by their index in the given arrays.
+     *
+     * @param collector  The BGP ID of the collector.
+     * @param peerips    The IPv4 address of each peer (zero for IPv6 peers).
+     * @param peerases   The AS number of each peer.
+     */
+    void peer_index(int collector, int[] peerips, int[] peerases);
+
+    /**
+     * Handles one peer's route in a TABLE_DUMP_V2 RIB entry.
+     *
+     * @param time     The time of the dump, in seconds.
+     * @param prefix   The destination prefix.
+     * @param peerind  The index of the peer in the peer index table.
+     * @param otime    The time at which the route was originated.
+     * @param attribs  The encoded path attributes, with four-byte AS
+     *                 numbers.
+     */
+    void rib_entry(double time, IPaddress prefix, int peerind, int otime,
+                   ByteBuffer attribs);
+
+    /**
+     * Handles a BGP update message from a BGP4MP record.
+     *
+     * @param time     The time at which the update was received, in
+     *                 seconds.
+     * @param peeras   The AS number of the peer which sent the update.
+     * @param peerip   The IPv4 address of the peer which sent the update.
+     * @param wds      The withdrawn prefixes.
+     * @param attribs  The encoded path attributes.
+     * @param nlri     The advertised prefixes.
+     * @param as4      Whether or not AS numbers in the path attributes use
+     *                 four bytes.
+     */
+    void update(double time, int peeras, int peerip, IPaddress[] wds,
+                ByteBuffer attribs, IPaddress[] nlri, boolean as4);
+  } // end interface Handler
+
+
+  // ........................ member data ........................ //
+
+  /** The channel from which the file is read. */
+  private FileChannel in;
+
+  /** The size of the file, in bytes. */
+  private long size;
+
+  /** The currently mapped window of the file. */
+  private MappedByteBuffer win = null;
+
+  /** The position in the file at which the current window begins. */
+  private long winstart = 0;
+
+  /** The number of records read so far. */
+  private long numrecs = 0;
+
+  /** The number of records skipped because their type wasn't understood. */
+  private long skipped = 0;
+
+
+  // ----- MRTReader(String) ----------------------------------------------- //
+  /**
+   * Constructs a reader for the named MRT file.
+   *
+   * @param filename  The name of the file to read.
+   * @exception IOException  if the file cannot be opened
+   */
+  public MRTReader(String filename) throws IOException {
+    in = new FileInputStream(filename).getChannel();
+    size = in.size();
+  }
+
+  // ----- map ------------------------------------------------------------- //
+  /**
+   * Ensures that the given range of the file is within the mapped window,
+   * mapping a new window starting at the beginning of the range if
+   * necessary.
+   *
+   * @param pos  The position in the file at which the range begins.
+   * @param len  The number of bytes in the range.
+   * @exception IOException  if the file cannot be mapped
+   */
+  private void map(long pos, int len) throws IOException {
+    if (win == null || pos < winstart || pos+len > winstart+win.limit()) {
+      winstart = pos;
+      win = in.map(FileChannel.MapMode.READ_ONLY, pos,
+                   Math.min(Math.max(WINDOW_SIZE, len), size-pos));
+      win.order(ByteOrder.BIG_ENDIAN);
+    }
+    win.position((int)(pos - winstart));
+  }
+
+  // ----- read ------------------------------------------------------------ //
+  /**
+   * Reads the entire file, passing everything of interest to the given
+   * handler.
+   *
+   * @param h  The handler to pass the contents of the file to.
+   * @exception IOException  if there is an error reading the file
+   */
+  public void read(Handler h) throws IOException {
+    long pos = 0;
+    while (pos + MRTWriter.MRT_HEADER_SIZE <= size) {
+      map(pos, MRTWriter.MRT_HEADER_SIZE);
+      double time = win.getInt() & 0xffffffffL;
+      int typ     = win.getShort() & 0xffff;
+      int subtype = win.getShort() & 0xffff;
+      int len     = win.getInt();
+      if (len < 0 || pos + MRTWriter.MRT_HEADER_SIZE + len > size) {
+        Debug.gerr("truncated MRT record at offset " + pos);
+        return;
+      }
+
+      map(pos + MRTWriter.MRT_HEADER_SIZE, len);
+      ByteBuffer rec = win.slice();
+      rec.limit(len);
+
+      if (typ == MRTWriter.TABLE_DUMP_V2 &&
+          subtype == MRTWriter.PEER_INDEX_TABLE) {
+        read_peer_index(rec, h);
+      } else if (typ == MRTWriter.TABLE_DUMP_V2 &&
+                 subtype == MRTWriter.RIB_IPV4_UNICAST) {
+        read_rib_entries(time, rec, h);
+      } else if (typ == MRTWriter.BGP4MP &&
+                 (subtype == BGP4MP_MESSAGE ||
+                  subtype == MRTWriter.BGP4MP_MESSAGE_AS4)) {
+        read_message(time, rec, subtype==MRTWriter.BGP4MP_MESSAGE_AS4, h);
+      } else {
+        skipped++;
+      }
+      numrecs++;
+      pos += MRTWriter.MRT_HEADER_SIZE + len;
+    }
+  }
+
+  // ----- read_peer_index ------------------------------------------------- //
+  /**
+   * Decodes a TABLE_DUMP_V2 peer index table.
+   */
+  private void read_peer_index(ByteBuffer rec, Handler h) {
+    int collector = rec.getInt();
+    int viewlen = rec.getShort() & 0xffff;
+    rec.position(rec.position() + viewlen);
+    int numpeers = rec.getShort() & 0xffff;
+    int[] peerips  = new int[numpeers];
+    int[] peerases = new int[numpeers];
+    for (int i=0; i<numpeers; i++) {
+      int ptype = rec.get();
+      rec.getInt(); // peer BGP ID
+      if ((ptype & 1) != 0) { // IPv6 address
+        rec.position(rec.position() + 16);
+      } else {
+        peerips[i] = rec.getInt();
+      }
+      if ((ptype & 2) != 0) { // four-byte AS number
+        peerases[i] = rec.getInt();
+      } else {
+        peerases[i] = rec.getShort() & 0xffff;
+      }
+    }
+    h.peer_index(collector, peerips, peerases);
+  }
+
+  // ----- read_rib_entries ------------------------------------------------ //
+  /**
+   * Decodes a TABLE_DUMP_V2 RIB_IPV4_UNICAST record.
+   */
+  private void read_rib_entries(double time, ByteBuffer rec, Handler h) {
+    rec.getInt(); // sequence number
+    IPaddress prefix = get_prefix(rec);
+    int count = rec.getShort() & 0xffff;
+    for (int i=0; i<count; i++) {
+      int peerind = rec.getShort() & 0xffff;
+      int otime   = rec.getInt();
+      int attlen  = rec.getShort() & 0xffff;
+      ByteBuffer attribs = rec.slice();
+      attribs.limit(attlen);
+      h.rib_entry(time, prefix, peerind, otime, attribs);
+      rec.position(rec.position() + attlen);
+    }
+  }
+
+  // ----- read_message ---------------------------------------------------- //
+  /**
+   * Decodes a BGP4MP_MESSAGE or BGP4MP_MESSAGE_AS4 record.  Only IPv4
+   * update messages are passed on to the handler.
+   */
+  private void read_message(double time, ByteBuffer rec, boolean as4,
+                            Handler h) {
+    int peeras;
+    if (as4) {
+      peeras = rec.getInt();
+      rec.getInt(); // local AS number
+    } else {
+      peeras = rec.getShort() & 0xffff;
+      rec.getShort(); // local AS number
+    }
+    rec.getShort(); // interface index
+    int afi = rec.getShort() & 0xffff;
+    if (afi != 1) {
+      skipped++;
+      return; // not IPv4
+    }
+    int peerip = rec.getInt();
+    rec.getInt(); // local IP address
+
+    int bgpstart = rec.position();
+    rec.position(bgpstart + 16); // skip marker
+    int msglen = rec.getShort() & 0xffff;
+    int msgtyp = rec.get();
+    if (msgtyp != 2) {
+      return; // not an update
+    }
+    int msgend = bgpstart + msglen;
+
+    int wdlen = rec.getShort() & 0xffff;
+    IPaddress[] wds = get_prefixes(rec, rec.position() + wdlen);
+
+    int palen = rec.getShort() & 0xffff;
+    ByteBuffer attribs = rec.slice();
+    attribs.limit(palen);
+    rec.position(rec.position() + palen);
+
+    IPaddress[] nlri = get_prefixes(rec, msgend);
+    h.update(time, peeras, peerip, wds, attribs, nlri, as4);
+  }
+
+  // ----- get_prefix ------------------------------------------------------ //
+  /**
+   * Decodes an IPv4 prefix encoded as a prefix length followed by only as
+   * many bytes of the address as the prefix length requires.
+   *
+   * @param bb  The buffer to decode from.
+   * @return the prefix
+   */
+  public static IPaddress get_prefix(ByteBuffer bb) {
+    int preflen = bb.get() & 0xff;
+    int ipint = 0;
+    int numbytes = (preflen + 7) >> 3;
+    for (int i=0; i<numbytes; i++) {
+      ipint |= (bb.get() & 0xff) << (24-8*i);
+    }
+    return new IPaddress(ipint, preflen);
+  }
+
+  // ----- get_prefixes ---------------------------------------------------- //
+  /**
+   * Decodes a sequence of IPv4 prefixes which ends at the given position.
+   */
+  private static IPaddress[] get_prefixes(ByteBuffer bb, int end) {
+    int start = bb.position();
+    int n = 0;
+    while (bb.position() < end) { // count them first
+      int preflen = bb.get() & 0xff;
+      bb.position(bb.position() + ((preflen + 7) >> 3));
+      n++;
+    }
+    bb.position(start);
+    IPaddress[] prefixes = new IPaddress[n];
+    for (int i=0; i<n; i++) {
+      prefixes[i] = get_prefix(bb);
+    }
+    return prefixes;
+  }
+
+  // ----- find_attribute -------------------------------------------------- //
+  /**
+   * Finds the value of the path attribute with the given type code among
+   * encoded path attributes.
+   *
+   * @param attribs  The encoded path attributes.
+   * @param typ      The attribute type code.
+   * @return a view of the attribute's value, or null if there is no such
+   *         attribute
+   */
+  public static ByteBuffer find_attribute(ByteBuffer attribs, int typ) {
+    ByteBuffer bb = attribs.duplicate();
+    while (bb.hasRemaining()) {
+      int flags = bb.get() & 0xff;
+      int t = bb.get() & 0xff;
+      int len;
+      if ((flags & 16) != 0) { // extended length
+        len = bb.getShort() & 0xffff;
+      } else {
+        len = bb.get() & 0xff;
+      }
+      if (t == typ) {
+        ByteBuffer val = bb.slice();
+        val.limit(len);
+        return val;
+      }
+      bb.position(bb.position() + len);
+    }
+    return null;
+  }
+
+  // ----- aspath ---------------------------------------------------------- //
+  /**
+   * Returns the AS numbers in the AS_PATH attribute among encoded path
+   * attributes, in order, with segment boundaries ignored.
+   *
+   * @param attribs  The encoded path attributes.
+   * @param as4      Whether or not AS numbers are encoded using four bytes.
+   * @return the AS numbers in the path, or an empty array if there is no
+   *         AS_PATH attribute
+   */
+  public static int[] aspath(ByteBuffer attribs, boolean as4) {
+    ByteBuffer val = find_attribute(attribs, 2);
+    if (val == null) {
+      return new int[0];
+    }
+    int n = 0;
+    while (val.hasRemaining()) { // count them first
+      val.get(); // segment type
+      int seglen = val.get() & 0xff;
+      val.position(val.position() + seglen * (as4?4:2));
+      n += seglen;
+    }
+    val.rewind();
+    int[] path = new int[n];
+    int i = 0;
+    while (val.hasRemaining()) {
+      val.get(); // segment type
+      int seglen = val.get() & 0xff;
+      for (int j=0; j<seglen; j++) {
+        path[i++] = as4 ? val.getInt() : (val.getShort() & 0xffff);
+      }
+    }
+    return path;
+  }
+
+  // ----- close ----------------------------------------------------------- //
+  /**
+   * Closes the file.
+   *
+   * @exception IOException  if there is an error closing the file
+   */
+  public void close() throws IOException {
+    win = null;
+    in.close();
+  }
+
+  // ----- num_records ----------------------------------------------------- //
+  /**
+   * Returns the number of records read so far.
+   *
+   * @return the number of records read so far
+   */
+  public long num_records() {
+    return numrecs;
+  }
+
+  // ----- num_skipped ----------------------------------------------------- //
+  /**
+   * Returns the number of records skipped so far because they were of a type
+   * that isn't understood.
+   *
+   * @return the number of records skipped so far
+   */
+  public long num_skipped() {
+    return skipped;
+  }
+
+} // end class MRTReader
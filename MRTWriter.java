@@ -0,0 +1,554 @@
+/**
+ * MRTWriter.java
+ */
+
+
+package SSF.OS.BGP4;
+
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import SSF.OS.BGP4.Comm.*;
+import SSF.OS.BGP4.Path.*;
+import SSF.OS.BGP4.Util.*;
+
+
+// ===== class SSF.OS.BGP4.MRTWriter ======================================= //
+/**
+ * Writes BGP updates and routing table snapshots to a file in MRT format (RFC
+ * 6396).  Updates are written as <code>BGP4MP_MESSAGE_AS4</code> records, so
+ * that all AS numbers are written using four bytes.  Snapshots of the
+ * Adj-RIBs-In are written in <code>TABLE_DUMP_V2</code> format: a peer index
+ * table followed by one record per prefix, in prefix order, holding every
+ * peer's route to that prefix.  The results can be processed with standard
+ * MRT tools such as bgpdump.
+ * <p>
+ * Records are encoded directly into a large, reused, direct byte buffer, and
+ * are written to the file through a <code>FileChannel</code> only when the
+ * buffer fills up or the writer is closed.  The part of each record which
+ * depends only on the peer (the AS numbers and IP addresses of both ends of
+ * the session) is computed once per peer and copied in from a template.
+ */
+public class MRTWriter {
+
+  // ......................... constants ......................... //
+
+  /** The MRT type for BGP4MP records. */
+  public static final int BGP4MP = 16;
+
+  /** The BGP4MP subtype for BGP messages with four-byte AS numbers. */
+  public static final int BGP4MP_MESSAGE_AS4 = 4;
+
+  /** The number of bytes in the common MRT header. */
+  public static final int MRT_HEADER_SIZE = 12;
+
+  /** The number of bytes in the BGP4MP_MESSAGE_AS4 header which follows the
+   *  common MRT header: peer and local AS numbers (four bytes each),
+   *  interface index, address family, and peer and local IP addresses. */
+  public static final int BGP4MP_AS4_HEADER_SIZE = 20;
+
+  /** The MRT type for TABLE_DUMP_V2 records. */
+  public static final int TABLE_DUMP_V2 = 13;
+
+  /** The TABLE_DUMP_V2 subtype for the peer index table. */
+  public static final int PEER_INDEX_TABLE = 1;
+
+  /** The TABLE_DUMP_V2 subtype for IPv4 unicast RIB entries. */
+  public static final int RIB_IPV4_UNICAST = 2;
+
+  /** The peer type used in the peer index table: an IPv4 peer with a
+   *  four-byte AS number. */
+  private static final int PEER_TYPE_AS4 = 2;
+
+  /** The number of bytes in a BGP message header. */
+  public static final int BGP_HEADER_SIZE = 19;
+
+  /** The size of the output buffer, in bytes. */
+  private static final int BUFFER_SIZE = 1<<20;
+
+  /** The most space that a single record is assumed to need.  The buffer is
+   *  flushed before encoding a record whenever less than this remains. */
+  private static final int MAX_RECORD_SIZE = 1<<16;
+
+
+  // ........................ member data ........................ //
+
+  /** The BGP speaker whose updates are being written. */
+  private BGPSession bgp;
+
+  /** The channel to which records are written. */
+  private FileChannel out;
+
+  /** The buffer into which records are encoded. */
+  private ByteBuffer buf;
+
+  /** The BGP4MP_MESSAGE_AS4 header for each peer, indexed by peer.  Each is
+   *  built the first time an update from that peer is written. */
+  private byte[][] templates;
+
+  /** The number of records written so far. */
+  private long numrecs = 0;
+
+  /** A buffer in which path attributes are encoded while building RIB entry
+   *  records. */
+  private ByteBuffer attbuf = null;
+
+  /** Encoded path attributes, keyed by the attribute array that they were
+   *  encoded from.  Routes which share attributes are only encoded once per
+   *  snapshot. */
+  private IdentityHashMap attcache = new IdentityHashMap();
+
+
+  // ----- MRTWriter(BGPSession,String) ------------------------------------ //
+  /**
+   * Constructs an MRT writer for the given BGP speaker which writes to the
+   * named file.
+   *
+   * @param b         The BGP speaker whose updates are to be written.
+   * @param filename  The name of the file to write to.
+   * @exception IOException  if the file cannot be opened
+   */
+  public MRTWriter(BGPSession b, String filename) throws IOException {
+    bgp = b;
+    out = new FileOutputStream(filename).getChannel();
+    buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+  }
+
+  // ----- template -------------------------------------------------------- //
+  /**
+   * Returns the BGP4MP_MESSAGE_AS4 header for the peer with the given index,
+   * building it first if necessary.
+   *
+   * @param peerind  The index of the peer.
+   * @return the header for the peer
+   */
+  private byte[] template(int peerind) {
+    if (templates == null) {
+      templates = new byte[bgp.nbs.length][];
+    }
+    byte[] t = templates[peerind];
+    if (t == null) {
+      PeerEntry peer = bgp.nbs[peerind];
+      ByteBuffer tb = ByteBuffer.allocate(BGP4MP_AS4_HEADER_SIZE);
+      tb.putInt(AS_descriptor.nh2as(peer.as_nh)); // peer AS number
+      tb.putInt(bgp.as_num);                      // local AS number
+      tb.putShort((short)0);                      // interface index
+      tb.putShort((short)1);                      // address family (IPv4)
+      tb.putInt(peer.ip_addr.intval());           // peer IP address
+      tb.putInt(peer.return_ip.intval());         // local IP address
+      t = tb.array();
+      templates[peerind] = t;
+    }
+    return t;
+  }
+
+  // ----- write_update ---------------------------------------------------- //
+  /**
+   * Writes an update message, received from a peer, as a
+   * <code>BGP4MP_MESSAGE_AS4</code> record.  Nothing is written if the
+   * sender isn't a neighbor, since there is no peer to put in the header.
+   *
+   * @param msg   The update message.
+   * @param time  The current simulation time, in seconds.
+   * @exception IOException  if there is an error writing to the file
+   */
+  public void write_update(UpdateMessage msg, double time) throws IOException {
+    int peerind = bgp.nh2peerind(msg.nh);
+    if (peerind < 0) {
+      return;
+    }
+    if (buf.remaining() < MAX_RECORD_SIZE) {
+      flush();
+    }
+
+    int start = put_mrt_header(time, BGP4MP, BGP4MP_MESSAGE_AS4);
+    buf.put(template(peerind));
+
+    // BGP message header (length is filled in at the end)
+    int bgpstart = buf.position();
+    for (int i=0; i<16; i++) {
+      buf.put((byte)0xff); // marker
+    }
+    buf.putShort((short)0);
+    buf.put((byte)2); // update type (2 => update)
+
+    // withdrawn routes
+    int wdlenoff = buf.position();
+    buf.putShort((short)0);
+    int num_wds = msg.num_wds();
+    for (int i=0; i<num_wds; i++) {
+      put_prefix(buf, msg.wd(i));
+    }
+    buf.putShort(wdlenoff, (short)(buf.position() - wdlenoff - 2));
+
+    // path attributes
+    int palenoff = buf.position();
+    buf.putShort((short)0);
+    int num_ads = msg.num_ads();
+    if (num_ads > 0) {
+      put_attributes(buf, msg.rte(0));
+    }
+    buf.putShort(palenoff, (short)(buf.position() - palenoff - 2));
+
+    // NLRI
+    for (int i=0; i<num_ads; i++) {
+      put_prefix(buf, msg.rte(i).nlri);
+    }
+
+    int end = buf.position();
+    buf.putShort(bgpstart+16, (short)(end - bgpstart));
+    end_record(start);
+  }
+
+  // ----- write_table_dump ------------------------------------------------ //
+  /**
+   * Writes a snapshot of every Adj-RIB-In of the BGP speaker in
+   * <code>TABLE_DUMP_V2</code> format.  A peer index table is written first.
+   * It is followed by one <code>RIB_IPV4_UNICAST</code> record per prefix,
+   * in prefix order, holding the route to that prefix from every peer which
+   * has one.  Every record's header is stamped with the current simulation
+   * time, the time of the dump.
+   *
+   * @exception IOException  if there is an error writing to the file
+   */
+  public void write_table_dump() throws IOException {
+    double time = bgp.nowsec();
+    int numpeers = bgp.nbs.length - 1; // skip last nb ('self')
+
+    // - - - - - peer index table - - - - - //
+    if (buf.remaining() < MAX_RECORD_SIZE) {
+      flush();
+    }
+    int start = put_mrt_header(time, TABLE_DUMP_V2, PEER_INDEX_TABLE);
+    buf.putInt(bgp.bgp_id.intval()); // collector BGP ID
+    buf.putShort((short)0);          // view name length (no view name)
+    buf.putShort((short)numpeers);
+    for (int i=0; i<numpeers; i++) {
+      PeerEntry peer = bgp.nbs[i];
+      buf.put((byte)PEER_TYPE_AS4);
+      // The peer's address stands in for its BGP ID, which isn't kept.
+      buf.putInt(peer.ip_addr.intval());
+      buf.putInt(peer.ip_addr.intval());
+      buf.putInt(AS_descriptor.nh2as(peer.as_nh));
+    }
+    end_record(start);
+
+    // - - - - - group routes by prefix - - - - - //
+    // Keys sort prefixes by address and then by length.
+    TreeMap byprefix = new TreeMap();
+    for (int i=0; i<numpeers; i++) {
+      ArrayList routes = bgp.nbs[i].rib_in.get_all_routes();
+      for (int j=0; j<routes.size(); j++) {
+        RouteInfo ri = (RouteInfo)routes.get(j);
+        IPaddress nlri = ri.route().nlri;
+        Long key = new Long(((nlri.intval() & 0xffffffffL) << 8) |
+                            nlri.prefix_len());
+        ArrayList entries = (ArrayList)byprefix.get(key);
+        if (entries == null) {
+          entries = new ArrayList(4);
+          byprefix.put(key, entries);
+        }
+        entries.add(ri);
+      }
+    }
+
+    // - - - - - RIB entries - - - - - //
+    if (attbuf == null) {
+      attbuf = ByteBuffer.allocate(MAX_RECORD_SIZE);
+    }
+    attcache.clear();
+    int seq = 0;
+    for (Iterator it=byprefix.values().iterator(); it.hasNext();) {
+      ArrayList entries = (ArrayList)it.next();
+      if (buf.remaining() < MAX_RECORD_SIZE) {
+        flush();
+      }
+      start = put_mrt_header(time, TABLE_DUMP_V2, RIB_IPV4_UNICAST);
+      buf.putInt(seq++);
+      put_prefix(buf, ((RouteInfo)entries.get(0)).route().nlri);
+      buf.putShort((short)entries.size());
+      for (int j=0; j<entries.size(); j++) {
+        RouteInfo ri = (RouteInfo)entries.get(j);
+        byte[] atts = encoded_attributes(ri.route());
+        buf.putShort((short)ri.peerind());
+        // Routes don't record when they were received, so the time of the
+        // dump stands in for the originated time.
+        buf.putInt((int)time);
+        buf.putShort((short)atts.length);
+        buf.put(atts);
+      }
+      end_record(start);
+    }
+    attcache.clear();
+  }
+
+  // ----- encoded_attributes ---------------------------------------------- //
+  /**
+   * Returns the encoded path attributes of a route, encoding them only if
+   * the same attributes have not already been encoded during this snapshot.
+   *
+   * @param r  The route whose path attributes are wanted.
+   * @return the encoded path attributes
+   */
+  private byte[] encoded_attributes(Route r) {
+    // With flat or linked AS paths, the AS path isn't part of the attribute
+    // array, so the array alone can't identify the encoding, and the route
+    // (which holds both) is used instead.
+    boolean separate = Global.flat_aspaths || Global.linked_aspaths;
+    Object key = separate ? (Object)r : (Object)r.pas;
+    byte[] atts = (byte[])attcache.get(key);
+    if (atts == null) {
+      attbuf.clear();
+      put_attributes(attbuf, r);
+      atts = new byte[attbuf.position()];
+      attbuf.flip();
+      attbuf.get(atts);
+      attcache.put(key, atts);
+    }
+    return atts;
+  }
+
+  // ----- put_mrt_header -------------------------------------------------- //
+  /**
+   * Begins a record by encoding the common MRT header, with the length left
+   * to be filled in by <code>end_record</code>.
+   *
+   * @param time     The current simulation time, in seconds.
+   * @param typ      The MRT type.
+   * @param subtype  The MRT subtype.
+   * @return the position in the buffer at which the record begins
+   */
+  private int put_mrt_header(double time, int typ, int subtype) {
+    int start = buf.position();
+    buf.putInt((int)time);
+    buf.putShort((short)typ);
+    buf.putShort((short)subtype);
+    buf.putInt(0);
+    return start;
+  }
+
+  // ----- end_record ------------------------------------------------------ //
+  /**
+   * Finishes a record by filling in the length field of its MRT header.
+   *
+   * @param start  The position in the buffer at which the record begins.
+   */
+  private void end_record(int start) {
+    buf.putInt(start+8, buf.position() - start - MRT_HEADER_SIZE);
+    numrecs++;
+  }
+
+  // ----- put_prefix ------------------------------------------------------ //
+  /**
+   * Encodes an IP address prefix as a prefix length followed by only as many
+   * bytes of the address as the prefix length requires.
+   *
+   * @param bb      The buffer in which to place the results.
+   * @param prefix  The prefix to encode.
+   */
+  public static void put_prefix(ByteBuffer bb, IPaddress prefix) {
+    int preflen = prefix.prefix_len();
+    int ipint = prefix.intval();
+    bb.put((byte)preflen);
+    int numbytes = (preflen + 7) >> 3; // # bytes required for address bits
+    for (int i=0; i<numbytes; i++) {
+      bb.put((byte)((ipint >> (24-8*i)) & 0xff));
+    }
+  }
+
+  // ----- put_attributes -------------------------------------------------- //
+  /**
+   * Encodes the path attributes of a route as they would appear in a BGP
+   * update message between speakers which support four-byte AS numbers.
+   *
+   * @param bb  The buffer in which to place the results.
+   * @param r   The route whose path attributes are to be encoded.
+   */
+  public static void put_attributes(ByteBuffer bb, Route r) {
+    Attribute[] pas = r.pas;
+
+    if (pas[1] != null) { // there is an ORIGIN attribute
+      bb.put((byte)64); // attribute flags
+      bb.put((byte)1);  // attribute type code
+      bb.put((byte)1);  // attribute length
+      bb.put((byte)((Origin)pas[1]).typ);
+    }
+
+    put_aspath(bb, r);
+
+    if (pas[3] != null) { // there is a NEXT_HOP attribute
+      bb.put((byte)64); // attribute flags
+      bb.put((byte)3);  // attribute type code
+      bb.put((byte)4);  // attribute length
+      bb.putInt(((NextHop)pas[3]).ipaddr.intval());
+    }
+
+    if (pas[4] != null) { // there is a MED attribute
+      bb.put((byte)128); // attribute flags
+      bb.put((byte)4);   // attribute type code
+      bb.put((byte)4);   // attribute length
+      bb.putInt(((MED)pas[4]).val);
+    }
+
+    if (pas[5] != null) { // there is a LOCAL_PREF attribute
+      bb.put((byte)64); // attribute flags
+      bb.put((byte)5);  // attribute type code
+      bb.put((byte)4);  // attribute length
+      bb.putInt(((LocalPref)pas[5]).val);
+    }
+
+    if (pas[6] != null) { // there is an ATOMIC_AGGREGATE attribute
+      bb.put((byte)64); // attribute flags
+      bb.put((byte)6);  // attribute type code
+      bb.put((byte)0);  // attribute length
+    }
+
+    if (pas[7] != null) { // there is an AGGREGATOR attribute
+      Aggregator agg = (Aggregator)pas[7];
+      bb.put((byte)192); // attribute flags
+      bb.put((byte)7);   // attribute type code
+      bb.put((byte)8);   // attribute length
+      bb.putInt(AS_descriptor.nh2as(agg.asnh));
+      bb.putInt(agg.ipaddr.intval());
+    }
+
+    if (pas[8] != null) { // there is a COMMUNITIES attribute
+      ArrayList vals = ((Communities)pas[8]).vals;
+      put_attrib_header(bb, 192, 8, 4*vals.size());
+      for (int i=0; i<vals.size(); i++) {
+        bb.putInt(((Integer)vals.get(i)).intValue());
+      }
+    }
+
+    if (pas[9] != null) { // there is an ORIGINATOR_ID attribute
+      bb.put((byte)128); // attribute flags
+      bb.put((byte)9);   // attribute type code
+      bb.put((byte)4);   // attribute length
+      bb.putInt(((OriginatorID)pas[9]).id.intval());
+    }
+
+    if (pas[10] != null) { // there is a CLUSTER_LIST attribute
+      ArrayList list = (ArrayList)((ClusterList)pas[10]).list;
+      put_attrib_header(bb, 128, 10, 4*list.size());
+      for (int i=0; i<list.size(); i++) {
+        bb.putInt((int)((Long)list.get(i)).longValue());
+      }
+    }
+  }
+
+  // ----- put_aspath ------------------------------------------------------ //
+  /**
+   * Encodes the AS_PATH attribute of a route, if it has one, using four
+   * bytes per AS number.  Whichever AS path representation is in use in the
+   * simulation is handled.
+   *
+   * @param bb  The buffer in which to place the results.
+   * @param r   The route whose AS path is to be encoded.
+   */
+  private static void put_aspath(ByteBuffer bb, Route r) {
+    if (!Global.flat_aspaths && !Global.linked_aspaths) {
+      ASpath asp = (ASpath)r.pas[2];
+      if (asp == null) {
+        return;
+      }
+      int asbytes = 0; // bytes required for attribute value
+      int numsegs = (asp.segs == null) ? 0 : asp.segs.size();
+      for (int i=0; i<numsegs; i++) {
+        asbytes += 2 + 4*((Segment)asp.segs.get(i)).asnhs.size();
+      }
+      put_attrib_header(bb, 64, 2, asbytes);
+      for (int i=0; i<numsegs; i++) {
+        Segment seg = (Segment)asp.segs.get(i);
+        bb.put((byte)seg.typ);
+        bb.put((byte)seg.asnhs.size());
+        for (int j=0; j<seg.asnhs.size(); j++) {
+          bb.putInt(AS_descriptor.nh2as((String)seg.asnhs.get(j)));
+        }
+      }
+    } else if (Global.flat_aspaths) {
+      short[] aspath = r.aspath;
+      if (aspath.length == 0) {
+        return;
+      }
+      put_attrib_header(bb, 64, 2, 2 + 4*aspath.length); // just one segment
+      bb.put((byte)Segment.SEQ);
+      bb.put((byte)aspath.length);
+      for (int i=0; i<aspath.length; i++) {
+        bb.putInt(aspath[i] & 0xffff);
+      }
+    } else { // Global.linked_aspaths is true
+      int aspathlen = r.aspath_length();
+      if (aspathlen == 0) {
+        return;
+      }
+      put_attrib_header(bb, 64, 2, 2 + 4*aspathlen); // just one segment
+      bb.put((byte)Segment.SEQ);
+      bb.put((byte)aspathlen);
+      for (int i=0; i<aspathlen; i++) {
+        bb.putInt(r.as1 & 0xffff);
+        r = r.next_rte;
+      }
+    }
+  }
+
+  // ----- put_attrib_header ----------------------------------------------- //
+  /**
+   * Encodes the flags, type code, and length of a path attribute, setting
+   * the extended length bit if the length does not fit in one byte.
+   *
+   * @param bb      The buffer in which to place the results.
+   * @param flags   The attribute flags, without the extended length bit.
+   * @param typ     The attribute type code.
+   * @param attlen  The length of the attribute value.
+   */
+  private static void put_attrib_header(ByteBuffer bb, int flags, int typ,
+                                        int attlen) {
+    if (attlen < 256) {
+      bb.put((byte)flags);
+      bb.put((byte)typ);
+      bb.put((byte)attlen);
+    } else {
+      bb.put((byte)(flags | 16)); // extended length bit set
+      bb.put((byte)typ);
+      bb.putShort((short)attlen);
+    }
+  }
+
+  // ----- flush ----------------------------------------------------------- //
+  /**
+   * Writes everything in the buffer out to the file.
+   *
+   * @exception IOException  if there is an error writing to the file
+   */
+  public void flush() throws IOException {
+    buf.flip();
+    while (buf.hasRemaining()) {
+      out.write(buf);
+    }
+    buf.clear();
+  }
+
+  // ----- close ----------------------------------------------------------- //
+  /**
+   * Writes out any buffered records and closes the file.
+   *
+   * @exception IOException  if there is an error writing to the file
+   */
+  public void close() throws IOException {
+    flush();
+    out.close();
+  }
+
+  // ----- num_records ----------------------------------------------------- //
+  /**
+   * Returns the number of records written so far.
+   *
+   * @return the number of records written so far
+   */
+  public long num_records() {
+    return numrecs;
+  }
+
+} // end class MRTWriter
@@ -0,0 +1,439 @@
+/**
+ * Metrics.java
+ */
+
+
+package SSF.OS.BGP4;
+
+
+import java.util.concurrent.atomic.*;
+
+
+// ===== class SSF.OS.BGP4.Metrics ========================================= //
+/**
+ * A registry of performance metrics, shared by all BGP speakers in a JVM.
+ * There are two kinds of keys.  Event keys are the event type constants
+ * defined in <code>Monitor</code> (such as <code>Monitor.SND_UPDATE</code>),
+ * and every event passed to a monitor is counted under its type.  Timer keys
+ * are for timed activities: {@link #timer} gives the one for an activity
+ * named by a Monitor event type, and there are a few of their own, such as
+ * <code>ENCODE</code>.  Timing an activity counts it under its timer key,
+ * never under an event key, so the events of a type are never counted twice
+ * just because they are also timed.  For each key there is:
+ * <ul>
+ *   <li>a counter of events,</li>
+ *   <li>a gauge, which holds the most recently set value of some quantity,
+ *       such as a queue length,</li>
+ *   <li>a histogram of the wall-clock duration of the activity, in
+ *       nanoseconds, and</li>
+ *   <li>a histogram of the simulated duration of the activity, in
+ *       microseconds.</li>
+ * </ul>
+ * Histograms have one bucket per power of two, so recording a value is a
+ * matter of counting its leading zeros and incrementing a
+ * <code>LongAdder</code>.  Nothing is locked, so BGP speakers in different
+ * threads don't contend with one another, and the cost when metrics are
+ * turned off is a single test of a static boolean.
+ * <p>
+ * Metrics are turned on with the <code>metrics</code> option, and a summary
+ * table is printed when the simulation wraps up.  To time an activity, call
+ * {@link #start} before it and {@link #stop} after it, with a timer key:
+ * <pre>
+ *   long t0 = Metrics.start();
+ *   double s0 = nowsec();
+ *   ... handle the update ...
+ *   Metrics.stop(Metrics.timer(Monitor.HANDLE_UPDATE), t0, s0, nowsec());
+ * </pre>
+ * Monitors time their own encoding, periodic MRT table dumps, and the
+ * forwarding table listener (see <code>Monitor.fwd_listener</code>), which
+ * is run for every forwarding table change that BGP makes.
+ */
+public class Metrics {
+
+  // ......................... constants ......................... //
+
+  /** The first timer key.  Keys below it are event keys, and the timer key
+   *  for the activity named by event type <i>t</i> is <code>TIMERS</code> +
+   *  <i>t</i>. */
+  public static final int TIMERS = Monitor.MAX_RECORD_VAL + 1;
+
+  /** The timer key for the time spent by monitors encoding and emitting
+   *  records. */
+  public static final int ENCODE = 2*TIMERS;
+
+  /** The timer key for the time spent writing periodic snapshots of the
+   *  Adj-RIBs-In in MRT format. */
+  public static final int MRT_TABLE = ENCODE + 1;
+
+  /** The number of keys. */
+  public static final int NUM_KEYS = MRT_TABLE + 1;
+
+  /** The number of buckets in each histogram.  Bucket <i>b</i> counts values
+   *  <i>v</i> such that 2<sup><i>b</i>-1</sup> &lt;= <i>v</i> &lt;
+   *  2<sup><i>b</i></sup>, with values less than one in bucket 0. */
+  public static final int NUM_BUCKETS = 64;
+
+
+  // ........................ member data ........................ //
+
+  /** Whether or not metrics are being collected.  It is volatile since it
+   *  is set by the configuring thread and read by every timeline. */
+  public static volatile boolean enabled = false;
+
+  /** Whether or not the summary has been arranged to be printed at
+   *  wrapup. */
+  private static boolean installed = false;
+
+  /** The event counter for each key. */
+  private static final LongAdder[] counters = new LongAdder[NUM_KEYS];
+
+  /** The gauge for each key. */
+  private static final AtomicLongArray gauges = new AtomicLongArray(NUM_KEYS);
+
+  /** The histogram of wall-clock durations for each key, created when
+   *  first used. */
+  private static final AtomicReferenceArray walltimes =
+    new AtomicReferenceArray(NUM_KEYS);
+
+  /** The histogram of simulated durations for each key, created when first
+   *  used. */
+  private static final AtomicReferenceArray simtimes =
+    new AtomicReferenceArray(NUM_KEYS);
+
+  static {
+    for (int i=0; i<NUM_KEYS; i++) {
+      counters[i] = new LongAdder();
+    }
+  }
+
+
+  // ===== inner class Histogram =========================================== //
+  /**
+   * A histogram with one bucket per power of two.
+   */
+  public static class Histogram {
+    /** The number of values in each bucket. */
+    private final LongAdder[] buckets = new LongAdder[NUM_BUCKETS];
+    /** The sum of all values. */
+    private final LongAdder sum = new LongAdder();
+    /** The largest value. */
+    private final AtomicLong max = new AtomicLong(0);
+
+    public Histogram() {
+      for (int b=0; b<NUM_BUCKETS; b++) {
+        buckets[b] = new LongAdder();
+      }
+    }
+
+    /**
+     * Records a value.
+     *
+     * @param v  The value to record.
+     */
+    public void record(long v) {
+      if (v < 0) {
+        v = 0;
+      }
+      buckets[64 - Long.numberOfLeadingZeros(v)].increment();
+      sum.add(v);
+      long m = max.get();
+      while (v > m && !max.compareAndSet(m, v)) {
+        m = max.get();
+      }
+    }
+
+    /**
+     * Returns the number of values recorded.
+     *
+     * @return the number of values recorded
+     */
+    public long count() {
+      long n = 0;
+      for (int b=0; b<NUM_BUCKETS; b++) {
+        n += buckets[b].sum();
+      }
+      return n;
+    }
+
+    /**
+     * Returns the mean of the values recorded.
+     *
+     * @return the mean of the values recorded, or zero if there are none
+     */
+    public double mean() {
+      long n = count();
+      return (n == 0) ? 0.0 : (double)sum.sum() / n;
+    }
+
+    /**
+     * Returns the largest value recorded.
+     *
+     * @return the largest value recorded
+     */
+    public long max() {
+      return max.get();
+    }
+
+    /**
+     * Returns an upper bound on the given percentile of the values recorded,
+     * accurate to within a factor of two.
+     *
+     * @param p  The percentile, between 0 and 100.
+     * @return the upper bound of the bucket holding the percentile
+     */
+    public long percentile(double p) {
+      long[] counts = new long[NUM_BUCKETS];
+      long n = 0;
+      for (int b=0; b<NUM_BUCKETS; b++) {
+        counts[b] = buckets[b].sum();
+        n += counts[b];
+      }
+      long rank = (long)Math.ceil(n * p / 100.0);
+      long seen = 0;
+      for (int b=0; b<NUM_BUCKETS; b++) {
+        seen += counts[b];
+        if (seen >= rank && counts[b] > 0) {
+          return (b == 0) ? 0 : Math.min(max.get(), (1L << b) - 1);
+        }
+      }
+      return max.get();
+    }
+  } // end inner class Histogram
+
+
+  // ----- install --------------------------------------------------------- //
+  /**
+   * Arranges for the summary table to be printed when the simulation wraps
+   * up, if metrics are enabled and this has not already been done.
+   *
+   * @param bgp  A BGP speaker in this JVM.
+   */
+  public static synchronized void install(BGPSession bgp) {
+    if (!enabled || installed) {
+      return;
+    }
+    installed = true;
+    bgp.topnet.wrapup(new Runnable()
+      {
+        public void run() {
+          System.out.print(summary());
+        }
+      });
+  }
+
+  // ----- timer ----------------------------------------------------------- //
+  /**
+   * Returns the timer key for the activity named by a Monitor event type.
+   *
+   * @param typ  A Monitor event type.
+   * @return the timer key for the activity
+   */
+  public static int timer(int typ) {
+    return TIMERS + typ;
+  }
+
+  // ----- count ----------------------------------------------------------- //
+  /**
+   * Counts one event.
+   *
+   * @param key  The event key of the counter, a Monitor event type.
+   */
+  public static void count(int key) {
+    if (enabled) {
+      counters[key].increment();
+    }
+  }
+
+  // ----- num_counted ----------------------------------------------------- //
+  /**
+   * Returns the number of events counted so far.
+   *
+   * @param key  The key of the counter, usually a Monitor event type.
+   * @return the number of events counted
+   */
+  public static long num_counted(int key) {
+    return counters[key].sum();
+  }
+
+  // ----- set_gauge ------------------------------------------------------- //
+  /**
+   * Sets the value of a gauge.
+   *
+   * @param key  The key of the gauge.
+   * @param v    The new value.
+   */
+  public static void set_gauge(int key, long v) {
+    if (enabled) {
+      gauges.set(key, v);
+    }
+  }
+
+  // ----- add_gauge ------------------------------------------------------- //
+  /**
+   * Adds to the value of a gauge.
+   *
+   * @param key    The key of the gauge.
+   * @param delta  The amount to add, which may be negative.
+   */
+  public static void add_gauge(int key, long delta) {
+    if (enabled) {
+      gauges.addAndGet(key, delta);
+    }
+  }
+
+  // ----- start ----------------------------------------------------------- //
+  /**
+   * Returns the wall-clock time at which an activity to be timed begins.
+   *
+   * @return the current wall-clock time, in nanoseconds, or zero if metrics
+   *         are not enabled
+   */
+  public static long start() {
+    return enabled ? System.nanoTime() : 0L;
+  }
+
+  // ----- stop(int,long,double,double) ------------------------------------ //
+  /**
+   * Records the durations of an activity which has just ended, and counts
+   * it under its timer key.
+   *
+   * @param key        The timer key of the activity (see
+   *                   <code>timer</code>).
+   * @param wallstart  The value returned by <code>start</code> when the
+   *                   activity began.
+   * @param simstart   The simulation time, in seconds, at which the activity
+   *                   began.
+   * @param simnow     The current simulation time, in seconds.
+   */
+  public static void stop(int key, long wallstart, double simstart,
+                          double simnow) {
+    if (!enabled) {
+      return;
+    }
+    long wall = System.nanoTime() - wallstart;
+    counters[key].increment();
+    histogram(walltimes, key).record(wall);
+    histogram(simtimes, key).record((long)((simnow - simstart) * 1e6));
+  }
+
+  // ----- stop(int,long) -------------------------------------------------- //
+  /**
+   * Records the wall-clock duration of an activity which has just ended, and
+   * counts it under its timer key.  It is for activities which take no
+   * simulation time, such as encoding, and which therefore have no simulated
+   * durations.
+   *
+   * @param key        The timer key of the activity.
+   * @param wallstart  The value returned by <code>start</code> when the
+   *                   activity began.
+   */
+  public static void stop(int key, long wallstart) {
+    if (!enabled) {
+      return;
+    }
+    counters[key].increment();
+    histogram(walltimes, key).record(System.nanoTime() - wallstart);
+  }
+
+  // ----- histogram ------------------------------------------------------- //
+  /**
+   * Returns the histogram for the given key, creating it if necessary.
+   */
+  private static Histogram histogram(AtomicReferenceArray hists, int key) {
+    Histogram h = (Histogram)hists.get(key);
+    if (h == null) {
+      hists.compareAndSet(key, null, new Histogram());
+      h = (Histogram)hists.get(key);
+    }
+    return h;
+  }
+
+  // ----- key_name -------------------------------------------------------- //
+  /**
+   * Returns a name for the given key.
+   *
+   * @param key  A key.
+   * @return a name for the key
+   */
+  public static String key_name(int key) {
+    if (key == ENCODE) {
+      return "monitor_encode";
+    }
+    if (key == MRT_TABLE) {
+      return "mrt_table_dump";
+    }
+    if (key >= TIMERS && key < ENCODE) {
+      return key_name(key - TIMERS) + "_time";
+    }
+    if (key >= 0 && key < Monitor.num_bool_opts && key != Monitor.BIN_EVENT) {
+      return Monitor.opt_base_name(key);
+    }
+    return "type_" + key;
+  }
+
+  // ----- summary --------------------------------------------------------- //
+  /**
+   * Returns a table summarizing all metrics which have been recorded.  Wall
+   * times are in microseconds, and simulated times in milliseconds.
+   *
+   * @return a table summarizing all metrics which have been recorded
+   */
+  public static String summary() {
+    StringBuffer sb = new StringBuffer();
+    sb.append("BGP metrics (wall times in us, simulated times in ms)\n");
+    sb.append(pad("event", 22)).append(pad("count", 12));
+    sb.append(pad("gauge", 10)).append(pad("wall_mean", 11));
+    sb.append(pad("wall_p50", 11)).append(pad("wall_p99", 11));
+    sb.append(pad("wall_max", 11)).append(pad("sim_mean", 11));
+    sb.append("sim_max").append('\n');
+
+    for (int k=0; k<NUM_KEYS; k++) {
+      long n = counters[k].sum();
+      long g = gauges.get(k);
+      if (n == 0 && g == 0) {
+        continue;
+      }
+      sb.append(pad(key_name(k), 22)).append(pad(Long.toString(n), 12));
+      sb.append(pad(Long.toString(g), 10));
+      Histogram w = (Histogram)walltimes.get(k);
+      if (w != null) {
+        sb.append(pad(fmt(w.mean() / 1e3), 11));
+        sb.append(pad(fmt(w.percentile(50) / 1e3), 11));
+        sb.append(pad(fmt(w.percentile(99) / 1e3), 11));
+        sb.append(pad(fmt(w.max() / 1e3), 11));
+      }
+      Histogram s = (Histogram)simtimes.get(k);
+      if (s != null) {
+        sb.append(pad(fmt(s.mean() / 1e3), 11));
+        sb.append(fmt(s.max() / 1e3));
+      }
+      while (sb.charAt(sb.length()-1) == ' ') {
+        sb.setLength(sb.length()-1);
+      }
+      sb.append('\n');
+    }
+    return sb.toString();
+  }
+
+  // ----- fmt ------------------------------------------------------------- //
+  /**
+   * Formats a value with one digit after the decimal point.
+   */
+  private static String fmt(double v) {
+    return Long.toString(Math.round(v * 10) / 10) + "." +
+           Long.toString(Math.round(v * 10) % 10);
+  }
+
+  // ----- pad ------------------------------------------------------------- //
+  /**
+   * Pads a string with spaces to the given width.
+   */
+  private static String pad(String s, int width) {
+    StringBuffer sb = new StringBuffer(s);
+    while (sb.length() < width) {
+      sb.append(' ');
+    }
+    return sb.toString();
+  }
+
+} // end class Metrics
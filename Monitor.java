@@ -31,7 +31,8 @@ public class Monitor {
 
   // ......................... constants ......................... //
 
-  /** The number of boolean options kept in the <code>opt</code> array. */
+  /** The number of boolean options kept in the <code>opts</code> bitmask.
+   *  It must not exceed 64. */
   public static final int num_bool_opts = 63;
 
   /** The names of the those boolean monitoring options which can be overridden
@@ -63,6 +64,16 @@ public class Monitor {
     "show_ribs_in",        "show_loc_rib",        "show_ribs_out"
   };
 
+  /** The names of the options which set the sampling ratio of each record
+   *  type, indexed by record type. */
+  public static final String[] sample_opt_names =
+    prefixed_opt_names("sample_");
+
+  /** The names of the options which set the rate limit of each record type,
+   *  indexed by record type. */
+  public static final String[] rate_limit_opt_names =
+    prefixed_opt_names("rate_limit_");
+
   // . . . . . . . . . . monitoring option constants . . . . . . . . . . //
   /** Indicates option to dump the stability state at simulation end. */
   public static final int DUMP_STABILITY  =  0;
@@ -118,7 +129,8 @@ public class Monitor {
    *  process.  That is, it shows when it starts and stops running. */
   public static final int EXEC_STATE      = 23;
   /** Indicates a bin event, which is a meta-event indicating how many of a
-   *  certain event type occurred in a given time interval. */
+   *  certain event type occurred in a given time interval.  Bin events are
+   *  generated when the <code>bin_width</code> option is in use. */
   public static final int BIN_EVENT       = 24;
   /** Indicates option to show steps in the execution of the
    *  <code>handle_update</code> method in class BGPSession. */
@@ -210,11 +222,59 @@ public class Monitor {
   /** Indicates option to use radix trees for the simulation. */
   public static final int USE_RADIX_TREES = 102;
 
+  /** Indicates a record holding one piece of a larger record which was too
+   *  big to be sent in one piece.
+   *  @see ChunkAssembler */
+  public static final int CHUNK           = 103;
+
+  /** Indicates a record which assigns a dictionary ID to an IP address
+   *  prefix.
+   *  @see TraceDictionary */
+  public static final int PREFIX_DEF      = 104;
+
+  /** Indicates a record which assigns a dictionary ID to an AS path.
+   *  @see TraceDictionary */
+  public static final int ASPATH_DEF      = 105;
+
+  /** Indicates option to replace IP address prefixes and AS paths in records
+   *  with dictionary IDs.  It is sent only when the option is in use. */
+  public static final int DICTIONARY      = 106;
+
   /** Maximum integer value for record numbers. */
   public static final int MAX_RECORD_VAL  = 127;
 
+  /** The initial size, in bytes, of the buffer into which records are
+   *  encoded. */
+  private static final int INITIAL_RECORD_SIZE = 4096;
+
+  /** The largest size, in bytes, to which the encoding buffer may grow.
+   *  Records which would be larger are dropped, with a warning. */
+  private static final int MAX_RECORD_SIZE = 1<<24;
+
+  /** The largest number of bytes in an encoded NHI address, AS-NHI address,
+   *  or IP address prefix: a size byte and at most 255 bytes more. */
+  private static final int MAX_ADDR_SIZE = 256;
+
+  /** The largest number of bytes in an encoded integer or count. */
+  private static final int MAX_INT_SIZE = 5;
+
+  /** An upper bound on the number of bytes in the parts of a record other
+   *  than the update messages, routes, strings, and tables it carries: the
+   *  type and case bytes, flags, doubles and integers, and up to four
+   *  addresses. */
+  private static final int MAX_FIXED_SIZE = 64 + 4*MAX_ADDR_SIZE;
+
+  /** The largest size, in bytes, of a record that is streamed in one piece.
+   *  Larger records are streamed as a sequence of chunk records no bigger
+   *  than this.
+   *  @see #CHUNK */
+  public static final int MAX_STREAMED_RECORD_SIZE = 8192;
+
   /** The number of bytes used to represent an integer when recording
-   *  messages. */
+   *  messages.  A value of zero indicates that integers (and counts) are
+   *  encoded with a variable number of bytes, seven bits per byte, with the
+   *  high bit of each byte set if more bytes follow.
+   *  @see Global#varint_records */
   private static int bytes_per_int = 2;
 
   /** The maximum allowable integer value given the current number of bytes per
@@ -222,6 +282,24 @@ public class Monitor {
    *  @see #bytes_per_int */
   private static int max_int_val;
 
+  /** The maximum number of encodings kept in each of the encoding caches. */
+  private static final int ENCODING_CACHE_SIZE = 1<<16;
+
+  /** Encoded NHI addresses, keyed by NHI address string.
+   *  @see #nh2bytes */
+  private static final EncodingCache nh_cache =
+                                     new EncodingCache(ENCODING_CACHE_SIZE);
+
+  /** Encoded AS-NHI addresses, keyed by AS number.
+   *  @see #asnh2bytes */
+  private static final EncodingCache asnh_cache =
+                                     new EncodingCache(ENCODING_CACHE_SIZE);
+
+  /** Encoded NHI forms of IP address prefixes, keyed by prefix.
+   *  @see #ipprefix2bytes */
+  private static final EncodingCache prefix_cache =
+                                     new EncodingCache(ENCODING_CACHE_SIZE);
+
 
   // ........................ member data ........................ //
 
@@ -233,9 +311,10 @@ public class Monitor {
   /** The instance of BGP associated with this monitor. */
   private BGPSession bgp;
 
-  /** An array of the values for several of the boolean monitoring and
-   *  debugging attributes and options. */
-  private boolean[] opt;
+  /** The values of the boolean monitoring and debugging options, one bit
+   *  per option, with bit <i>i</i> holding the value of the option named by
+   *  <code>bool_opt_names[i]</code>. */
+  private long opts = 0L;
 
   /** Whether or not any wrap-up functions need to be performed on behalf of
    *  this monitor at the end of the simulation.  It is true only if at least
@@ -246,10 +325,102 @@ public class Monitor {
    *  initialized. */
   private boolean initialized = false;
 
-  /** A queue of messages which have been delayed because the required data
+  /** Whether or not each type of message is to be shown.  An entry is true
+   *  only if the corresponding option is turned on and messages are being
+   *  either streamed or printed.  Until the monitor is configured, it refers
+   *  to an array shared by all monitors, in which no message types are
+   *  shown. */
+  private boolean[] show = none_shown;
+
+  /** An array, shared by all monitors, indicating that no message types are
+   *  to be shown. */
+  private static final boolean[] none_shown = new boolean[num_bool_opts];
+
+  /** Arrays indicating which message types are shown, keyed by the option
+   *  bitmask from which they were derived.  Monitors with the same options
+   *  (which is usually all of them) share the same array. */
+  private static final HashMap shown_by_opts = new HashMap();
+
+  /** Whether or not a call to <code>msg</code> has any effect for each type
+   *  of message: true if the type is shown, or if something other than the
+   *  output needs to hear of it (see <code>wanted</code>).  It is the only
+   *  thing tested before a message is discarded, so every caller, whether or
+   *  not it checks <code>enabled</code> first, gets the same behavior. */
+  private boolean[] want = none_shown;
+
+  /** Arrays indicating which message types are wanted, keyed by the
+   *  <code>show</code> array from which they were derived, so that they are
+   *  shared in the same way. */
+  private static final IdentityHashMap wanted_by_shown = new IdentityHashMap();
+
+  /** The monitor shared by all BGP speakers which record nothing.  It is
+   *  never configured or initialized, and since its <code>show</code> array
+   *  is <code>none_shown</code> (and its <code>want</code> array too, unless
+   *  metrics are being collected), every call to <code>msg</code> on it
+   *  returns after a single array lookup.
+   *  @see #create */
+  private static final Monitor disabled = new Monitor(null);
+
+  /** The fraction of records of each type which are kept, indexed by record
+   *  type, or null if all are kept.  It may be shared with
+   *  <code>Global.sample_ratio</code>, so it must not be modified. */
+  private double[] sample = null;
+
+  /** The maximum number of records of each type which are kept per second
+   *  of simulation time, indexed by record type, or null if there are no
+   *  limits.  Zero means no limit for that type.  It may be shared with
+   *  <code>Global.rate_limit</code>, so it must not be modified. */
+  private double[] ratelimit = null;
+
+  /** The number of tokens in each record type's token bucket. */
+  private double[] tokens = null;
+
+  /** The simulation time at which each record type's token bucket was last
+   *  refilled, or -1 if it has not yet been used. */
+  private double[] lastfill = null;
+
+  /** The number of records of each type which were to be shown.  It is null
+   *  unless sampling or rate limiting is in use. */
+  private long[] seen = null;
+
+  /** The number of records of each type which were suppressed by sampling or
+   *  rate limiting.  It is null unless sampling or rate limiting is in
+   *  use. */
+  private long[] suppressed = null;
+
+  /** The state of the pseudo-random number generator used for sampling.  It
+   *  is seeded from <code>Global.sample_seed</code> and the speaker's NHI
+   *  address, so each speaker samples the same records from one run to the
+   *  next, regardless of how the events of different speakers interleave. */
+  private long sampler = 0L;
+
+  /** The width, in seconds of simulation time, of the bins into which events
+   *  are counted.  If it is zero, events are recorded individually. */
+  private double bin_width = 0.0;
+
+  /** The number of events of each type counted so far in the current bin,
+   *  indexed by event type.  It is null unless events are being binned. */
+  private int[] bincounts = null;
+
+  /** The index of the current bin (the simulation time at which it begins,
+   *  divided by the bin width), or -1 if no event has been counted yet. */
+  private long curbin = -1;
+
+  /** The number of messages which have been delayed because the required data
    *  structures (such as a probe) were not yet initialized when the call to
    *  record the messages was made. */
-  private ArrayList delayedmsgs = null;
+  private int num_delayed = 0;
+
+  /** The integer parameters of each delayed message: the message type, case
+   *  number, and two numeric data values, in that order, for each message. */
+  private int[] delayed_ints = null;
+
+  /** The floating point parameter of each delayed message. */
+  private double[] delayed_dbls = null;
+
+  /** The object parameters of each delayed message: the peer entry and two
+   *  objects, in that order, for each message. */
+  private Object[] delayed_objs = null;
 
   /** Whether or not any options requiring output were turned on in this BGP
    *  instance. */
@@ -266,18 +437,99 @@ public class Monitor {
    *  output has been created yet. */
   private static boolean player_created = false;
 
+  /** Puts records which were sent in chunks back together for the verbose
+   *  player, with one <code>ChunkAssembler</code> per BGP speaker, keyed by
+   *  NHI address. */
+  private static HashMap assemblers = new HashMap();
+
   /** Used for writing update records in Zebra-MRT format. */
   public BufferedOutputStream zmrtUpsOut = null;
 
   /** Used for writing the routing table in Zebra-MRT format. */
   public BufferedOutputStream zmrtTableOut = null;
 
+  /** The number of updates which could not be dumped because they did not
+   *  come from a neighbor. */
+  private int zmrt_skipped = 0;
+
+  /** Used for writing update records in MRT format with four-byte AS
+   *  numbers. */
+  public MRTWriter mrtUpsOut = null;
+
+  /** Used for writing snapshots of the Adj-RIBs-In in MRT TABLE_DUMP_V2
+   *  format. */
+  public MRTWriter mrtTableOut = null;
+
+  /** The number of seconds of simulation time between snapshots of the
+   *  Adj-RIBs-In written in MRT format.  If it is zero, a single snapshot is
+   *  written when the simulation wraps up. */
+  private double mrt_table_interval = 0.0;
+
+  /** The buffer into which each update is encoded before being written in
+   *  Zebra-MRT format.  It is reused from one update to the next. */
+  private byte[] zmrtbuf = null;
+
+  /** The size of the buffers used for writing Zebra-MRT files. */
+  private static final int ZMRT_BUFFER_SIZE = 1<<16;
+
   /** A code indicating the host on which this monitor resides. */
   private int hostcode;
 
   /** A data type code indicating messages recorded by the BGP protocol. */
   private int datatypecode;
 
+  /** The background writer to which records are handed off when the
+   *  <code>async_output</code> option is in use.  It is null otherwise. */
+  private TraceWriter tracer = null;
+
+  /** The dictionary of prefixes and AS paths seen so far in this BGP
+   *  speaker's records, when the <code>dictionary_records</code> option is
+   *  in use.  It is null otherwise. */
+  private TraceDictionary dict = null;
+
+  /** The indexed trace file to which streamed records are also written, when
+   *  the <code>trace_file</code> option is in use.  It is null otherwise. */
+  private TraceFileWriter tracefile = null;
+
+  /** A scratch buffer into which each record is encoded before it is handed
+   *  off to the player and/or recorder.  It is reused from one record to the
+   *  next, and grows before encoding any record which might not fit. */
+  private byte[] recbuf = null;
+
+  /** A scratch buffer into which each chunk record is placed when a large
+   *  record is sent in pieces. */
+  private byte[] chunkbuf = null;
+
+  /** The sequence number of the next chunk of the record being encoded.  It
+   *  is zero until the first chunk has been sent, so records sent whole
+   *  leave it at zero. */
+  private int chunkseq = 0;
+
+
+  // ===== interface FwdTableListener ====================================== //
+  /**
+   * Is told whenever a route is added to or removed from the forwarding table
+   * of any BGP speaker in the JVM.
+   * @see #fwd_listener
+   */
+  public interface FwdTableListener {
+    /**
+     * Handles a change to a forwarding table.
+     *
+     * @param bgp     The BGP speaker whose forwarding table changed, or null
+     *                if it is not known (because the speaker uses the shared
+     *                disabled monitor).
+     * @param prefix  The destination prefix whose route changed.
+     * @param added   Whether the route was added or removed.
+     */
+    void fwd_table_changed(BGPSession bgp, IPaddress prefix, boolean added);
+  } // end interface FwdTableListener
+
+
+  /** The listener to be told about every forwarding table change, or null
+   *  if there is none.  It must be set before the simulation starts. */
+  public static FwdTableListener fwd_listener = null;
+
 
   // ----- Monitor(BGPSession) --------------------------------------------- //
   /**
@@ -289,19 +541,75 @@ public class Monitor {
     bgp = b;
   };
 
+  // ----- create ---------------------------------------------------------- //
+  /**
+   * Returns a monitor for the given BGP session instance, configured with the
+   * given monitoring options.  If the speaker has no monitoring options of
+   * its own, no output options are turned on globally, flows are not being
+   * tracked, and updates need not be counted for <code>autoexit</code>,
+   * nothing it does will ever be recorded or reported, so instead of
+   * constructing a new monitor, the single disabled monitor shared by all
+   * such speakers is returned.  This saves the memory of a full monitor per
+   * speaker in very large simulations in which only a few speakers are
+   * traced.  Every speaker is registered with {@link Quiescence} here.
+   *
+   * @param b    The BGPSession with which the monitor is to be associated.
+   * @param cfg  The speaker's monitoring options, or null if it has none.
+   * @return a monitor for the BGP speaker
+   * @exception configException  if the monitor cannot be configured
+   */
+  public static Monitor create(BGPSession b, Configuration cfg)
+    throws configException
+  {
+    Quiescence.register(b);
+    if (cfg == null && Global.opts == 0L && !Global.track_flows &&
+        !Global.autoexit && fwd_listener == null &&
+        Global.validation_test != Global.GOODGADGET) {
+      Metrics.install(b);
+      if (Metrics.enabled) {
+        disabled.want = wanted(none_shown);
+      }
+      return disabled;
+    }
+    Monitor mon = new Monitor(b);
+    mon.config(cfg);
+    return mon;
+  }
+
+  // ----- is_disabled ----------------------------------------------------- //
+  /**
+   * Indicates whether or not this is the disabled monitor shared by all BGP
+   * speakers which record nothing.
+   *
+   * @return true only if this is the shared disabled monitor
+   */
+  public final boolean is_disabled() {
+    return this == disabled;
+  }
+
   // ----- set_bytes_per_int ----------------------------------------------- //
   /**
    * Sets the number of bytes to be used when encoding and decoding integers.
    * It also recalculates the value of the maximum encodable integer.  This
    * method is typically called by a data player which will be decoding data
-   * records.
+   * records.  A value of zero selects variable-length encoding.
    * @see VerbosePlayer
    *
    * @param bpi  The desired number of bytes per integer.
    */
   public static void set_bytes_per_int(int bpi) {
+    if (bpi != bytes_per_int) {
+      // cached encodings depend on the number of bytes per integer
+      nh_cache.clear();
+      asnh_cache.clear();
+      prefix_cache.clear();
+    }
     bytes_per_int = bpi;
-    max_int_val = (int)(Math.pow(2.0,(8.0*(double)bytes_per_int))-1.0);
+    if (bytes_per_int == 0) {
+      max_int_val = Integer.MAX_VALUE;
+    } else {
+      max_int_val = (int)(Math.pow(2.0,(8.0*(double)bytes_per_int))-1.0);
+    }
   }
 
   // ----- get_bytes_per_int ----------------------------------------------- //
@@ -314,6 +622,82 @@ public class Monitor {
     return bytes_per_int;
   }
 
+  // ----- option ---------------------------------------------------------- //
+  /**
+   * Returns the value of one of this monitor's boolean options.
+   *
+   * @param i  The index of the option in <code>bool_opt_names</code>.
+   * @return the value of the option
+   */
+  private boolean option(int i) {
+    return (opts & (1L << i)) != 0L;
+  }
+
+  // ----- shown ----------------------------------------------------------- //
+  /**
+   * Returns an array indicating which message types are shown by a monitor
+   * with the given options.  The arrays are shared, and must not be
+   * modified.
+   *
+   * @param opts  The option bitmask.
+   * @return an array indicating which message types are shown
+   */
+  private static boolean[] shown(long opts) {
+    if (opts == 0L) {
+      return none_shown;
+    }
+    Long key = new Long(opts);
+    synchronized (shown_by_opts) {
+      boolean[] sh = (boolean[])shown_by_opts.get(key);
+      if (sh == null) {
+        sh = new boolean[num_bool_opts];
+        for (int i=0; i<num_bool_opts; i++) {
+          sh[i] = (opts & (1L << i)) != 0L;
+        }
+        shown_by_opts.put(key, sh);
+      }
+      return sh;
+    }
+  }
+
+  // ----- wanted ---------------------------------------------------------- //
+  /**
+   * Returns an array indicating which message types must reach
+   * <code>debugmsg</code> for a monitor which shows the given types.  Besides
+   * those shown, every type is wanted when metrics are being collected
+   * (since each one is counted), forwarding table changes are wanted when
+   * flows are being tracked or a forwarding table listener is installed, and
+   * sent and received updates are wanted when <code>autoexit</code> is in
+   * use (see {@link Quiescence}).  The global options must have been
+   * configured already.  The arrays are shared, and must not be modified.
+   *
+   * @param sh  The array indicating which message types are shown.
+   * @return an array indicating which message types are wanted
+   */
+  private static boolean[] wanted(boolean[] sh) {
+    boolean fwd = Global.track_flows || fwd_listener != null;
+    if (!Metrics.enabled && !fwd && !Global.autoexit) {
+      return sh;
+    }
+    synchronized (wanted_by_shown) {
+      boolean[] w = (boolean[])wanted_by_shown.get(sh);
+      if (w == null) {
+        w = new boolean[num_bool_opts];
+        for (int i=0; i<num_bool_opts; i++) {
+          w[i] = sh[i] || Metrics.enabled;
+        }
+        if (fwd) {
+          w[FWD_TABLE_ADD] = w[FWD_TABLE_RMV] = true;
+        }
+        if (Global.autoexit) {
+          w[SND_UPDATE] = w[RCV_UPDATE] = true;
+        }
+        wanted_by_shown.put(sh, w);
+      }
+      return w;
+    }
+  }
+
   // ----- config ---------------------------------------------------------- //
   /**
    * Configures monitoring options set in DML for a single BGP instance.  The
@@ -327,31 +711,106 @@ public class Monitor {
    *                             exception.
    */
   public void config(Configuration cfg) throws configException {
+    if (this == disabled) {
+      return; // shared by many speakers, so it must never change
+    }
     String str;
 
     // handle the boolean options
-    opt = new boolean[num_bool_opts];
-
+    opts = Global.opts;
     if (cfg != null) {
       for (int i=0; i<num_bool_opts; i++) {
         str = (String)cfg.findSingle(bool_opt_names[i]);
         if (str != null) {
-          opt[i] = Boolean.valueOf(str).booleanValue();
-          is_output = is_output || opt[i];
-        } else { // not configured, so take the global default value
-          opt[i] = Global.opt[i];
+          if (Boolean.valueOf(str).booleanValue()) {
+            opts |= (1L << i);
+          } else {
+            opts &= ~(1L << i);
+          }
         }
       }
-      Global.is_output = Global.is_output || is_output;
-    } else { // no monitor configured (in DML) for the associated BGP instance
+    }
+
+    // handle the per-type sampling ratios and rate limits, which are looked
+    // for only if there is a record_limits block
+    sample = Global.sample_ratio;
+    ratelimit = Global.rate_limit;
+    Configuration lcfg = null;
+    if (cfg != null) {
+      lcfg = (Configuration)cfg.findSingle("record_limits");
+    }
+    if (lcfg != null) {
       for (int i=0; i<num_bool_opts; i++) {
-        opt[i] = Global.opt[i]; // take global default value
-        is_output = is_output || opt[i];
+        str = (String)lcfg.findSingle(sample_opt_names[i]);
+        if (str != null) {
+          if (sample == null || sample == Global.sample_ratio) {
+            double[] defaults = sample;
+            sample = new double[num_bool_opts];
+            for (int j=0; j<num_bool_opts; j++) {
+              sample[j] = (defaults == null) ? 1.0 : defaults[j];
+            }
+          }
+          sample[i] = Double.parseDouble(str);
+        }
+        str = (String)lcfg.findSingle(rate_limit_opt_names[i]);
+        if (str != null) {
+          if (ratelimit == null || ratelimit == Global.rate_limit) {
+            double[] defaults = ratelimit;
+            ratelimit = new double[num_bool_opts];
+            if (defaults != null) {
+              System.arraycopy(defaults, 0, ratelimit, 0, num_bool_opts);
+            }
+          }
+          ratelimit[i] = Double.parseDouble(str);
+        }
+      }
+    }
+    is_output = (opts != 0L);
+    Global.is_output = Global.is_output || is_output;
+    if (Global.streaming || Global.printing) {
+      show = shown(opts);
+    }
+    want = wanted(show);
+
+    // handle the bin width
+    bin_width = Global.bin_width;
+    if (cfg != null) {
+      str = (String)cfg.findSingle("bin_width");
+      if (str != null) {
+        bin_width = Double.parseDouble(str);
+        if (bin_width < 0.0) {
+          bgp.debug.err("bin_width must be >= 0");
+        }
+      }
+    }
+    if (bin_width > 0.0) {
+      bincounts = new int[num_bool_opts];
+      bgp.topnet.wrapup(new Runnable()
+        {
+          public void run() {
+            flush_bin();
+          }
+        });
+    }
+
+    if (sample != null || ratelimit != null) {
+      seen = new long[num_bool_opts];
+      suppressed = new long[num_bool_opts];
+      if (ratelimit != null) {
+        tokens = new double[num_bool_opts];
+        lastfill = new double[num_bool_opts];
+        Arrays.fill(lastfill, -1.0);
       }
+      bgp.topnet.wrapup(new Runnable()
+        {
+          public void run() {
+            report_suppressed();
+          }
+        });
     }
 
-    wrapup = (opt[DUMP_RIBS_IN]  || opt[DUMP_LOC_RIB]    ||
-              opt[DUMP_RIBS_OUT] || opt[DUMP_FWD_TABLES] ||
+    wrapup = (option(DUMP_RIBS_IN)  || option(DUMP_LOC_RIB)    ||
+              option(DUMP_RIBS_OUT) || option(DUMP_FWD_TABLES) ||
               Global.validation_test == Global.GOODGADGET);
 
 
@@ -364,7 +823,8 @@ public class Monitor {
           bgp.debug.err("usage: dump_zmrt_updates <dump-file>");
         } else {
           try {
-            zmrtUpsOut = new BufferedOutputStream(new FileOutputStream(str));
+            zmrtUpsOut = new BufferedOutputStream(new FileOutputStream(str),
+                                                  ZMRT_BUFFER_SIZE);
           } catch (IOException e) {
             bgp.debug.err(e.toString());
           }
@@ -387,7 +847,8 @@ public class Monitor {
           bgp.debug.err("usage: dump_zmrt_table <dump-file>");
         } else {
           try {
-            zmrtTableOut = new BufferedOutputStream(new FileOutputStream(str));
+            zmrtTableOut = new BufferedOutputStream(new FileOutputStream(str),
+                                                    ZMRT_BUFFER_SIZE);
           } catch (IOException e) {
             bgp.debug.err(e.toString());
           }
@@ -405,9 +866,112 @@ public class Monitor {
         }
       }
 
+      str = (String)cfg.findSingle("dump_mrt_updates");
+      if (str != null) {
+        if (str.equals("true") || str.equals("false")) {
+          bgp.debug.err("usage: dump_mrt_updates <dump-file>");
+        } else {
+          try {
+            mrtUpsOut = new MRTWriter(bgp, str);
+          } catch (IOException e) {
+            bgp.debug.err(e.toString());
+          }
+          bgp.topnet.wrapup(new Runnable()
+            {
+              public void run() {
+                try {
+                  mrtUpsOut.close();
+                } catch (IOException e) {
+                  bgp.debug.msg(e.toString());
+                }
+              }
+            });
+        }
+      }
+
+      str = (String)cfg.findSingle("dump_mrt_table");
+      if (str != null) {
+        if (str.equals("true") || str.equals("false")) {
+          bgp.debug.err("usage: dump_mrt_table <dump-file>");
+        } else {
+          try {
+            mrtTableOut = new MRTWriter(bgp, str);
+          } catch (IOException e) {
+            bgp.debug.err(e.toString());
+          }
+          bgp.topnet.wrapup(new Runnable()
+            {
+              public void run() {
+                dump_mrt_table();
+                try {
+                  mrtTableOut.close();
+                } catch (IOException e) {
+                  bgp.debug.msg(e.toString());
+                }
+              }
+            });
+        }
+      }
+
+      str = (String)cfg.findSingle("mrt_table_interval");
+      if (str != null) {
+        mrt_table_interval = Double.parseDouble(str);
+        if (mrt_table_interval < 0.0) {
+          bgp.debug.err("mrt_table_interval must be >= 0");
+        }
+      }
+
     } // end: if (cfg != null)
   }
 
+  // ----- dump_mrt_table -------------------------------------------------- //
+  /**
+   * Writes a snapshot of the Adj-RIBs-In to a file in MRT TABLE_DUMP_V2
+   * format.
+   * @see MRTWriter#write_table_dump
+   */
+  public void dump_mrt_table() {
+    long t0 = Metrics.start();
+    try {
+      mrtTableOut.write_table_dump();
+    } catch (IOException e) {
+      bgp.debug.err(e.toString());
+    }
+    Metrics.stop(Metrics.MRT_TABLE, t0);
+  }
+
+  // ===== inner class MRTTableTimer ======================================= //
+  /**
+   * A timer used to write periodic snapshots of the Adj-RIBs-In in MRT
+   * format.  It resets itself each time it expires.
+   */
+  private class MRTTableTimer extends SSF.OS.Timer {
+    /** Construct a timer with the given duration. */
+    public MRTTableTimer(double secs) {
+      super(bgp.inGraph(), Net.seconds(secs));
+    }
+
+    /** Writes a snapshot and sets the timer again, unless the simulation is
+     *  ending early. */
+    public void callback() {
+      dump_mrt_table();
+      if (!Quiescence.ended()) {
+        set();
+      }
+    }
+  } // end inner class MRTTableTimer
+
+  // ----- dumping_updates ------------------------------------------------- //
+  /**
+   * Indicates whether or not updates are being dumped to a file, in either
+   * Zebra-MRT or MRT format.
+   *
+   * @return true only if updates are being dumped to a file
+   */
+  public boolean dumping_updates() {
+    return (zmrtUpsOut != null || mrtUpsOut != null);
+  }
+
   // ----- dump_zmrt_table ------------------------------------------------- //
   /**
    * Dumps the routing table (RIB) to a file in Zebra-MRT format.  The
@@ -430,15 +994,46 @@ public class Monitor {
   /**
    * Dumps a given update to a file in Zebra-MRT format.  The Zebra-MRT format
    * is very similar to the MRT format, but does have a few differences.  The
-   * results can be processed with MRT's route_btoa tool.
+   * results can be processed with MRT's route_btoa tool.  If the
+   * <code>dump_mrt_updates</code> option is in use, the update is also
+   * written in MRT format, with four-byte AS numbers.  Updates which did not
+   * come from a neighbor can't be given a peer header in either format, so
+   * they are skipped and counted, with a warning for the first one.
+   * @see MRTWriter
    *
    * @param msg  The update message to be dumped.
    */
   public void dump_zmrt_update(UpdateMessage msg) {
+    if (!dumping_updates()) {
+      return;
+    }
+    int peerind = bgp.nh2peerind(msg.nh);
+    if (peerind < 0) {
+      if (zmrt_skipped++ == 0) {
+        bgp.debug.warn("can't dump update from non-neighbor " + msg.nh +
+                       " (skipping it and any others)");
+      }
+      return;
+    }
+
+    if (mrtUpsOut != null) {
+      try {
+        mrtUpsOut.write_update(msg, bgp.nowsec());
+      } catch (IOException e) {
+        bgp.debug.err(e.toString());
+      }
+    }
+    if (zmrtUpsOut == null) {
+      return;
+    }
+
     try {
       // Dump Zebra-MRT header (identical to MRT header format)
 
-      final byte[] buf = new byte[9000]; // max = 8192 + Zebra-MRT header size
+      if (zmrtbuf == null) {
+        zmrtbuf = new byte[9000]; // max = 8192 + Zebra-MRT header size
+      }
+      final byte[] buf = zmrtbuf;
       int bpos = 0;
       
       // first, the timestamp (in seconds)
@@ -458,17 +1053,10 @@ public class Monitor {
       // bytes 8-11 will hold the length of the entire record excluding
       //            the 12 bytes for the Zebra-MRT header
 
-      int peerasnum = 0; //AS_descriptor.nh2as(msg.nh);
-      int srcipint = 0;
-      int destipint = 0;
-      for (int i=0; i<bgp.nbs.length-1; i++) { // skip last nb ('self')
-        if (bgp.nbs[i].nh.equals(msg.nh)) {
-          peerasnum = AS_descriptor.nh2as(bgp.nbs[i].as_nh);
-          srcipint = bgp.nbs[i].ip_addr.intval();
-          destipint = bgp.nbs[i].return_ip.intval();
-          break;
-        }
-      }
+      PeerEntry sender = bgp.nbs[peerind];
+      int peerasnum = AS_descriptor.nh2as(sender.as_nh);
+      int srcipint = sender.ip_addr.intval();
+      int destipint = sender.return_ip.intval();
 
       // bytes 12-13: source AS number
       buf[12] = (byte)((peerasnum>>8)&0xff);
@@ -858,6 +1446,9 @@ public class Monitor {
    * needed for recording output information.
    */
   public void init() {
+    if (this == disabled) {
+      return;
+    }
     // This method will only be executed once per BGP speaker.
     initialized = true;
 
@@ -875,13 +1466,20 @@ public class Monitor {
       power_of_2 *= 256;
       tmp_bytes_per_int++;
     }
-    if (tmp_bytes_per_int > bytes_per_int) {
+    if (bytes_per_int != 0 && tmp_bytes_per_int > bytes_per_int) {
       bgp.debug.err("int value too large for encoding: " + max_int_used +
-                    " (change 'bytes_per_int' in Monitor.java and recompile)");
+                    " (set 'varint_records' in bgpoptions, or change " +
+                    "'bytes_per_int' in Monitor.java and recompile)");
     }
     // This next line really only needs to be executed by one Monitor, not all
     // of them, but it's no big deal if they all do.
-    max_int_val = (int)(Math.pow(2.0,(8.0*(double)bytes_per_int))-1.0);
+    set_bytes_per_int(bytes_per_int);
+
+    if (Global.dictionary_records) {
+      dict = new TraceDictionary();
+    }
+
+    Metrics.install(bgp);
 
     // - - - - - set up probe - - - - - //
     ProbeSession probe = null;
@@ -894,7 +1492,15 @@ public class Monitor {
                       "for probe missing in DML?)");
       }
     }
-    
+
+    // The trace writer is set up before the trace file, so that it is closed
+    // (writing out everything still queued) before the trace file is.  The
+    // header records below are written out directly, so they will precede
+    // anything handed off to it.
+    if (Global.async_output && (Global.printing || probe != null)) {
+      tracer = TraceWriter.get(bgp);
+    }
+
     if (probe != null) {
       recorder = probe.getRecorder();
       hostcode = probe.getHostCode();
@@ -913,11 +1519,38 @@ public class Monitor {
       record[0] = (byte)USE_RADIX_TREES;
       record[1] = (byte)(Global.radix_trees?1:0);
       recorder.send(datatypecode, hostcode, 0.0, record, 0, record.length);
+
+      // Traces without a DICTIONARY record don't use a dictionary.
+      if (Global.dictionary_records) {
+        record[0] = (byte)DICTIONARY;
+        record[1] = (byte)1;
+        recorder.send(datatypecode, hostcode, 0.0, record, 0, record.length);
+      }
+
+      if (Global.trace_file != null) {
+        tracefile = TraceFileWriter.get(bgp);
+        if (tracefile != null) {
+          int[] hdrtypes = { USENHI, BYTES_PER_INT, USE_RADIX_TREES,
+                             DICTIONARY };
+          int[] hdrvals = { usenhi?1:0, bytes_per_int,
+                            Global.radix_trees?1:0, 1 };
+          int numhdrs = Global.dictionary_records ? 4 : 3;
+          for (int k=0; k<numhdrs; k++) {
+            record[0] = (byte)hdrtypes[k];
+            record[1] = (byte)hdrvals[k];
+            write_trace_file(0.0, record, record.length);
+          }
+        }
+      }
     }
 
     if (Global.printing) {
       create_player(bgp.nh);
     }
+
+    if (mrtTableOut != null && mrt_table_interval > 0.0) {
+      (new MRTTableTimer(mrt_table_interval)).set();
+    }
   }
 
   private static synchronized void create_player(String bgpnh) {
@@ -937,6 +1570,43 @@ public class Monitor {
     buf[0] = (byte)USE_RADIX_TREES;
     buf[1] = (byte)(Global.radix_trees?1:0);
     player.receive(bgpnh, 0.0, buf, 0, buf.length);
+    if (Global.dictionary_records) {
+      buf[0] = (byte)DICTIONARY;
+      buf[1] = (byte)1;
+      player.receive(bgpnh, 0.0, buf, 0, buf.length);
+    }
+  }
+
+  // ----- print_record ---------------------------------------------------- //
+  /**
+   * Prints an encoded record using the shared verbose player.  Chunk records
+   * are collected until the record they belong to is complete, and then it
+   * is printed whole.
+   *
+   * @param nh    The NHI address of the BGP speaker which generated the
+   *              record.
+   * @param time  The simulation time at which the record was generated.
+   * @param rec   The buffer holding the encoded record.
+   * @param len   The number of bytes in the encoded record.
+   */
+  static void print_record(String nh, double time, byte[] rec, int len) {
+    if (rec[0] == (byte)CHUNK) {
+      // The player is given only whole records.
+      ChunkAssembler assembler;
+      synchronized (assemblers) {
+        assembler = (ChunkAssembler)assemblers.get(nh);
+        if (assembler == null) {
+          assembler = new ChunkAssembler();
+          assemblers.put(nh, assembler);
+        }
+      }
+      rec = assembler.add(rec, 0, len);
+      if (rec == null) {
+        return; // more chunks to come
+      }
+      len = rec.length;
+    }
+    player.receive(nh, time, rec, 0, len);
   }
 
   // ----- msg ------------------------------------------------------------- //
@@ -958,6 +1628,22 @@ public class Monitor {
     debugmsg(msgtype, -1, null, -1, -1, null, null);
   }
 
+  // ----- enabled --------------------------------------------------------- //
+  /**
+   * Indicates whether or not a call to <code>msg</code> with the given type
+   * of message would have any effect, whether showing it, counting it, or
+   * passing it on to a listener.  Callers may use it to avoid constructing
+   * the arguments of a call to <code>msg</code> when the message would only
+   * be discarded anyway.  Since <code>msg</code> makes the same test first,
+   * skipping the call when this returns false changes nothing.
+   *
+   * @param msgtype  A constant indicating the type of message.
+   * @return true only if messages of the given type have any effect
+   */
+  public final boolean enabled(int msgtype) {
+    return want[msgtype];
+  }
+
   /** @see #msg(int) */
   public final void msg(int msgtype, int caseno) {
     debugmsg(msgtype, caseno, null, -1, -1, null, null);
@@ -1057,17 +1743,17 @@ public class Monitor {
 
   /** @see #msg(int) */
   public final void msg(int msgtype, double d) {
-    debugmsg(msgtype, -1, null, -1, -1, new Double(d), null);
+    debugmsg(msgtype, -1, null, d);
   }
 
   /** @see #msg(int) */
   public final void msg(int msgtype, int caseno, double d) {
-    debugmsg(msgtype, caseno, null, -1, -1, new Double(d), null);
+    debugmsg(msgtype, caseno, null, d);
   }
 
   /** @see #msg(int) */
   public final void msg(int msgtype, int caseno, PeerEntry pe, double d) {
-    debugmsg(msgtype, caseno, pe, -1, -1, new Double(d), null);
+    debugmsg(msgtype, caseno, pe, d);
   }
 
   // ----- int2bytes(String,byte[],int) ------------------------------------ //
@@ -1086,6 +1772,9 @@ public class Monitor {
    * preset value is used for number of bytes used to encode an integer.
    */
   public static int int2bytes(int iii, byte[] bytes, int bindex) {
+    if (bytes_per_int == 0) {
+      return varint2bytes(iii, bytes, bindex);
+    }
     if (iii > max_int_val) {
       Debug.gexcept("integer out of range: " + iii + " > " + max_int_val);
     }
@@ -1105,6 +1794,9 @@ public class Monitor {
     // WARNING: doesn't check if int value is greater than max possible integer
     // that can be represented by bytes_per_int bytes.
 
+    if (bytesPerInt == 0) {
+      return varint2bytes(iii, bytes, bindex);
+    }
     for (int i=0; i<bytesPerInt; i++) {
       bytes[bindex+i] = (byte)((iii>>(8*i)) & 0xff);
     }
@@ -1117,6 +1809,9 @@ public class Monitor {
    * number of bytes used to encode an integer.
    */
   public static int bytes2int(byte[] bytes, int bindex) {
+    if (bytes_per_int == 0) {
+      return bytes2varint(bytes, bindex);
+    }
     int result = 0;
     for (int i=0; i<bytes_per_int; i++) {
       result |= ((int)bytes[bindex++] & 0xff) << (8*i);
@@ -1130,6 +1825,9 @@ public class Monitor {
    * encode an integer is given as a parameter.
    */
   public static int bytes2int(byte[] bytes, int bindex, int bytesPerInt) {
+    if (bytesPerInt == 0) {
+      return bytes2varint(bytes, bindex);
+    }
     int result = 0;
     for (int i=0; i<bytesPerInt; i++) {
       result |= ((int)bytes[bindex++] & 0xff) << (8*i);
@@ -1137,41 +1835,184 @@ public class Monitor {
     return result;
   }
 
-  // ----- nh2bytes -------------------------------------------------------- //
+  // ----- int_length ------------------------------------------------------ //
   /**
-   * Converts an NH address to a series of bytes.  The first byte always
-   * indicates the total number of bytes to follow it.
-   *
-   * @param nh        The NH address to convert to bytes.
-   * @param bytes     A byte array in which to place the results.
-   * @param bindex    The index into the given byte array at which to begin
-   *                  placing the results.
-   * @return the total number of bytes after conversion (including size byte)
+   * Returns the number of bytes used by the encoded integer which begins at
+   * the given index.  A preset value is used for number of bytes used to
+   * encode an integer.
    */
-  public static int nh2bytes(String nh, byte[] bytes, int bindex) {
-    int startindex = bindex;
-    int previndex = 0, curindex = 0;
-    bindex++; // leave space to add size byte later
-
-    while ((curindex = nh.indexOf(":", previndex)) >= 0) {
-      bindex += int2bytes(nh.substring(previndex,curindex),bytes,bindex);
-      previndex = curindex+1;
+  public static int int_length(byte[] bytes, int bindex) {
+    if (bytes_per_int == 0) {
+      return varint_length(bytes, bindex);
     }
-    bindex += int2bytes(nh.substring(previndex),bytes,bindex);
-
-    // add size byte
-    bytes[startindex] = (byte)(bindex-(startindex+1));
+    return bytes_per_int;
+  }
 
+  // ----- varint2bytes ---------------------------------------------------- //
+  /**
+   * Converts an integer to a variable number of bytes, returning the number of
+   * bytes used.  Seven bits are encoded per byte, least significant first, and
+   * the high bit of each byte is set if more bytes follow.  The integer is
+   * treated as unsigned, so small non-negative values take the fewest bytes.
+   */
+  public static int varint2bytes(int iii, byte[] bytes, int bindex) {
+    int startindex = bindex;
+    while ((iii & ~0x7f) != 0) {
+      bytes[bindex++] = (byte)((iii & 0x7f) | 0x80);
+      iii >>>= 7;
+    }
+    bytes[bindex++] = (byte)iii;
     return bindex - startindex;
   }
 
-  // ----- bytes2nh -------------------------------------------------------- //
+  // ----- bytes2varint ---------------------------------------------------- //
   /**
-   * Converts a series of bytes to an NH address.  The first byte must indicate
-   * the total number of bytes to follow it.
-   *
-   * @param nh      A StringBuffer into which the results will be placed.
-   *                It <em>must</em> be initialized to the empty string.
+   * Converts a series of bytes, encoded with a variable number of bytes, to an
+   * integer.
+   * @see #varint2bytes
+   */
+  public static int bytes2varint(byte[] bytes, int bindex) {
+    int result = 0, shift = 0;
+    byte b;
+    do {
+      b = bytes[bindex++];
+      result |= (b & 0x7f) << shift;
+      shift += 7;
+    } while (b < 0);
+    return result;
+  }
+
+  // ----- varint_length --------------------------------------------------- //
+  /**
+   * Returns the number of bytes used by the integer, encoded with a variable
+   * number of bytes, which begins at the given index.
+   * @see #varint2bytes
+   */
+  public static int varint_length(byte[] bytes, int bindex) {
+    int len = 1;
+    while (bytes[bindex++] < 0) {
+      len++;
+    }
+    return len;
+  }
+
+  // ----- count2bytes ----------------------------------------------------- //
+  /**
+   * Converts a count (such as the number of ASes in an AS path) to bytes,
+   * returning the number of bytes used.  With fixed-size integers, a count
+   * always takes exactly one byte.  Otherwise it is encoded with a variable
+   * number of bytes, and so is not limited in size.
+   */
+  public static int count2bytes(int count, byte[] bytes, int bindex) {
+    if (bytes_per_int == 0) {
+      return varint2bytes(count, bytes, bindex);
+    }
+    bytes[bindex] = (byte)count;
+    return 1;
+  }
+
+  // ----- bytes2count ----------------------------------------------------- //
+  /**
+   * Converts a series of bytes to a count.
+   * @see #count2bytes
+   */
+  public static int bytes2count(byte[] bytes, int bindex) {
+    if (bytes_per_int == 0) {
+      return bytes2varint(bytes, bindex);
+    }
+    return (int)bytes[bindex];
+  }
+
+  // ----- count_length ---------------------------------------------------- //
+  /**
+   * Returns the number of bytes used by the encoded count which begins at the
+   * given index.
+   * @see #count2bytes
+   */
+  public static int count_length(byte[] bytes, int bindex) {
+    if (bytes_per_int == 0) {
+      return varint_length(bytes, bindex);
+    }
+    return 1;
+  }
+
+  // ----- nh2bytes -------------------------------------------------------- //
+  /**
+   * Converts an NH address to a series of bytes.  The first byte always
+   * indicates the total number of bytes to follow it.
+   *
+   * @param nh        The NH address to convert to bytes.
+   * @param bytes     A byte array in which to place the results.
+   * @param bindex    The index into the given byte array at which to begin
+   *                  placing the results.
+   * @return the total number of bytes after conversion (including size byte)
+   */
+  public static int nh2bytes(String nh, byte[] bytes, int bindex) {
+    byte[] enc = nh_cache.get(nh);
+    if (enc == null) {
+      byte[] tmp = new byte[1 + 5*(nh.length()+1)];
+      enc = new byte[encode_nh(nh, tmp, 0)];
+      System.arraycopy(tmp, 0, enc, 0, enc.length);
+      nh_cache.put(nh, enc);
+    }
+    System.arraycopy(enc, 0, bytes, bindex, enc.length);
+    return enc.length;
+  }
+
+  // ----- encode_nh ------------------------------------------------------- //
+  /**
+   * Does the work of <code>nh2bytes</code>, without the use of the cache.
+   * @see #nh2bytes
+   */
+  private static int encode_nh(String nh, byte[] bytes, int bindex) {
+    int startindex = bindex;
+    int previndex = 0, curindex = 0;
+    bindex++; // leave space to add size byte later
+
+    while ((curindex = nh.indexOf(":", previndex)) >= 0) {
+      bindex += int2bytes(nh.substring(previndex,curindex),bytes,bindex);
+      previndex = curindex+1;
+    }
+    bindex += int2bytes(nh.substring(previndex),bytes,bindex);
+
+    // add size byte
+    bytes[startindex] = (byte)(bindex-(startindex+1));
+
+    return bindex - startindex;
+  }
+
+  // ----- asnh2bytes ------------------------------------------------------ //
+  /**
+   * Converts the AS-NHI address of the AS with the given number to a series of
+   * bytes, in the same form as <code>nh2bytes</code>.
+   * @see #nh2bytes
+   *
+   * @param asnum   The AS number.
+   * @param bytes   A byte array in which to place the results.
+   * @param bindex  The index into the given byte array at which to begin
+   *                placing the results.
+   * @return the total number of bytes after conversion (including size byte)
+   */
+  public static int asnh2bytes(int asnum, byte[] bytes, int bindex) {
+    byte[] enc = asnh_cache.get((long)asnum);
+    if (enc == null) {
+      String nh = AS_descriptor.as2nh(asnum);
+      byte[] tmp = new byte[1 + 5*(nh.length()+1)];
+      enc = new byte[encode_nh(nh, tmp, 0)];
+      System.arraycopy(tmp, 0, enc, 0, enc.length);
+      asnh_cache.put((long)asnum, enc);
+    }
+    System.arraycopy(enc, 0, bytes, bindex, enc.length);
+    return enc.length;
+  }
+
+  // ----- bytes2nh -------------------------------------------------------- //
+  /**
+   * Converts a series of bytes to an NH address.  The first byte must indicate
+   * the total number of bytes to follow it.
+   *
+   * @param nh      A StringBuffer into which the results will be placed.
+   *                It <em>must</em> be initialized to the empty string.
    * @param bytes   The byte array to convert to an NH address.
    * @param bindex  The index into the given byte array from which to begin
    *                converting.
@@ -1180,6 +2021,24 @@ public class Monitor {
    */
   public static int bytes2nh(StringBuffer nh, byte[] bytes, int bindex) {
     Debug.gaffirm(nh.length()==0, "invalid StringBuffer (must be \"\")");
+    return append_nh(nh, bytes, bindex);
+  }
+
+  // ----- append_nh ------------------------------------------------------- //
+  /**
+   * Converts a series of bytes to an NH address, as <code>bytes2nh</code>
+   * does, but appends the results to the given StringBuffer, which need not
+   * be empty.
+   *
+   * @param nh      A StringBuffer to which the results will be appended.
+   * @param bytes   The byte array to convert to an NH address.
+   * @param bindex  The index into the given byte array from which to begin
+   *                converting.
+   * @return the total number of bytes used in the conversion (including size
+   *         byte)
+   * @see #bytes2nh
+   */
+  public static int append_nh(StringBuffer nh, byte[] bytes, int bindex) {
     int endbyte = -1, startindex = bindex;
     endbyte = bindex + (int)bytes[bindex];
     bindex++;
@@ -1192,7 +2051,7 @@ public class Monitor {
         first = false;
       }
       nh.append(bytes2int(bytes,bindex));
-      bindex += bytes_per_int;
+      bindex += int_length(bytes,bindex);
       //nh.append(bytes[bindex++]);
     }
 
@@ -1218,6 +2077,30 @@ public class Monitor {
    */
   public static int ipprefix2bytes(IPaddress ipprefix, byte[] bytes,
                                    int bindex, boolean usenhi) {
+    if (usenhi) {
+      long key = ((long)ipprefix.intval() << 8) | ipprefix.prefix_len();
+      byte[] enc = prefix_cache.get(key);
+      if (enc == null) {
+        String nhi = ipprefix.toString(true);
+        byte[] tmp = new byte[8 + 5*(nhi==null ? 0 : nhi.length())];
+        enc = new byte[encode_ipprefix(ipprefix, tmp, 0, true)];
+        System.arraycopy(tmp, 0, enc, 0, enc.length);
+        prefix_cache.put(key, enc);
+      }
+      System.arraycopy(enc, 0, bytes, bindex, enc.length);
+      return enc.length;
+    }
+    return encode_ipprefix(ipprefix, bytes, bindex, false);
+  }
+
+  // ----- encode_ipprefix ------------------------------------------------- //
+  /**
+   * Does the work of <code>ipprefix2bytes</code>, without the use of the
+   * cache.
+   * @see #ipprefix2bytes
+   */
+  private static int encode_ipprefix(IPaddress ipprefix, byte[] bytes,
+                                     int bindex, boolean usenhi) {
     int startindex = bindex;
 
     if (usenhi) {
@@ -1284,45 +2167,64 @@ public class Monitor {
   public static int bytes2ipprefix(StringBuffer ipprefix, byte[] bytes,
                                    int bindex, boolean usenhi) {
     Debug.gaffirm(ipprefix.length()==0, "invalid StringBuffer (must be \"\")");
+    return append_ipprefix(ipprefix, bytes, bindex, usenhi);
+  }
+
+  // ----- append_ipprefix ------------------------------------------------- //
+  /**
+   * Converts a series of bytes to an IP address prefix, as
+   * <code>bytes2ipprefix</code> does, but appends the results to the given
+   * StringBuffer, which need not be empty.  This allows many prefixes to be
+   * decoded into one buffer without creating a new one for each.
+   *
+   * @param ipprefix  A StringBuffer to which the results will be appended.
+   * @param bytes     The byte array to convert to an IP address.
+   * @param bindex    The index into the given byte array from which to begin
+   *                  converting.
+   * @param usenhi    Whether or not to use NHI addressing.
+   * @return the total number of bytes used in the conversion (including size
+   *         byte)
+   * @see #bytes2ipprefix
+   */
+  public static int append_ipprefix(StringBuffer ipprefix, byte[] bytes,
+                                    int bindex, boolean usenhi) {
     int startindex = bindex;
 
     if (usenhi) {
       int bytesused = bytes[bindex++];
       if (bytesused == 112) { // flag indicating no equivalent NHI address
-        ipprefix.append((0xff & bytes[bindex]) + "." +
-                        (0xff & bytes[bindex+1]) + "." +
-                        (0xff & bytes[bindex+2]) + "." +
-                        (0xff & bytes[bindex+3]) + "/" + bytes[bindex+4]);
+        ipprefix.append(0xff & bytes[bindex]).append('.')
+                .append(0xff & bytes[bindex+1]).append('.')
+                .append(0xff & bytes[bindex+2]).append('.')
+                .append(0xff & bytes[bindex+3]).append('/')
+                .append(bytes[bindex+4]);
         bindex += 5;
       } else if (bytesused == 111) { // flag indicating special bogus address
         ipprefix.append("bogus");
       } else {
+        int endindex = bindex + bytesused; // just past the last byte
         boolean isif = (bytes[bindex++] == 1);
 
-        // start i at 2 (skip isif byte)
-        for (int i=2; i<=bytesused; i+=bytes_per_int) {
+        while (bindex < endindex) {
           ipprefix.append(bytes2int(bytes,bindex));
-          bindex += bytes_per_int;
-          if (i == bytesused-((2*bytes_per_int)-1)) {
-            if (isif) {
-              ipprefix.append("(");
-            } else {
-              ipprefix.append(":");
-            }
-          } else if (i < bytesused-bytes_per_int) {
-            ipprefix.append(":");
-          } else {
+          bindex += int_length(bytes,bindex);
+          if (bindex >= endindex) { // that was the last one
             if (isif) {
               ipprefix.append(")");
             }
+          } else if (isif && bindex + int_length(bytes,bindex) >= endindex) {
+            ipprefix.append("("); // only the interface number remains
+          } else {
+            ipprefix.append(":");
           }
         }
       }
     } else { // using traditional dotted-quad notation for IP addresses
-      ipprefix.append((0xff & bytes[bindex]) + "." +
-                      (0xff & bytes[bindex+1]) + "." +
-                      (0xff & bytes[bindex+2]) + "." +
-                      (0xff & bytes[bindex+3]) + "/" + bytes[bindex+4]);
+      ipprefix.append(0xff & bytes[bindex]).append('.')
+              .append(0xff & bytes[bindex+1]).append('.')
+              .append(0xff & bytes[bindex+2]).append('.')
+              .append(0xff & bytes[bindex+3]).append('/')
+              .append(bytes[bindex+4]);
       bindex += 5;
     }
 
@@ -1395,12 +2297,11 @@ public class Monitor {
       }
 
       int startindex = bindex;
-      bytes[bindex++] = (byte)aspath.length;
+      bindex += count2bytes(aspath.length, bytes, bindex);
 
       if (usenhi) {
         for (int i=0; i<aspath.length; i++) {
-          String nh = AS_descriptor.as2nh(aspath[i]);
-          bindex += nh2bytes(nh, bytes, bindex);
+          bindex += asnh2bytes(aspath[i], bytes, bindex);
         }
       } else { // using traditional AS number format (plain integers)
         for (int i=0; i<aspath.length; i++) {
@@ -1417,16 +2318,17 @@ public class Monitor {
       }
 
       int startindex = bindex;
-      int lenindex = bindex++;  // save a space for the AS path length
-      byte aspathlen = 0;
+      int aspathlen = 0;
+      for (Route r=rte; r != null && r.has_aspath(); r=r.next_rte) {
+        aspathlen++;
+      }
+      bindex += count2bytes(aspathlen, bytes, bindex);
 
       if (usenhi) {
         Route r = rte;
         while (r != null) {
           if (r.has_aspath()) {
-            String nh = AS_descriptor.as2nh(r.as1);
-            bindex += nh2bytes(nh, bytes, bindex);
-            aspathlen++;
+            bindex += asnh2bytes(r.as1, bytes, bindex);
             r = r.next_rte;
           } else {
             r = null;
@@ -1437,14 +2339,12 @@ public class Monitor {
         while (r != null) {
           if (r.has_aspath()) {
             bindex += int2bytes((int)r.as1, bytes, bindex);
-            aspathlen++;
             r = r.next_rte;
           } else {
             r = null;
           }
         }
       }
-      bytes[lenindex] = aspathlen;
       return bindex - startindex;
 
     } else {  // Global.flat_aspaths and Global.linked_aspaths are false
@@ -1456,7 +2356,7 @@ public class Monitor {
       }
 
       int startindex = bindex;
-      bytes[bindex++] = (byte)aspath.length();
+      bindex += count2bytes(aspath.length(), bytes, bindex);
 
       if (usenhi) {
         String aspathnhi = aspath.toMinString(' ',true);
@@ -1510,17 +2410,39 @@ public class Monitor {
   public static int bytes2aspath(StringBuffer aspath, byte[] bytes,
                                  int bindex, boolean usenhi) {
     Debug.gaffirm(aspath.length()==0, "invalid StringBuffer (must be \"\")");
+    return append_aspath(aspath, bytes, bindex, usenhi);
+  }
+
+  // ----- append_aspath --------------------------------------------------- //
+  /**
+   * Converts a series of bytes to a simple AS path, as
+   * <code>bytes2aspath</code> does, but appends the results to the given
+   * StringBuffer, which need not be empty.
+   *
+   * @param aspath  A StringBuffer to which the results will be appended.
+   * @param bytes   The byte array to convert to a simple AS path.
+   * @param bindex  The index into the given byte array from which to begin
+   *                converting.
+   * @param usenhi  Whether or not to use NHI addressing.
+   * @return the total number of bytes used in the conversion (including size
+   *         byte)
+   * @see #bytes2aspath
+   */
+  public static int append_aspath(StringBuffer aspath, byte[] bytes,
+                                  int bindex, boolean usenhi) {
     int startindex = bindex;
-    int pathlen = (int)bytes[bindex++];
+    int pathlen = bytes2count(bytes,bindex);
+    bindex += count_length(bytes,bindex);
 
     if (usenhi) {
-      int nhlen;
+      int nhlen, endindex;
       for (int i=1; i<=pathlen; i++) {
         nhlen = (int)bytes[bindex++];
-        for (int j=1; j<=nhlen; j+=bytes_per_int) {
+        endindex = bindex + nhlen;
+        while (bindex < endindex) {
           aspath.append(bytes2int(bytes,bindex));
-          bindex += bytes_per_int;
-          if (j <= nhlen-bytes_per_int) {
+          bindex += int_length(bytes,bindex);
+          if (bindex < endindex) {
             aspath.append(":");
           }
         }
@@ -1531,7 +2453,7 @@ public class Monitor {
     } else { // using traditional AS number format (plain integers)
       for (int i=1; i<=pathlen; i++) {
         aspath.append(bytes2int(bytes,bindex));
-        bindex += bytes_per_int;
+        bindex += int_length(bytes,bindex);
         if (i != pathlen) {
           aspath.append(" ");
         }
@@ -1556,7 +2478,7 @@ public class Monitor {
   public static int cl2bytes(ClusterList cl, byte[] bytes, int bindex) {
     int startindex = bindex;
 
-    bytes[bindex++] = (byte)cl.length();
+    bindex += count2bytes(cl.length(), bytes, bindex);
 
     String clstr = cl.toString();
     int previndex = 0, curindex = 0;
@@ -1587,11 +2509,12 @@ public class Monitor {
   public static int bytes2cl(StringBuffer cl, byte[] bytes, int bindex) {
     Debug.gaffirm(cl.length()==0, "invalid StringBuffer (must be \"\")");
     int startindex = bindex;
-    int clulen = (int)bytes[bindex++];
+    int clulen = bytes2count(bytes,bindex);
+    bindex += count_length(bytes,bindex);
 
     for (int i=1; i<=clulen; i++) {
       cl.append(bytes2int(bytes,bindex));
-      bindex += bytes_per_int;
+      bindex += int_length(bytes,bindex);
       if (i != clulen) {
         cl.append(" ");
       }
@@ -1600,6 +2523,44 @@ public class Monitor {
     return bindex - startindex;
   }
 
+  // ----- prefix2bytes ---------------------------------------------------- //
+  /**
+   * Encodes an IP address prefix for one of this BGP speaker's records,
+   * either in full or as a reference into its dictionary.
+   *
+   * @param ipprefix  The IP address prefix to encode.
+   * @param bytes     A byte array in which to place the results.
+   * @param bindex    The index into the given byte array at which to begin
+   *                  placing the results.
+   * @return the number of bytes used
+   * @see #ipprefix2bytes
+   */
+  private int prefix2bytes(IPaddress ipprefix, byte[] bytes, int bindex) {
+    if (dict != null) {
+      return dict.prefix2bytes(ipprefix, bytes, bindex, usenhi);
+    }
+    return ipprefix2bytes(ipprefix, bytes, bindex, usenhi);
+  }
+
+  // ----- path2bytes ------------------------------------------------------ //
+  /**
+   * Encodes the AS path of a route for one of this BGP speaker's records,
+   * either in full or as a reference into its dictionary.
+   *
+   * @param rte     The route containing the AS path to encode.
+   * @param bytes   A byte array in which to place the results.
+   * @param bindex  The index into the given byte array at which to begin
+   *                placing the results.
+   * @return the number of bytes used
+   * @see #aspath2bytes
+   */
+  private int path2bytes(Route rte, byte[] bytes, int bindex) {
+    if (dict != null) {
+      return dict.aspath2bytes(rte, bytes, bindex, usenhi);
+    }
+    return aspath2bytes(rte, bytes, bindex, usenhi);
+  }
+
   // ----- update2bytes ---------------------------------------------------- //
   /**
    * Converts the NLRI and withdrawn routes parts of an update message to a
@@ -1617,25 +2578,60 @@ public class Monitor {
    */
   public static int update2bytes(UpdateMessage msg, byte[] bytes, int bindex,
                                  boolean usenhi) {
+    return update2bytes(msg, bytes, bindex, usenhi, null);
+  }
+
+  // ----- update2bytes ---------------------------------------------------- //
+  /**
+   * Converts the NLRI and withdrawn routes parts of an update message to a
+   * series of bytes, encoding prefixes and the AS path as references into
+   * the given dictionary (if there is one).
+   *
+   * @param msg     The update message to convert to bytes.
+   * @param bytes   A byte array in which to place the results.
+   * @param bindex  The index into the given byte array at which to begin
+   *                placing the results.
+   * @param usenhi  Whether or not to use NHI addressing.
+   * @param dict    The dictionary to use, or null to encode everything in
+   *                full.
+   * @return the total number of bytes after conversion (including size bytes)
+   * @see TraceDictionary
+   */
+  public static int update2bytes(UpdateMessage msg, byte[] bytes, int bindex,
+                                 boolean usenhi, TraceDictionary dict) {
     int startindex = bindex;
 
     if (msg.rtes != null && msg.rtes.size() > 0) {
-      bytes[bindex++] = (byte)msg.rtes.size(); // the number of NLRI advertised
+      // the number of NLRI advertised
+      bindex += count2bytes(msg.rtes.size(), bytes, bindex);
       for (int j=0; j<msg.rtes.size(); j++) {
-        bindex += ipprefix2bytes(msg.rte(j).nlri, bytes, bindex, usenhi);
+        if (dict != null) {
+          bindex += dict.prefix2bytes(msg.rte(j).nlri, bytes, bindex, usenhi);
+        } else {
+          bindex += ipprefix2bytes(msg.rte(j).nlri, bytes, bindex, usenhi);
+        }
+      }
+      if (dict != null) {
+        bindex += dict.aspath2bytes(msg.rte(0), bytes, bindex, usenhi);
+      } else {
+        bindex += aspath2bytes(msg.rte(0), bytes, bindex, usenhi);
       }
-      bindex += aspath2bytes(msg.rte(0), bytes, bindex, usenhi);
     } else {
       bytes[bindex++] = 0;
     }
 
     if (msg.wds != null) {
-      if (msg.wds.size() > 1255) {
+      if (bytes_per_int != 0 && msg.wds.size() > 1255) {
         throw new Error("wds too big: " + msg.wds.size());
       }
-      bytes[bindex++] = (byte)msg.wds.size(); // the number of withdrawn routes
+      // the number of withdrawn routes
+      bindex += count2bytes(msg.wds.size(), bytes, bindex);
       for (int j=0; j<msg.wds.size(); j++) {
-        bindex += ipprefix2bytes(msg.wd(j), bytes, bindex, usenhi);
+        if (dict != null) {
+          bindex += dict.prefix2bytes(msg.wd(j), bytes, bindex, usenhi);
+        } else {
+          bindex += ipprefix2bytes(msg.wd(j), bytes, bindex, usenhi);
+        }
       }
     } else {
       bytes[bindex++] = 0;
@@ -1667,38 +2663,95 @@ public class Monitor {
    */
   public static int bytes2update(StringBuffer msg, byte[] bytes, int bindex,
                                  boolean usenhi) {
+    return bytes2update(msg, bytes, bindex, usenhi, null);
+  }
+
+  // ----- bytes2update ---------------------------------------------------- //
+  /**
+   * Converts a series of bytes into the NLRI and withdrawn routes parts of an
+   * update message, resolving prefix and AS path references with the given
+   * dictionary (if there is one).
+   *
+   * @param msg     A StringBuffer into which the results will be placed.
+   *                It <em>must</em> be initialized to the empty string.
+   * @param bytes   The byte array to convert to an update message
+   *                representation.
+   * @param bindex  The index into the given byte array at which to begin
+   *                placing the results.
+   * @param usenhi  Whether or not to use NHI addressing.
+   * @param dict    The dictionary holding the definitions seen so far in the
+   *                stream, or null if the stream does not use one.
+   * @return the total number of bytes used in the conversion (including size
+   *         bytes)
+   * @see TraceDictionary
+   */
+  public static int bytes2update(StringBuffer msg, byte[] bytes, int bindex,
+                                 boolean usenhi, TraceDictionary dict) {
     Debug.gaffirm(msg.length()==0, "invalid StringBuffer (must be \"\")");
+    return append_update(msg, bytes, bindex, usenhi, dict);
+  }
+
+  // ----- append_update --------------------------------------------------- //
+  /**
+   * Converts a series of bytes into the NLRI and withdrawn routes parts of an
+   * update message, as <code>bytes2update</code> does, but appends the
+   * results to the given StringBuffer, which need not be empty.  Prefixes and
+   * the AS path are decoded directly into the buffer, so no intermediate
+   * buffers or strings are created.
+   *
+   * @param msg     A StringBuffer to which the results will be appended.
+   * @param bytes   The byte array to convert to an update message
+   *                representation.
+   * @param bindex  The index into the given byte array at which to begin
+   *                placing the results.
+   * @param usenhi  Whether or not to use NHI addressing.
+   * @param dict    The dictionary holding the definitions seen so far in the
+   *                stream, or null if the stream does not use one.
+   * @return the total number of bytes used in the conversion (including size
+   *         bytes)
+   * @see #bytes2update
+   */
+  public static int append_update(StringBuffer msg, byte[] bytes, int bindex,
+                                  boolean usenhi, TraceDictionary dict) {
     int startindex = bindex;
-    StringBuffer strbuf;
 
-    int numrtes = (int)bytes[bindex++];
+    int numrtes = bytes2count(bytes,bindex);
+    bindex += count_length(bytes,bindex);
     if (numrtes != 0) {
       msg.append("nlri=");
       for (int i=1; i<=numrtes; i++) {
-        strbuf = new StringBuffer("");
-        bindex += bytes2ipprefix(strbuf, bytes, bindex, usenhi);
-        msg.append(strbuf);
+        if (dict != null) {
+          bindex += dict.bytes2prefix(msg, bytes, bindex);
+        } else {
+          bindex += append_ipprefix(msg, bytes, bindex, usenhi);
+        }
         if (i != numrtes) {
-          msg.append("&");
+          msg.append('&');
         }
       }
-      strbuf = new StringBuffer("");
-      bindex += bytes2aspath(strbuf, bytes, bindex, usenhi);
-      msg.append(",asp=" + strbuf);
+      msg.append(",asp=");
+      if (dict != null) {
+        bindex += dict.bytes2aspath(msg, bytes, bindex);
+      } else {
+        bindex += append_aspath(msg, bytes, bindex, usenhi);
+      }
     }
 
-    int numwds = (int)bytes[bindex++];
+    int numwds = bytes2count(bytes,bindex);
+    bindex += count_length(bytes,bindex);
     if (numwds != 0) {
       if (numrtes != 0) {
-        msg.append(" ");
+        msg.append(' ');
       }
       msg.append("wds=");
       for (int i=1; i<=numwds; i++) {
-        strbuf = new StringBuffer("");
-        bindex += bytes2ipprefix(strbuf, bytes, bindex, usenhi);
-        msg.append(strbuf);
+        if (dict != null) {
+          bindex += dict.bytes2prefix(msg, bytes, bindex);
+        } else {
+          bindex += append_ipprefix(msg, bytes, bindex, usenhi);
+        }
         if (i != numwds) {
-          msg.append("&");
+          msg.append('&');
         }
       }
     }
@@ -1712,20 +2765,133 @@ public class Monitor {
    * not yet fully configured at the time the attempt to record them was made.
    */
   public void handle_delayed_msgs() {
-    if (delayedmsgs != null) {
-      for (int k=0; k<delayedmsgs.size(); k++) {
-        Object[] params = (Object[])delayedmsgs.get(k);
-        debugmsg(((Integer)params[0]).intValue(),
-                 ((Integer)params[1]).intValue(),
-                 (PeerEntry)params[2], ((Integer)params[3]).intValue(),
-                 ((Integer)params[4]).intValue(), params[5], params[6]);
-      }
+    int n = num_delayed;
+    int[] ints = delayed_ints;
+    double[] dbls = delayed_dbls;
+    Object[] objs = delayed_objs;
+    num_delayed = 0;
+    delayed_ints = null;
+    delayed_dbls = null;
+    delayed_objs = null;
+
+    for (int k=0; k<n; k++) {
+      record_msg(ints[4*k], ints[4*k+1], (PeerEntry)objs[3*k], ints[4*k+2],
+                 ints[4*k+3], objs[3*k+1], objs[3*k+2], dbls[k]);
+    }
+  }
+
+  // ----- delay_msg ------------------------------------------------------- //
+  /**
+   * Queues a debugging message to be handled once the monitor has been
+   * initialized.
+   *
+   * @see #record_msg(int,int,PeerEntry,int,int,Object,Object,double)
+   */
+  private void delay_msg(int typ, int caseno, PeerEntry peer, int i, int i2,
+                         Object o, Object o2, double d) {
+    if (delayed_ints == null) {
+      delayed_ints = new int[4*16];
+      delayed_dbls = new double[16];
+      delayed_objs = new Object[3*16];
+    } else if (num_delayed == delayed_dbls.length) {
+      int[] ints = new int[2*delayed_ints.length];
+      double[] dbls = new double[2*delayed_dbls.length];
+      Object[] objs = new Object[2*delayed_objs.length];
+      System.arraycopy(delayed_ints, 0, ints, 0, delayed_ints.length);
+      System.arraycopy(delayed_dbls, 0, dbls, 0, delayed_dbls.length);
+      System.arraycopy(delayed_objs, 0, objs, 0, delayed_objs.length);
+      delayed_ints = ints;
+      delayed_dbls = dbls;
+      delayed_objs = objs;
     }
+    int n = num_delayed++;
+    delayed_ints[4*n]   = typ;
+    delayed_ints[4*n+1] = caseno;
+    delayed_ints[4*n+2] = i;
+    delayed_ints[4*n+3] = i2;
+    delayed_dbls[n]     = d;
+    delayed_objs[3*n]   = peer;
+    delayed_objs[3*n+1] = o;
+    delayed_objs[3*n+2] = o2;
   }
 
   // ----- debugmsg -------------------------------------------------------- //
   /**
-   * Records a debugging message regarding a specific type of event.
+   * Records a debugging message regarding a specific type of event.  It is
+   * final so that calls to <code>msg</code> can be inlined down to the test
+   * of <code>want</code>, which is usually false for the shared disabled
+   * monitor.  Wanted messages are counted and passed on to whatever needs
+   * them, and then recorded only if they are shown.
+   *
+   * @param typ     Indicates the type of situation that the message is
+   *                reporting on.
+   * @param caseno  A case number, applicable to certain message types.
+   * @param peer    The entry for a peer associated with this message.
+   * @param i       Numeric data whose meaning varies depending on msg type.
+   * @param i2      Numeric data whose meaning varies depending on msg type.
+   * @param o       An object whose meaning varies depending on msg type.
+   * @param o2      An object whose meaning varies depending on msg type.
+   */
+  public final void debugmsg(int typ, int caseno, PeerEntry peer, int i,
+                             int i2, Object o, Object o2) {
+    if (!want[typ]) {
+      return;
+    }
+    Metrics.count(typ);
+    if (fwd_listener != null &&
+        (typ == FWD_TABLE_ADD || typ == FWD_TABLE_RMV)) {
+      IPaddress prefix = (o instanceof RouteInfo) ? ((RouteInfo)o).route().nlri
+                                                  : (IPaddress)o;
+      long t0 = Metrics.start();
+      fwd_listener.fwd_table_changed(bgp, prefix, typ == FWD_TABLE_ADD);
+      Metrics.stop(Metrics.timer(typ), t0);
+    }
+    if (Global.autoexit) {
+      if (typ == SND_UPDATE) {
+        Quiescence.update_sent(bgp);
+      } else if (typ == RCV_UPDATE) {
+        Quiescence.update_received(bgp);
+      }
+    }
+    if (!show[typ]) {
+      return;
+    }
+
+    double d = -1.0;
+    if (o instanceof Double) {
+      d = ((Double)o).doubleValue();
+      o = null;
+    }
+    record_msg(typ, caseno, peer, i, i2, o, o2, d);
+  }
+
+  // ----- debugmsg(int,int,PeerEntry,double) ------------------------------ //
+  /**
+   * Records a debugging message which carries floating point data, counting
+   * it just as <code>debugmsg</code> does.
+   *
+   * @param typ     Indicates the type of situation that the message is
+   *                reporting on.
+   * @param caseno  A case number, applicable to certain message types.
+   * @param peer    The entry for a peer associated with this message.
+   * @param d       Numeric data whose meaning varies depending on msg type.
+   */
+  public final void debugmsg(int typ, int caseno, PeerEntry peer, double d) {
+    if (!want[typ]) {
+      return;
+    }
+    Metrics.count(typ);
+    if (!show[typ]) {
+      return;
+    }
+    record_msg(typ, caseno, peer, -1, -1, null, null, d);
+  }
+
+  // ----- record_msg ------------------------------------------------------ //
+  /**
+   * Records a debugging message regarding a specific type of event.  It is
+   * the same as <code>debugmsg</code>, except that floating point data is
+   * passed as a primitive value rather than as an object.
    *
    * @param typ     Indicates the type of situation that the message is
    *                reporting on.
@@ -1735,11 +2901,12 @@ public class Monitor {
    * @param i2      Numeric data whose meaning varies depending on msg type.
    * @param o       An object whose meaning varies depending on msg type.
    * @param o2      An object whose meaning varies depending on msg type.
+   * @param d       Numeric data whose meaning varies depending on msg type.
    */
-  public void debugmsg(int typ, int caseno, PeerEntry peer, int i, int i2,
-                       Object o, Object o2) {
+  private void record_msg(int typ, int caseno, PeerEntry peer, int i, int i2,
+                          Object o, Object o2, double d) {
 
-    if ((!Global.streaming && !Global.printing) || !opt[typ]) {
+    if (!show[typ]) {
       // If neither streaming nor printing are being used, or the option to
       // show this message type is not turned on, bail out here.
       return;
@@ -1749,577 +2916,1388 @@ public class Monitor {
       // We can't handle this message yet because not all of the proper data
       // structures have yet been initialized (such as the probe).  Thus, we
       // must queue the delayed message to be handled later.
-      if (delayedmsgs == null) {
-        delayedmsgs = new ArrayList();
-      }
-      Object[] params = { new Integer(typ), new Integer(caseno), peer,
-                          new Integer(i), new Integer(i2), o, o2 };
-      delayedmsgs.add(params);
+      delay_msg(typ, caseno, peer, i, i2, o, o2, d);
       return;
     }
 
-    double d = -1.0;
-    IPaddress ip = null;
-    UpdateMessage msg = null;
-    if (o instanceof IPaddress) {
-      ip = (IPaddress)o;
-    } else if (o instanceof UpdateMessage) {
-      msg = ((UpdateMessage)o);
-    } else if (o instanceof Double) {
-      d = ((Double)o).doubleValue();
+    if (bincounts != null && is_binned(typ)) {
+      // Count the event rather than recording it.
+      long bin = (long)(bgp.nowsec() / bin_width);
+      if (bin != curbin) {
+        flush_bin();
+        curbin = bin;
+      }
+      bincounts[typ]++;
+      return;
     }
 
-    IPaddress ip2 = null;
-    if (o2 instanceof IPaddress) {
-      ip2 = (IPaddress)o2;
+    if (suppressed != null && !admit(typ)) {
+      // Sampled out or over the rate limit.  This is decided before any
+      // encoding is done, so suppressed records cost almost nothing.
+      return;
     }
 
-    //int reqbytes = -1;
-    Route r = null;
-    RouteInfo ri = null;
-    PeerEntry sender = null;
-
-
-    byte[] tmprec = null;
-    byte[] record = new byte[4096]; // doubt we'll ever need more than this
-    record[0] = (byte)typ;
-    int bindex = 1;  // used as index into byte array ('record')
+    emit(typ, caseno, peer, i, i2, o, o2, d);
+  }
 
-    switch (typ) {
-    case START_EVENT:
-    case STOP_EVENT:
-    case CPU_BUSY:
-    case TRANSFAIL:
-    case EXEC_STATE:
-      record[bindex++] = (byte)caseno;
-      break;
-    case BIN_EVENT:
-      // Bin events aren't ever generated directly by BGP, only by
-      // post-processors which group other events to form bin events.
-      bgp.debug.err("unexpected bin event");
-      break;
-    case TRANSOPEN:
-      record[bindex++] = (byte)caseno;
-      switch (caseno) {
-      case 0:
-        record[bindex++] = peer.connection_state;
-        bindex += nh2bytes(peer.nh, record, bindex);
-        break;
-      case 1: break; // nothing else
-      }
-      break;
-    case TRANSCLOSE:
-    case TRANSFATAL:
-    case NO_MSG_WAITING:
-      // nothing else
-      break;
-    case SND_OPEN:
-    case RCV_KA:
-    case SND_KA:
-    case RCV_NOTIF:
-    case SND_NOTIF:
-    case SET_KA:
-    case SET_HOLD:
-    case SET_MRAI:
-    case KA_EXP:
-    case CONNRETRY_EXP:
-    case HOLD_EXP:
-    case CONN_ESTAB:
-      bindex += nh2bytes(peer.nh, record, bindex);
-      break;
-    case RCV_OPEN:
-      record[bindex++] = peer.connection_state;
-      bindex += nh2bytes(peer.nh, record, bindex);
-      break;
-    case RCV_UPDATE:
-      record[bindex++] = (byte)(peer.internal()?1:0); // in- or external update
-      bindex += nh2bytes(msg.nh, record, bindex);
-      bindex += update2bytes(msg, record, bindex, usenhi);
-      break;
-    case SND_UPDATE:
-      record[bindex++] = (byte)caseno;
-      bindex += nh2bytes(peer.nh, record, bindex);
-      bindex += update2bytes(msg, record, bindex, usenhi);
-      break;
-    case SND_UP:
-      int num_ads = msg.num_ads();
-      record[bindex++] = (byte)num_ads;
-      if (num_ads > 0) {
-        record[bindex++] = (byte)msg.rte(0).aspath_length();
-      }
-      record[bindex++] = (byte)msg.num_wds();
-      break;
-    case MRAI_EXP:
-      record[bindex++] = (byte)caseno;
-      switch (caseno) {
-      case 0: // per-peer, per-destination rate limiting
-        bindex += nh2bytes(peer.nh, record, bindex);
-        bindex += ipprefix2bytes(ip, record, bindex, usenhi);
-        break;
-      case 1: // per-peer rate limiting
-        bindex += nh2bytes(peer.nh, record, bindex);
-        break;
-      }
-      break;
-    case HANDLE_UPDATE:
-      record[bindex++] = (byte)caseno;
-      switch (caseno) {
-      case 0:
-        record[bindex++] = (byte)(peer.internal()?1:0); // in/external update
-        bindex += nh2bytes(msg.nh, record, bindex);
-        bindex += update2bytes(msg, record, bindex, usenhi);
-        break;
-      case 1:
-        r = (Route)o;
-        bindex += ipprefix2bytes(r.nlri, record, bindex, usenhi);
-        bindex += cl2bytes(r.cluster_list(), record, bindex);
-        bindex += nh2bytes(peer.nh, record, bindex);
-        break;
-      case 2:
-      case 3:
-        r = (Route)o;
-        bindex += ipprefix2bytes(r.nlri, record, bindex, usenhi);
-        bindex += aspath2bytes(r, record, bindex, usenhi);
-        bindex += nh2bytes(peer.nh, record, bindex);
-        break;
-      case 4:
-        bindex += ipprefix2bytes(ip, record, bindex, usenhi);
-        bindex += nh2bytes(peer.nh, record, bindex);
-        break;
-      case 5:
-      case 6:
-        r = (Route)o;
-        bindex += ipprefix2bytes(r.nlri, record, bindex, usenhi);
-        bindex += nh2bytes(peer.nh, record, bindex);
-        break;
-      }
-      break;
-    case ADDED_ROUTE:
-      record[bindex++] = (byte)caseno;
-      switch (caseno) {
-      case 0:
-        bindex += ipprefix2bytes(ip, record, bindex, usenhi);
-        bindex += nh2bytes(peer.nh, record, bindex);
+  // ----- emit ------------------------------------------------------------ //
+  /**
+   * Encodes a record and hands it off to the player and/or recorder.
+   *
+   * @param typ     Indicates the type of situation that the message is
+   *                reporting on.
+   * @param caseno  A case number, applicable to certain message types.
+   * @param peer    The entry for a peer associated with this message.
+   * @param i       Numeric data whose meaning varies depending on msg type.
+   * @param i2      Numeric data whose meaning varies depending on msg type.
+   * @param o       An object whose meaning varies depending on msg type.
+   * @param o2      An object whose meaning varies depending on msg type.
+   * @param d       Numeric data whose meaning varies depending on msg type.
+   */
+  private void emit(int typ, int caseno, PeerEntry peer, int i, int i2,
+                    Object o, Object o2, double d) {
+    long t0 = Metrics.start();
+
+    // Make room for the whole record before any of it is encoded, so that
+    // encoders rarely run out of room part way through.  If one does anyway,
+    // and none of the record has been sent yet, it is encoded again into a
+    // buffer twice the size.  (The dictionary hands out the same IDs the
+    // second time, and any definitions are still pending.)  Only RIBs are
+    // sent while they are being encoded, and they make room for each route
+    // as they go.
+    if (!ensure(max_size(typ, peer, o, o2))) {
+      too_large(typ);
+      return;
+    }
+    if (dict != null) {
+      dict.limit();
+    }
+    int reclen;
+    while (true) {
+      chunkseq = 0;
+      try {
+        reclen = encode(recbuf, typ, caseno, peer, i, i2, o, o2, d);
         break;
-      case 1:
-        record[bindex++] = (byte)(peer==bgp.self?1:0);
-        if (peer != bgp.self) {
-          bindex += ipprefix2bytes(peer.ip_addr, record, bindex, usenhi);
+      } catch (ArrayIndexOutOfBoundsException e) {
+        if (chunkseq > 0) {
+          throw e;
         }
-        bindex += ipprefix2bytes(ip, record, bindex, usenhi);
-        record[bindex++] = (byte)i; // dop
-        break;
-      case 2:
-        sender = (PeerEntry)o;
-        record[bindex++] = (byte)(sender==bgp.self?1:0);
-        if (sender != bgp.self) {
-          bindex += ipprefix2bytes(sender.ip_addr, record, bindex, usenhi);
-        }
-        bindex += ipprefix2bytes(ip2, record, bindex, usenhi);
-        bindex += nh2bytes(peer.nh, record, bindex);
-        break;
-      }
-      break;
-    case HANDLE_EVENT:
-      record[bindex++] = (byte)caseno; // began or finished processing event
-      bindex += nh2bytes(peer.nh, record, bindex); // peer
-      record[bindex++] = (byte)i; // event type
-      break;
-    case DOP_CALC:
-      record[bindex++] = (byte)caseno;
-      bindex += ipprefix2bytes(ip, record, bindex, usenhi);
-      record[bindex++] = (byte)i; // dop
-      break;
-    case DEC_PROC:
-      record[bindex++] = (byte)caseno;
-      switch (caseno) { // which phase of the Decision Process
-      case 1: // Phase 1
-        record[bindex++] = (byte)i;
-        switch (i) {
-        case 0: break; // nothing else
-        case 1:
-          ri = (RouteInfo)o;
-          r  = ri.route();
-          record[bindex++] = (byte)(ri.permissible()?1:0);
-          bindex += ipprefix2bytes(r.nlri, record, bindex, usenhi);
-          bindex += aspath2bytes(r, record, bindex, usenhi);
-          bindex += nh2bytes(peer.nh, record, bindex);
-          break;
-        case 2:
-          bindex += ipprefix2bytes(ip, record, bindex, usenhi);
-          record[bindex++] = (byte)i2;
-          break;
+        if (!ensure(2*recbuf.length)) {
+          too_large(typ);
+          return;
         }
-        break;
-      case 2: // Phase 2
-        record[bindex++] = (byte)i;
-        switch (i) {
-        case 0: break; // nothing else
-        case 1:
-        case 2:
-          r = (Route)o;
-          bindex += ipprefix2bytes(r.nlri, record, bindex, usenhi);
-          bindex += aspath2bytes(r, record, bindex, usenhi);
-          break;
-        case 3:
-          r = (Route)o;
-          bindex += ipprefix2bytes(r.nlri, record, bindex, usenhi);
-          bindex += nh2bytes(peer.nh, record, bindex);
-          break;
-        case 4:
-        case 5:
-          r = (Route)o;
-          bindex += ipprefix2bytes(r.nlri, record, bindex, usenhi);
-          bindex += aspath2bytes(r, record, bindex, usenhi);
-          bindex += nh2bytes(peer.nh, record, bindex);
-          break;
-        }
-        break;
-      case 3: // Phase 3
-        record[bindex++] = (byte)i;
-        switch (i) {
-        case 0: break; // nothing else
-        case 1:
-        case 2:
-        case 3:
-        case 4:
-        case 5:
-        case 6:
-        case 7:
-        case 8:
-          r = (Route)o;
-          bindex += ipprefix2bytes(r.nlri, record, bindex, usenhi);
-          bindex += aspath2bytes(r, record, bindex, usenhi);
-          bindex += nh2bytes(peer.nh, record, bindex);
-          break;
-        }
-        break;
       }
-      break;
-    case DONE_PROC:
-      record[bindex++] = (byte)i; // event type
-      bindex += nh2bytes(peer.nh, record, bindex); // peer
-      break;
-    case EXT_UPDATE:
-      record[bindex++] = (byte)caseno;
-      switch (caseno) {
-      case 0: break; // nothing else
-      case 1:
-        bindex += nh2bytes(peer.nh, record, bindex);
-        break;
-      case 2:
-        r = (Route)o;
-        bindex += ipprefix2bytes(r.nlri, record, bindex, usenhi);
-        bindex += aspath2bytes(r, record, bindex, usenhi);
-        bindex += nh2bytes(peer.nh, record, bindex);
-        break;
-      case 3:
-      case 4:
-        bindex += nh2bytes(peer.nh, record, bindex);
-        bindex += update2bytes(msg, record, bindex, usenhi);
-        break;
-      case 5:
-      case 7:
-      case 8:
-        bindex += ipprefix2bytes(ip, record, bindex, usenhi);
-        bindex += nh2bytes(peer.nh, record, bindex);
-        break;
-      case 6:
-        r = (Route)o;
-        bindex += ipprefix2bytes(r.nlri, record, bindex, usenhi);
-        bindex += aspath2bytes(r, record, bindex, usenhi);
-        bindex += nh2bytes(peer.nh, record, bindex);
-        break;
+    }
+
+    send_defs();
+    if (chunkseq > 0 || reclen > MAX_STREAMED_RECORD_SIZE) {
+      // The first part of a RIB may already have been sent while the RIB
+      // was being encoded.  The rest of it, like any other record which is
+      // too big to be sent in one piece, goes in chunks too.
+      send_chunks(reclen, true);
+    } else {
+      send_record(typ, recbuf, reclen);
+    }
+
+    if (Metrics.enabled) {
+      // Encoding takes no simulation time, so only wall time is recorded.
+      Metrics.stop(Metrics.ENCODE, t0);
+    }
+  }
+
+  // ----- ensure ---------------------------------------------------------- //
+  /**
+   * Makes sure that the encoding buffer holds at least the given number of
+   * bytes, replacing it with a larger one if necessary.  The contents of the
+   * buffer are not preserved.
+   *
+   * @param n  The number of bytes needed.
+   * @return false if more than <code>MAX_RECORD_SIZE</code> bytes are
+   *         needed, in which case the buffer is left as it was
+   */
+  private boolean ensure(int n) {
+    if (recbuf != null && recbuf.length >= n) {
+      return true;
+    }
+    if (n > MAX_RECORD_SIZE) {
+      return false;
+    }
+    int size = (recbuf == null) ? INITIAL_RECORD_SIZE : recbuf.length;
+    while (size < n) {
+      size *= 2;
+    }
+    recbuf = new byte[Math.min(size, MAX_RECORD_SIZE)];
+    return true;
+  }
+
+  // ----- too_large ------------------------------------------------------- //
+  /**
+   * Reports that a record was dropped because it would have been larger
+   * than <code>MAX_RECORD_SIZE</code>.
+   *
+   * @param typ  The type of the record.
+   */
+  private void too_large(int typ) {
+    bgp.debug.warn("monitor record of type " + typ + " would be larger " +
+                   "than " + MAX_RECORD_SIZE + " bytes; dropped");
+  }
+
+  // ----- grow ------------------------------------------------------------ //
+  /**
+   * Makes sure that the encoding buffer holds at least the given number of
+   * bytes, replacing it with a larger one if necessary.  Unlike
+   * <code>ensure</code>, it preserves the contents of the buffer, and so can
+   * be used part way through encoding a record.
+   *
+   * @param n  The number of bytes needed.
+   * @return false if more than <code>MAX_RECORD_SIZE</code> bytes are
+   *         needed, in which case the buffer is left as it was
+   */
+  private boolean grow(int n) {
+    if (recbuf.length < n) {
+      byte[] old = recbuf;
+      if (!ensure(n)) {
+        return false;
       }
+      System.arraycopy(old, 0, recbuf, 0, old.length);
+    }
+    return true;
+  }
+
+  // ----- max_size -------------------------------------------------------- //
+  /**
+   * Returns an upper bound on the number of bytes in the encoding of a
+   * record.  Every record has at most a few fixed-size fields and a few
+   * addresses, plus whatever is needed for the update messages, routes,
+   * strings, and forwarding tables that it carries.
+   *
+   * @param typ   The type of the record.
+   * @param peer  The entry for a peer associated with the record.
+   * @param o     An object whose meaning varies depending on record type.
+   * @param o2    An object whose meaning varies depending on record type.
+   * @return the largest number of bytes that the record could need
+   */
+  private int max_size(int typ, PeerEntry peer, Object o, Object o2) {
+    int n = MAX_FIXED_SIZE + obj_size(o) + obj_size(o2);
+    switch (typ) {
+    case IBGP_CLUSTER:
+      n += bgp.nbs.length * MAX_ADDR_SIZE;
       break;
-    case ID_DATA:
-      bindex += bgpid2bytes(bgp.bgp_id, record, bindex);
-      bindex = BytesUtil.intToBytes(bgp.as_num, record, bindex);
-      bindex += nh2bytes(bgp.as_nh, record, bindex);
-      bindex += ipprefix2bytes(bgp.as_prefix, record, bindex, false);
-      break;
-    case RFD:
-      record[bindex++] = (byte)caseno;
-      switch (caseno) {
-      case 1: // RFD setting
-        record[bindex++] = (byte)i;
-        break;
-      case 2: // WD penalty update
-        bindex += nh2bytes(peer.nh, record, bindex);
-        bindex = BytesUtil.stringToBytes((String)o, record, bindex);
-        bindex = BytesUtil.stringToBytes((String)o2, record, bindex);
-        break;
-      case 3: // WD dampinfo is missing
-        bindex += nh2bytes(peer.nh, record, bindex);
-        break;
-      case 4: // AD: update penalty
-        bindex += nh2bytes(peer.nh, record, bindex);
-        bindex = BytesUtil.stringToBytes((String)o, record, bindex);
-        bindex = BytesUtil.stringToBytes((String)o2, record, bindex);
-        break;
-      case 5: // AD: new dampInfo
-        bindex += nh2bytes(peer.nh, record, bindex);
-        bindex = BytesUtil.stringToBytes((String)o, record, bindex);
-        bindex = BytesUtil.stringToBytes((String)o2, record, bindex);
-        break;
-      case 6: // suppressed
-        bindex =BytesUtil.stringToBytes((String)o, record, bindex);
-        bindex =BytesUtil.stringToBytes((String)o2, record, bindex);
-        break;
+    }
+    // RIBs are sent in pieces as they are encoded (see rib2bytes), and the
+    // buffer grows to fit forwarding tables while they are encoded, so
+    // neither needs room beyond that.
+    return n;
+  }
+
+  // ----- obj_size -------------------------------------------------------- //
+  /**
+   * Returns an upper bound on the number of bytes needed to encode an update
+   * message, route, or string carried by a record.  Addresses and peers are
+   * already allowed for by <code>MAX_FIXED_SIZE</code>.
+   */
+  private static int obj_size(Object o) {
+    if (o instanceof UpdateMessage) {
+      UpdateMessage msg = (UpdateMessage)o;
+      int n = 2*MAX_INT_SIZE + (msg.num_ads()+msg.num_wds())*MAX_ADDR_SIZE;
+      if (msg.num_ads() > 0) {
+        n += route_size(msg.rte(0));
       }
-      break;
-    case NB_INFO:
-      record[bindex++] = (byte)(peer.internal()?1:0);
-      bindex += ipprefix2bytes(peer.ip_addr, record, bindex, usenhi);
-      break;
-    case DUMP_FWD_TABLES:
-    case FWD_TABLES:
-      // allocate a bigger array
-      //reqbytes = ((RadixTreeRoutingTable)bgp.fwd_table).approxBytes();
-      tmprec = new byte[8192];
-      //tmprec = new byte[2*reqbytes];
-      //tmprec = new byte[100+reqbytes];
-      for (int k=0; k<bindex; k++) {
-        tmprec[k] = record[k];
-      }
-      record = tmprec;
-      bindex += ((RadixTreeRoutingTable)bgp.fwd_table).
-                                                 toBytes(record,bindex,usenhi);
-      break;
-    case JITTER:
-      record[bindex++] = (byte)caseno;
-      bindex = BytesUtil.longToBytes(Double.doubleToLongBits(d),record,bindex);
-      break;
-    case AGGREG:
-      record[bindex++] = (byte)caseno;
-      switch (caseno) {
-      case 0: break; // nothing else
-      case 1:
-        bindex += ipprefix2bytes(ip, record, bindex, usenhi);
-        bindex += ipprefix2bytes(ip2, record, bindex, usenhi);
-        break;
+      return n;
+    }
+    if (o instanceof RouteInfo) {
+      return route_size(((RouteInfo)o).route());
+    }
+    if (o instanceof Route) {
+      return route_size((Route)o);
+    }
+    if (o instanceof String) {
+      return 4 + 4*((String)o).length();
+    }
+    return 0;
+  }
+
+  // ----- aspath_size ----------------------------------------------------- //
+  /**
+   * Returns an upper bound on the number of bytes needed to encode a route's
+   * AS path with <code>aspath2bytes</code>.  It counts the ASes just as
+   * <code>aspath2bytes</code> writes them, which, for AS path attributes,
+   * is every AS in every segment (an AS_SET contributes all of its ASes,
+   * not one as it does to the path length used in route selection).
+   * @see #aspath2bytes
+   */
+  static int aspath_size(Route r) {
+    int n = 0;
+    if (Global.flat_aspaths) {
+      n = r.aspath.length;
+    } else if (Global.linked_aspaths) {
+      for (Route rr=r; rr != null && rr.has_aspath(); rr=rr.next_rte) {
+        n++;
       }
-      break;
-    case STATE_CHANGE:
-      record[bindex++] = (byte)i;
-      record[bindex++] = (byte)i2;
-      bindex += nh2bytes(peer.nh, record, bindex);
-      break;
-    case TIMER_CONFIG:
-      record[bindex++] = (byte)caseno;
-      switch (caseno) {
-      case 0:
-        bindex = BytesUtil.longToBytes(Double.doubleToLongBits(BGPSession.
-                          ticks2secs(bgp.connretry_interval)), record, bindex);
-        break;
-      case 1:
-        bindex = BytesUtil.longToBytes(Double.doubleToLongBits(BGPSession.
-                                       ticks2secs(bgp.masoi)), record, bindex);
-        break;
-      case 2:
-        bindex = BytesUtil.longToBytes(Double.doubleToLongBits(BGPSession.
-                        ticks2secs(peer.hold_timer_interval)), record, bindex);
-        bindex += nh2bytes(peer.nh, record, bindex);
-        break;
-      case 3:
-        bindex = BytesUtil.longToBytes(Double.doubleToLongBits(BGPSession.
-                        ticks2secs(peer.keep_alive_interval)), record, bindex);
-        bindex += nh2bytes(peer.nh, record, bindex);
-        break;
-      case 4:
-        bindex = BytesUtil.longToBytes(Double.doubleToLongBits(BGPSession.
-                                       ticks2secs(peer.mrai)), record, bindex);
-        bindex += nh2bytes(peer.nh, record, bindex);
-        break;
+    } else {
+      ASpath aspath = (ASpath)r.pas[ASpath.TYPECODE];
+      if (aspath != null) {
+        for (int i=0; i<aspath.segs.size(); i++) {
+          n += ((Segment)aspath.segs.get(i)).asnhs.size();
+        }
       }
-      break;
-    case FWD_TABLE_ADD:
-      if (o instanceof RouteInfo) {
-        record[bindex++] = (byte)0; // case 0
-        ri = (RouteInfo)o;
-        bindex += ipprefix2bytes(ri.route().nlri, record, bindex, usenhi);
-        bindex += ipprefix2bytes(bgp.nbs[ri.peerind()].ip_addr, record,
-                                 bindex, usenhi);
-        bindex += aspath2bytes(ri.route(), record, bindex, usenhi);
+    }
+    return MAX_INT_SIZE + n*Math.max(MAX_ADDR_SIZE, MAX_INT_SIZE);
+  }
+
+  // ----- route_size ------------------------------------------------------ //
+  /**
+   * Returns an upper bound on the number of bytes needed to encode a route's
+   * prefix, AS path, and cluster list.
+   */
+  private static int route_size(Route r) {
+    int n = MAX_ADDR_SIZE + aspath_size(r);
+    ClusterList cl = r.cluster_list();
+    if (cl != null) {
+      n += MAX_INT_SIZE + cl.length()*MAX_INT_SIZE;
+    }
+    return n;
+  }
+
+  // ----- is_binned ------------------------------------------------------- //
+  /**
+   * Determines whether or not events of the given type are counted in bins
+   * when binning is in use.  Records which identify the BGP speaker and its
+   * neighbors, and dumps of entire tables, are always recorded in full.
+   *
+   * @param typ  The type of the event.
+   * @return true only if events of the type are binned
+   */
+  private static boolean is_binned(int typ) {
+    return typ != ID_DATA && typ != NB_INFO && !is_table_record(typ);
+  }
+
+  // ----- flush_bin ------------------------------------------------------- //
+  /**
+   * Emits a <code>BIN_EVENT</code> record for each event type counted in the
+   * current bin, and empties the bin.
+   */
+  private void flush_bin() {
+    if (curbin < 0) {
+      return;
+    }
+    double start = curbin * bin_width;
+    for (int t=0; t<num_bool_opts; t++) {
+      if (bincounts[t] > 0) {
+        emit(BIN_EVENT, t, null, bincounts[t], 0, null, null, start);
+        bincounts[t] = 0;
+      }
+    }
+  }
+
+  // ----- admit ----------------------------------------------------------- //
+  /**
+   * Decides whether or not a record of the given type is to be kept, given
+   * the sampling ratio and rate limit for the type, and counts it as
+   * suppressed if not.  Rate limits are enforced with a token bucket which
+   * holds up to one second's worth of records (but at least one).
+   *
+   * @param typ  The type of the record.
+   * @return true only if the record is to be kept
+   */
+  private boolean admit(int typ) {
+    seen[typ]++;
+    if (sample != null && sample[typ] < 1.0 && next_sample() >= sample[typ]) {
+      suppressed[typ]++;
+      return false;
+    }
+    if (ratelimit != null && ratelimit[typ] > 0.0) {
+      double rate = ratelimit[typ];
+      double burst = Math.max(1.0, rate);
+      double now = bgp.nowsec();
+      if (lastfill[typ] < 0.0) {
+        tokens[typ] = burst;
       } else {
-        record[bindex++] = (byte)1; // case 1
-        // This case is for inserting peer interfaces into the fwd table.
-        // 'o' is an IPaddress object
-        bindex += ipprefix2bytes(ip, record, bindex, usenhi);
-        bindex += ipprefix2bytes(peer.ip_addr, record, bindex, usenhi);
+        tokens[typ] = Math.min(burst,
+                               tokens[typ] + (now - lastfill[typ]) * rate);
       }
-      break;
-    case FWD_TABLE_RMV:
-      ri = (RouteInfo)o;
-      bindex += ipprefix2bytes(ri.route().nlri, record, bindex, usenhi);
-      bindex += ipprefix2bytes(bgp.nbs[ri.peerind()].ip_addr, record, bindex,
-                               usenhi);
-      bindex += aspath2bytes(ri.route(), record, bindex, usenhi);
-      break;
-    case SOCKET_EVENT:
-      record[bindex++] = (byte)caseno;
-      switch (caseno) {
-      case 1: // "listening for peers on a socket"
-        break; // nothing else
-      case 2: // "passively established socket connection"
-      case 3: // "writing to socket"
-      case 4: // "attempting socket connection"
-      case 5: // "rcv msg on socket connection"
-      case 6: // "closing socket connection"
-      case 7: // "actively established socket connection"
-        bindex += nh2bytes(peer.nh, record, bindex);
-        break;
-      case 8: // "ignoring message on defunct read socket"
-        record[bindex++] = (byte)i; // message type
-        bindex += nh2bytes(peer.nh, record, bindex);
-        break;
-      case 9: // "failed write socket connection attempt"
-        record[bindex++] = (byte)i; // error number
-        bindex += nh2bytes(peer.nh, record, bindex);
-        break;
+      lastfill[typ] = now;
+      if (tokens[typ] < 1.0) {
+        suppressed[typ]++;
+        return false;
       }
-      break;
-    case REFLECT:
-      sender = (PeerEntry)o;
-      record[bindex++] = (byte)(sender.client()?1:0);
-      bindex += nh2bytes(sender.nh, record, bindex);
-      bindex += nh2bytes(peer.nh, record, bindex);
-      bindex += ipprefix2bytes(ip2, record, bindex, usenhi);
-      break;
-    case IBGP_CLUSTER:
-      record[bindex++] = (byte)bgp.cluster_num;
-      int tmpindex = bindex;
-      bindex++; // leave room to add count later
-      int count = 0;
-      for (int j=0; j<bgp.nbs.length-1; j++) { // skip last nb ('self')
-        if (bgp.nbs[j].client()) {
-          bindex += nh2bytes(bgp.nbs[j].nh, record, bindex);
-          count++;
-        }
+      tokens[typ] -= 1.0;
+    }
+    return true;
+  }
+
+  // ----- next_sample ----------------------------------------------------- //
+  /**
+   * Returns the next value from this monitor's sampler, uniformly
+   * distributed in [0,1).  An xorshift generator is used, since it is cheap
+   * and needs no synchronization.
+   *
+   * @return the next pseudo-random value in [0,1)
+   */
+  private double next_sample() {
+    if (sampler == 0L) {
+      sampler = Global.sample_seed ^ (bgp.nh.hashCode()*0x9e3779b97f4a7c15L);
+      if (sampler == 0L) {
+        sampler = 0x9e3779b97f4a7c15L;
       }
-      record[tmpindex] = (byte)count;
-      break;
-    case HOLD_VALUE:
-      bindex = BytesUtil.longToBytes(Double.doubleToLongBits(BGPSession.
-                        ticks2secs(peer.hold_timer_interval)), record, bindex);
-      bindex += nh2bytes(peer.nh, record, bindex);
-      break;
-    case KA_VALUE:
-      bindex = BytesUtil.longToBytes(Double.doubleToLongBits(BGPSession.
-                        ticks2secs(peer.keep_alive_interval)), record, bindex);
-      bindex += nh2bytes(peer.nh, record, bindex);
-      break;
-    case IN_POLICY:
-      ri = (RouteInfo)o;
-      r  = ri.route();
-
-      record[bindex++] = (byte)(ri.permissible()?1:0);
-      bindex += ipprefix2bytes(r.nlri, record, bindex, usenhi);
-      bindex += aspath2bytes(r, record, bindex, usenhi);
-      bindex += nh2bytes(peer.nh, record, bindex);
-      break;
-    case OUT_POLICY:
-      sender = (PeerEntry)o;
-      record[bindex++] = (byte)caseno;
-      bindex += ipprefix2bytes(ip2, record, bindex, usenhi);
-      bindex += nh2bytes(peer.nh, record, bindex);
-      bindex += nh2bytes(sender.nh, record, bindex);
-      break;
+    }
+    sampler ^= sampler << 13;
+    sampler ^= sampler >>> 7;
+    sampler ^= sampler << 17;
+    return (sampler >>> 11) * (1.0 / (1L << 53));
+  }
+
+  // ----- num_suppressed -------------------------------------------------- //
+  /**
+   * Returns the number of records of the given type which were suppressed by
+   * sampling or rate limiting.
+   *
+   * @param typ  A record type.
+   * @return the number of records of the type which were suppressed
+   */
+  public long num_suppressed(int typ) {
+    return (suppressed == null) ? 0 : suppressed[typ];
+  }
+
+  // ----- report_suppressed ----------------------------------------------- //
+  /**
+   * Reports, for each record type, how many records were suppressed by
+   * sampling or rate limiting, so that totals can still be recovered.
+   */
+  private void report_suppressed() {
+    for (int i=0; i<num_bool_opts; i++) {
+      if (suppressed[i] > 0) {
+        bgp.debug.msg("monitor suppressed " + suppressed[i] + " of " +
+                      seen[i] + " " + opt_base_name(i) + " records");
+      }
+    }
+  }
+
+  // ----- prefixed_opt_names ---------------------------------------------- //
+  /**
+   * Returns the names of a family of per-type options, formed by prefixing
+   * the base name of each record type.
+   *
+   * @param prefix  The prefix, such as <code>"sample_"</code>.
+   * @return the option names, indexed by record type
+   * @see #opt_base_name
+   */
+  private static String[] prefixed_opt_names(String prefix) {
+    String[] names = new String[num_bool_opts];
+    for (int i=0; i<num_bool_opts; i++) {
+      names[i] = prefix + opt_base_name(i);
+    }
+    return names;
+  }
+
+  // ----- opt_base_name --------------------------------------------------- //
+  /**
+   * Returns the name of a record type as used in the names of the options
+   * which sample or rate-limit it.  It is the name of the boolean option
+   * which shows the type, without any <code>show_</code> prefix.  For
+   * example, <code>rcv_update</code> records are sampled with the
+   * <code>sample_rcv_update</code> option and rate-limited with the
+   * <code>rate_limit_rcv_update</code> option, both of which are given in
+   * the <code>record_limits</code> block of the BGP options.
+   *
+   * @param typ  A record type.
+   * @return the base name of the record type
+   */
+  public static String opt_base_name(int typ) {
+    String name = bool_opt_names[typ];
+    return name.startsWith("show_") ? name.substring(5) : name;
+  }
+
+  // ----- is_table_record ------------------------------------------------- //
+  /**
+   * Determines whether or not records of the given type hold the contents of
+   * an entire RIB or the local forwarding table.
+   *
+   * @param typ  The type of the record.
+   * @return true only if the record holds an entire table
+   */
+  private static boolean is_table_record(int typ) {
+    switch (typ) {
+    case DUMP_FWD_TABLES:
+    case FWD_TABLES:
     case DUMP_RIBS_IN:
-      caseno = 0;
     case RIBS_IN:
-      r = (Route)o;
-      record[bindex++] = (byte)caseno;
-      switch (caseno) {
-      case 0:
-        bindex += nh2bytes(peer.nh, record, bindex);
-        break;
-      case 1:
-      case 2:
-        bindex += ipprefix2bytes(r.nlri, record, bindex, usenhi);
-        bindex += aspath2bytes(r, record, bindex, usenhi);
-        bindex += nh2bytes(peer.nh, record, bindex);
-        break;
-      case 3:
-        Route r2 = (Route)o2;
-        bindex += ipprefix2bytes(r.nlri, record, bindex, usenhi);
-        bindex += aspath2bytes(r, record, bindex, usenhi);
-        bindex += nh2bytes(peer.nh, record, bindex);
-        bindex += ipprefix2bytes(r2.nlri, record, bindex, usenhi);
-        bindex += aspath2bytes(r2, record, bindex, usenhi);
-        break;
-      }
-      // allocate a bigger array
-      //reqbytes = peer.rib_in.approxBytes(usenhi);
-      //tmprec = new byte[100+reqbytes];
-      tmprec = new byte[8192];
-      for (int k=0; k<bindex; k++) {
-        tmprec[k] = record[k];
-      }
-      record = tmprec;
-      bindex += peer.rib_in.toBytes(record,bindex,usenhi);
-      break;
     case DUMP_LOC_RIB:
     case LOC_RIB:
-      // allocate a bigger array
-      //reqbytes = bgp.loc_rib.approxBytes(usenhi);
-      //tmprec = new byte[100+reqbytes];
-      tmprec = new byte[8192];
-      for (int k=0; k<bindex; k++) {
-        tmprec[k] = record[k];
-      }
-      record = tmprec;
-      bindex += bgp.loc_rib.toBytes(record,bindex,usenhi);
-      break;
     case DUMP_RIBS_OUT:
     case RIBS_OUT:
-      // allocate a bigger array
-      //reqbytes = peer.rib_out.approxBytes(usenhi);
-      //tmprec = new byte[100+reqbytes];
-      tmprec = new byte[8192];
-      for (int k=0; k<bindex; k++) {
-        tmprec[k] = record[k];
-      }
-      record = tmprec;
-      bindex += nh2bytes(peer.nh, record, bindex);
-      bindex += peer.rib_out.toBytes(record,bindex,usenhi);
-      break;
-    case DUMP_STABILITY:
-      int sentups = 0, rcvdups = 0, outups = 0;
-      for (int j=0; j<bgp.nbs.length-1; j++) { // skip last nb ('self')
-        outups  += bgp.nbs[j].waiting_adv.size();
-        sentups += bgp.nbs[j].outupdates;
-        rcvdups += bgp.nbs[j].inupdates;
-      }
-      bindex = BytesUtil.intToBytes(sentups, record, bindex);
-      bindex = BytesUtil.intToBytes(rcvdups, record, bindex);
-      bindex = BytesUtil.intToBytes(outups, record, bindex);
-      break;      
+      return true;
     default:
+      return false;
+    }
+  }
+
+  // ----- encode ---------------------------------------------------------- //
+  /**
+   * Encodes a record regarding a specific type of event into the given
+   * buffer, starting at its first byte.  The buffer should be large enough
+   * to hold the record (see <code>max_size</code>); if it isn't, an
+   * <code>ArrayIndexOutOfBoundsException</code> is thrown, and
+   * <code>emit</code> tries again with a larger one.  The body of the record
+   * is encoded by the encoder registered for its type in
+   * <code>encoders</code>.
+   *
+   * @param record  The buffer into which to encode the record.
+   * @param typ     Indicates the type of situation that the message is
+   *                reporting on.
+   * @param caseno  A case number, applicable to certain message types.
+   * @param peer    The entry for a peer associated with this message.
+   * @param i       Numeric data whose meaning varies depending on msg type.
+   * @param i2      Numeric data whose meaning varies depending on msg type.
+   * @param o       An object whose meaning varies depending on msg type.
+   * @param o2      An object whose meaning varies depending on msg type.
+   * @param d       Numeric data whose meaning varies depending on msg type.
+   * @return the number of bytes in the encoded record
+   */
+  private int encode(byte[] record, int typ, int caseno, PeerEntry peer,
+                     int i, int i2, Object o, Object o2, double d) {
+    record[0] = (byte)typ;
+    Encoder enc = (typ >= 0 && typ < encoders.length) ? encoders[typ] : null;
+    if (enc == null) {
       bgp.debug.err("unrecognized monitoring message type: " + typ);
+      return 1;
+    }
+    return enc.encode(this, record, 1, caseno, peer, i, i2, o, o2, d);
+  }
+
+  // ===== inner class Encoder ============================================= //
+  /**
+   * Encodes the body of the records for one or more types of event.  There is
+   * one encoder per record type, kept in the <code>encoders</code> table, so
+   * that the code for each type of record is small enough to be compiled by
+   * itself rather than as part of a single enormous method.
+   */
+  private static abstract class Encoder {
+    /**
+     * Encodes the body of a record (everything after the type byte).
+     *
+     * @param mon     The monitor on whose behalf the record is encoded.
+     * @param record  The buffer into which to encode the record.
+     * @param bindex  The index at which to begin placing the results.
+     * @param caseno  A case number, applicable to certain message types.
+     * @param peer    The entry for a peer associated with this message.
+     * @param i       Numeric data whose meaning varies depending on type.
+     * @param i2      Numeric data whose meaning varies depending on type.
+     * @param o       An object whose meaning varies depending on type.
+     * @param o2      An object whose meaning varies depending on type.
+     * @param d       Numeric data whose meaning varies depending on type.
+     * @return the index just past the last byte of the encoded record
+     */
+    abstract int encode(Monitor mon, byte[] record, int bindex, int caseno,
+                        PeerEntry peer, int i, int i2, Object o, Object o2,
+                        double d);
+  } // end inner class Encoder
+
+  /** The encoder for each type of record, indexed by record type. */
+  private static final Encoder[] encoders = make_encoders();
+
+  // ----- make_encoders --------------------------------------------------- //
+  /**
+   * Builds the table of encoders, one for each type of record.
+   *
+   * @return the table of encoders, indexed by record type
+   */
+  private static Encoder[] make_encoders() {
+    Encoder[] tbl = new Encoder[num_bool_opts];
+    Encoder enc;
+
+    enc = new Encoder() {
+        int encode(Monitor mon, byte[] record, int bindex, int caseno,
+                   PeerEntry peer, int i, int i2, Object o, Object o2,
+                   double d) {
+          record[bindex++] = (byte)caseno;
+          return bindex;
+        }
+      };
+    tbl[START_EVENT] = tbl[STOP_EVENT] = tbl[CPU_BUSY] = tbl[TRANSFAIL] =
+      tbl[EXEC_STATE] = enc;
+
+    tbl[BIN_EVENT] = new Encoder() {
+        int encode(Monitor mon, byte[] record, int bindex, int caseno,
+                   PeerEntry peer, int i, int i2, Object o, Object o2,
+                   double d) {
+          // caseno: the type of event counted
+          // i:      the number of events counted
+          // d:      the time at which the bin begins
+          record[bindex++] = (byte)caseno;
+          bindex = BytesUtil.longToBytes(Double.doubleToLongBits(d), record,
+                                         bindex);
+          bindex = BytesUtil.longToBytes(Double.doubleToLongBits(
+                                           mon.bin_width), record, bindex);
+          return BytesUtil.intToBytes(i, record, bindex);
+        }
+      };
+
+    tbl[TRANSOPEN] = new Encoder() {
+        int encode(Monitor mon, byte[] record, int bindex, int caseno,
+                   PeerEntry peer, int i, int i2, Object o, Object o2,
+                   double d) {
+          record[bindex++] = (byte)caseno;
+          switch (caseno) {
+          case 0:
+            record[bindex++] = peer.connection_state;
+            bindex += nh2bytes(peer.nh, record, bindex);
+            break;
+          case 1: break; // nothing else
+          }
+          return bindex;
+        }
+      };
+
+    enc = new Encoder() {
+        int encode(Monitor mon, byte[] record, int bindex, int caseno,
+                   PeerEntry peer, int i, int i2, Object o, Object o2,
+                   double d) {
+          return bindex; // nothing else
+        }
+      };
+    tbl[TRANSCLOSE] = tbl[TRANSFATAL] = tbl[NO_MSG_WAITING] = enc;
+
+    enc = new Encoder() {
+        int encode(Monitor mon, byte[] record, int bindex, int caseno,
+                   PeerEntry peer, int i, int i2, Object o, Object o2,
+                   double d) {
+          return bindex + nh2bytes(peer.nh, record, bindex);
+        }
+      };
+    tbl[SND_OPEN] = tbl[RCV_KA] = tbl[SND_KA] = tbl[RCV_NOTIF] =
+      tbl[SND_NOTIF] = tbl[SET_KA] = tbl[SET_HOLD] = tbl[SET_MRAI] =
+      tbl[KA_EXP] = tbl[CONNRETRY_EXP] = tbl[HOLD_EXP] = tbl[CONN_ESTAB] = enc;
+
+    tbl[RCV_OPEN] = new Encoder() {
+        int encode(Monitor mon, byte[] record, int bindex, int caseno,
+                   PeerEntry peer, int i, int i2, Object o, Object o2,
+                   double d) {
+          record[bindex++] = peer.connection_state;
+          return bindex + nh2bytes(peer.nh, record, bindex);
+        }
+      };
+
+    tbl[RCV_UPDATE] = new Encoder() {
+        int encode(Monitor mon, byte[] record, int bindex, int caseno,
+                   PeerEntry peer, int i, int i2, Object o, Object o2,
+                   double d) {
+          UpdateMessage msg = (UpdateMessage)o;
+          record[bindex++] = (byte)(peer.internal()?1:0); // in/external
+          bindex += nh2bytes(msg.nh, record, bindex);
+          bindex += update2bytes(msg, record, bindex, usenhi,
+                                 mon.dict);
+          return bindex;
+        }
+      };
+
+    tbl[SND_UPDATE] = new Encoder() {
+        int encode(Monitor mon, byte[] record, int bindex, int caseno,
+                   PeerEntry peer, int i, int i2, Object o, Object o2,
+                   double d) {
+          record[bindex++] = (byte)caseno;
+          bindex += nh2bytes(peer.nh, record, bindex);
+          bindex += update2bytes((UpdateMessage)o, record, bindex, usenhi,
+                                 mon.dict);
+          return bindex;
+        }
+      };
+
+    tbl[SND_UP] = new Encoder() {
+        int encode(Monitor mon, byte[] record, int bindex, int caseno,
+                   PeerEntry peer, int i, int i2, Object o, Object o2,
+                   double d) {
+          UpdateMessage msg = (UpdateMessage)o;
+          int num_ads = msg.num_ads();
+          record[bindex++] = (byte)num_ads;
+          if (num_ads > 0) {
+            record[bindex++] = (byte)msg.rte(0).aspath_length();
+          }
+          record[bindex++] = (byte)msg.num_wds();
+          return bindex;
+        }
+      };
+
+    tbl[MRAI_EXP] = new Encoder() {
+        int encode(Monitor mon, byte[] record, int bindex, int caseno,
+                   PeerEntry peer, int i, int i2, Object o, Object o2,
+                   double d) {
+          record[bindex++] = (byte)caseno;
+          switch (caseno) {
+          case 0: // per-peer, per-destination rate limiting
+            bindex += nh2bytes(peer.nh, record, bindex);
+            bindex += mon.prefix2bytes((IPaddress)o, record, bindex);
+            break;
+          case 1: // per-peer rate limiting
+            bindex += nh2bytes(peer.nh, record, bindex);
+            break;
+          }
+          return bindex;
+        }
+      };
+
+    tbl[HANDLE_UPDATE] = new Encoder() {
+        int encode(Monitor mon, byte[] record, int bindex, int caseno,
+                   PeerEntry peer, int i, int i2, Object o, Object o2,
+                   double d) {
+          record[bindex++] = (byte)caseno;
+          Route r;
+          switch (caseno) {
+          case 0:
+            UpdateMessage msg = (UpdateMessage)o;
+            record[bindex++] = (byte)(peer.internal()?1:0); // in/external
+            bindex += nh2bytes(msg.nh, record, bindex);
+            bindex += update2bytes(msg, record, bindex, usenhi,
+                                   mon.dict);
+            break;
+          case 1:
+            r = (Route)o;
+            bindex += mon.prefix2bytes(r.nlri, record, bindex);
+            bindex += cl2bytes(r.cluster_list(), record, bindex);
+            bindex += nh2bytes(peer.nh, record, bindex);
+            break;
+          case 2:
+          case 3:
+            r = (Route)o;
+            bindex += mon.prefix2bytes(r.nlri, record, bindex);
+            bindex += mon.path2bytes(r, record, bindex);
+            bindex += nh2bytes(peer.nh, record, bindex);
+            break;
+          case 4:
+            bindex += mon.prefix2bytes((IPaddress)o, record, bindex);
+            bindex += nh2bytes(peer.nh, record, bindex);
+            break;
+          case 5:
+          case 6:
+            r = (Route)o;
+            bindex += mon.prefix2bytes(r.nlri, record, bindex);
+            bindex += nh2bytes(peer.nh, record, bindex);
+            break;
+          }
+          return bindex;
+        }
+      };
+
+    tbl[ADDED_ROUTE] = new Encoder() {
+        int encode(Monitor mon, byte[] record, int bindex, int caseno,
+                   PeerEntry peer, int i, int i2, Object o, Object o2,
+                   double d) {
+          BGPSession bgp = mon.bgp;
+          record[bindex++] = (byte)caseno;
+          switch (caseno) {
+          case 0:
+            bindex += mon.prefix2bytes((IPaddress)o, record, bindex);
+            bindex += nh2bytes(peer.nh, record, bindex);
+            break;
+          case 1:
+            record[bindex++] = (byte)(peer==bgp.self?1:0);
+            if (peer != bgp.self) {
+              bindex += mon.prefix2bytes(peer.ip_addr, record, bindex);
+            }
+            bindex += mon.prefix2bytes((IPaddress)o, record, bindex);
+            record[bindex++] = (byte)i; // dop
+            break;
+          case 2:
+            PeerEntry sender = (PeerEntry)o;
+            record[bindex++] = (byte)(sender==bgp.self?1:0);
+            if (sender != bgp.self) {
+              bindex += mon.prefix2bytes(sender.ip_addr, record, bindex);
+            }
+            bindex += mon.prefix2bytes((IPaddress)o2, record, bindex);
+            bindex += nh2bytes(peer.nh, record, bindex);
+            break;
+          }
+          return bindex;
+        }
+      };
+
+    tbl[HANDLE_EVENT] = new Encoder() {
+        int encode(Monitor mon, byte[] record, int bindex, int caseno,
+                   PeerEntry peer, int i, int i2, Object o, Object o2,
+                   double d) {
+          record[bindex++] = (byte)caseno; // began or finished processing
+          bindex += nh2bytes(peer.nh, record, bindex); // peer
+          record[bindex++] = (byte)i; // event type
+          return bindex;
+        }
+      };
+
+    tbl[DOP_CALC] = new Encoder() {
+        int encode(Monitor mon, byte[] record, int bindex, int caseno,
+                   PeerEntry peer, int i, int i2, Object o, Object o2,
+                   double d) {
+          record[bindex++] = (byte)caseno;
+          bindex += mon.prefix2bytes((IPaddress)o, record, bindex);
+          record[bindex++] = (byte)i; // dop
+          return bindex;
+        }
+      };
+
+    tbl[DEC_PROC] = new Encoder() {
+        int encode(Monitor mon, byte[] record, int bindex, int caseno,
+                   PeerEntry peer, int i, int i2, Object o, Object o2,
+                   double d) {
+          record[bindex++] = (byte)caseno;
+          Route r;
+          switch (caseno) { // which phase of the Decision Process
+          case 1: // Phase 1
+            record[bindex++] = (byte)i;
+            switch (i) {
+            case 0: break; // nothing else
+            case 1:
+              RouteInfo ri = (RouteInfo)o;
+              r  = ri.route();
+              record[bindex++] = (byte)(ri.permissible()?1:0);
+              bindex += mon.prefix2bytes(r.nlri, record, bindex);
+              bindex += mon.path2bytes(r, record, bindex);
+              bindex += nh2bytes(peer.nh, record, bindex);
+              break;
+            case 2:
+              bindex += mon.prefix2bytes((IPaddress)o, record, bindex);
+              record[bindex++] = (byte)i2;
+              break;
+            }
+            break;
+          case 2: // Phase 2
+            record[bindex++] = (byte)i;
+            switch (i) {
+            case 0: break; // nothing else
+            case 1:
+            case 2:
+              r = (Route)o;
+              bindex += mon.prefix2bytes(r.nlri, record, bindex);
+              bindex += mon.path2bytes(r, record, bindex);
+              break;
+            case 3:
+              r = (Route)o;
+              bindex += mon.prefix2bytes(r.nlri, record, bindex);
+              bindex += nh2bytes(peer.nh, record, bindex);
+              break;
+            case 4:
+            case 5:
+              r = (Route)o;
+              bindex += mon.prefix2bytes(r.nlri, record, bindex);
+              bindex += mon.path2bytes(r, record, bindex);
+              bindex += nh2bytes(peer.nh, record, bindex);
+              break;
+            }
+            break;
+          case 3: // Phase 3
+            record[bindex++] = (byte)i;
+            switch (i) {
+            case 0: break; // nothing else
+            case 1:
+            case 2:
+            case 3:
+            case 4:
+            case 5:
+            case 6:
+            case 7:
+            case 8:
+              r = (Route)o;
+              bindex += mon.prefix2bytes(r.nlri, record, bindex);
+              bindex += mon.path2bytes(r, record, bindex);
+              bindex += nh2bytes(peer.nh, record, bindex);
+              break;
+            }
+            break;
+          }
+          return bindex;
+        }
+      };
+
+    tbl[DONE_PROC] = new Encoder() {
+        int encode(Monitor mon, byte[] record, int bindex, int caseno,
+                   PeerEntry peer, int i, int i2, Object o, Object o2,
+                   double d) {
+          record[bindex++] = (byte)i; // event type
+          return bindex + nh2bytes(peer.nh, record, bindex); // peer
+        }
+      };
+
+    tbl[EXT_UPDATE] = new Encoder() {
+        int encode(Monitor mon, byte[] record, int bindex, int caseno,
+                   PeerEntry peer, int i, int i2, Object o, Object o2,
+                   double d) {
+          record[bindex++] = (byte)caseno;
+          Route r;
+          switch (caseno) {
+          case 0: break; // nothing else
+          case 1:
+            bindex += nh2bytes(peer.nh, record, bindex);
+            break;
+          case 2:
+          case 6:
+            r = (Route)o;
+            bindex += mon.prefix2bytes(r.nlri, record, bindex);
+            bindex += mon.path2bytes(r, record, bindex);
+            bindex += nh2bytes(peer.nh, record, bindex);
+            break;
+          case 3:
+          case 4:
+            bindex += nh2bytes(peer.nh, record, bindex);
+            bindex += update2bytes((UpdateMessage)o, record, bindex, usenhi,
+                                   mon.dict);
+            break;
+          case 5:
+          case 7:
+          case 8:
+            bindex += mon.prefix2bytes((IPaddress)o, record, bindex);
+            bindex += nh2bytes(peer.nh, record, bindex);
+            break;
+          }
+          return bindex;
+        }
+      };
+
+    tbl[ID_DATA] = new Encoder() {
+        int encode(Monitor mon, byte[] record, int bindex, int caseno,
+                   PeerEntry peer, int i, int i2, Object o, Object o2,
+                   double d) {
+          BGPSession bgp = mon.bgp;
+          bindex += bgpid2bytes(bgp.bgp_id, record, bindex);
+          bindex = BytesUtil.intToBytes(bgp.as_num, record, bindex);
+          bindex += nh2bytes(bgp.as_nh, record, bindex);
+          bindex += ipprefix2bytes(bgp.as_prefix, record, bindex, false);
+          return bindex;
+        }
+      };
+
+    tbl[RFD] = new Encoder() {
+        int encode(Monitor mon, byte[] record, int bindex, int caseno,
+                   PeerEntry peer, int i, int i2, Object o, Object o2,
+                   double d) {
+          record[bindex++] = (byte)caseno;
+          switch (caseno) {
+          case 1: // RFD setting
+            record[bindex++] = (byte)i;
+            break;
+          case 2: // WD penalty update
+          case 4: // AD: update penalty
+          case 5: // AD: new dampInfo
+            bindex += nh2bytes(peer.nh, record, bindex);
+            bindex = BytesUtil.stringToBytes((String)o, record, bindex);
+            bindex = BytesUtil.stringToBytes((String)o2, record, bindex);
+            break;
+          case 3: // WD dampinfo is missing
+            bindex += nh2bytes(peer.nh, record, bindex);
+            break;
+          case 6: // suppressed
+            bindex = BytesUtil.stringToBytes((String)o, record, bindex);
+            bindex = BytesUtil.stringToBytes((String)o2, record, bindex);
+            break;
+          }
+          return bindex;
+        }
+      };
+
+    tbl[NB_INFO] = new Encoder() {
+        int encode(Monitor mon, byte[] record, int bindex, int caseno,
+                   PeerEntry peer, int i, int i2, Object o, Object o2,
+                   double d) {
+          record[bindex++] = (byte)(peer.internal()?1:0);
+          return bindex + mon.prefix2bytes(peer.ip_addr, record, bindex);
+        }
+      };
+
+    enc = new Encoder() {
+        int encode(Monitor mon, byte[] record, int bindex, int caseno,
+                   PeerEntry peer, int i, int i2, Object o, Object o2,
+                   double d) {
+          // The forwarding table can only be encoded all at once, and its
+          // size isn't known beforehand, so the buffer is doubled until it
+          // fits.  The chunks are sent once it has been encoded.
+          RadixTreeRoutingTable fwd = (RadixTreeRoutingTable)mon.bgp.fwd_table;
+          while (true) {
+            try {
+              return bindex + fwd.toBytes(mon.recbuf, bindex, usenhi);
+            } catch (ArrayIndexOutOfBoundsException e) {
+              if (!mon.grow(2*mon.recbuf.length)) {
+                throw e; // emit reports it
+              }
+            }
+          }
+        }
+      };
+    tbl[DUMP_FWD_TABLES] = tbl[FWD_TABLES] = enc;
+
+    tbl[JITTER] = new Encoder() {
+        int encode(Monitor mon, byte[] record, int bindex, int caseno,
+                   PeerEntry peer, int i, int i2, Object o, Object o2,
+                   double d) {
+          record[bindex++] = (byte)caseno;
+          return BytesUtil.longToBytes(Double.doubleToLongBits(d), record,
+                                       bindex);
+        }
+      };
+
+    tbl[AGGREG] = new Encoder() {
+        int encode(Monitor mon, byte[] record, int bindex, int caseno,
+                   PeerEntry peer, int i, int i2, Object o, Object o2,
+                   double d) {
+          record[bindex++] = (byte)caseno;
+          if (caseno == 1) {
+            bindex += mon.prefix2bytes((IPaddress)o, record, bindex);
+            bindex += mon.prefix2bytes((IPaddress)o2, record, bindex);
+          }
+          return bindex;
+        }
+      };
+
+    tbl[STATE_CHANGE] = new Encoder() {
+        int encode(Monitor mon, byte[] record, int bindex, int caseno,
+                   PeerEntry peer, int i, int i2, Object o, Object o2,
+                   double d) {
+          record[bindex++] = (byte)i;
+          record[bindex++] = (byte)i2;
+          return bindex + nh2bytes(peer.nh, record, bindex);
+        }
+      };
+
+    tbl[TIMER_CONFIG] = new Encoder() {
+        int encode(Monitor mon, byte[] record, int bindex, int caseno,
+                   PeerEntry peer, int i, int i2, Object o, Object o2,
+                   double d) {
+          record[bindex++] = (byte)caseno;
+          switch (caseno) {
+          case 0:
+            bindex = secs2bytes(mon.bgp.connretry_interval, record, bindex);
+            break;
+          case 1:
+            bindex = secs2bytes(mon.bgp.masoi, record, bindex);
+            break;
+          case 2:
+            bindex = secs2bytes(peer.hold_timer_interval, record, bindex);
+            bindex += nh2bytes(peer.nh, record, bindex);
+            break;
+          case 3:
+            bindex = secs2bytes(peer.keep_alive_interval, record, bindex);
+            bindex += nh2bytes(peer.nh, record, bindex);
+            break;
+          case 4:
+            bindex = secs2bytes(peer.mrai, record, bindex);
+            bindex += nh2bytes(peer.nh, record, bindex);
+            break;
+          }
+          return bindex;
+        }
+      };
+
+    tbl[FWD_TABLE_ADD] = new Encoder() {
+        int encode(Monitor mon, byte[] record, int bindex, int caseno,
+                   PeerEntry peer, int i, int i2, Object o, Object o2,
+                   double d) {
+          if (o instanceof RouteInfo) {
+            record[bindex++] = (byte)0; // case 0
+            RouteInfo ri = (RouteInfo)o;
+            bindex += mon.prefix2bytes(ri.route().nlri, record, bindex);
+            bindex += mon.prefix2bytes(mon.bgp.nbs[ri.peerind()].ip_addr,
+                                       record, bindex);
+            bindex += mon.path2bytes(ri.route(), record, bindex);
+          } else {
+            record[bindex++] = (byte)1; // case 1
+            // This case is for inserting peer interfaces into the fwd table.
+            // 'o' is an IPaddress object
+            bindex += mon.prefix2bytes((IPaddress)o, record, bindex);
+            bindex += mon.prefix2bytes(peer.ip_addr, record, bindex);
+          }
+          return bindex;
+        }
+      };
+
+    tbl[FWD_TABLE_RMV] = new Encoder() {
+        int encode(Monitor mon, byte[] record, int bindex, int caseno,
+                   PeerEntry peer, int i, int i2, Object o, Object o2,
+                   double d) {
+          RouteInfo ri = (RouteInfo)o;
+          bindex += mon.prefix2bytes(ri.route().nlri, record, bindex);
+          bindex += mon.prefix2bytes(mon.bgp.nbs[ri.peerind()].ip_addr,
+                                     record, bindex);
+          bindex += mon.path2bytes(ri.route(), record, bindex);
+          return bindex;
+        }
+      };
+
+    tbl[SOCKET_EVENT] = new Encoder() {
+        int encode(Monitor mon, byte[] record, int bindex, int caseno,
+                   PeerEntry peer, int i, int i2, Object o, Object o2,
+                   double d) {
+          record[bindex++] = (byte)caseno;
+          switch (caseno) {
+          case 1: // "listening for peers on a socket"
+            break; // nothing else
+          case 2: // "passively established socket connection"
+          case 3: // "writing to socket"
+          case 4: // "attempting socket connection"
+          case 5: // "rcv msg on socket connection"
+          case 6: // "closing socket connection"
+          case 7: // "actively established socket connection"
+            bindex += nh2bytes(peer.nh, record, bindex);
+            break;
+          case 8: // "ignoring message on defunct read socket"
+          case 9: // "failed write socket connection attempt"
+            record[bindex++] = (byte)i; // message type or error number
+            bindex += nh2bytes(peer.nh, record, bindex);
+            break;
+          }
+          return bindex;
+        }
+      };
+
+    tbl[REFLECT] = new Encoder() {
+        int encode(Monitor mon, byte[] record, int bindex, int caseno,
+                   PeerEntry peer, int i, int i2, Object o, Object o2,
+                   double d) {
+          PeerEntry sender = (PeerEntry)o;
+          record[bindex++] = (byte)(sender.client()?1:0);
+          bindex += nh2bytes(sender.nh, record, bindex);
+          bindex += nh2bytes(peer.nh, record, bindex);
+          bindex += mon.prefix2bytes((IPaddress)o2, record, bindex);
+          return bindex;
+        }
+      };
+
+    tbl[IBGP_CLUSTER] = new Encoder() {
+        int encode(Monitor mon, byte[] record, int bindex, int caseno,
+                   PeerEntry peer, int i, int i2, Object o, Object o2,
+                   double d) {
+          BGPSession bgp = mon.bgp;
+          record[bindex++] = (byte)bgp.cluster_num;
+          int tmpindex = bindex;
+          bindex++; // leave room to add count later
+          int count = 0;
+          for (int j=0; j<bgp.nbs.length-1; j++) { // skip last nb ('self')
+            if (bgp.nbs[j].client()) {
+              bindex += nh2bytes(bgp.nbs[j].nh, record, bindex);
+              count++;
+            }
+          }
+          record[tmpindex] = (byte)count;
+          return bindex;
+        }
+      };
+
+    tbl[HOLD_VALUE] = new Encoder() {
+        int encode(Monitor mon, byte[] record, int bindex, int caseno,
+                   PeerEntry peer, int i, int i2, Object o, Object o2,
+                   double d) {
+          bindex = secs2bytes(peer.hold_timer_interval, record, bindex);
+          return bindex + nh2bytes(peer.nh, record, bindex);
+        }
+      };
+
+    tbl[KA_VALUE] = new Encoder() {
+        int encode(Monitor mon, byte[] record, int bindex, int caseno,
+                   PeerEntry peer, int i, int i2, Object o, Object o2,
+                   double d) {
+          bindex = secs2bytes(peer.keep_alive_interval, record, bindex);
+          return bindex + nh2bytes(peer.nh, record, bindex);
+        }
+      };
+
+    tbl[IN_POLICY] = new Encoder() {
+        int encode(Monitor mon, byte[] record, int bindex, int caseno,
+                   PeerEntry peer, int i, int i2, Object o, Object o2,
+                   double d) {
+          RouteInfo ri = (RouteInfo)o;
+          Route r = ri.route();
+          record[bindex++] = (byte)(ri.permissible()?1:0);
+          bindex += mon.prefix2bytes(r.nlri, record, bindex);
+          bindex += mon.path2bytes(r, record, bindex);
+          bindex += nh2bytes(peer.nh, record, bindex);
+          return bindex;
+        }
+      };
+
+    tbl[OUT_POLICY] = new Encoder() {
+        int encode(Monitor mon, byte[] record, int bindex, int caseno,
+                   PeerEntry peer, int i, int i2, Object o, Object o2,
+                   double d) {
+          PeerEntry sender = (PeerEntry)o;
+          record[bindex++] = (byte)caseno;
+          bindex += mon.prefix2bytes((IPaddress)o2, record, bindex);
+          bindex += nh2bytes(peer.nh, record, bindex);
+          bindex += nh2bytes(sender.nh, record, bindex);
+          return bindex;
+        }
+      };
+
+    tbl[DUMP_RIBS_IN] = new Encoder() {
+        int encode(Monitor mon, byte[] record, int bindex, int caseno,
+                   PeerEntry peer, int i, int i2, Object o, Object o2,
+                   double d) {
+          record[bindex++] = (byte)0; // case 0
+          bindex += nh2bytes(peer.nh, record, bindex);
+          return mon.rib2bytes(peer.rib_in, bindex);
+        }
+      };
+
+    tbl[RIBS_IN] = new Encoder() {
+        int encode(Monitor mon, byte[] record, int bindex, int caseno,
+                   PeerEntry peer, int i, int i2, Object o, Object o2,
+                   double d) {
+          Route r = (Route)o;
+          record[bindex++] = (byte)caseno;
+          switch (caseno) {
+          case 0:
+            bindex += nh2bytes(peer.nh, record, bindex);
+            break;
+          case 1:
+          case 2:
+            bindex += mon.prefix2bytes(r.nlri, record, bindex);
+            bindex += mon.path2bytes(r, record, bindex);
+            bindex += nh2bytes(peer.nh, record, bindex);
+            break;
+          case 3:
+            Route r2 = (Route)o2;
+            bindex += mon.prefix2bytes(r.nlri, record, bindex);
+            bindex += mon.path2bytes(r, record, bindex);
+            bindex += nh2bytes(peer.nh, record, bindex);
+            bindex += mon.prefix2bytes(r2.nlri, record, bindex);
+            bindex += mon.path2bytes(r2, record, bindex);
+            break;
+          }
+          return mon.rib2bytes(peer.rib_in, bindex);
+        }
+      };
+
+    enc = new Encoder() {
+        int encode(Monitor mon, byte[] record, int bindex, int caseno,
+                   PeerEntry peer, int i, int i2, Object o, Object o2,
+                   double d) {
+          return mon.rib2bytes(mon.bgp.loc_rib, bindex);
+        }
+      };
+    tbl[DUMP_LOC_RIB] = tbl[LOC_RIB] = enc;
+
+    enc = new Encoder() {
+        int encode(Monitor mon, byte[] record, int bindex, int caseno,
+                   PeerEntry peer, int i, int i2, Object o, Object o2,
+                   double d) {
+          bindex += nh2bytes(peer.nh, record, bindex);
+          return mon.rib2bytes(peer.rib_out, bindex);
+        }
+      };
+    tbl[DUMP_RIBS_OUT] = tbl[RIBS_OUT] = enc;
+
+    tbl[DUMP_STABILITY] = new Encoder() {
+        int encode(Monitor mon, byte[] record, int bindex, int caseno,
+                   PeerEntry peer, int i, int i2, Object o, Object o2,
+                   double d) {
+          BGPSession bgp = mon.bgp;
+          int sentups = 0, rcvdups = 0, outups = 0;
+          for (int j=0; j<bgp.nbs.length-1; j++) { // skip last nb ('self')
+            outups  += bgp.nbs[j].waiting_adv.size();
+            sentups += bgp.nbs[j].outupdates;
+            rcvdups += bgp.nbs[j].inupdates;
+          }
+          bindex = BytesUtil.intToBytes(sentups, record, bindex);
+          bindex = BytesUtil.intToBytes(rcvdups, record, bindex);
+          bindex = BytesUtil.intToBytes(outups, record, bindex);
+          return bindex;
+        }
+      };
+
+    return tbl;
+  }
+
+  // ----- secs2bytes ------------------------------------------------------ //
+  /**
+   * Converts a time interval given in ticks to seconds and encodes it as
+   * the eight bytes of a double.
+   *
+   * @param ticks   The time interval, in ticks.
+   * @param bytes   A byte array in which to place the results.
+   * @param bindex  The index into the given byte array at which to begin
+   *                placing the results.
+   * @return the index just past the last byte used
+   */
+  private static int secs2bytes(long ticks, byte[] bytes, int bindex) {
+    return BytesUtil.longToBytes(Double.doubleToLongBits(BGPSession.
+                                          ticks2secs(ticks)), bytes, bindex);
+  }
+
+  // ----- send_record ----------------------------------------------------- //
+  /**
+   * Hands off an encoded record to the player, recorder, and/or trace file.
+   * Only the first <code>len</code> bytes of the given buffer are used, and
+   * none of them keeps a reference to the buffer, so the buffer may be reused
+   * as soon as this method returns.  When a trace writer is in use, the
+   * record is copied and written out later by its thread, to the trace file
+   * as well, so that the simulation thread does no file I/O.  Records larger
+   * than <code>MAX_STREAMED_RECORD_SIZE</code> must be sent with
+   * <code>send_chunks</code> instead.
+   *
+   * @param typ  The type of the record.
+   * @param rec  The buffer holding the encoded record.
+   * @param len  The number of bytes in the encoded record.
+   */
+  private void send_record(int typ, byte[] rec, int len) {
+    if (tracer != null) {
+      if (Global.printing || Global.streaming) {
+        tracer.send((Global.streaming ? recorder : null),
+                    (Global.streaming ? tracefile : null), datatypecode,
+                    hostcode, Global.printing, bgp.nh, bgp.nowsec(), rec, len);
+      }
+    } else {
+      if (Global.printing) {
+        // If in printing mode, print the message immediately.
+        print_record(bgp.nh, bgp.nowsec(), rec, len);
+      }
+      if (Global.streaming) {
+        recorder.send(datatypecode, hostcode, bgp.nowsec(), rec, 0, len);
+        if (tracefile != null) {
+          write_trace_file(bgp.nowsec(), rec, len);
+        }
+      }
     }
+  }
 
-    // remove extra bytes from the record
-    byte[] rec = new byte[bindex];
-    for (int k=0; k<bindex; k++) {
-      rec[k] = record[k];
+  // ----- send_defs ------------------------------------------------------- //
+  /**
+   * Sends the definitions of any prefixes or AS paths which have been seen
+   * for the first time while encoding the current record.  They must be sent
+   * before the record which refers to them.
+   */
+  private void send_defs() {
+    if (dict != null && dict.num_pending() > 0) {
+      byte[][] defs = dict.take_pending();
+      for (int k=0; k<defs.length; k++) {
+        send_record(defs[k][0], defs[k], defs[k].length);
+      }
     }
+  }
 
-    if (Global.printing) {
-      // If in printing mode, print the message immediately.
-      player.receive(bgp.nh, bgp.nowsec(), rec, 0, rec.length);
+  // ----- send_chunks ----------------------------------------------------- //
+  /**
+   * Sends the contents of the encoding buffer as a sequence of chunk
+   * records, none of which is larger than
+   * <code>MAX_STREAMED_RECORD_SIZE</code>.  The layout of chunk records is
+   * described in <code>ChunkAssembler</code>, which can be used to put the
+   * original record back together.  A record may be sent with several calls,
+   * each of which sends the part encoded since the previous one (which
+   * begins just after the type byte), so that a large table never has to be
+   * held in the buffer all at once.
+   * @see ChunkAssembler
+   *
+   * @param len   The number of bytes in the encoding buffer.
+   * @param last  Whether or not these are the last bytes of the record.
+   */
+  private void send_chunks(int len, boolean last) {
+    // No definitions may come between the chunks of one record.
+    send_defs();
+    if (chunkbuf == null) {
+      chunkbuf = new byte[MAX_STREAMED_RECORD_SIZE];
     }
+    int maxpiece = MAX_STREAMED_RECORD_SIZE - ChunkAssembler.HEADER_SIZE;
+
+    int rindex = 1; // skip the type byte of the original record
+    do {
+      int n = Math.min(len-rindex, maxpiece);
+      chunkbuf[0] = (byte)CHUNK;
+      chunkbuf[1] = recbuf[0];
+      chunkbuf[2] = (byte)((!last || rindex+n < len)?1:0); // more to come?
+      chunkbuf[3] = (byte)(chunkseq >> 24);
+      chunkbuf[4] = (byte)(chunkseq >> 16);
+      chunkbuf[5] = (byte)(chunkseq >> 8);
+      chunkbuf[6] = (byte)chunkseq;
+      System.arraycopy(recbuf, rindex, chunkbuf, ChunkAssembler.HEADER_SIZE,
+                       n);
+      send_record(CHUNK, chunkbuf, ChunkAssembler.HEADER_SIZE + n);
+      rindex += n;
+      if (++chunkseq < 0) {
+        throw new Error("monitor record has too many chunks");
+      }
+    } while (rindex < len);
+  }
 
-    if (Global.streaming) {
-      if (typ==DUMP_STABILITY || typ==DUMP_RIBS_IN || typ==DUMP_LOC_RIB ||
-          typ==DUMP_RIBS_OUT || typ==DUMP_FWD_TABLES) {
-        bgp.debug.warn("can't dump records at end of simulation to a stream " +
-                       "(not yet supported)");
-      } else {
-        recorder.send(datatypecode,hostcode,bgp.nowsec(),rec,0,rec.length);
+  // ----- rib2bytes ------------------------------------------------------- //
+  /**
+   * Encodes the routes in a RIB at the given index in the encoding buffer:
+   * the number of routes, followed by the prefix and AS path of each.  The
+   * dictionary is never used for them, since no definitions may be sent
+   * once the record has begun to be sent in pieces.  The RIB's radix tree is
+   * walked twice, once to count the routes and once to encode them, so no
+   * list of its routes is ever built.  Whenever the buffer holds as much as
+   * a chunk record can carry, the part of the record encoded so far is sent,
+   * and encoding carries on just after the type byte.  The RIB is therefore
+   * never held in the buffer all at once, and can be of any size.
+   *
+   * @param rib     The RIB to encode.
+   * @param bindex  The index in the encoding buffer at which to begin.
+   * @return the index just after the last byte encoded
+   */
+  private int rib2bytes(RIBElement rib, int bindex) {
+    RIBWalker counter = new RIBWalker(-1);
+    new RadixTreeIterator(rib, counter).iterate();
+    bindex += int2bytes(counter.count, recbuf, bindex);
+
+    RIBWalker walker = new RIBWalker(bindex);
+    new RadixTreeIterator(rib, walker).iterate();
+    return walker.bindex;
+  }
+
+
+  // ===== inner class RIBWalker =========================================== //
+  /**
+   * Visits the nodes of a RIB's radix tree on behalf of
+   * <code>rib2bytes</code>, either counting the routes or encoding them into
+   * the encoding buffer and sending it in chunks as it fills.
+   */
+  private class RIBWalker implements RadixTreeIteratorAction {
+
+    /** The index in the encoding buffer at which the next route is to be
+     *  encoded, or -1 if routes are only being counted. */
+    int bindex;
+
+    /** The number of routes visited. */
+    int count = 0;
+
+    RIBWalker(int bindex) {
+      this.bindex = bindex;
+    }
+
+    public void action(RadixTreeNode node, String bitstr) {
+      if (node.data == null) {
+        return;
+      }
+      count++;
+      if (bindex < 0) {
+        return;
+      }
+      Route r = ((RouteInfo)node.data).route();
+      int n = route_size(r);
+      int maxlen = 1 + MAX_STREAMED_RECORD_SIZE - ChunkAssembler.HEADER_SIZE;
+      if (bindex + n > maxlen && bindex > 1) {
+        send_chunks(bindex, false);
+        bindex = 1;
       }
+      grow(bindex + n);
+      bindex += ipprefix2bytes(r.nlri, recbuf, bindex, usenhi);
+      bindex += aspath2bytes(r, recbuf, bindex, usenhi);
+    }
+
+  } // end inner class RIBWalker
+
+  // ----- write_trace_file ------------------------------------------------ //
+  /**
+   * Writes a streamed record to the indexed trace file.  If the file cannot
+   * be written, an error is reported and no more records are written to it
+   * by this monitor.
+   *
+   * @param time  The simulation time at which the record was generated.
+   * @param rec   The buffer holding the encoded record.
+   * @param len   The number of bytes in the encoded record.
+   */
+  private void write_trace_file(double time, byte[] rec, int len) {
+    try {
+      tracefile.write(hostcode, bgp.nh, time, rec, 0, len);
+    } catch (IOException e) {
+      bgp.debug.err("couldn't write trace file: " + e);
+      tracefile = null;
     }
   }
 
 
+
 } // end class Monitor
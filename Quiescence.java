@@ -0,0 +1,305 @@
+/**
+ * Quiescence.java
+ */
+
+
+package SSF.OS.BGP4;
+
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import SSF.Net.Net;
+
+
+// ===== class SSF.OS.BGP4.Quiescence ====================================== //
+/**
+ * Detects when all of the BGP speakers in the simulation have converged, so
+ * that a simulation using the <code>autoexit</code> option can end early
+ * instead of spending a long stretch of simulated time exchanging nothing but
+ * keepalives.  There is one detector per JVM, shared by all of the BGP
+ * speakers in it.
+ * <p>
+ * Each BGP speaker is registered when its monitor is created, and then
+ * reports whenever it becomes stable (has nothing left to send) or unstable.
+ * The stable speakers are kept in a set, so a speaker which reports the same
+ * thing twice is counted once.  Update messages are counted by the monitors
+ * as they are sent and as they are received (see
+ * <code>Monitor.debugmsg</code>), so that the number in flight is known.
+ * All of this is kept in concurrent maps and atomic counters, so speakers in
+ * different timelines never contend for a lock.  Once every registered
+ * speaker is stable and no updates are in flight, a confirmation timer is
+ * set for <code>autoexit_interval</code> seconds.  If nothing has changed
+ * when it expires, the simulation is marked as ended (see {@link #ended}).
+ * <p>
+ * Nothing is run and the JVM is not exited from the timer, since that would
+ * run wrap-up functions on one timeline's thread while the others are still
+ * running, and would skip any that were not known here.  Instead, sessions
+ * which schedule periodic events (keepalives, periodic table dumps, and
+ * application traffic) stop scheduling them once <code>ended</code> returns
+ * true.  The timelines then run out of events, the kernel reaches the end
+ * time without further work, and the simulation shuts down normally, with
+ * every wrap-up function run as usual.
+ * <p>
+ * In a distributed simulation each JVM sees only its own speakers, and there
+ * is no channel through which the machines can agree that all of them are
+ * quiescent at once.  Local quiescence is therefore only reported, and the
+ * simulation runs to its normal end.
+ */
+public class Quiescence {
+
+  // ........................ member data ........................ //
+
+  /** The BGP speakers in this JVM which have registered, used as a set. */
+  private static final ConcurrentHashMap speakers = new ConcurrentHashMap();
+
+  /** The registered BGP speakers which are currently stable, used as a
+   *  set. */
+  private static final ConcurrentHashMap stableset = new ConcurrentHashMap();
+
+  /** The number of update messages which have been sent but not yet
+   *  received. */
+  private static final AtomicLong inflight = new AtomicLong(0);
+
+  /** The total number of update messages sent. */
+  private static final AtomicLong numsent = new AtomicLong(0);
+
+  /** The total number of update messages received. */
+  private static final AtomicLong numreceived = new AtomicLong(0);
+
+  /** The simulation time, in seconds, of the most recent change in any
+   *  speaker's stability, stored as the bits of a double.  Since the times
+   *  are never negative, comparing the bits as longs orders them the same
+   *  way as comparing the doubles. */
+  private static final AtomicLong lastchange =
+    new AtomicLong(Double.doubleToLongBits(0.0));
+
+  /** Whether or not a confirmation timer is currently pending. */
+  private static final AtomicBoolean pending = new AtomicBoolean(false);
+
+  /** Whether or not local quiescence has been reported in a distributed
+   *  simulation. */
+  private static final AtomicBoolean reported = new AtomicBoolean(false);
+
+  /** Whether or not quiescence has been confirmed, so that the simulation
+   *  is ending early. */
+  private static volatile boolean ended = false;
+
+
+  // ===== inner class ConfirmTimer ======================================== //
+  /**
+   * A timer used to give BGP speakers a little extra time to make sure they
+   * are stable before an early exit is executed.
+   */
+  private static class ConfirmTimer extends SSF.OS.Timer {
+    private BGPSession b;
+
+    /** Construct a timer with the given duration. */
+    public ConfirmTimer(BGPSession bs) {
+      super(bs.inGraph(), Net.seconds(Global.autoexit_interval));
+      b = bs;
+    }
+
+    /** A method to be performed when the timer expires.  It checks to see if
+     *  all BGP speakers have been stable since it was set.  If so, it marks
+     *  the simulation as ended. */
+    public void callback() {
+      pending.set(false);
+      double now = b.nowsec();
+      if (!quiescent()) {
+        return;
+      }
+      if (last_change() > now - (double)Global.autoexit_interval) {
+        // something changed and changed back while the timer was pending
+        arm(b);
+        return;
+      }
+      if (Global.distributed) {
+        if (reported.compareAndSet(false, true)) {
+          Debug.gmsg(now + "  all BGPs on machine " + Global.machine_id +
+                     " stable");
+        }
+        return;
+      }
+      Debug.gmsg(now + "  all BGPs stable; ending simulation early");
+      ended = true;
+    }
+  } // end inner class ConfirmTimer
+
+
+  // ----- register -------------------------------------------------------- //
+  /**
+   * Registers a BGP speaker, which is initially unstable.
+   *
+   * @param b  The BGP speaker.
+   */
+  public static void register(BGPSession b) {
+    speakers.put(b, b);
+  }
+
+  // ----- num_speakers ---------------------------------------------------- //
+  /**
+   * Returns the number of BGP speakers in this JVM.  If none have
+   * registered, <code>Global.numbgps</code> is used instead.
+   *
+   * @return the number of BGP speakers in this JVM
+   */
+  public static int num_speakers() {
+    int n = speakers.size();
+    return (n > 0) ? n : Global.numbgps;
+  }
+
+  // ----- num_stable ------------------------------------------------------ //
+  /**
+   * Returns the number of BGP speakers in this JVM which are stable.
+   *
+   * @return the number of stable BGP speakers
+   */
+  public static int num_stable() {
+    return stableset.size();
+  }
+
+  // ----- num_inflight ---------------------------------------------------- //
+  /**
+   * Returns the number of update messages sent but not yet received.
+   *
+   * @return the number of update messages in flight
+   */
+  public static long num_inflight() {
+    return inflight.get();
+  }
+
+  // ----- stable ---------------------------------------------------------- //
+  /**
+   * Records a BGP speaker's stability.  Reporting the same state more than
+   * once has no further effect.  If every speaker is now stable, the
+   * confirmation timer is set.
+   *
+   * @param b   The BGP speaker whose stability is being reported.
+   * @param ok  Whether the speaker is stable or unstable.
+   */
+  public static void stable(BGPSession b, boolean ok) {
+    boolean change;
+    if (ok) {
+      change = (stableset.put(b, b) == null);
+    } else {
+      change = (stableset.remove(b) != null);
+    }
+    if (!change) {
+      return;
+    }
+    changed(b.nowsec());
+    if (ok && Global.autoexit && quiescent()) {
+      arm(b);
+    }
+  }
+
+  // ----- update_sent ----------------------------------------------------- //
+  /**
+   * Counts an update message which has just been sent.
+   *
+   * @param b  The BGP speaker which sent it.
+   */
+  public static void update_sent(BGPSession b) {
+    inflight.incrementAndGet();
+    numsent.incrementAndGet();
+    changed(b.nowsec());
+  }
+
+  // ----- update_received ------------------------------------------------- //
+  /**
+   * Counts an update message which has just been received.  If it was the
+   * last one in flight and every speaker is stable, the confirmation timer
+   * is set.
+   *
+   * @param b  The BGP speaker which received it.
+   */
+  public static void update_received(BGPSession b) {
+    numreceived.incrementAndGet();
+    changed(b.nowsec());
+    if (inflight.decrementAndGet() <= 0 && Global.autoexit && quiescent()) {
+      arm(b);
+    }
+  }
+
+  // ----- num_sent -------------------------------------------------------- //
+  /**
+   * Returns the total number of update messages sent by the BGP speakers in
+   * this JVM.
+   *
+   * @return the number of update messages sent
+   */
+  public static long num_sent() {
+    return numsent.get();
+  }
+
+  // ----- num_received ---------------------------------------------------- //
+  /**
+   * Returns the total number of update messages received by the BGP
+   * speakers in this JVM.
+   *
+   * @return the number of update messages received
+   */
+  public static long num_received() {
+    return numreceived.get();
+  }
+
+  // ----- quiescent ------------------------------------------------------- //
+  /**
+   * Indicates whether or not every BGP speaker in this JVM is stable and no
+   * update messages are in flight.
+   *
+   * @return true only if the speakers in this JVM are quiescent
+   */
+  public static boolean quiescent() {
+    return stableset.size() >= num_speakers() && inflight.get() <= 0;
+  }
+
+  // ----- changed --------------------------------------------------------- //
+  /**
+   * Advances the time of the most recent stability change, if the given time
+   * is later.
+   */
+  private static void changed(double now) {
+    long bits = Double.doubleToLongBits(now);
+    long cur = lastchange.get();
+    while (bits > cur && !lastchange.compareAndSet(cur, bits)) {
+      cur = lastchange.get();
+    }
+  }
+
+  // ----- last_change ----------------------------------------------------- //
+  /**
+   * Returns the simulation time of the most recent change in any BGP
+   * speaker's stability.  Once the speakers are quiescent, this is the time
+   * at which they converged.
+   *
+   * @return the time, in seconds, of the most recent stability change
+   */
+  public static double last_change() {
+    return Double.longBitsToDouble(lastchange.get());
+  }
+
+  // ----- arm ------------------------------------------------------------- //
+  /**
+   * Sets the confirmation timer, unless it is already pending or the
+   * simulation has already ended.
+   */
+  private static void arm(BGPSession b) {
+    if (!ended && pending.compareAndSet(false, true)) {
+      new ConfirmTimer(b).set();
+    }
+  }
+
+  // ----- ended ----------------------------------------------------------- //
+  /**
+   * Indicates whether or not quiescence has been confirmed and the
+   * simulation is ending early.  Sessions which schedule periodic events
+   * should stop scheduling them once it returns true.
+   *
+   * @return true only if the simulation is ending early
+   */
+  public static boolean ended() {
+    return ended;
+  }
+
+} // end class Quiescence
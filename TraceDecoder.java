@@ -0,0 +1,605 @@
+/**
+ * TraceDecoder.java
+ */
+
+
+package SSF.OS.BGP4;
+
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+
+// ===== class SSF.OS.BGP4.TraceDecoder ==================================== //
+/**
+ * Decodes the records in an indexed trace file into text, using a pool of
+ * threads.  The blocks of the file which match a query are divided among the
+ * threads of a fork-join pool, each of which decodes whole blocks into a
+ * StringBuffer of its own that is reused from one block to the next.  The
+ * decoded blocks are then written out in block order, so the output is in
+ * the same order as the records in the file, no matter how many threads are
+ * used.  Output may go to a single stream, or to one file per router.
+ * <p>
+ * Blocks are decoded in batches of <code>BATCH_BLOCKS</code>, so that the
+ * decoded text of only one batch needs to be held in memory at a time.
+ * <p>
+ * Update messages, session and timer events, and RIB contents are decoded in
+ * full.  The less common record types are shown by name and size only, and
+ * the pieces of records which were sent in chunks are listed rather than
+ * reassembled, since a run of chunks may span blocks which are decoded by
+ * different threads; the verbose player remains the way to see every detail
+ * of them.  If the trace uses a dictionary for prefixes and AS paths, the
+ * definitions are collected, before the parallel decoding begins, from just
+ * those blocks which the file's index lists as holding definitions.
+ * <p>
+ * Usage: <code>java SSF.OS.BGP4.TraceDecoder &lt;trace-file&gt; [-from
+ * &lt;time&gt;] [-to &lt;time&gt;] [-router &lt;nh&gt;] [-threads
+ * &lt;n&gt;] [-split &lt;dir&gt;]</code>
+ * @see TraceFileReader
+ */
+public class TraceDecoder {
+
+  // ......................... constants ......................... //
+
+  /** The number of blocks decoded before any of their text is written
+   *  out. */
+  public static final int BATCH_BLOCKS = 256;
+
+
+  // ........................ member data ........................ //
+
+  /** The trace file being decoded. */
+  private TraceFileReader reader;
+
+  /** The pool of threads which decode blocks. */
+  private ForkJoinPool pool;
+
+  /** Whether or not NHI addressing was used in the records. */
+  private boolean usenhi = false;
+
+  /** The dictionary used by each host, keyed by host code, if the trace uses
+   *  dictionaries.  Null otherwise. */
+  private HashMap dicts = null;
+
+  /** The buffers used by each decoding thread. */
+  private ThreadLocal buffers = new ThreadLocal()
+    {
+      protected Object initialValue() {
+        return new Buffers(reader.block_size());
+      }
+    };
+
+
+  // ===== inner class Buffers ============================================= //
+  /**
+   * The buffers used by one decoding thread, which are reused for every
+   * block that it decodes.
+   */
+  private static class Buffers {
+    /** The buffer into which a block is read. */
+    ByteBuffer block;
+    /** The buffer into which each record is copied. */
+    byte[] rec;
+    /** The buffer into which all records of a block are decoded. */
+    StringBuffer text = new StringBuffer(1<<16);
+    /** The buffers into which the records of each host in a block are
+     *  decoded, keyed by host code, when output is split by router.  They are
+     *  kept from one block to the next, and emptied before each. */
+    HashMap hosttext = new HashMap();
+
+    Buffers(int blocksize) {
+      block = ByteBuffer.allocateDirect(blocksize);
+      rec = new byte[blocksize];
+    }
+  } // end inner class Buffers
+
+
+  // ===== inner class DecodeTask ========================================== //
+  /**
+   * Decodes a range of blocks, splitting the range in two and decoding the
+   * halves in parallel until only one block remains.
+   */
+  private class DecodeTask extends RecursiveAction {
+    int[] blocks;
+    Object[] results;
+    int lo, hi;
+    double from, to;
+    int hostcode;
+    boolean split;
+
+    DecodeTask(int[] blocks, Object[] results, int lo, int hi, double from,
+               double to, int hostcode, boolean split) {
+      this.blocks = blocks;
+      this.results = results;
+      this.lo = lo;
+      this.hi = hi;
+      this.from = from;
+      this.to = to;
+      this.hostcode = hostcode;
+      this.split = split;
+    }
+
+    protected void compute() {
+      if (hi - lo > 1) {
+        int mid = (lo + hi) >>> 1;
+        invokeAll(new DecodeTask(blocks, results, lo, mid, from, to,
+                                 hostcode, split),
+                  new DecodeTask(blocks, results, mid, hi, from, to,
+                                 hostcode, split));
+        return;
+      }
+      try {
+        results[lo] = decode_block(blocks[lo], from, to, hostcode, split);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  } // end inner class DecodeTask
+
+
+  // ----- TraceDecoder(TraceFileReader,int) ------------------------------- //
+  /**
+   * Constructs a decoder for the given trace file, and reads the header
+   * records which determine how the rest of the file is to be decoded.
+   *
+   * @param reader   The trace file to decode.
+   * @param threads  The number of threads to decode with.
+   * @exception IOException  if the file cannot be read
+   */
+  public TraceDecoder(TraceFileReader reader, int threads)
+    throws IOException
+  {
+    this.reader = reader;
+    pool = new ForkJoinPool(threads);
+
+    reader.read(0.0, 0.0, -1, new TraceFileReader.Handler()
+      {
+        public void record(int host, double time, byte[] rec, int off,
+                           int len) {
+          switch (rec[off]) {
+          case Monitor.USENHI:
+            usenhi = (rec[off+1] == 1);
+            break;
+          case Monitor.BYTES_PER_INT:
+            Monitor.set_bytes_per_int(rec[off+1]);
+            break;
+          case Monitor.DICTIONARY:
+            if (rec[off+1] == 1 && dicts == null) {
+              dicts = new HashMap();
+            }
+            break;
+          }
+        }
+      });
+  }
+
+  // ----- load_dictionaries ----------------------------------------------- //
+  /**
+   * Reads the dictionary definitions in the file, up to the given time, for
+   * the given host.
+   *
+   * @param to        The time up to which to read definitions.
+   * @param hostcode  The host code of the wanted host, or -1 for all hosts.
+   * @exception IOException  if the file cannot be read
+   */
+  private void load_dictionaries(double to, int hostcode) throws IOException {
+    Buffers bufs = (Buffers)buffers.get();
+    int[] blocks = reader.dictionary_blocks(to, hostcode);
+    TraceFileReader.Handler handler = new TraceFileReader.Handler()
+      {
+        public void record(int host, double time, byte[] rec, int off,
+                           int len) {
+          if (rec[off] == Monitor.PREFIX_DEF ||
+              rec[off] == Monitor.ASPATH_DEF) {
+            Integer key = new Integer(host);
+            TraceDictionary dict = (TraceDictionary)dicts.get(key);
+            if (dict == null) {
+              dict = new TraceDictionary();
+              dicts.put(key, dict);
+            }
+            dict.define(rec, off, usenhi);
+          }
+        }
+      };
+    for (int i=0; i<blocks.length; i++) {
+      reader.read_block(blocks[i], bufs.block, bufs.rec, 0.0, to, hostcode,
+                        handler);
+    }
+  }
+
+  // ----- decode_block ---------------------------------------------------- //
+  /**
+   * Decodes the matching records in one block, using the calling thread's
+   * buffers.
+   *
+   * @param b         The number of the block to decode.
+   * @param from      The beginning of the interval of interest.
+   * @param to        The end of the interval of interest.
+   * @param hostcode  The host code of the wanted host, or -1 for all hosts.
+   * @param split     Whether to keep each host's text separate.
+   * @return the decoded text, or, if split, a map from host code to the text
+   *         decoded for that host
+   * @exception IOException  if the block cannot be read
+   */
+  private Object decode_block(int b, double from, double to, int hostcode,
+                              final boolean split) throws IOException {
+    final Buffers bufs = (Buffers)buffers.get();
+    bufs.text.setLength(0);
+    for (Iterator it=bufs.hosttext.values().iterator(); it.hasNext();) {
+      ((StringBuffer)it.next()).setLength(0);
+    }
+
+    reader.read_block(b, bufs.block, bufs.rec, from, to, hostcode,
+                      new TraceFileReader.Handler()
+      {
+        public void record(int host, double time, byte[] rec, int off,
+                           int len) {
+          StringBuffer sb = bufs.text;
+          if (split) {
+            Integer key = new Integer(host);
+            sb = (StringBuffer)bufs.hosttext.get(key);
+            if (sb == null) {
+              sb = new StringBuffer(4096);
+              bufs.hosttext.put(key, sb);
+            }
+          }
+          format(sb, host, time, rec, off, len);
+        }
+      });
+
+    if (!split) {
+      return bufs.text.toString();
+    }
+    HashMap result = new HashMap();
+    for (Iterator it=bufs.hosttext.keySet().iterator(); it.hasNext();) {
+      Object key = it.next();
+      StringBuffer sb = (StringBuffer)bufs.hosttext.get(key);
+      if (sb.length() > 0) {
+        result.put(key, sb.toString());
+      }
+    }
+    return result;
+  }
+
+  // ----- type_name ------------------------------------------------------- //
+  /**
+   * Returns a name for the given record type.
+   *
+   * @param typ  A record type.
+   * @return a name for the record type
+   */
+  public static String type_name(int typ) {
+    if (typ >= 0 && typ < Monitor.bool_opt_names.length &&
+        typ != Monitor.BIN_EVENT) {
+      return Monitor.opt_base_name(typ);
+    }
+    switch (typ) {
+    case Monitor.BIN_EVENT:       return "bin_event";
+    case Monitor.USENHI:          return "use_nhi";
+    case Monitor.BYTES_PER_INT:   return "bytes_per_int";
+    case Monitor.USE_RADIX_TREES: return "use_radix_trees";
+    case Monitor.CHUNK:           return "chunk";
+    case Monitor.PREFIX_DEF:      return "prefix_def";
+    case Monitor.ASPATH_DEF:      return "aspath_def";
+    case Monitor.DICTIONARY:      return "dictionary";
+    default:                      return "type_" + typ;
+    }
+  }
+
+  // ----- format ---------------------------------------------------------- //
+  /**
+   * Appends one line of text describing a record to a buffer.
+   *
+   * @param sb    The buffer to append to.
+   * @param host  The host code of the host which recorded the record.
+   * @param time  The simulation time at which the record was generated.
+   * @param rec   A buffer holding the record.
+   * @param off   The index of the first byte of the record.
+   * @param len   The number of bytes in the record.
+   */
+  private void format(StringBuffer sb, int host, double time, byte[] rec,
+                      int off, int len) {
+    int typ = rec[off];
+    if (typ == Monitor.PREFIX_DEF || typ == Monitor.ASPATH_DEF) {
+      return; // already taken into account
+    }
+    TraceDictionary dict = null;
+    if (dicts != null) {
+      dict = (TraceDictionary)dicts.get(new Integer(host));
+    }
+
+    sb.append(time).append(' ').append(reader.host_name(host)).append(' ');
+    sb.append(type_name(typ));
+    int bindex = off + 1;
+    switch (typ) {
+    case Monitor.RCV_UPDATE:
+      sb.append((rec[bindex++] == 1) ? " ibgp from " : " ebgp from ");
+      bindex += Monitor.append_nh(sb, rec, bindex);
+      sb.append(": ");
+      Monitor.append_update(sb, rec, bindex, usenhi, dict);
+      break;
+    case Monitor.SND_UPDATE:
+      sb.append(" case ").append(rec[bindex++]).append(" to ");
+      bindex += Monitor.append_nh(sb, rec, bindex);
+      sb.append(": ");
+      Monitor.append_update(sb, rec, bindex, usenhi, dict);
+      break;
+    case Monitor.BIN_EVENT:
+      {
+        ByteBuffer bb = ByteBuffer.wrap(rec, bindex+1, len-2);
+        double start = bb.getDouble();
+        double width = bb.getDouble();
+        sb.append(' ').append(bb.getInt()).append(' ');
+        sb.append(type_name(rec[bindex])).append(" in [").append(start);
+        sb.append(',').append(start + width).append(')');
+      }
+      break;
+    case Monitor.CHUNK:
+      sb.append(" of ").append(type_name(rec[off+1])).append(" part ");
+      sb.append(ByteBuffer.wrap(rec, off+3, 4).getInt() & 0xffffffffL);
+      if (rec[off+2] == 0) {
+        sb.append(" (last)");
+      }
+      break;
+    case Monitor.START_EVENT:
+    case Monitor.STOP_EVENT:
+    case Monitor.CPU_BUSY:
+    case Monitor.TRANSFAIL:
+    case Monitor.EXEC_STATE:
+      sb.append(" case ").append(rec[bindex]);
+      break;
+    case Monitor.TRANSCLOSE:
+    case Monitor.TRANSFATAL:
+    case Monitor.NO_MSG_WAITING:
+      break;
+    case Monitor.SND_OPEN:
+    case Monitor.RCV_KA:
+    case Monitor.SND_KA:
+    case Monitor.RCV_NOTIF:
+    case Monitor.SND_NOTIF:
+    case Monitor.SET_KA:
+    case Monitor.SET_HOLD:
+    case Monitor.SET_MRAI:
+    case Monitor.KA_EXP:
+    case Monitor.CONNRETRY_EXP:
+    case Monitor.HOLD_EXP:
+    case Monitor.CONN_ESTAB:
+      sb.append(' ');
+      Monitor.append_nh(sb, rec, bindex);
+      break;
+    case Monitor.RCV_OPEN:
+      sb.append(" state ").append(rec[bindex++]).append(" from ");
+      Monitor.append_nh(sb, rec, bindex);
+      break;
+    case Monitor.TRANSOPEN:
+      sb.append(" case ").append(rec[bindex]);
+      if (rec[bindex++] == 0) {
+        sb.append(" state ").append(rec[bindex++]).append(' ');
+        Monitor.append_nh(sb, rec, bindex);
+      }
+      break;
+    case Monitor.STATE_CHANGE:
+      sb.append(' ').append(rec[bindex]).append("->").append(rec[bindex+1]);
+      sb.append(' ');
+      Monitor.append_nh(sb, rec, bindex+2);
+      break;
+    case Monitor.HOLD_VALUE:
+    case Monitor.KA_VALUE:
+      sb.append(' ').append(ByteBuffer.wrap(rec, bindex, 8).getDouble());
+      sb.append("s ");
+      Monitor.append_nh(sb, rec, bindex+8);
+      break;
+    case Monitor.NB_INFO:
+      sb.append((rec[bindex++] == 1) ? " ibgp " : " ebgp ");
+      append_prefix(sb, rec, bindex, dict);
+      break;
+    case Monitor.DUMP_LOC_RIB:
+    case Monitor.LOC_RIB:
+      sb.append(": ");
+      append_rib(sb, rec, bindex);
+      break;
+    case Monitor.DUMP_RIBS_OUT:
+    case Monitor.RIBS_OUT:
+      sb.append(" to ");
+      bindex += Monitor.append_nh(sb, rec, bindex);
+      sb.append(": ");
+      append_rib(sb, rec, bindex);
+      break;
+    case Monitor.DUMP_RIBS_IN:
+      sb.append(" from ");
+      bindex += Monitor.append_nh(sb, rec, bindex+1) + 1;
+      sb.append(": ");
+      append_rib(sb, rec, bindex);
+      break;
+    case Monitor.USENHI:
+    case Monitor.BYTES_PER_INT:
+    case Monitor.USE_RADIX_TREES:
+    case Monitor.DICTIONARY:
+      sb.append(' ').append(rec[bindex]);
+      break;
+    default:
+      sb.append(" (").append(len-1).append(" bytes)");
+    }
+    sb.append('\n');
+  }
+
+  // ----- append_prefix --------------------------------------------------- //
+  /**
+   * Appends an IP address prefix, encoded either in full or as a reference
+   * into the given dictionary, to a buffer.
+   *
+   * @return the number of bytes used by the prefix
+   */
+  private int append_prefix(StringBuffer sb, byte[] rec, int bindex,
+                            TraceDictionary dict) {
+    if (dict != null) {
+      return dict.bytes2prefix(sb, rec, bindex);
+    }
+    return Monitor.append_ipprefix(sb, rec, bindex, usenhi);
+  }
+
+  // ----- append_rib ------------------------------------------------------ //
+  /**
+   * Appends the routes in an encoded RIB to a buffer.  RIBs are never
+   * encoded using the dictionary.
+   *
+   * @return the number of bytes used by the RIB
+   * @see Monitor#rib2bytes
+   */
+  private int append_rib(StringBuffer sb, byte[] rec, int bindex) {
+    int startindex = bindex;
+    int count = Monitor.bytes2int(rec, bindex);
+    bindex += Monitor.int_length(rec, bindex);
+    sb.append(count).append(" routes");
+    for (int i=0; i<count; i++) {
+      sb.append(' ');
+      bindex += Monitor.append_ipprefix(sb, rec, bindex, usenhi);
+      sb.append(",asp=");
+      bindex += Monitor.append_aspath(sb, rec, bindex, usenhi);
+    }
+    return bindex - startindex;
+  }
+
+  // ----- decode ---------------------------------------------------------- //
+  /**
+   * Decodes the records from the given host in the given interval of
+   * simulation time.  If <code>dir</code> is null, the text is written to
+   * <code>out</code> in the order in which the records appear in the file.
+   * Otherwise, each router's text is written to a file of its own in the
+   * given directory, named after its NHI address.
+   *
+   * @param from      The beginning of the interval.
+   * @param to        The end of the interval.
+   * @param hostcode  The host code of the wanted host, or -1 for all hosts.
+   * @param out       Where to write the text when it is not split.
+   * @param dir       The directory in which to write one file per router, or
+   *                  null to write everything to <code>out</code>.
+   * @return the number of blocks decoded
+   * @exception IOException  if the file cannot be read or the text cannot be
+   *                         written
+   */
+  public int decode(double from, double to, int hostcode, Writer out,
+                    String dir) throws IOException {
+    if (dicts != null) {
+      load_dictionaries(to, hostcode);
+    }
+    boolean split = (dir != null);
+    HashMap files = new HashMap();
+
+    int[] blocks = reader.blocks(from, to, hostcode);
+    for (int start=0; start<blocks.length; start+=BATCH_BLOCKS) {
+      int n = Math.min(BATCH_BLOCKS, blocks.length - start);
+      int[] batch = new int[n];
+      System.arraycopy(blocks, start, batch, 0, n);
+      Object[] results = new Object[n];
+      try {
+        pool.invoke(new DecodeTask(batch, results, 0, n, from, to, hostcode,
+                                   split));
+      } catch (RuntimeException e) {
+        if (e.getCause() instanceof IOException) {
+          throw (IOException)e.getCause();
+        }
+        throw e;
+      }
+
+      for (int i=0; i<n; i++) {
+        if (!split) {
+          out.write((String)results[i]);
+          continue;
+        }
+        HashMap hosttext = (HashMap)results[i];
+        for (Iterator it=hosttext.keySet().iterator(); it.hasNext();) {
+          Integer host = (Integer)it.next();
+          Writer w = (Writer)files.get(host);
+          if (w == null) {
+            String name = reader.host_name(host.intValue()).replace(':','_');
+            w = new BufferedWriter(new FileWriter(new File(dir, name +
+                                                           ".txt")));
+            files.put(host, w);
+          }
+          w.write((String)hosttext.get(host));
+        }
+      }
+    }
+
+    if (split) {
+      for (Iterator it=files.values().iterator(); it.hasNext();) {
+        ((Writer)it.next()).close();
+      }
+    } else {
+      out.flush();
+    }
+    return blocks.length;
+  }
+
+  // ----- close ----------------------------------------------------------- //
+  /**
+   * Shuts down the pool of decoding threads.
+   */
+  public void close() {
+    pool.shutdown();
+  }
+
+  // ----- main ------------------------------------------------------------ //
+  /**
+   * Decodes a trace file from the command line.
+   *
+   * @param args  The command line arguments.
+   */
+  public static void main(String[] args) {
+    String filename = null, router = null, dir = null;
+    double from = 0.0, to = Double.MAX_VALUE;
+    int threads = Runtime.getRuntime().availableProcessors();
+    try {
+      for (int i=0; i<args.length; i++) {
+        if (args[i].equals("-from")) {
+          from = Double.parseDouble(args[++i]);
+        } else if (args[i].equals("-to")) {
+          to = Double.parseDouble(args[++i]);
+        } else if (args[i].equals("-router")) {
+          router = args[++i];
+        } else if (args[i].equals("-threads")) {
+          threads = Integer.parseInt(args[++i]);
+        } else if (args[i].equals("-split")) {
+          dir = args[++i];
+        } else if (filename == null) {
+          filename = args[i];
+        } else {
+          throw new IllegalArgumentException(args[i]);
+        }
+      }
+      if (filename == null) {
+        throw new IllegalArgumentException("no trace file given");
+      }
+    } catch (RuntimeException e) {
+      System.err.println("usage: TraceDecoder <trace-file> [-from <time>] " +
+                         "[-to <time>] [-router <nh>] [-threads <n>] " +
+                         "[-split <dir>]");
+      System.exit(1);
+    }
+
+    try {
+      TraceFileReader reader = new TraceFileReader(filename);
+      int hostcode = -1;
+      if (router != null) {
+        hostcode = reader.hostcode(router);
+        if (hostcode < 0) {
+          System.err.println("no records from router " + router);
+          System.exit(1);
+        }
+      }
+      TraceDecoder decoder = new TraceDecoder(reader, threads);
+      Writer out = new BufferedWriter(new OutputStreamWriter(System.out),
+                                      1<<16);
+      decoder.decode(from, to, hostcode, out, dir);
+      decoder.close();
+      reader.close();
+    } catch (IOException e) {
+      System.err.println(e.toString());
+      System.exit(1);
+    }
+  }
+
+} // end class TraceDecoder
@@ -0,0 +1,328 @@
+/**
+ * TraceDictionary.java
+ */
+
+
+package SSF.OS.BGP4;
+
+
+import java.util.*;
+import SSF.OS.BGP4.Path.*;
+import SSF.OS.BGP4.Util.*;
+
+
+// ===== class SSF.OS.BGP4.TraceDictionary ================================= //
+/**
+ * A dictionary of IP address prefixes and AS paths used to compress monitor
+ * records.  When the <code>dictionary_records</code> option is in use, each
+ * monitor keeps a dictionary, and every prefix and AS path that it would
+ * otherwise encode in full is instead encoded as a compact ID.  The first
+ * time a prefix or AS path is seen, a definition record
+ * (<code>PREFIX_DEF</code> or <code>ASPATH_DEF</code>) is emitted ahead of
+ * the record which refers to it, assigning it its ID.
+ * <p>
+ * A definition record holds the record type, the ID (always encoded with a
+ * variable number of bytes, regardless of the number of bytes per integer),
+ * and the prefix or AS path in the usual encoding.  A reference is simply
+ * the ID, encoded the same way.  IDs for prefixes and for AS paths are
+ * assigned separately, each starting from zero.
+ * <p>
+ * So that a long run doesn't make the encoding side grow without bound, it
+ * forgets everything, between records, once it holds <code>MAX_IDS</code>
+ * prefixes or AS paths.  Anything seen again after that is defined again,
+ * under a new ID.  IDs are never reused, so every reference in a trace means
+ * the same thing no matter which part of the trace is decoded.
+ * <p>
+ * The same class is used on the decoding side.  A player keeps one
+ * dictionary per BGP speaker whose records it is decoding, passes every
+ * definition record to <code>define</code>, and passes the dictionary to the
+ * decoding methods in <code>Monitor</code> which accept one.  Since IDs are
+ * never reused, the decoding side can't tell which definitions the encoding
+ * side has forgotten, and keeps every one it is given: its memory grows with
+ * the number of definitions read, not with <code>MAX_IDS</code>.  Decoders
+ * which read only part of a trace (such as <code>TraceDecoder</code> with a
+ * time interval) are given only the definitions up to the end of that part.
+ * @see Monitor#PREFIX_DEF
+ * @see Monitor#ASPATH_DEF
+ */
+public class TraceDictionary {
+
+  // ......................... constants ......................... //
+
+  /** The number of prefixes, or of AS paths, at which the encoding side
+   *  forgets them all. */
+  public static final int MAX_IDS = 1<<16;
+
+
+  // ........................ member data ........................ //
+
+  /** The ID assigned to each prefix, keyed by prefix. */
+  private HashMap prefix_ids = new HashMap();
+
+  /** The next ID to be assigned to a prefix. */
+  private int next_prefix_id = 0;
+
+  /** The next ID to be assigned to an AS path. */
+  private int next_aspath_id = 0;
+
+  /** The ID assigned to each AS path, keyed by its full encoding. */
+  private HashMap aspath_ids = new HashMap();
+
+  /** The ID assigned to each AS path, keyed by the object holding the path
+   *  (see <code>path_object</code>), so that a path which has been seen
+   *  before can usually be found without being encoded.  With linked AS
+   *  paths every route is a key, so it is limited separately. */
+  private IdentityHashMap path_ids = new IdentityHashMap();
+
+  /** Definition records which have been created but not yet sent. */
+  private ArrayList pending = new ArrayList();
+
+  /** A buffer in which AS paths and definition records are encoded. */
+  private byte[] scratch = new byte[1024];
+
+  /** The decoded form of each prefix, indexed by ID.  Only used on the
+   *  decoding side, where it is never trimmed (see above). */
+  private ArrayList prefixes = new ArrayList();
+
+  /** The decoded form of each AS path, indexed by ID.  Only used on the
+   *  decoding side, where it is never trimmed (see above). */
+  private ArrayList aspaths = new ArrayList();
+
+
+  // ===== inner class ByteKey ============================================= //
+  /**
+   * Wraps an encoding so that it can be used as a hash table key.
+   */
+  private static class ByteKey {
+    byte[] b;
+    int hash;
+
+    ByteKey(byte[] bytes, int off, int len) {
+      b = new byte[len];
+      System.arraycopy(bytes, off, b, 0, len);
+      hash = Arrays.hashCode(b);
+    }
+
+    public int hashCode() {
+      return hash;
+    }
+
+    public boolean equals(Object o) {
+      return (o instanceof ByteKey) && Arrays.equals(b, ((ByteKey)o).b);
+    }
+  } // end inner class ByteKey
+
+
+  // ----- prefix2bytes ---------------------------------------------------- //
+  /**
+   * Encodes a reference to an IP address prefix, defining a new ID for it if
+   * necessary.
+   *
+   * @param ipprefix  The IP address prefix to encode.
+   * @param bytes     A byte array in which to place the results.
+   * @param bindex    The index into the given byte array at which to begin
+   *                  placing the results.
+   * @param usenhi    Whether or not to use NHI addressing in the definition.
+   * @return the number of bytes used
+   */
+  public int prefix2bytes(IPaddress ipprefix, byte[] bytes, int bindex,
+                          boolean usenhi) {
+    Long key = new Long(((long)ipprefix.intval() << 8) |
+                        ipprefix.prefix_len());
+    Integer id = (Integer)prefix_ids.get(key);
+    if (id == null) {
+      id = new Integer(next_prefix_id++);
+      prefix_ids.put(key, id);
+      ensure_scratch(16 + 5*32);
+      int n = 0;
+      scratch[n++] = (byte)Monitor.PREFIX_DEF;
+      n += Monitor.varint2bytes(id.intValue(), scratch, n);
+      n += Monitor.ipprefix2bytes(ipprefix, scratch, n, usenhi);
+      add_pending(n);
+    }
+    return Monitor.varint2bytes(id.intValue(), bytes, bindex);
+  }
+
+  // ----- aspath2bytes ---------------------------------------------------- //
+  /**
+   * Encodes a reference to the AS path of a route, defining a new ID for it
+   * if necessary.
+   *
+   * @param rte     The route containing the AS path to encode.
+   * @param bytes   A byte array in which to place the results.
+   * @param bindex  The index into the given byte array at which to begin
+   *                placing the results.
+   * @param usenhi  Whether or not to use NHI addressing in the definition.
+   * @return the number of bytes used
+   */
+  public int aspath2bytes(Route rte, byte[] bytes, int bindex,
+                          boolean usenhi) {
+    Object path = path_object(rte);
+    Integer id = (Integer)path_ids.get(path);
+    if (id == null) {
+      // The full encoding identifies the path.  It is placed far enough into
+      // the scratch buffer to leave room for the type and ID in front of it,
+      // so that it can be reused as is for the definition.
+      ensure_scratch(6 + Monitor.aspath_size(rte));
+      int len = Monitor.aspath2bytes(rte, scratch, 6, usenhi);
+      ByteKey key = new ByteKey(scratch, 6, len);
+      id = (Integer)aspath_ids.get(key);
+      if (id == null) {
+        id = new Integer(next_aspath_id++);
+        aspath_ids.put(key, id);
+        int idlen = Monitor.varint2bytes(id.intValue(), scratch, 1);
+        if (idlen < 5) { // close the gap between the ID and the path
+          System.arraycopy(scratch, 6, scratch, 1+idlen, len);
+        }
+        scratch[0] = (byte)Monitor.ASPATH_DEF;
+        add_pending(1 + idlen + len);
+      }
+      path_ids.put(path, id);
+    }
+    return Monitor.varint2bytes(id.intValue(), bytes, bindex);
+  }
+
+  // ----- path_object ----------------------------------------------------- //
+  /**
+   * Returns the object which holds a route's AS path, and which
+   * <code>Monitor.aspath2bytes</code> encodes: the array of AS numbers for
+   * flat AS paths, the route itself (the head of the chain) for linked AS
+   * paths, and the AS path attribute otherwise.  None of them is changed
+   * once the route has been created, so the same object always has the same
+   * encoding.
+   */
+  private static Object path_object(Route rte) {
+    if (Global.flat_aspaths) {
+      return rte.aspath;
+    } else if (Global.linked_aspaths) {
+      return rte;
+    } else {
+      return rte.pas[ASpath.TYPECODE];
+    }
+  }
+
+  // ----- limit ----------------------------------------------------------- //
+  /**
+   * Forgets every prefix and AS path if the dictionary has reached
+   * <code>MAX_IDS</code> of either.  IDs carry on from where they were, so
+   * none is ever reused.  Otherwise, if the objects holding AS paths have
+   * reached <code>MAX_IDS</code>, only they are forgotten: they merely save
+   * encoding paths which <code>aspath_ids</code> already knows, so no path
+   * has to be defined again.  It must be called only between records, when
+   * no definitions are waiting to be sent.
+   */
+  public void limit() {
+    if (prefix_ids.size() >= MAX_IDS || aspath_ids.size() >= MAX_IDS) {
+      prefix_ids.clear();
+      aspath_ids.clear();
+      path_ids.clear();
+    } else if (path_ids.size() >= MAX_IDS) {
+      path_ids.clear();
+    }
+  }
+
+  // ----- ensure_scratch -------------------------------------------------- //
+  /**
+   * Makes sure that the scratch buffer holds at least the given number of
+   * bytes.  Its contents are not preserved.
+   */
+  private void ensure_scratch(int len) {
+    if (scratch.length < len) {
+      scratch = new byte[Math.max(len, 2*scratch.length)];
+    }
+  }
+
+  // ----- add_pending ----------------------------------------------------- //
+  /**
+   * Adds the definition record at the beginning of the scratch buffer to the
+   * list of those waiting to be sent.
+   */
+  private void add_pending(int len) {
+    byte[] def = new byte[len];
+    System.arraycopy(scratch, 0, def, 0, len);
+    pending.add(def);
+  }
+
+  // ----- num_pending ----------------------------------------------------- //
+  /**
+   * Returns the number of definition records waiting to be sent.
+   *
+   * @return the number of definition records waiting to be sent
+   */
+  public int num_pending() {
+    return pending.size();
+  }
+
+  // ----- take_pending ---------------------------------------------------- //
+  /**
+   * Returns the definition records waiting to be sent, in the order in which
+   * they must be sent, and forgets about them.
+   *
+   * @return the definition records waiting to be sent
+   */
+  public byte[][] take_pending() {
+    byte[][] defs = (byte[][])pending.toArray(new byte[pending.size()][]);
+    pending.clear();
+    return defs;
+  }
+
+  // ----- define ---------------------------------------------------------- //
+  /**
+   * Records the definition held in a <code>PREFIX_DEF</code> or
+   * <code>ASPATH_DEF</code> record.
+   *
+   * @param rec     A buffer holding the definition record.
+   * @param bindex  The index of the first byte of the record.
+   * @param usenhi  Whether or not NHI addressing was used in the record.
+   */
+  public void define(byte[] rec, int bindex, boolean usenhi) {
+    int typ = rec[bindex++];
+    int id = Monitor.bytes2varint(rec, bindex);
+    bindex += Monitor.varint_length(rec, bindex);
+    StringBuffer sb = new StringBuffer("");
+    ArrayList list;
+    if (typ == Monitor.PREFIX_DEF) {
+      Monitor.bytes2ipprefix(sb, rec, bindex, usenhi);
+      list = prefixes;
+    } else if (typ == Monitor.ASPATH_DEF) {
+      Monitor.bytes2aspath(sb, rec, bindex, usenhi);
+      list = aspaths;
+    } else {
+      Debug.gerr("not a definition record: type " + typ);
+      return;
+    }
+    while (list.size() <= id) {
+      list.add(null);
+    }
+    list.set(id, sb.toString());
+  }
+
+  // ----- bytes2prefix ---------------------------------------------------- //
+  /**
+   * Decodes a reference to an IP address prefix.
+   *
+   * @param ipprefix  A StringBuffer to which the prefix will be appended.
+   * @param bytes     The byte array holding the reference.
+   * @param bindex    The index of the first byte of the reference.
+   * @return the number of bytes used by the reference
+   */
+  public int bytes2prefix(StringBuffer ipprefix, byte[] bytes, int bindex) {
+    ipprefix.append((String)prefixes.get(Monitor.bytes2varint(bytes,bindex)));
+    return Monitor.varint_length(bytes, bindex);
+  }
+
+  // ----- bytes2aspath ---------------------------------------------------- //
+  /**
+   * Decodes a reference to an AS path.
+   *
+   * @param aspath  A StringBuffer to which the AS path will be appended.
+   * @param bytes   The byte array holding the reference.
+   * @param bindex  The index of the first byte of the reference.
+   * @return the number of bytes used by the reference
+   */
+  public int bytes2aspath(StringBuffer aspath, byte[] bytes, int bindex) {
+    aspath.append((String)aspaths.get(Monitor.bytes2varint(bytes,bindex)));
+    return Monitor.varint_length(bytes, bindex);
+  }
+
+} // end class TraceDictionary
@@ -0,0 +1,391 @@
+/**
+ * TraceFileReader.java
+ */
+
+
+package SSF.OS.BGP4;
+
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+
+// ===== class SSF.OS.BGP4.TraceFileReader ================================= //
+/**
+ * Reads records from an indexed trace file written by a
+ * <code>TraceFileWriter</code>.  The index at the end of the file is loaded
+ * when the reader is constructed.  After that, only the blocks which may hold
+ * records matching a query (that is, blocks with records from the wanted
+ * host whose time range overlaps the wanted interval) are read, so finding
+ * what one router did over a short interval takes a few seeks, no matter how
+ * big the file is.
+ * <p>
+ * Records are passed to a {@link Handler} exactly as they were streamed.
+ * Decoding them is up to the handler, which will typically hand them to a
+ * player.  Each host's header records (such as <code>USENHI</code> and
+ * <code>BYTES_PER_INT</code>) are at time zero, so a player should be primed
+ * by reading the interval [0,0] for the host first.
+ * @see TraceFileWriter
+ */
+public class TraceFileReader {
+
+  // ===== interface Handler =============================================== //
+  /**
+   * Receives records read from a trace file.
+   */
+  public interface Handler {
+    /**
+     * Handles one record.  The buffer is reused for later records, so the
+     * handler must copy anything it wants to keep.
+     *
+     * @param hostcode  The host code of the host which recorded the record.
+     * @param time      The simulation time at which the record was
+     *                  generated.
+     * @param rec       A buffer holding the record.
+     * @param offset    The index of the first byte of the record.
+     * @param len       The number of bytes in the record.
+     */
+    void record(int hostcode, double time, byte[] rec, int offset, int len);
+  } // end interface Handler
+
+
+  // ........................ member data ........................ //
+
+  /** The channel from which the file is read. */
+  private FileChannel in;
+
+  /** The size of each block, in bytes. */
+  private int blocksize;
+
+  /** The earliest time of any record in each block. */
+  private double[] mintimes;
+
+  /** The latest time of any record in each block. */
+  private double[] maxtimes;
+
+  /** The numbers of the blocks holding records from each host, keyed by host
+   *  code. */
+  private HashMap hostblocks = new HashMap();
+
+  /** The host code of each host, keyed by the NHI address of the BGP speaker
+   *  on it. */
+  private HashMap hostcodes = new HashMap();
+
+  /** The NHI address of the BGP speaker on each host, keyed by host code. */
+  private HashMap hostnames = new HashMap();
+
+  /** The numbers of the blocks holding dictionary definitions, in
+   *  increasing order. */
+  private int[] defblocks;
+
+  /** The buffer into which each block is read. */
+  private ByteBuffer block;
+
+  /** The buffer into which each record is copied before being handed to the
+   *  handler. */
+  private byte[] recbuf;
+
+  /** The number of blocks read so far. */
+  private long blocksread = 0;
+
+
+  // ----- TraceFileReader(String) ----------------------------------------- //
+  /**
+   * Constructs a reader for the named trace file, and loads its index.
+   *
+   * @param filename  The name of the file to read.
+   * @exception IOException  if the file cannot be read or is not a trace
+   *                         file
+   */
+  public TraceFileReader(String filename) throws IOException {
+    in = new FileInputStream(filename).getChannel();
+    long size = in.size();
+    if (size < TraceFileWriter.FILE_HEADER_SIZE +
+               TraceFileWriter.TRAILER_SIZE) {
+      throw new IOException(filename + ": not a trace file");
+    }
+
+    ByteBuffer hdr = read_fully(0, TraceFileWriter.FILE_HEADER_SIZE);
+    if (hdr.getLong() != TraceFileWriter.MAGIC) {
+      throw new IOException(filename + ": not a trace file");
+    }
+    int version = hdr.getInt();
+    if (version != TraceFileWriter.VERSION) {
+      throw new IOException(filename + ": unsupported trace file version " +
+                            version);
+    }
+    blocksize = hdr.getInt();
+
+    ByteBuffer trailer = read_fully(size - TraceFileWriter.TRAILER_SIZE,
+                                    TraceFileWriter.TRAILER_SIZE);
+    long indexpos = trailer.getLong();
+    if (trailer.getLong() != TraceFileWriter.MAGIC) {
+      throw new IOException(filename + ": trace file is incomplete (the " +
+                            "simulation may not have wrapped up)");
+    }
+
+    ByteBuffer idx = read_fully(indexpos, (int)(size - indexpos -
+                                                TraceFileWriter.TRAILER_SIZE));
+    int numblocks = idx.getInt();
+    mintimes = new double[numblocks];
+    maxtimes = new double[numblocks];
+    for (int i=0; i<numblocks; i++) {
+      mintimes[i] = idx.getDouble();
+      maxtimes[i] = idx.getDouble();
+    }
+    int numhosts = idx.getInt();
+    for (int i=0; i<numhosts; i++) {
+      Integer host = new Integer(idx.getInt());
+      byte[] name = new byte[idx.getShort() & 0xffff];
+      idx.get(name);
+      int[] blocks = new int[idx.getInt()];
+      for (int j=0; j<blocks.length; j++) {
+        blocks[j] = idx.getInt();
+      }
+      hostblocks.put(host, blocks);
+      String nh = new String(name, "UTF-8");
+      hostcodes.put(nh, host);
+      hostnames.put(host, nh);
+    }
+    defblocks = new int[idx.getInt()];
+    for (int i=0; i<defblocks.length; i++) {
+      defblocks[i] = idx.getInt();
+    }
+
+    block = ByteBuffer.allocateDirect(blocksize);
+    recbuf = new byte[blocksize];
+  }
+
+  // ----- read_fully ------------------------------------------------------ //
+  /**
+   * Reads the given range of the file into a new buffer.
+   *
+   * @param pos  The position in the file at which the range begins.
+   * @param len  The number of bytes in the range.
+   * @return a buffer holding the range, ready to be read from
+   * @exception IOException  if the range cannot be read
+   */
+  private ByteBuffer read_fully(long pos, int len) throws IOException {
+    ByteBuffer bb = ByteBuffer.allocate(len);
+    while (bb.hasRemaining()) {
+      if (in.read(bb, pos + bb.position()) < 0) {
+        throw new EOFException("trace file truncated");
+      }
+    }
+    bb.flip();
+    return bb;
+  }
+
+  // ----- hostcode -------------------------------------------------------- //
+  /**
+   * Returns the host code of the host on which the BGP speaker with the
+   * given NHI address ran.
+   *
+   * @param nh  The NHI address of a BGP speaker.
+   * @return the host code, or -1 if there are no records from the speaker
+   */
+  public int hostcode(String nh) {
+    Integer host = (Integer)hostcodes.get(nh);
+    return (host == null) ? -1 : host.intValue();
+  }
+
+  // ----- host_name ------------------------------------------------------- //
+  /**
+   * Returns the NHI address of the BGP speaker which ran on the host with
+   * the given host code.
+   *
+   * @param hostcode  A host code.
+   * @return the NHI address, or null if there are no records from the host
+   */
+  public String host_name(int hostcode) {
+    return (String)hostnames.get(new Integer(hostcode));
+  }
+
+  // ----- block_size ------------------------------------------------------ //
+  /**
+   * Returns the size of each block in the file, in bytes.
+   *
+   * @return the size of each block in the file
+   */
+  public int block_size() {
+    return blocksize;
+  }
+
+  // ----- num_blocks ------------------------------------------------------ //
+  /**
+   * Returns the number of blocks in the file.
+   *
+   * @return the number of blocks in the file
+   */
+  public int num_blocks() {
+    return mintimes.length;
+  }
+
+  // ----- blocks_read ----------------------------------------------------- //
+  /**
+   * Returns the number of blocks read so far by all queries.
+   *
+   * @return the number of blocks read so far
+   */
+  public long blocks_read() {
+    return blocksread;
+  }
+
+  // ----- blocks ---------------------------------------------------------- //
+  /**
+   * Finds the blocks which may hold records from the given host in the given
+   * interval of simulation time.
+   *
+   * @param from      The beginning of the interval.
+   * @param to        The end of the interval.
+   * @param hostcode  The host code of the wanted host, or -1 for all hosts.
+   * @return the numbers of the matching blocks, in increasing order
+   */
+  public int[] blocks(double from, double to, int hostcode) {
+    int[] candidates;
+    if (hostcode < 0) {
+      candidates = null; // all blocks
+    } else {
+      candidates = (int[])hostblocks.get(new Integer(hostcode));
+      if (candidates == null) {
+        return new int[0];
+      }
+    }
+
+    int n = (candidates == null) ? mintimes.length : candidates.length;
+    int[] matches = new int[n];
+    int nummatches = 0;
+    for (int i=0; i<n; i++) {
+      int b = (candidates == null) ? i : candidates[i];
+      if (maxtimes[b] >= from && mintimes[b] <= to) {
+        matches[nummatches++] = b;
+      }
+    }
+    int[] result = new int[nummatches];
+    System.arraycopy(matches, 0, result, 0, nummatches);
+    return result;
+  }
+
+  // ----- dictionary_blocks ----------------------------------------------- //
+  /**
+   * Finds the blocks which may hold dictionary definitions from the given
+   * host, made no later than the given time.
+   *
+   * @param to        The time up to which definitions are wanted.
+   * @param hostcode  The host code of the wanted host, or -1 for all hosts.
+   * @return the numbers of the matching blocks, in increasing order
+   */
+  public int[] dictionary_blocks(double to, int hostcode) {
+    int[] hbs = null;
+    if (hostcode >= 0) {
+      hbs = (int[])hostblocks.get(new Integer(hostcode));
+      if (hbs == null) {
+        return new int[0];
+      }
+    }
+
+    int[] matches = new int[defblocks.length];
+    int nummatches = 0;
+    for (int i=0; i<defblocks.length; i++) {
+      int b = defblocks[i];
+      if (mintimes[b] <= to &&
+          (hbs == null || Arrays.binarySearch(hbs, b) >= 0)) {
+        matches[nummatches++] = b;
+      }
+    }
+    int[] result = new int[nummatches];
+    System.arraycopy(matches, 0, result, 0, nummatches);
+    return result;
+  }
+
+  // ----- read ------------------------------------------------------------ //
+  /**
+   * Reads the records from the given host in the given interval of
+   * simulation time, in the order in which they were written, and passes
+   * them to a handler.
+   *
+   * @param from      The beginning of the interval.
+   * @param to        The end of the interval.
+   * @param hostcode  The host code of the wanted host, or -1 for all hosts.
+   * @param handler   The handler to pass each record to.
+   * @return the number of records passed to the handler
+   * @exception IOException  if the file cannot be read
+   */
+  public long read(double from, double to, int hostcode, Handler handler)
+    throws IOException
+  {
+    int[] bs = blocks(from, to, hostcode);
+    long count = 0;
+    for (int i=0; i<bs.length; i++) {
+      count += read_block(bs[i], block, recbuf, from, to, hostcode, handler);
+    }
+    return count;
+  }
+
+  // ----- read_block ------------------------------------------------------ //
+  /**
+   * Reads one block and passes the records in it from the given host in the
+   * given interval of simulation time to a handler.  The caller supplies the
+   * buffers, so blocks may be read by several threads at once, as long as
+   * each uses buffers of its own.
+   *
+   * @param b         The number of the block to read.
+   * @param buf       A buffer of at least the block size into which to read
+   *                  the block.
+   * @param recbuf    A buffer of at least the block size into which to copy
+   *                  each record before it is handed to the handler.
+   * @param from      The beginning of the interval.
+   * @param to        The end of the interval.
+   * @param hostcode  The host code of the wanted host, or -1 for all hosts.
+   * @param handler   The handler to pass each record to.
+   * @return the number of records passed to the handler
+   * @exception IOException  if the block cannot be read
+   */
+  public long read_block(int b, ByteBuffer buf, byte[] recbuf, double from,
+                         double to, int hostcode, Handler handler)
+    throws IOException
+  {
+    long pos = TraceFileWriter.FILE_HEADER_SIZE + (long)b * blocksize;
+    buf.clear();
+    buf.limit(blocksize);
+    while (buf.hasRemaining()) {
+      if (in.read(buf, pos + buf.position()) < 0) {
+        throw new EOFException("trace file truncated in block " + b);
+      }
+    }
+    buf.flip();
+    synchronized (this) {
+      blocksread++;
+    }
+
+    long count = 0;
+    int numrecs = buf.getInt();
+    buf.getInt(); // bytes used
+    for (int j=0; j<numrecs; j++) {
+      int host = buf.getInt();
+      double time = buf.getDouble();
+      int len = buf.getInt();
+      if ((hostcode >= 0 && host != hostcode) || time < from || time > to) {
+        buf.position(buf.position() + len);
+        continue;
+      }
+      buf.get(recbuf, 0, len);
+      handler.record(host, time, recbuf, 0, len);
+      count++;
+    }
+    return count;
+  }
+
+  // ----- close ----------------------------------------------------------- //
+  /**
+   * Closes the file.
+   *
+   * @exception IOException  if the file cannot be closed
+   */
+  public void close() throws IOException {
+    in.close();
+  }
+
+} // end class TraceFileReader
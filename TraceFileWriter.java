@@ -0,0 +1,348 @@
+/**
+ * TraceFileWriter.java
+ */
+
+
+package SSF.OS.BGP4;
+
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+
+// ===== class SSF.OS.BGP4.TraceFileWriter ================================= //
+/**
+ * Writes streamed monitor records to an indexed trace file, so that the
+ * records of one router, or of one interval of simulation time, can later be
+ * found without decoding the whole file.  There is one writer per JVM, which
+ * is shared by all of the BGP speakers in it.
+ * <p>
+ * The file begins with a header and is followed by a sequence of blocks, all
+ * of the same size, and finally by an index.  All values are big-endian.
+ * <pre>
+ *   header:  8 bytes   MAGIC
+ *            4 bytes   VERSION
+ *            4 bytes   the block size, in bytes
+ *
+ *   block:   4 bytes   the number of records in the block
+ *            4 bytes   the number of bytes used in the block (including these
+ *                      eight)
+ *            records, each of which is:
+ *              4 bytes   the host code of the host which recorded it
+ *              8 bytes   the simulation time at which it was recorded
+ *              4 bytes   the length of the record
+ *              the record itself, exactly as it was streamed
+ *            padding, up to the block size
+ *
+ *   index:   4 bytes   the number of blocks
+ *            for each block:
+ *              8 bytes   the earliest time of any record in the block
+ *              8 bytes   the latest time of any record in the block
+ *            4 bytes   the number of hosts
+ *            for each host:
+ *              4 bytes   the host code
+ *              a string  the NHI address of the BGP speaker on the host
+ *                        (a two-byte length followed by UTF-8 characters)
+ *              4 bytes   the number of blocks holding records from the host
+ *              4 bytes   the number of each such block, in increasing order
+ *            4 bytes   the number of blocks holding dictionary definitions
+ *                      (<code>PREFIX_DEF</code> and <code>ASPATH_DEF</code>
+ *                      records)
+ *            4 bytes   the number of each such block, in increasing order
+ *
+ *   trailer: 8 bytes   the position in the file at which the index begins
+ *            8 bytes   MAGIC
+ * </pre>
+ * Records are never split across blocks.  Since streamed records are no
+ * larger than <code>Monitor.MAX_STREAMED_RECORD_SIZE</code> (larger ones are
+ * streamed in chunks), every record fits in a block.
+ * @see TraceFileReader
+ */
+public class TraceFileWriter {
+
+  // ......................... constants ......................... //
+
+  /** Identifies a trace file.  It appears at both ends of the file. */
+  public static final long MAGIC = 0x5353465452414345L; // "SSFTRACE"
+
+  /** The version of the trace file format. */
+  public static final int VERSION = 2;
+
+  /** The number of bytes in the file header. */
+  public static final int FILE_HEADER_SIZE = 16;
+
+  /** The number of bytes in the header of each block. */
+  public static final int BLOCK_HEADER_SIZE = 8;
+
+  /** The number of bytes preceding each record within a block. */
+  public static final int RECORD_HEADER_SIZE = 16;
+
+  /** The number of bytes in the file trailer. */
+  public static final int TRAILER_SIZE = 16;
+
+  /** The default size of each block, in bytes. */
+  public static final int DEFAULT_BLOCK_SIZE = 1<<16;
+
+
+  // ........................ member data ........................ //
+
+  /** The writer shared by all BGP speakers in this JVM. */
+  private static TraceFileWriter writer = null;
+
+  /** The channel to which the file is written. */
+  private FileChannel out;
+
+  /** The size of each block, in bytes. */
+  private int blocksize;
+
+  /** The block currently being filled. */
+  private ByteBuffer block;
+
+  /** The number of records in the block currently being filled. */
+  private int blockrecs = 0;
+
+  /** The number of blocks written so far. */
+  private int numblocks = 0;
+
+  /** The earliest and latest time of any record in the block currently being
+   *  filled. */
+  private double mintime, maxtime;
+
+  /** The earliest time of any record in each block written so far. */
+  private double[] mintimes = new double[64];
+
+  /** The latest time of any record in each block written so far. */
+  private double[] maxtimes = new double[64];
+
+  /** The numbers of the blocks holding records from each host, as a list of
+   *  Integers, keyed by host code. */
+  private TreeMap hostblocks = new TreeMap();
+
+  /** The NHI address of the BGP speaker on each host, keyed by host code. */
+  private HashMap hostnames = new HashMap();
+
+  /** The host codes of the hosts with records in the block currently being
+   *  filled. */
+  private HashSet blockhosts = new HashSet();
+
+  /** Whether or not the block currently being filled holds any dictionary
+   *  definitions. */
+  private boolean blockdefs = false;
+
+  /** The numbers of the blocks holding dictionary definitions, as a list of
+   *  Integers, so that a reader can load the dictionaries without reading
+   *  every block. */
+  private ArrayList defblocks = new ArrayList();
+
+  /** The total number of records written. */
+  private long numrecs = 0;
+
+
+  // ----- TraceFileWriter(String,int) ------------------------------------- //
+  /**
+   * Constructs a writer for a new trace file.
+   *
+   * @param filename   The name of the file to write.
+   * @param blocksize  The size of each block, in bytes.
+   * @exception IOException  if the file cannot be created
+   */
+  public TraceFileWriter(String filename, int blocksize) throws IOException {
+    if (blocksize < BLOCK_HEADER_SIZE + RECORD_HEADER_SIZE +
+                    Monitor.MAX_STREAMED_RECORD_SIZE) {
+      throw new IllegalArgumentException("trace file block size too small: "+
+                                         blocksize);
+    }
+    this.blocksize = blocksize;
+    out = new FileOutputStream(filename).getChannel();
+    block = ByteBuffer.allocateDirect(blocksize);
+
+    ByteBuffer hdr = ByteBuffer.allocate(FILE_HEADER_SIZE);
+    hdr.putLong(MAGIC);
+    hdr.putInt(VERSION);
+    hdr.putInt(blocksize);
+    hdr.flip();
+    while (hdr.hasRemaining()) {
+      out.write(hdr);
+    }
+    start_block();
+  }
+
+  // ----- get ------------------------------------------------------------- //
+  /**
+   * Returns the trace file writer shared by all BGP speakers in this JVM,
+   * creating it (and arranging for it to be closed when the simulation wraps
+   * up) if necessary.  The file is the one named by the
+   * <code>trace_file</code> option.
+   *
+   * @param bgp  The BGP speaker asking for the writer.
+   * @return the shared trace file writer, or null if it could not be created
+   */
+  public static synchronized TraceFileWriter get(BGPSession bgp) {
+    if (writer == null) {
+      try {
+        writer = new TraceFileWriter(Global.trace_file, DEFAULT_BLOCK_SIZE);
+      } catch (IOException e) {
+        bgp.debug.err("couldn't create trace file " + Global.trace_file +
+                      ": " + e);
+        return null;
+      }
+      bgp.topnet.wrapup(new Runnable()
+        {
+          public void run() {
+            try {
+              writer.close();
+            } catch (IOException e) {
+              Debug.gerr("couldn't finish trace file: " + e);
+            }
+          }
+        });
+    }
+    return writer;
+  }
+
+  // ----- start_block ----------------------------------------------------- //
+  /**
+   * Prepares to fill a new block.
+   */
+  private void start_block() {
+    block.clear();
+    block.position(BLOCK_HEADER_SIZE);
+    blockrecs = 0;
+    blockhosts.clear();
+    blockdefs = false;
+  }
+
+  // ----- write ----------------------------------------------------------- //
+  /**
+   * Appends a record to the trace file.
+   *
+   * @param hostcode  The host code of the host which recorded the record.
+   * @param nh        The NHI address of the BGP speaker which generated the
+   *                  record.
+   * @param time      The simulation time at which the record was generated.
+   * @param rec       The buffer holding the record.
+   * @param offset    The index of the first byte of the record.
+   * @param len       The number of bytes in the record.
+   * @exception IOException  if a full block cannot be written
+   */
+  public synchronized void write(int hostcode, String nh, double time,
+                                 byte[] rec, int offset, int len)
+    throws IOException
+  {
+    if (block.remaining() < RECORD_HEADER_SIZE + len) {
+      end_block();
+    }
+    if (blockrecs == 0) {
+      mintime = time;
+      maxtime = time;
+    } else if (time < mintime) {
+      mintime = time;
+    } else if (time > maxtime) {
+      maxtime = time;
+    }
+
+    Integer host = new Integer(hostcode);
+    if (blockhosts.add(host)) {
+      ArrayList blocks = (ArrayList)hostblocks.get(host);
+      if (blocks == null) {
+        blocks = new ArrayList();
+        hostblocks.put(host, blocks);
+        hostnames.put(host, nh);
+      }
+      blocks.add(new Integer(numblocks));
+    }
+
+    if (rec[offset] == Monitor.PREFIX_DEF ||
+        rec[offset] == Monitor.ASPATH_DEF) {
+      blockdefs = true;
+    }
+
+    block.putInt(hostcode);
+    block.putDouble(time);
+    block.putInt(len);
+    block.put(rec, offset, len);
+    blockrecs++;
+    numrecs++;
+  }
+
+  // ----- end_block ------------------------------------------------------- //
+  /**
+   * Writes out the block currently being filled, padded to the block size,
+   * and starts a new one.
+   *
+   * @exception IOException  if the block cannot be written
+   */
+  private void end_block() throws IOException {
+    block.putInt(0, blockrecs);
+    block.putInt(4, block.position());
+    block.position(0);
+    block.limit(blocksize); // the padding is whatever was there before
+    while (block.hasRemaining()) {
+      out.write(block);
+    }
+
+    if (numblocks == mintimes.length) {
+      double[] newmins = new double[2*numblocks];
+      double[] newmaxs = new double[2*numblocks];
+      System.arraycopy(mintimes, 0, newmins, 0, numblocks);
+      System.arraycopy(maxtimes, 0, newmaxs, 0, numblocks);
+      mintimes = newmins;
+      maxtimes = newmaxs;
+    }
+    mintimes[numblocks] = mintime;
+    maxtimes[numblocks] = maxtime;
+    if (blockdefs) {
+      defblocks.add(new Integer(numblocks));
+    }
+    numblocks++;
+    start_block();
+  }
+
+  // ----- close ----------------------------------------------------------- //
+  /**
+   * Writes out the last block and the index, and closes the file.
+   *
+   * @exception IOException  if the file cannot be written
+   */
+  public synchronized void close() throws IOException {
+    if (blockrecs > 0) {
+      end_block();
+    }
+    long indexpos = out.position();
+
+    DataOutputStream idx = new DataOutputStream(
+      new BufferedOutputStream(Channels.newOutputStream(out), 1<<16));
+
+    idx.writeInt(numblocks);
+    for (int i=0; i<numblocks; i++) {
+      idx.writeDouble(mintimes[i]);
+      idx.writeDouble(maxtimes[i]);
+    }
+    idx.writeInt(hostblocks.size());
+    for (Iterator it=hostblocks.keySet().iterator(); it.hasNext();) {
+      Integer host = (Integer)it.next();
+      ArrayList blocks = (ArrayList)hostblocks.get(host);
+      idx.writeInt(host.intValue());
+      idx.writeUTF((String)hostnames.get(host));
+      idx.writeInt(blocks.size());
+      for (int i=0; i<blocks.size(); i++) {
+        idx.writeInt(((Integer)blocks.get(i)).intValue());
+      }
+    }
+    idx.writeInt(defblocks.size());
+    for (int i=0; i<defblocks.size(); i++) {
+      idx.writeInt(((Integer)defblocks.get(i)).intValue());
+    }
+    idx.writeLong(indexpos);
+    idx.writeLong(MAGIC);
+    idx.flush();
+    out.close();
+
+    Debug.gmsg("trace file: " + numrecs + " records in " + numblocks +
+               " blocks from " + hostblocks.size() + " hosts");
+  }
+
+} // end class TraceFileWriter
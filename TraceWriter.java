@@ -0,0 +1,600 @@
+/**
+ * TraceWriter.java
+ */
+
+
+package SSF.OS.BGP4;
+
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+import SSF.Util.Streams.*;
+
+
+// ===== class SSF.OS.BGP4.TraceWriter ===================================== //
+/**
+ * An asynchronous output stage for monitor records.  Monitors hand encoded
+ * records to the trace writer, which copies them into a bounded ring of
+ * reusable slots and returns immediately.  A dedicated writer thread drains
+ * the ring in batches, passing each record on to the probe recorder, the
+ * indexed trace file, and/or the verbose player, so that neither disk nor
+ * terminal latency is paid inside simulation event handlers.
+ * <p>
+ * The ring is a fixed-size array of slots, each carrying a sequence number
+ * which tells producers and the consumer whether the slot is free or full.
+ * Producers claim slots with a compare-and-set on the tail counter, so no
+ * locks are taken on the normal path.  When the ring is full, what happens
+ * depends on the configured backpressure policy: the producer either waits for
+ * the writer to catch up (<code>block</code>), discards the record and counts
+ * it (<code>drop</code>), or appends it to an unbounded, ordered overflow list
+ * which the writer drains once the ring is empty (<code>spill</code>).
+ * <p>
+ * There is at most one trace writer per JVM.  It is closed when the
+ * simulation wraps up, at which point any records still queued are written
+ * out and some statistics about the queue are reported.  Producers which
+ * arrive while the queue is being drained wait until it has been, and
+ * records which arrive after that are written synchronously by the calling
+ * thread, so records are always written in the order in which they were
+ * sent.  In case the simulation ends without wrapping up (for instance, if
+ * something calls <code>System.exit</code>), the writer is also closed by a
+ * shutdown hook, so queued records are not lost with the writer thread.
+ */
+public class TraceWriter implements Runnable {
+
+  // ......................... constants ......................... //
+
+  /** Indicates that a producer should wait when the ring is full. */
+  public static final int BLOCK = 0;
+
+  /** Indicates that records should be discarded (and counted) when the ring
+   *  is full. */
+  public static final int DROP  = 1;
+
+  /** Indicates that records should be placed in an overflow list when the
+   *  ring is full. */
+  public static final int SPILL = 2;
+
+  /** The names of the backpressure policies, as used in DML, indexed by
+   *  policy. */
+  public static final String[] policy_names = { "block", "drop", "spill" };
+
+  /** The maximum number of records that the writer thread takes from the ring
+   *  before checking the overflow list and the closing flag. */
+  private static final int BATCH_SIZE = 256;
+
+  /** The initial size of the buffer in each slot.  Most records are much
+   *  smaller than this, and buffers grow as needed for the rest. */
+  private static final int INITIAL_SLOT_SIZE = 256;
+
+  /** How long, in nanoseconds, the writer thread parks when it finds nothing
+   *  to do, and a blocked producer parks while waiting for room. */
+  private static final long PARK_NANOS = 50000L;
+
+
+  // ........................ member data ........................ //
+
+  /** The single trace writer in this JVM, if one has been started. */
+  private static TraceWriter writer = null;
+
+  /** The slots making up the ring. */
+  private final Slot[] slots;
+
+  /** For each slot, the sequence number which indicates its state.  A slot
+   *  whose sequence number equals a producer's position is free to be
+   *  filled; one whose sequence number is one more than the consumer's
+   *  position is full and ready to be written out. */
+  private final AtomicLongArray seqs;
+
+  /** One less than the number of slots, used to map positions to slots. */
+  private final int mask;
+
+  /** The position at which the next record will be placed. */
+  private final AtomicLong tail = new AtomicLong(0);
+
+  /** The position from which the next record will be taken.  Only the writer
+   *  thread modifies it. */
+  private volatile long head = 0;
+
+  /** The backpressure policy in use. */
+  private final int policy;
+
+  /** Records which did not fit in the ring, in order, when the
+   *  <code>spill</code> policy is in use.  Access is synchronized on the
+   *  list itself. */
+  private final LinkedList spill = new LinkedList();
+
+  /** The number of records currently in the overflow list. */
+  private volatile int spilled = 0;
+
+  /** The greatest number of records that were queued at any one time,
+   *  including any in the overflow list. */
+  private final AtomicLong highwater = new AtomicLong(0);
+
+  /** The number of records discarded because the ring was full. */
+  private final AtomicLong drops = new AtomicLong(0);
+
+  /** The number of times a producer had to wait for room in the ring. */
+  private final AtomicLong waits = new AtomicLong(0);
+
+  /** The total number of records that have been written out.  Access is
+   *  synchronized on the writer. */
+  private long written = 0;
+
+  /** Whether or not writing to the trace file has failed, after which no
+   *  more records are written to it.  Access is synchronized on the
+   *  writer. */
+  private boolean tracefile_failed = false;
+
+  /** Whether or not the writer has been asked to close. */
+  private volatile boolean closing = false;
+
+  /** Whether or not everything queued before the writer was asked to close
+   *  has been written out.  Access is synchronized on the writer. */
+  private boolean closed = false;
+
+  /** The number of producers currently in <code>send</code>, which may not
+   *  yet have seen that the writer is closing. */
+  private final AtomicInteger active = new AtomicInteger(0);
+
+  /** Held while the writer is being closed, so that a second caller (such as
+   *  the shutdown hook) waits for the first to finish. */
+  private final Object closelock = new Object();
+
+  /** The writer thread. */
+  private final Thread thread;
+
+
+  // ===== inner class Slot ================================================ //
+  /**
+   * One entry in the ring.  It holds everything needed to pass a record on
+   * to the recorder, trace file, and/or player, and its buffer is reused from
+   * one record to the next.
+   */
+  private static class Slot {
+    /** The recorder to send the record to, or null if it is not streamed. */
+    StreamInterface recorder;
+    /** The trace file to write the record to, or null if none. */
+    TraceFileWriter tracefile;
+    /** The data type code to use when streaming the record. */
+    int datatypecode;
+    /** The host code to use when streaming the record. */
+    int hostcode;
+    /** Whether or not the record is to be printed. */
+    boolean print;
+    /** The NHI address of the speaker which generated the record. */
+    String nh;
+    /** The simulation time at which the record was generated. */
+    double time;
+    /** The buffer holding the encoded record. */
+    byte[] buf;
+    /** The number of bytes in the encoded record. */
+    int len;
+
+    /** Fills in the slot, copying the record into the slot's buffer. */
+    void set(StreamInterface rcdr, TraceFileWriter tf, int dtcode, int hcode,
+             boolean prt, String bgpnh, double t, byte[] rec, int reclen) {
+      recorder     = rcdr;
+      tracefile    = tf;
+      datatypecode = dtcode;
+      hostcode     = hcode;
+      print        = prt;
+      nh           = bgpnh;
+      time         = t;
+      if (buf == null || buf.length < reclen) {
+        buf = new byte[Math.max(reclen, INITIAL_SLOT_SIZE)];
+      }
+      System.arraycopy(rec, 0, buf, 0, reclen);
+      len = reclen;
+    }
+  } // end inner class Slot
+
+
+  // ----- TraceWriter(int,int) -------------------------------------------- //
+  /**
+   * Constructs a trace writer with a ring of the given size and the given
+   * backpressure policy, and starts its writer thread.
+   *
+   * @param size    The number of slots in the ring.  It is rounded up to a
+   *                power of two.
+   * @param policy  The backpressure policy to use when the ring is full.
+   */
+  private TraceWriter(int size, int policy) {
+    int n = 2;
+    while (n < size) {
+      n <<= 1;
+    }
+    slots = new Slot[n];
+    seqs  = new AtomicLongArray(n);
+    for (int i=0; i<n; i++) {
+      slots[i] = new Slot();
+      seqs.set(i, i);
+    }
+    mask = n - 1;
+    this.policy = policy;
+
+    thread = new Thread(this, "BGP trace writer");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  // ----- get ------------------------------------------------------------- //
+  /**
+   * Returns the trace writer for this JVM, starting it first if necessary.
+   * The first caller must supply the BGP session whose network will be used to
+   * close the writer when the simulation wraps up.
+   *
+   * @param bgp  A BGP session in the simulation.
+   * @return the trace writer for this JVM
+   */
+  public static synchronized TraceWriter get(BGPSession bgp) {
+    if (writer == null) {
+      writer = new TraceWriter(Global.async_queue_size,
+                               Global.async_backpressure);
+      bgp.topnet.wrapup(new Runnable()
+        {
+          public void run() {
+            writer.close();
+          }
+        });
+      Runtime.getRuntime().addShutdownHook(new Thread("BGP trace writer close")
+        {
+          public void run() {
+            writer.close();
+          }
+        });
+    }
+    return writer;
+  }
+
+  // ----- policy_code ----------------------------------------------------- //
+  /**
+   * Returns the backpressure policy with the given name.
+   *
+   * @param name  The name of a backpressure policy, as used in DML.
+   * @return the policy, or -1 if the name is not recognized
+   */
+  public static int policy_code(String name) {
+    for (int i=0; i<policy_names.length; i++) {
+      if (policy_names[i].equals(name)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  // ----- send ------------------------------------------------------------ //
+  /**
+   * Queues a record to be sent to the given recorder, written to the given
+   * trace file, and/or printed by the player.  The record is copied, so the
+   * caller may reuse its buffer as soon as this method returns.  If the
+   * writer is being closed, the caller waits until everything queued has
+   * been written out, and then the record is written out immediately.
+   *
+   * @param recorder      The recorder to stream the record to, or null if it
+   *                      is not to be streamed.
+   * @param tracefile     The trace file to write the record to, or null if
+   *                      none.
+   * @param datatypecode  The data type code to use when streaming.
+   * @param hostcode      The host code to use when streaming.
+   * @param print         Whether or not the record is to be printed.
+   * @param nh            The NHI address of the speaker which generated the
+   *                      record.
+   * @param time          The simulation time at which the record was
+   *                      generated.
+   * @param rec           The buffer holding the encoded record.
+   * @param len           The number of bytes in the encoded record.
+   */
+  public void send(StreamInterface recorder, TraceFileWriter tracefile,
+                   int datatypecode, int hostcode, boolean print, String nh,
+                   double time, byte[] rec, int len) {
+    // The producer is counted as active before it looks at the closing
+    // flag, so close() either sees it or it sees the flag.  It stops being
+    // counted before it waits, since close() waits for active producers.
+    boolean queued = false;
+    active.incrementAndGet();
+    try {
+      if (!closing) {
+        enqueue(recorder, tracefile, datatypecode, hostcode, print, nh, time,
+                rec, len);
+        queued = true;
+      }
+    } finally {
+      active.decrementAndGet();
+    }
+    if (!queued) {
+      await_closed();
+      write_sync(recorder, tracefile, datatypecode, hostcode, print, nh,
+                 time, rec, len);
+    }
+  }
+
+  // ----- enqueue --------------------------------------------------------- //
+  /**
+   * Places a record in the ring, or in the overflow list, or drops it,
+   * according to the backpressure policy.  Records placed after the writer
+   * thread has stopped are written out by <code>close</code>.
+   */
+  private void enqueue(StreamInterface recorder, TraceFileWriter tracefile,
+                       int datatypecode, int hostcode, boolean print,
+                       String nh, double time, byte[] rec, int len) {
+    if (spilled > 0) {
+      // Keep records in order: once records have started going to the
+      // overflow list, later ones must follow them there until it is drained.
+      add_spill(recorder, tracefile, datatypecode, hostcode, print, nh, time,
+                rec, len);
+      return;
+    }
+
+    while (!offer(recorder, tracefile, datatypecode, hostcode, print, nh,
+                  time, rec, len)) {
+      switch (policy) {
+      case DROP:
+        drops.incrementAndGet();
+        return;
+      case SPILL:
+        add_spill(recorder, tracefile, datatypecode, hostcode, print, nh,
+                  time, rec, len);
+        return;
+      default: // BLOCK
+        // If the writer is closing, close() keeps draining the ring until
+        // this producer is done, so there will be room.
+        waits.incrementAndGet();
+        LockSupport.unpark(thread);
+        LockSupport.parkNanos(PARK_NANOS);
+      }
+    }
+  }
+
+  // ----- await_closed ---------------------------------------------------- //
+  /**
+   * Waits until everything queued before the writer was asked to close has
+   * been written out.
+   */
+  private synchronized void await_closed() {
+    while (!closed) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Debug.gwarn("interrupted while waiting for trace writer to close");
+        return;
+      }
+    }
+  }
+
+  // ----- offer ----------------------------------------------------------- //
+  /**
+   * Tries to place a record in the ring.
+   *
+   * @return true if the record was placed, false if the ring was full
+   */
+  private boolean offer(StreamInterface recorder, TraceFileWriter tracefile,
+                        int datatypecode, int hostcode, boolean print,
+                        String nh, double time, byte[] rec, int len) {
+    while (true) {
+      long pos = tail.get();
+      int ind = (int)(pos & mask);
+      long seq = seqs.get(ind);
+      if (seq == pos) {
+        if (tail.compareAndSet(pos, pos+1)) {
+          slots[ind].set(recorder, tracefile, datatypecode, hostcode, print,
+                         nh, time, rec, len);
+          seqs.set(ind, pos+1); // publish
+          note_depth(pos + 1 - head + spilled);
+          return true;
+        }
+      } else if (seq < pos) {
+        return false; // full
+      }
+      // otherwise another producer claimed the slot first, so try again
+    }
+  }
+
+  // ----- add_spill ------------------------------------------------------- //
+  /**
+   * Appends a record to the overflow list.
+   */
+  private void add_spill(StreamInterface recorder, TraceFileWriter tracefile,
+                         int datatypecode, int hostcode, boolean print,
+                         String nh, double time, byte[] rec, int len) {
+    Slot s = new Slot();
+    s.set(recorder, tracefile, datatypecode, hostcode, print, nh, time, rec,
+          len);
+    synchronized (spill) {
+      spill.addLast(s);
+      spilled = spill.size();
+    }
+    note_depth(tail.get() - head + spilled);
+  }
+
+  // ----- note_depth ------------------------------------------------------ //
+  /**
+   * Updates the high-water mark of the queue, if necessary.
+   *
+   * @param depth  The current number of records queued.
+   */
+  private void note_depth(long depth) {
+    long hw = highwater.get();
+    while (depth > hw && !highwater.compareAndSet(hw, depth)) {
+      hw = highwater.get();
+    }
+  }
+
+  // ----- run ------------------------------------------------------------- //
+  /**
+   * The body of the writer thread.  It repeatedly drains the ring, and then
+   * the overflow list, until the writer is closed.
+   */
+  public void run() {
+    while (true) {
+      boolean closing_now = closing;
+      int n = drain_ring();
+      if (n == 0) {
+        n = drain_spill();
+      }
+      if (n == 0) {
+        if (closing_now) {
+          break;
+        }
+        LockSupport.parkNanos(PARK_NANOS);
+      }
+    }
+  }
+
+  // ----- drain_ring ------------------------------------------------------ //
+  /**
+   * Writes out up to one batch of records from the ring.
+   *
+   * @return the number of records written
+   */
+  private int drain_ring() {
+    int n = 0;
+    long pos = head;
+    while (n < BATCH_SIZE) {
+      int ind = (int)(pos & mask);
+      if (seqs.get(ind) != pos+1) {
+        break; // empty, or next slot not yet published
+      }
+      write(slots[ind]);
+      seqs.set(ind, pos + slots.length); // free the slot
+      pos++;
+      head = pos;
+      n++;
+    }
+    return n;
+  }
+
+  // ----- drain_spill ----------------------------------------------------- //
+  /**
+   * Writes out every record in the overflow list, but only if the ring is
+   * empty, so that records stay in order.  (A record may have been placed in
+   * the ring ahead of a slot which has been claimed but not yet filled, so
+   * the ring isn't empty just because nothing could be taken from it.)  The
+   * ring is checked while holding the lock on the overflow list, so that no
+   * record can be added to the list between the check and the copy.
+   *
+   * @return the number of records written
+   */
+  private int drain_spill() {
+    if (spilled == 0) {
+      return 0;
+    }
+    LinkedList batch;
+    synchronized (spill) {
+      if (head != tail.get()) {
+        return 0;
+      }
+      batch = new LinkedList(spill);
+      spill.clear();
+      spilled = 0;
+    }
+    for (Iterator it=batch.iterator(); it.hasNext();) {
+      write((Slot)it.next());
+    }
+    return batch.size();
+  }
+
+  // ----- write ----------------------------------------------------------- //
+  /**
+   * Writes out the record in the given slot.
+   *
+   * @param s  The slot holding the record.
+   */
+  private void write(Slot s) {
+    write_sync(s.recorder, s.tracefile, s.datatypecode, s.hostcode, s.print,
+               s.nh, s.time, s.buf, s.len);
+    s.recorder = null;
+    s.tracefile = null;
+    s.nh = null;
+  }
+
+  // ----- write_sync ------------------------------------------------------ //
+  /**
+   * Passes a record on to the recorder, trace file, and/or player.  It is
+   * synchronized because, once the writer is closing, producers in several
+   * threads may call it at once, and the player is shared.  If the trace file
+   * can't be written, an error is reported and no more records are written
+   * to it.
+   */
+  private synchronized void write_sync(StreamInterface recorder,
+                                       TraceFileWriter tracefile,
+                                       int datatypecode, int hostcode,
+                                       boolean print, String nh, double time,
+                                       byte[] rec, int len) {
+    if (print) {
+      Monitor.print_record(nh, time, rec, len);
+    }
+    if (recorder != null) {
+      recorder.send(datatypecode, hostcode, time, rec, 0, len);
+    }
+    if (tracefile != null && !tracefile_failed) {
+      try {
+        tracefile.write(hostcode, nh, time, rec, 0, len);
+      } catch (IOException e) {
+        Debug.gerr("couldn't write trace file: " + e);
+        tracefile_failed = true;
+      }
+    }
+    written++;
+  }
+
+  // ----- close ----------------------------------------------------------- //
+  /**
+   * Writes out all records still queued, stops the writer thread, and
+   * reports statistics about the queue.  Producers which call
+   * <code>send</code> in the meantime wait until the queue has been drained,
+   * and then write their records out synchronously, as do any which arrive
+   * later.  Calling it again has no effect, except that a caller in another
+   * thread waits until the first call has finished.
+   */
+  public void close() {
+    synchronized (closelock) {
+      if (closing) {
+        return;
+      }
+      closing = true;
+      LockSupport.unpark(thread);
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        Debug.gwarn("interrupted while waiting for trace writer to finish");
+      }
+      // The writer thread has stopped, so this thread takes over draining,
+      // until no producer which hadn't yet noticed that the writer was
+      // closing is still queueing a record.
+      while (true) {
+        boolean idle = (active.get() == 0);
+        int n = drain_ring();
+        if (n == 0) {
+          n = drain_spill();
+        }
+        if (n == 0) {
+          if (idle) {
+            break;
+          }
+          LockSupport.parkNanos(PARK_NANOS);
+        }
+      }
+      synchronized (this) {
+        closed = true;
+        notifyAll();
+      }
+    }
+
+    long n;
+    synchronized (this) {
+      n = written;
+    }
+    Debug.gmsg("trace writer: " + n + " records written, queue size " +
+               slots.length + ", high-water mark " + highwater.get() +
+               ", policy " + policy_names[policy] + ", " + drops.get() +
+               " dropped, " + waits.get() + " waits");
+    if (drops.get() > 0) {
+      Debug.gwarn(drops.get() + " monitor records were dropped because the " +
+                  "trace writer queue was full (see 'async_queue_size' and " +
+                  "'async_backpressure')");
+    }
+  }
+
+} // end class TraceWriter
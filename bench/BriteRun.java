@@ -0,0 +1,149 @@
+/**
+ * BriteRun.java
+ */
+
+
+package SSF.OS.BGP4.bench;
+
+
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+import SSF.OS.BGP4.*;
+
+
+// ===== class SSF.OS.BGP4.bench.BriteRun ================================== //
+/**
+ * Runs a single simulation and records how it performed.  It takes the same
+ * arguments as <code>SSF.Net.Net</code>, to which it hands them, and when
+ * the JVM exits (whether at the end of the run time or early, because the
+ * BGP speakers became quiescent) it writes the measurements as properties
+ * to the file named by the <code>bench.out</code> system property:
+ * <ul>
+ *   <li><code>wall_ms</code>: wall-clock time from start to exit</li>
+ *   <li><code>events</code>: update messages sent plus update messages
+ *       received</li>
+ *   <li><code>events_per_sec</code>: events per wall-clock second</li>
+ *   <li><code>peak_heap_mb</code>: the largest total heap usage seen, sampled
+ *       every <code>HEAP_SAMPLE_MS</code> milliseconds and at exit</li>
+ *   <li><code>gc_ms</code>: the total time spent in garbage collection</li>
+ *   <li><code>updates_sent</code>: update messages sent</li>
+ *   <li><code>convergence_s</code>: the simulation time of the last change
+ *       in any BGP speaker's stability</li>
+ * </ul>
+ * Update messages are counted by the <code>Metrics</code> counters for
+ * <code>snd_update</code> and <code>rcv_update</code> events, so the
+ * <code>metrics</code> option must be on.  If no update messages were
+ * counted, the run is taken to have failed, and no measurements are
+ * written.
+ * <p>
+ * It is run in a JVM of its own by {@link BriteScaling}, so that the heap
+ * and garbage collection figures belong to one simulation alone.
+ */
+public class BriteRun {
+
+  // ......................... constants ........................... //
+
+  /** The number of milliseconds between samples of the heap usage. */
+  public static final long HEAP_SAMPLE_MS = 50;
+
+
+  // ........................ member data .......................... //
+
+  /** The largest total heap usage sampled so far, in bytes. */
+  private static long peakheap = 0;
+
+
+  // ----- main ------------------------------------------------------------ //
+  /**
+   * Runs the simulation.
+   *
+   * @param args  The arguments for <code>SSF.Net.Net</code>.
+   * @exception Exception  if the simulation fails
+   */
+  public static void main(String[] args) throws Exception {
+    final String outfile = System.getProperty("bench.out");
+    if (outfile == null) {
+      throw new Error("the bench.out property must name an output file");
+    }
+    final long start = System.currentTimeMillis();
+    Thread sampler = new Thread()
+      {
+        public void run() {
+          try {
+            while (true) {
+              sample_heap();
+              Thread.sleep(HEAP_SAMPLE_MS);
+            }
+          } catch (InterruptedException e) {
+            // done
+          }
+        }
+      };
+    sampler.setDaemon(true);
+    sampler.start();
+    Runtime.getRuntime().addShutdownHook(new Thread()
+      {
+        public void run() {
+          write_results(outfile, System.currentTimeMillis() - start);
+        }
+      });
+    SSF.Net.Net.main(args);
+  }
+
+  // ----- sample_heap ----------------------------------------------------- //
+  /**
+   * Samples the total heap usage, and keeps it if it is the largest yet.
+   * Unlike the sum of the peak usages of the heap memory pools, which may
+   * each have peaked at a different time, it is the usage of the heap as a
+   * whole at one moment.
+   */
+  private static synchronized void sample_heap() {
+    long used = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().
+                                                                  getUsed();
+    if (used > peakheap) {
+      peakheap = used;
+    }
+  }
+
+  // ----- write_results --------------------------------------------------- //
+  /**
+   * Writes the measurements to the given file, unless no update messages
+   * were counted, in which case the run has failed and nothing is written.
+   */
+  private static void write_results(String outfile, long wallms) {
+    sample_heap();
+    long sent = Metrics.num_counted(Monitor.SND_UPDATE);
+    long events = sent + Metrics.num_counted(Monitor.RCV_UPDATE);
+    if (events == 0) {
+      System.err.println("no update messages were counted; is the " +
+                         "metrics option on?");
+      return;
+    }
+    long gcms = 0;
+    List gcs = ManagementFactory.getGarbageCollectorMXBeans();
+    for (int i=0; i<gcs.size(); i++) {
+      long t = ((GarbageCollectorMXBean)gcs.get(i)).getCollectionTime();
+      if (t > 0) {
+        gcms += t;
+      }
+    }
+    Properties p = new Properties();
+    p.setProperty("wall_ms", "" + wallms);
+    p.setProperty("events", "" + events);
+    p.setProperty("events_per_sec",
+                  "" + ((wallms == 0) ? 0 : events * 1000 / wallms));
+    p.setProperty("peak_heap_mb", "" + (peakheap >> 20));
+    p.setProperty("gc_ms", "" + gcms);
+    p.setProperty("updates_sent", "" + sent);
+    p.setProperty("convergence_s", "" + Quiescence.last_change());
+    try {
+      FileOutputStream out = new FileOutputStream(outfile);
+      p.store(out, "BriteRun results");
+      out.close();
+    } catch (IOException e) {
+      System.err.println("couldn't write " + outfile + ": " + e);
+    }
+  }
+
+} // end class BriteRun
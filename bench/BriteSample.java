@@ -0,0 +1,178 @@
+/**
+ * BriteSample.java
+ */
+
+
+package SSF.OS.BGP4.bench;
+
+
+import java.io.*;
+import java.util.*;
+
+
+// ===== class SSF.OS.BGP4.bench.BriteSample =============================== //
+/**
+ * A sample of the addresses and AS paths which BGP speakers see in one of the
+ * BRITE topologies in <code>test/brite</code>.  The inter-AS links are read
+ * from the case's <code>isd1.dml</code>, and AS paths are taken to be
+ * shortest paths through the resulting AS graph between randomly chosen
+ * pairs of ASes, which is what the speakers converge to under the
+ * shortest-path policy used by those cases.  NHI addresses follow the
+ * layout of the BRITE cases, with the BGP speaker of AS <i>n</i> at
+ * <code>n:0</code> and its host at <code>n:101</code>.  Each AS is given
+ * its own /24 prefix.
+ * <p>
+ * Everything is derived from a seed, so the same sample is produced on
+ * every run.
+ */
+public class BriteSample {
+
+  // ........................ member data .......................... //
+
+  /** The number of ASes in the topology. */
+  public int numases;
+
+  /** The ASes adjacent to each AS, as lists of Integers. */
+  private ArrayList[] adj;
+
+  /** The sampled AS paths, each from the AS which originated the route (at
+   *  the end) to the AS which received it (at the beginning). */
+  public int[][] paths;
+
+  /** The NHI address of the BGP speaker or host of each sample. */
+  public String[] nhs;
+
+  /** The IP address prefix of the destination AS of each sample, as an
+   *  integer. */
+  public int[] prefixes;
+
+  /** The length of the IP address prefix of each sample. */
+  public int[] prefixlens;
+
+
+  // ----- constructor BriteSample ----------------------------------------- //
+  /**
+   * Reads a BRITE case and draws a sample from it.
+   *
+   * @param dml   The name of the case's <code>isd1.dml</code> file.
+   * @param size  The number of samples to draw.
+   * @param seed  The seed from which the sample is drawn.
+   * @exception IOException  if the file can't be read
+   */
+  public BriteSample(String dml, int size, long seed) throws IOException {
+    read_links(dml);
+
+    Random rand = new Random(seed);
+    paths = new int[size][];
+    nhs = new String[size];
+    prefixes = new int[size];
+    prefixlens = new int[size];
+    for (int i=0; i<size; i++) {
+      int src = rand.nextInt(numases);
+      int dst = rand.nextInt(numases);
+      paths[i] = shortest_path(src, dst);
+      nhs[i] = src + ":" + (rand.nextBoolean() ? "0" : "101");
+      prefixes[i] = (10 << 24) | (dst << 8);
+      prefixlens[i] = 24;
+    }
+  }
+
+  // ----- read_links ------------------------------------------------------ //
+  /**
+   * Reads the inter-AS links from a BRITE case's DML.  Each link is a line
+   * of the form <code>link [ attach 0:0(6)  attach 1:0(6) ... ]</code>, in
+   * which the first component of each NHI address is the AS.
+   */
+  private void read_links(String dml) throws IOException {
+    ArrayList links = new ArrayList();
+    numases = 0;
+    BufferedReader in = new BufferedReader(new FileReader(dml));
+    String line;
+    while ((line = in.readLine()) != null) {
+      line = line.trim();
+      if (!line.startsWith("link")) {
+        continue;
+      }
+      int a1 = line.indexOf("attach ");
+      int a2 = line.indexOf("attach ", a1 + 1);
+      if (a1 < 0 || a2 < 0) {
+        continue;
+      }
+      int as1 = as_of(line, a1 + 7);
+      int as2 = as_of(line, a2 + 7);
+      if (as1 < 0 || as2 < 0) {
+        continue; // an intra-AS link
+      }
+      links.add(new int[] { as1, as2 });
+      numases = Math.max(numases, Math.max(as1, as2) + 1);
+    }
+    in.close();
+    if (numases == 0) {
+      throw new IOException(dml + ": no inter-AS links found");
+    }
+
+    adj = new ArrayList[numases];
+    for (int i=0; i<numases; i++) {
+      adj[i] = new ArrayList();
+    }
+    for (int i=0; i<links.size(); i++) {
+      int[] l = (int[])links.get(i);
+      adj[l[0]].add(new Integer(l[1]));
+      adj[l[1]].add(new Integer(l[0]));
+    }
+  }
+
+  // ----- as_of ----------------------------------------------------------- //
+  /**
+   * Returns the AS of the NHI address beginning at the given index, or -1 if
+   * the address has no AS component.
+   */
+  private static int as_of(String line, int start) {
+    int colon = line.indexOf(':', start);
+    int space = line.indexOf(' ', start);
+    if (colon < 0 || (space >= 0 && space < colon)) {
+      return -1;
+    }
+    return Integer.parseInt(line.substring(start, colon));
+  }
+
+  // ----- shortest_path --------------------------------------------------- //
+  /**
+   * Returns a shortest AS path from one AS to another, found by a
+   * breadth-first search, beginning with the first AS and ending with the
+   * second.
+   */
+  private int[] shortest_path(int src, int dst) {
+    int[] prev = new int[numases];
+    Arrays.fill(prev, -1);
+    prev[src] = src;
+    int[] queue = new int[numases];
+    int head = 0, tail = 0;
+    queue[tail++] = src;
+    while (head < tail && prev[dst] < 0) {
+      int a = queue[head++];
+      for (int i=0; i<adj[a].size(); i++) {
+        int b = ((Integer)adj[a].get(i)).intValue();
+        if (prev[b] < 0) {
+          prev[b] = a;
+          queue[tail++] = b;
+        }
+      }
+    }
+    if (prev[dst] < 0) {
+      return new int[] { src }; // unreachable
+    }
+    int len = 1;
+    for (int a=dst; a!=src; a=prev[a]) {
+      len++;
+    }
+    int[] path = new int[len];
+    int i = len - 1;
+    for (int a=dst; a!=src; a=prev[a]) {
+      path[i--] = a;
+    }
+    path[0] = src;
+    return path;
+  }
+
+} // end class BriteSample
@@ -0,0 +1,452 @@
+/**
+ * BriteScaling.java
+ */
+
+
+package SSF.OS.BGP4.bench;
+
+
+import java.io.*;
+import java.util.*;
+
+
+// ===== class SSF.OS.BGP4.bench.BriteScaling ============================== //
+/**
+ * Measures how the simulator scales across the BRITE topologies in
+ * <code>test/brite</code>.  Each case is run once per seed, each run in a
+ * JVM of its own (see {@link BriteRun}).  For each run, a copy of the case's
+ * <code>isd1.dml</code> is made in which the random stream is named after
+ * the seed, the <code>show_*</code> options are removed (so that the time
+ * spent printing doesn't swamp the time spent simulating), and
+ * <code>autoexit</code> is turned on (so that the run ends when the BGP
+ * speakers converge), as is <code>metrics</code> (so that update messages
+ * are counted).  The run time is taken from the case's Makefile.
+ * <p>
+ * The results are written as comma-separated values, one line per run.  If
+ * a baseline (a results file from an earlier run of the suite) is given,
+ * each case's mean results are compared with it, and the suite fails if
+ * any of them has regressed by more than the tolerance, or if any of those
+ * which should be reproducible (the numbers of events and updates and the
+ * convergence time) has changed at all.  Usage:
+ * <pre>
+ *   java SSF.OS.BGP4.bench.BriteScaling [-dir dir] [-cases c1,c2,...]
+ *        [-seeds s1,s2,...] [-schemas file] [-jvmargs args] [-out file]
+ *        [-baseline file] [-tolerance fraction]
+ * </pre>
+ */
+public class BriteScaling {
+
+  // ......................... constants ........................... //
+
+  /** The names of the measurements, as written by <code>BriteRun</code>. */
+  public static final String[] metrics = {
+    "wall_ms", "events", "events_per_sec", "peak_heap_mb", "gc_ms",
+    "updates_sent", "convergence_s"
+  };
+
+  /** Indicates a measurement for which smaller is better. */
+  public static final int LOWER  = 0;
+
+  /** Indicates a measurement for which larger is better. */
+  public static final int HIGHER = 1;
+
+  /** Indicates a measurement which should be the same on every run with
+   *  the same seed. */
+  public static final int EXACT  = 2;
+
+  /** How each measurement is compared with the baseline. */
+  public static final int[] kinds = {
+    LOWER, EXACT, HIGHER, LOWER, LOWER, EXACT, EXACT
+  };
+
+  /** Differences in times measured in milliseconds which are smaller than
+   *  this are never counted as regressions, since they are mostly noise. */
+  public static final double MIN_MS = 100.0;
+
+  /** The run time used for cases whose Makefiles don't give one. */
+  public static final String DEFAULT_RUNTIME = "530";
+
+
+  // ........................ member data .......................... //
+
+  /** The directory holding the BRITE cases. */
+  private static String britedir = "../test/brite";
+
+  /** The cases to run. */
+  private static String[] cases = {
+    "Case10", "Case30", "Case50", "Case100", "Case250", "Case500"
+  };
+
+  /** The seeds with which to run each case. */
+  private static String[] seeds = { "1", "2", "3" };
+
+  /** The DML schema file. */
+  private static String schemas = "../../../../../examples/net.dml";
+
+  /** Extra arguments for each run's JVM, separated by spaces. */
+  private static String jvmargs = "";
+
+  /** The file to which results are written. */
+  private static String outfile = "brite-results.csv";
+
+  /** The results file to compare with, or null if there is none. */
+  private static String baseline = null;
+
+  /** The fraction by which a measurement may be worse than the baseline
+   *  before it is counted as a regression. */
+  private static double tolerance = 0.10;
+
+
+  // ----- main ------------------------------------------------------------ //
+  /**
+   * Runs the suite.  The JVM exits with status 1 if any regression was
+   * found, and 2 if the suite couldn't be run.
+   *
+   * @param args  The command line arguments.
+   */
+  public static void main(String[] args) {
+    try {
+      parse_args(args);
+      ArrayList rows = new ArrayList();
+      for (int c=0; c<cases.length; c++) {
+        for (int s=0; s<seeds.length; s++) {
+          System.out.println("running " + cases[c] + " with seed " +
+                             seeds[s] + " ...");
+          rows.add(run(cases[c], seeds[s]));
+        }
+      }
+      write_results(rows);
+      System.out.println("results written to " + outfile);
+
+      if (baseline != null) {
+        if (!new File(baseline).exists()) {
+          System.out.println("no baseline at " + baseline +
+                             "; nothing to compare with");
+        } else if (compare(means(rows), means(read_results(baseline))) > 0) {
+          System.exit(1);
+        }
+      }
+    } catch (IOException e) {
+      System.err.println("BriteScaling: " + e.getMessage());
+      System.exit(2);
+    }
+  }
+
+  // ----- parse_args ------------------------------------------------------ //
+  /**
+   * Parses the command line arguments.
+   */
+  private static void parse_args(String[] args) throws IOException {
+    for (int i=0; i<args.length; i+=2) {
+      if (i+1 == args.length) {
+        throw new IOException("missing value for " + args[i]);
+      }
+      String opt = args[i], val = args[i+1];
+      if (opt.equals("-dir")) {
+        britedir = val;
+      } else if (opt.equals("-cases")) {
+        cases = split(val);
+      } else if (opt.equals("-seeds")) {
+        seeds = split(val);
+      } else if (opt.equals("-schemas")) {
+        schemas = val;
+      } else if (opt.equals("-jvmargs")) {
+        jvmargs = val;
+      } else if (opt.equals("-out")) {
+        outfile = val;
+      } else if (opt.equals("-baseline")) {
+        baseline = val;
+      } else if (opt.equals("-tolerance")) {
+        tolerance = Double.parseDouble(val);
+      } else {
+        throw new IOException("unknown option: " + opt);
+      }
+    }
+  }
+
+  // ----- split ----------------------------------------------------------- //
+  /**
+   * Splits a list separated by commas or spaces.
+   */
+  private static String[] split(String list) {
+    StringTokenizer st = new StringTokenizer(list, ", ");
+    String[] items = new String[st.countTokens()];
+    for (int i=0; i<items.length; i++) {
+      items[i] = st.nextToken();
+    }
+    return items;
+  }
+
+  // ----- run ------------------------------------------------------------- //
+  /**
+   * Runs one case with one seed, and returns the results as a row of the
+   * results table.
+   */
+  private static String[] run(String casename, String seed)
+    throws IOException {
+
+    File dir = new File(britedir, casename);
+    File dml = new File(dir, "bench-isd1.dml");
+    File results = new File(dir, "bench-results.properties");
+    File rawout = new File(dir, "bench-raw.out");
+    prepare_dml(new File(dir, "isd1.dml"), dml, seed);
+    results.delete();
+
+    File dictionary = new File(dir, "dictionary.dml");
+    if (!dictionary.exists()) {
+      dictionary = new File(britedir, "dictionary.dml");
+    }
+
+    ArrayList cmd = new ArrayList();
+    cmd.add(System.getProperty("java.home") + File.separator + "bin" +
+            File.separator + "java");
+    cmd.addAll(Arrays.asList(split(jvmargs)));
+    cmd.add("-classpath");
+    cmd.add(absolute_classpath());
+    cmd.add("-Dbench.out=" + results.getAbsolutePath());
+    cmd.add("SSF.OS.BGP4.bench.BriteRun");
+    cmd.add(runtime(dir));
+    cmd.add(dml.getName());
+    cmd.add("isd1_networks.dml");
+    cmd.add(dictionary.getAbsolutePath());
+    cmd.add(new File(schemas).getAbsolutePath());
+
+    ProcessBuilder pb = new ProcessBuilder(cmd);
+    pb.directory(dir);
+    pb.redirectErrorStream(true);
+    pb.redirectOutput(rawout);
+    int status;
+    try {
+      status = pb.start().waitFor();
+    } catch (InterruptedException e) {
+      throw new IOException("interrupted while running " + casename);
+    }
+    if (status != 0 || !results.exists()) {
+      throw new IOException(casename + " with seed " + seed + " failed " +
+                            "(status " + status + "); see " + rawout);
+    }
+
+    Properties p = new Properties();
+    FileInputStream in = new FileInputStream(results);
+    p.load(in);
+    in.close();
+    dml.delete();
+    results.delete();
+
+    String[] row = new String[2 + metrics.length];
+    row[0] = casename;
+    row[1] = seed;
+    for (int m=0; m<metrics.length; m++) {
+      row[2+m] = p.getProperty(metrics[m], "0");
+    }
+    return row;
+  }
+
+  // ----- prepare_dml ----------------------------------------------------- //
+  /**
+   * Copies a case's DML, naming the random stream after the seed, removing
+   * the <code>show_*</code> options, and turning on
+   * <code>autoexit</code> and <code>metrics</code>.
+   */
+  private static void prepare_dml(File from, File to, String seed)
+    throws IOException {
+
+    BufferedReader in = new BufferedReader(new FileReader(from));
+    PrintWriter out = new PrintWriter(new FileWriter(to));
+    String line;
+    while ((line = in.readLine()) != null) {
+      String t = line.trim();
+      if (t.startsWith("show_")) {
+        continue;
+      }
+      if (t.startsWith("stream ")) {
+        line = line.substring(0, line.indexOf("stream ")) +
+               "stream \"bench" + seed + "\"";
+      }
+      out.println(line);
+      if (t.startsWith("bgpoptions")) {
+        out.println("\t\tautoexit true");
+        out.println("\t\tmetrics true");
+      }
+    }
+    in.close();
+    out.close();
+  }
+
+  // ----- runtime --------------------------------------------------------- //
+  /**
+   * Returns the run time given in a case's Makefile, or in the Makefile of
+   * the directory holding the cases if the case has none.
+   */
+  private static String runtime(File dir) throws IOException {
+    File mk = new File(dir, "Makefile");
+    if (!mk.exists()) {
+      mk = new File(britedir, "Makefile");
+    }
+    if (!mk.exists()) {
+      return DEFAULT_RUNTIME;
+    }
+    BufferedReader in = new BufferedReader(new FileReader(mk));
+    String line, runtime = DEFAULT_RUNTIME;
+    while ((line = in.readLine()) != null) {
+      line = line.trim();
+      if (line.startsWith("RUNTIME") && line.indexOf('=') > 0) {
+        runtime = line.substring(line.indexOf('=') + 1).trim();
+      }
+    }
+    in.close();
+    return runtime;
+  }
+
+  // ----- absolute_classpath ---------------------------------------------- //
+  /**
+   * Returns this JVM's class path with every entry made absolute, since
+   * each run's JVM is started in its case's directory.
+   */
+  private static String absolute_classpath() {
+    StringTokenizer st = new StringTokenizer(
+                System.getProperty("java.class.path"), File.pathSeparator);
+    StringBuffer cp = new StringBuffer();
+    while (st.hasMoreTokens()) {
+      if (cp.length() > 0) {
+        cp.append(File.pathSeparator);
+      }
+      cp.append(new File(st.nextToken()).getAbsolutePath());
+    }
+    return cp.toString();
+  }
+
+  // ----- write_results --------------------------------------------------- //
+  /**
+   * Writes the results table, with a header line naming the columns.
+   */
+  private static void write_results(ArrayList rows) throws IOException {
+    PrintWriter out = new PrintWriter(new FileWriter(outfile));
+    StringBuffer header = new StringBuffer("case,seed");
+    for (int m=0; m<metrics.length; m++) {
+      header.append("," + metrics[m]);
+    }
+    out.println(header);
+    for (int i=0; i<rows.size(); i++) {
+      String[] row = (String[])rows.get(i);
+      StringBuffer sb = new StringBuffer(row[0]);
+      for (int j=1; j<row.length; j++) {
+        sb.append("," + row[j]);
+      }
+      out.println(sb);
+    }
+    out.close();
+  }
+
+  // ----- read_results ---------------------------------------------------- //
+  /**
+   * Reads a results table written by an earlier run of the suite.  Columns
+   * are matched by the names in the header, so measurements added since the
+   * table was written read as zero.
+   */
+  private static ArrayList read_results(String file) throws IOException {
+    BufferedReader in = new BufferedReader(new FileReader(file));
+    String line = in.readLine();
+    if (line == null) {
+      in.close();
+      throw new IOException(file + " is empty");
+    }
+    List header = Arrays.asList(line.split(","));
+    ArrayList rows = new ArrayList();
+    while ((line = in.readLine()) != null) {
+      if (line.trim().length() == 0) {
+        continue;
+      }
+      String[] cols = line.split(",");
+      String[] row = new String[2 + metrics.length];
+      row[0] = cols[0];
+      row[1] = cols[1];
+      for (int m=0; m<metrics.length; m++) {
+        int col = header.indexOf(metrics[m]);
+        row[2+m] = (col >= 0 && col < cols.length) ? cols[col] : "0";
+      }
+      rows.add(row);
+    }
+    in.close();
+    return rows;
+  }
+
+  // ----- means ----------------------------------------------------------- //
+  /**
+   * Returns the mean of each measurement over all of the runs of each case,
+   * as arrays of doubles keyed by case name, in the order in which the cases
+   * first appear.
+   */
+  private static LinkedHashMap means(ArrayList rows) {
+    LinkedHashMap sums = new LinkedHashMap();
+    HashMap counts = new HashMap();
+    for (int i=0; i<rows.size(); i++) {
+      String[] row = (String[])rows.get(i);
+      double[] sum = (double[])sums.get(row[0]);
+      if (sum == null) {
+        sum = new double[metrics.length];
+        sums.put(row[0], sum);
+        counts.put(row[0], new int[1]);
+      }
+      for (int m=0; m<metrics.length; m++) {
+        sum[m] += Double.parseDouble(row[2+m]);
+      }
+      ((int[])counts.get(row[0]))[0]++;
+    }
+    for (Iterator it=sums.keySet().iterator(); it.hasNext();) {
+      Object casename = it.next();
+      double[] sum = (double[])sums.get(casename);
+      int n = ((int[])counts.get(casename))[0];
+      for (int m=0; m<metrics.length; m++) {
+        sum[m] /= n;
+      }
+    }
+    return sums;
+  }
+
+  // ----- compare --------------------------------------------------------- //
+  /**
+   * Prints a comparison of each case's mean results with the baseline's, and
+   * returns the number of regressions found.
+   */
+  private static int compare(LinkedHashMap cur, LinkedHashMap base) {
+    int regressions = 0;
+    System.out.println("comparison with " + baseline + " (tolerance " +
+                       (int)(tolerance*100) + "%):");
+    for (Iterator it=cur.keySet().iterator(); it.hasNext();) {
+      String casename = (String)it.next();
+      double[] c = (double[])cur.get(casename);
+      double[] b = (double[])base.get(casename);
+      if (b == null) {
+        System.out.println("  " + casename + ": not in baseline");
+        continue;
+      }
+      for (int m=0; m<metrics.length; m++) {
+        String verdict = "ok";
+        if (kinds[m] == EXACT) {
+          if (c[m] != b[m]) {
+            verdict = "CHANGED";
+          }
+        } else {
+          double worse = (kinds[m] == LOWER) ? c[m] - b[m] : b[m] - c[m];
+          boolean ms = metrics[m].endsWith("_ms");
+          if (worse > tolerance * b[m] && (!ms || worse >= MIN_MS)) {
+            verdict = "REGRESSED";
+          }
+        }
+        if (!verdict.equals("ok")) {
+          regressions++;
+        }
+        String pct = (b[m] == 0.0) ? "" :
+          " (" + ((c[m] >= b[m]) ? "+" : "") +
+          Math.round(100.0 * (c[m] - b[m]) / b[m]) + "%)";
+        System.out.println("  " + casename + " " + metrics[m] + ": " + c[m] +
+                           " vs " + b[m] + pct + " " + verdict);
+      }
+    }
+    System.out.println((regressions == 0) ? "no regressions" :
+                       regressions + " regressions");
+    return regressions;
+  }
+
+} // end class BriteScaling
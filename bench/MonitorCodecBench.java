@@ -0,0 +1,237 @@
+/**
+ * MonitorCodecBench.java
+ */
+
+
+package SSF.OS.BGP4.bench;
+
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import SSF.OS.BGP4.*;
+import SSF.OS.BGP4.Comm.*;
+import SSF.OS.BGP4.Path.*;
+import SSF.OS.BGP4.Util.*;
+
+
+// ===== class SSF.OS.BGP4.bench.MonitorCodecBench ========================= //
+/**
+ * JMH benchmarks of the encoding and decoding helpers in
+ * <code>Monitor</code> which are used for every traced event.  Each helper is
+ * measured in both directions, under each of the three ways in which AS
+ * paths can be stored (flat arrays, linked routes, and segmented
+ * <code>ASpath</code> attributes), and with AS paths in NHI and in
+ * traditional form.  The addresses and AS paths are drawn from one of the
+ * BRITE topologies in <code>test/brite</code> (see {@link BriteSample}).
+ * Allocation rates are reported when the benchmarks are run with JMH's
+ * <code>gc</code> profiler, as <code>make run</code> in this directory
+ * does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class MonitorCodecBench {
+
+  // ......................... constants ........................... //
+
+  /** The number of samples cycled through by each benchmark. */
+  public static final int NUM_SAMPLES = 1024;
+
+
+  // ........................ parameters .......................... //
+
+  /** How AS paths are stored: <code>flat</code>, <code>linked</code>, or
+   *  <code>segmented</code>. */
+  @Param({ "flat", "linked", "segmented" })
+  public String aspaths;
+
+  /** Whether or not NHI addressing is used in AS paths.  Prefixes are
+   *  always encoded as IP addresses, since finding their NHI equivalents
+   *  requires a network to have been configured. */
+  @Param({ "true", "false" })
+  public boolean usenhi;
+
+  /** The BRITE case from which the samples are drawn. */
+  @Param({ "Case50", "Case500" })
+  public String brite;
+
+  /** The directory holding the BRITE cases. */
+  @Param({ "../test/brite" })
+  public String britedir;
+
+
+  // ........................ member data .......................... //
+
+  /** The NHI addresses. */
+  private String[] nhs;
+
+  /** The IP address prefixes. */
+  private IPaddress[] prefixes;
+
+  /** The routes, each with an AS path stored as <code>aspaths</code>
+   *  says. */
+  private Route[] routes;
+
+  /** The cluster lists. */
+  private ClusterList[] cls;
+
+  /** The update messages, each advertising one route and withdrawing one
+   *  prefix. */
+  private UpdateMessage[] updates;
+
+  /** The encoding of each sample, for each helper, for the decoding
+   *  benchmarks. */
+  private byte[][] enc_nh, enc_prefix, enc_aspath, enc_cl, enc_update;
+
+  /** The buffer into which samples are encoded. */
+  private byte[] buf = new byte[4096];
+
+  /** The buffer into which samples are decoded. */
+  private StringBuffer sb = new StringBuffer(256);
+
+  /** The index of the next sample. */
+  private int next = 0;
+
+
+  // ----- setup ----------------------------------------------------------- //
+  /**
+   * Draws the samples and encodes them.
+   *
+   * @exception Exception  if the BRITE case can't be read
+   */
+  @Setup
+  public void setup() throws Exception {
+    Global.flat_aspaths   = aspaths.equals("flat");
+    Global.linked_aspaths = aspaths.equals("linked");
+
+    BriteSample s = new BriteSample(britedir + "/" + brite + "/isd1.dml",
+                                    NUM_SAMPLES, 17L);
+    nhs = s.nhs;
+    prefixes = new IPaddress[NUM_SAMPLES];
+    routes = new Route[NUM_SAMPLES];
+    cls = new ClusterList[NUM_SAMPLES];
+    updates = new UpdateMessage[NUM_SAMPLES];
+    for (int i=0; i<NUM_SAMPLES; i++) {
+      prefixes[i] = new IPaddress(s.prefixes[i], s.prefixlens[i]);
+
+      Route rte = new Route();
+      rte.set_nlri(prefixes[i]);
+      if (!Global.basic_attribs) {
+        rte.set_origin(Origin.IGP);
+      }
+      // the receiving AS (at the beginning of the path) isn't in the path
+      int[] path = s.paths[i];
+      for (int j=path.length-1; j>=Math.min(1, path.length-1); j--) {
+        rte.prepend_as("" + path[j]);
+      }
+      for (int j=0; j<path.length; j++) {
+        rte.append_cluster((long)path[j]);
+      }
+      routes[i] = rte;
+      cls[i] = rte.cluster_list();
+
+      updates[i] = new UpdateMessage(nhs[i], rte);
+      updates[i].add_wd(prefixes[(i + 1) % NUM_SAMPLES]);
+    }
+
+    enc_nh = new byte[NUM_SAMPLES][];
+    enc_prefix = new byte[NUM_SAMPLES][];
+    enc_aspath = new byte[NUM_SAMPLES][];
+    enc_cl = new byte[NUM_SAMPLES][];
+    enc_update = new byte[NUM_SAMPLES][];
+    for (int i=0; i<NUM_SAMPLES; i++) {
+      enc_nh[i] = copy(Monitor.nh2bytes(nhs[i], buf, 0));
+      enc_prefix[i] = copy(Monitor.ipprefix2bytes(prefixes[i], buf, 0,
+                                                  false));
+      enc_aspath[i] = copy(Monitor.aspath2bytes(routes[i], buf, 0, usenhi));
+      enc_cl[i] = copy(Monitor.cl2bytes(cls[i], buf, 0));
+      enc_update[i] = copy(Monitor.update2bytes(updates[i], buf, 0, false));
+    }
+  }
+
+  // ----- copy ------------------------------------------------------------ //
+  /**
+   * Returns a copy of the first bytes of the encoding buffer.
+   */
+  private byte[] copy(int len) {
+    byte[] b = new byte[len];
+    System.arraycopy(buf, 0, b, 0, len);
+    return b;
+  }
+
+  // ----- sample ---------------------------------------------------------- //
+  /**
+   * Returns the index of the next sample.
+   */
+  private int sample() {
+    next = (next + 1) & (NUM_SAMPLES - 1);
+    return next;
+  }
+
+  // ----- benchmarks ------------------------------------------------------ //
+
+  @Benchmark
+  public int encode_nh() {
+    return Monitor.nh2bytes(nhs[sample()], buf, 0);
+  }
+
+  @Benchmark
+  public void decode_nh(Blackhole bh) {
+    sb.setLength(0);
+    bh.consume(Monitor.bytes2nh(sb, enc_nh[sample()], 0));
+    bh.consume(sb);
+  }
+
+  @Benchmark
+  public int encode_ipprefix() {
+    return Monitor.ipprefix2bytes(prefixes[sample()], buf, 0, false);
+  }
+
+  @Benchmark
+  public void decode_ipprefix(Blackhole bh) {
+    sb.setLength(0);
+    bh.consume(Monitor.bytes2ipprefix(sb, enc_prefix[sample()], 0, false));
+    bh.consume(sb);
+  }
+
+  @Benchmark
+  public int encode_aspath() {
+    return Monitor.aspath2bytes(routes[sample()], buf, 0, usenhi);
+  }
+
+  @Benchmark
+  public void decode_aspath(Blackhole bh) {
+    sb.setLength(0);
+    bh.consume(Monitor.bytes2aspath(sb, enc_aspath[sample()], 0, usenhi));
+    bh.consume(sb);
+  }
+
+  @Benchmark
+  public int encode_cl() {
+    return Monitor.cl2bytes(cls[sample()], buf, 0);
+  }
+
+  @Benchmark
+  public void decode_cl(Blackhole bh) {
+    sb.setLength(0);
+    bh.consume(Monitor.bytes2cl(sb, enc_cl[sample()], 0));
+    bh.consume(sb);
+  }
+
+  @Benchmark
+  public int encode_update() {
+    return Monitor.update2bytes(updates[sample()], buf, 0, false);
+  }
+
+  @Benchmark
+  public void decode_update(Blackhole bh) {
+    sb.setLength(0);
+    bh.consume(Monitor.bytes2update(sb, enc_update[sample()], 0, false));
+    bh.consume(sb);
+  }
+
+} // end class MonitorCodecBench
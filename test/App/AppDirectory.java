@@ -0,0 +1,231 @@
+/**
+ * AppDirectory.java
+ */
+
+
+package SSF.OS.BGP4.test.App;
+
+
+import java.util.*;
+import com.renesys.raceway.DML.*;
+import SSF.Net.*;
+import SSF.OS.BGP4.*;
+import SSF.OS.BGP4.Util.*;
+
+
+// ===== class SSF.OS.BGP4.test.AppDirectory =============================== //
+/**
+ * A directory of all of the hosts in the network which are running an
+ * <code>AppSession</code>, along with their IP addresses.  It is built the
+ * first time it is asked for, by parsing the whole DML configuration once,
+ * and is then shared by every <code>AppSession</code> in the JVM (that is,
+ * on the machine, in a distributed simulation).  Before, each sending
+ * <code>AppSession</code> parsed the whole configuration for itself, which
+ * took time proportional to the square of the number of hosts.
+ */
+public class AppDirectory {
+
+  // ........................ member data .......................... //
+
+  /** The directory shared by all AppSessions in this JVM. */
+  private static AppDirectory directory = null;
+
+  /** The NHI address of each host in the directory. */
+  private String[] nhs;
+
+  /** The IP address of each host in the directory, in the same order as the
+   *  NHI addresses. */
+  private int[] ips;
+
+  /** The index of each host in the directory, keyed by its NHI address. */
+  private HashMap index = new HashMap();
+
+  /** The host used to translate NHI addresses into IP addresses while the
+   *  directory is being built. */
+  private Host host;
+
+  /** The NHI addresses found so far while the directory is being built. */
+  private ArrayList found_nhs = new ArrayList();
+
+  /** The IP addresses found so far while the directory is being built, as
+   *  Integers. */
+  private ArrayList found_ips = new ArrayList();
+
+
+  // ----- constructor AppDirectory ---------------------------------------- //
+  /**
+   * Builds a directory by parsing the top-level DML configuration of the
+   * network which the given host is in.
+   *
+   * @param h  A host in the network.
+   */
+  private AppDirectory(Host h) {
+    host = h;
+    searchTop(h.getNet().cidrMap.networkConfiguration());
+
+    nhs = new String[found_nhs.size()];
+    ips = new int[found_nhs.size()];
+    for (int i=0; i<nhs.length; i++) {
+      nhs[i] = (String)found_nhs.get(i);
+      ips[i] = ((Integer)found_ips.get(i)).intValue();
+      index.put(nhs[i], new Integer(i));
+    }
+    found_nhs = null;
+    found_ips = null;
+    host = null;
+  }
+
+  // ----- AppDirectory.get ------------------------------------------------ //
+  /**
+   * Returns the directory shared by all AppSessions in this JVM, building it
+   * if necessary.
+   *
+   * @param h  The host of the AppSession asking for the directory.
+   * @return the shared directory
+   */
+  public static synchronized AppDirectory get(Host h) {
+    if (directory == null) {
+      directory = new AppDirectory(h);
+    }
+    return directory;
+  }
+
+  // ----- AppDirectory.size ----------------------------------------------- //
+  /**
+   * Returns the number of hosts in the directory.
+   *
+   * @return the number of hosts in the directory
+   */
+  public final int size() {
+    return nhs.length;
+  }
+
+  // ----- AppDirectory.nh ------------------------------------------------- //
+  /**
+   * Returns the NHI address of the host with the given index.
+   *
+   * @param i  The index of a host in the directory.
+   * @return the NHI address of the host
+   */
+  public final String nh(int i) {
+    return nhs[i];
+  }
+
+  // ----- AppDirectory.ip ------------------------------------------------- //
+  /**
+   * Returns the IP address of the host with the given index.
+   *
+   * @param i  The index of a host in the directory.
+   * @return the IP address of the host, as an integer
+   */
+  public final int ip(int i) {
+    return ips[i];
+  }
+
+  // ----- AppDirectory.index_of ------------------------------------------- //
+  /**
+   * Returns the index of the host with the given NHI address.
+   *
+   * @param nh  The NHI address of a host.
+   * @return the index of the host, or -1 if it is not in the directory
+   */
+  public final int index_of(String nh) {
+    Integer i = (Integer)index.get(nh);
+    return (i == null) ? -1 : i.intValue();
+  }
+
+  // ----- AppDirectory.searchTop ------------------------------------------ //
+  /**
+   * Searches the top-level DML configuration for Nets and hosts, eventually
+   * finding hosts running AppSessions and adding their addresses to the
+   * directory.
+   */
+  private void searchTop(Configuration topnetcfg){
+    try {
+      String curr_nh = "";
+      Configuration ncfg,hcfg;
+
+      // Process all the Nets.
+      for (Enumeration e=topnetcfg.find("Net"); e.hasMoreElements();) {
+        ncfg = (Configuration)e.nextElement();
+        searchNet(ncfg,curr_nh);
+      }
+
+      for (Enumeration e=topnetcfg.find("host"); e.hasMoreElements();) {
+        hcfg = (Configuration)e.nextElement();
+        searchHost(hcfg,curr_nh);
+      }
+    } catch (configException ce) {
+      Debug.gerr("problem building AppDirectory in searchTop(): " + ce);
+    }
+  }
+
+  // ----- AppDirectory.searchNet ------------------------------------------ //
+  /**
+   * Searches a Net, eventually finding hosts running AppSessions and adding
+   * their addresses to the directory.
+   */
+  private void searchNet(Configuration netcfg, String parent_nh){
+    Configuration ncfg,hcfg;
+    idrange netids;
+    try{
+      netids = new idrange();
+      netids.config(netcfg);
+
+      for (Enumeration e=netcfg.find("Net"); e.hasMoreElements();) {
+        ncfg = (Configuration)e.nextElement();
+        for (int netid=netids.minid; netid<=netids.maxid; netid++) {
+          searchNet(ncfg,(("".equals(parent_nh))?(""+netid):
+                          (parent_nh+cidrBlock.NHI_SEPARATOR+netid)));
+        }
+      }
+
+      for (Enumeration e=netcfg.find("host"); e.hasMoreElements();) {
+        hcfg = (Configuration)e.nextElement();
+        for (int netid=netids.minid; netid<=netids.maxid; netid++) {
+          searchHost(hcfg,(("".equals(parent_nh))?(""+netid):
+                           (parent_nh+cidrBlock.NHI_SEPARATOR+netid)));
+        }
+      }
+    } catch (configException ce) {
+      Debug.gerr("problem building AppDirectory in searchNet(): " + ce);
+    }
+  }
+
+  // ----- AppDirectory.searchHost ----------------------------------------- //
+  /**
+   * Searches a host, checking to see if it's running an AppSession, and if so,
+   * adding its address to the directory.
+   */
+  private void searchHost(Configuration hcfg, String parent_nh) {
+    String host_nh;
+    idrange hostids;
+    Configuration gcfg,scfg;
+    boolean hasapp = false;
+    try {
+      gcfg = (Configuration)hcfg.findSingle("graph");
+
+      for (Enumeration e=gcfg.find("ProtocolSession");
+                                             e.hasMoreElements() && !hasapp;) {
+        scfg = (Configuration)e.nextElement();
+        if (((String)scfg.findSingle("name")).equals("test")) {
+          hasapp = true;
+        }
+      }
+      if (hasapp) { // there is an AppSession running at the host
+        hostids = new idrange();
+        hostids.config(hcfg);
+        for (int hostid=hostids.minid; hostid<=hostids.maxid; hostid++) {
+          host_nh = cidrBlock.nhi_concat(parent_nh,hostid);
+          IPaddress ipa = new IPaddress(host.global_nhi_to_ip(host_nh +
+                                                              "(1)"));
+          found_nhs.add(host_nh);
+          found_ips.add(new Integer(ipa.intval()));
+        }
+      }
+    } catch (configException ce) {
+      Debug.gerr("problem building AppDirectory in searchHost(): " + ce);
+    }
+  }
+
+} // end of class AppDirectory
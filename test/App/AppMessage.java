@@ -25,6 +25,17 @@ public class AppMessage extends ProtocolMessage {
   /** The NHI prefix of this message's destination host. */
   public String dstnh;
 
+  /** The index in the <code>AppDirectory</code> of the host where this
+   *  message originated, or -1 if it is not known. */
+  public int srcidx = -1;
+
+  /** The index in the <code>AppDirectory</code> of this message's
+   *  destination host, or -1 if it is not known. */
+  public int dstidx = -1;
+
+  /** The simulation time, in seconds, at which this message was sent. */
+  public double sendtime;
+
   // ----- constructor AppMessage ------------------------------------------ //
   /**
    * Constructor for an AppMessage.
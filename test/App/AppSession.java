@@ -63,6 +63,60 @@ public class AppSession extends ProtocolSession {
    *  applies if this is a sender. */
   private boolean send2all = false;
 
+  /** The directory of all hosts with AppSessions, shared by all AppSessions
+   *  in the JVM.  Only used if this is a sender sending to all of them. */
+  private AppDirectory directory;
+
+  /** The index of this host in the directory, so that it can be skipped
+   *  when sending. */
+  private int self_index = -1;
+
+  /** The traffic matrix used to choose destinations, or -1 if packets are
+   *  instead sent to every destination at a fixed frequency.
+   *  @see TrafficGenerator */
+  private int matrix = -1;
+
+  /** The total number of packets per second sent when a traffic matrix is
+   *  in use. */
+  private double rate = 1.0;
+
+  /** The inter-arrival time distribution used with a traffic matrix. */
+  private int arrivals = TrafficGenerator.POISSON;
+
+  /** The shape parameter of Pareto inter-arrival times. */
+  private double pareto_shape = 1.5;
+
+  /** The fraction of hosts which are hot spots in a hotspot traffic
+   *  matrix. */
+  private double hotspot_fraction = 0.1;
+
+  /** How many times more traffic a hot spot receives than other hosts. */
+  private double hotspot_weight = 10.0;
+
+  /** The seed from which the traffic matrix and inter-arrival times are
+   *  derived.  All hosts must use the same seed for gravity and hotspot
+   *  traffic matrices to be consistent. */
+  private long seed = 0L;
+
+  /** Decides when to send packets and to whom when a traffic matrix is in
+   *  use.  It is null otherwise. */
+  private TrafficGenerator generator;
+
+  /** Whether or not flows are tracked through the forwarding tables instead
+   *  of packets being sent.
+   *  @see FlowTracker */
+  private boolean flows = false;
+
+  /** The tracker of flows, shared by all AppSessions in the JVM, or null if
+   *  flows aren't being tracked. */
+  private FlowTracker tracker;
+
+  /** The account of messages sent and delivered during the BRITE
+   *  validation test, shared by all AppSessions in the JVM.  It is null
+   *  unless that test is being run.
+   *  @see DeliveryMatrix */
+  private DeliveryMatrix deliveries;
+
   /** A pointer to this instance of AppSession, for use within the
    *  process in the init method. */
   private AppSession appsess;
@@ -129,6 +183,57 @@ public class AppSession extends ProtocolSession {
       }
     }
 
+    // get the traffic matrix, if destinations are to be chosen by one
+    str = (String)cfg.findSingle("traffic_matrix");
+    if (str != null) {
+      matrix = TrafficGenerator.matrix_type(str);
+    }
+
+    str = (String)cfg.findSingle("rate");
+    if (str != null) {
+      rate = Double.parseDouble(str);
+      if (!(rate > 0.0)) {
+        Debug.gerr("rate must be > 0: " + str);
+      }
+    }
+
+    str = (String)cfg.findSingle("arrivals");
+    if (str != null) {
+      arrivals = TrafficGenerator.arrival_type(str);
+    }
+
+    str = (String)cfg.findSingle("pareto_shape");
+    if (str != null) {
+      pareto_shape = Double.parseDouble(str);
+    }
+
+    str = (String)cfg.findSingle("hotspot_fraction");
+    if (str != null) {
+      hotspot_fraction = Double.parseDouble(str);
+    }
+
+    str = (String)cfg.findSingle("hotspot_weight");
+    if (str != null) {
+      hotspot_weight = Double.parseDouble(str);
+    }
+
+    str = (String)cfg.findSingle("seed");
+    if (str != null) {
+      seed = Long.parseLong(str);
+    }
+
+    // get whether flows are to be tracked instead of packets sent
+    str = (String)cfg.findSingle("flows");
+    if (str != null) {
+      flows = Boolean.valueOf(str).booleanValue();
+    }
+    if (flows) {
+      if (!Global.track_flows) {
+        Debug.gerr("flows requires the track_flows BGP option");
+      }
+      tracker = FlowTracker.install();
+    }
+
     // get receiver status
     str = (String)cfg.findSingle("receiver");
     if (str != null) {
@@ -146,7 +251,10 @@ public class AppSession extends ProtocolSession {
   // ----- AppSession.init ------------------------------------------------- //
   /**
    * Creates an SSF process which first does a little setup work and then just
-   * sends out a packet periodically, according to the frequency variable.
+   * sends out a packet periodically, according to the frequency variable.  If
+   * a traffic matrix is in use, packets are instead sent whenever a
+   * <code>TrafficGenerator</code> says that they are due.  If flows are being
+   * tracked, no packets are sent at all.
    */
   public final void init() {
     new process(inGraph()) {
@@ -164,7 +272,8 @@ public class AppSession extends ProtocolSession {
             throw new Error("App couldn't get handle to IP");
           }
 
-          if (!Global.distributed && Global.validation_test!=Global.NO_TEST) {
+          if (!Global.distributed &&
+              (Global.validation_test != Global.NO_TEST || flows)) {
             // get handle to BGPSession
             try {
               NIC mynic = ((NIC)((Host)inGraph()).interfaceNumbers.
@@ -191,19 +300,45 @@ public class AppSession extends ProtocolSession {
           }
 
 
-          if (sender && send2all) {
+          boolean brite = (!Global.distributed &&
+                           Global.validation_test == Global.BRITE);
+          if ((sender && (send2all || matrix >= 0)) || brite) {
             // this sender is supposed to send messages to all AppSessions
-            // in the entire network
+            // in the entire network, which are found in the directory shared
+            // by all AppSessions on this machine
+            directory = AppDirectory.get(my_host);
+            self_index = directory.index_of(my_host.nhi);
+          }
 
-            Net anet = my_host.getNet(); // gets the top-level Net
-            dests = new HashMap();
+          if (brite) {
+            deliveries = DeliveryMatrix.get(my_host, bgp);
+          }
 
-            // for each host in the entire network
-            Configuration topnetcfg = anet.cidrMap.networkConfiguration();
-            // Parse the whole DML file, and check which hosts are running
-            // AppSession.  Very inefficient, but necessary in distributed
-            // environment.
-            searchTop(topnetcfg);
+          if (sender && matrix >= 0) {
+            generator = new TrafficGenerator(directory, self_index, matrix,
+                                             rate, arrivals, pareto_shape,
+                                             hotspot_fraction, hotspot_weight,
+                                             seed, now());
+          }
+
+          if (flows) {
+            // flows take the place of packets: the tracker follows their
+            // paths through the forwarding tables from now on
+            tracker.register_host(ipaddr.intval(), bgp);
+            if (sender) {
+              if (directory != null) {
+                for (int i=0; i<directory.size(); i++) {
+                  if (i != self_index) { // no flow to self
+                    tracker.add_flow(bgp, ipaddr.intval(), directory.ip(i));
+                  }
+                }
+              } else {
+                for (Iterator it=dests.values().iterator(); it.hasNext();) {
+                  tracker.add_flow(bgp, ipaddr.intval(),
+                                   ((IPaddress)it.next()).intval());
+                }
+              }
+            }
           }
 
           setup = true;
@@ -212,31 +347,40 @@ public class AppSession extends ProtocolSession {
 
           // go ahead and send messages (only senders reach this code block)
 
-          for (Iterator it=dests.keySet().iterator(); it.hasNext(); ) {
-            String dest_nh = (String)it.next();
-            IPaddress dest_ip = (IPaddress)dests.get(dest_nh);
-
-            AppMessage msg = new AppMessage(nh, dest_nh);
-            IpHeader iph = new IpHeader(Protocols.TEST_PRTL_NUM,
-                                        ipaddr.intval(), dest_ip.intval());
-
-            iph.carryPayload(msg);
-            try {
-              ip.push(iph, appsess);
-            } catch (ProtocolException pex) {
-              throw new Error("couldn't push packet from App to IP");
-            }
-
+          if (generator != null) {
+            // send whatever is due, according to the traffic matrix
             double t = now();
-            String ws = StringManip.ws(10 - (""+t).length());
-            if (verbose) {
-              System.out.println(hdr() + "--- sent msg to " + dest_nh);
+            while (generator.next_time() <= t) {
+              int d = generator.next();
+              int i = generator.dir_index(d);
+              send(directory.nh(i), generator.ip(d), i);
+            }
+          } else if (send2all) {
+            for (int i=0; i<directory.size(); i++) {
+              if (i != self_index) { // don't send to self
+                send(directory.nh(i), directory.ip(i), i);
+              }
+            }
+          } else {
+            for (Iterator it=dests.keySet().iterator(); it.hasNext(); ) {
+              String dest_nh = (String)it.next();
+              send(dest_nh, ((IPaddress)dests.get(dest_nh)).intval(),
+                   (directory == null) ? -1 : directory.index_of(dest_nh));
             }
           }
         }
 
         long waittime = Net.seconds(9999999999.0);  // infinity
-        if (sender) {
+        if (flows || Quiescence.ended()) {
+          // no packets are sent, or the simulation is ending early, so
+          // never wake up
+        } else if (generator != null) {
+          // wake up only when the next packet is due
+          if (generator.next_time() != Double.POSITIVE_INFINITY) {
+            waittime = Math.max(1L, Net.seconds(generator.next_time() -
+                                                now()));
+          }
+        } else if (sender) {
           waittime = (long) ( (double) Net.seconds(1.0) * frequency);
           if(frequency!=freq) {
             frequency=freq;
@@ -247,99 +391,35 @@ public class AppSession extends ProtocolSession {
     };
   }
 
-  // ----- AppSession.searchTop -------------------------------------------- //
+  // ----- AppSession.send ------------------------------------------------- //
   /**
-   * Searches the top-level DML configuration for Nets and hosts, eventually
-   * finding hosts running AppSessions and adding their addresses to a table.
-   */
-  private void searchTop(Configuration topnetcfg){
-    try {
-      String curr_nh = "";
-      Configuration ncfg,hcfg;
-
-      // Process all the Nets.
-      for (Enumeration e=topnetcfg.find("Net"); e.hasMoreElements();) {
-        ncfg = (Configuration)e.nextElement();
-        searchNet(ncfg,curr_nh);
-      }
-
-      for (Enumeration e=topnetcfg.find("host"); e.hasMoreElements();) {
-        hcfg = (Configuration)e.nextElement();
-        searchHost(hcfg,curr_nh);
-      }
-    } catch (configException ce) {
-      Debug.gerr("problem setting up AppSession in searchTop(): " + ce);
-    }
-  }
-
-  // ----- AppSession.searchNet -------------------------------------------- //
-  /**
-   * Searches a Net, eventually finding hosts running AppSessions and adding
-   * their addresses to a table.
+   * Sends a message to the given destination.
+   *
+   * @param dest_nh   The NHI address of the destination host.
+   * @param dest_ip   The IP address of the destination host.
+   * @param dest_idx  The index of the destination host in the directory, or
+   *                  -1 if it is not known.
    */
-  private void searchNet(Configuration netcfg, String parent_nh){
-    Configuration ncfg,hcfg;
-    idrange netids;
-    try{
-      netids = new idrange();
-      netids.config(netcfg);
-
-      for (Enumeration e=netcfg.find("Net"); e.hasMoreElements();) {
-        ncfg = (Configuration)e.nextElement();
-        for (int netid=netids.minid; netid<=netids.maxid; netid++) {
-          searchNet(ncfg,(("".equals(parent_nh))?(""+netid):
-                          (parent_nh+cidrBlock.NHI_SEPARATOR+netid)));
-        }
-      }
-
-      for (Enumeration e=netcfg.find("host"); e.hasMoreElements();) {
-        hcfg = (Configuration)e.nextElement();
-        for (int netid=netids.minid; netid<=netids.maxid; netid++) {
-          searchHost(hcfg,(("".equals(parent_nh))?(""+netid):
-                           (parent_nh+cidrBlock.NHI_SEPARATOR+netid)));
-        }
-      }
-    } catch (configException ce) {
-      Debug.gerr("problem setting up AppSession in searchNet(): " + ce);
+  private void send(String dest_nh, int dest_ip, int dest_idx) {
+    AppMessage msg = new AppMessage(nh, dest_nh);
+    msg.srcidx = self_index;
+    msg.dstidx = dest_idx;
+    msg.sendtime = now();
+    if (deliveries != null) {
+      deliveries.sent(self_index, dest_idx);
     }
-  }
+    IpHeader iph = new IpHeader(Protocols.TEST_PRTL_NUM, ipaddr.intval(),
+                                dest_ip);
 
-  // ----- AppSession.searchHost ------------------------------------------- //
-  /**
-   * Searches a host, checking to see if it's running an AppSession, and if so,
-   * adding its address to a table.
-   */
-  private void searchHost(Configuration hcfg, String parent_nh) {
-    String host_nh;
-    idrange hostids;
-    Configuration gcfg,scfg;
-    boolean hasapp = false;
+    iph.carryPayload(msg);
     try {
-      gcfg = (Configuration)hcfg.findSingle("graph");
+      ip.push(iph, appsess);
+    } catch (ProtocolException pex) {
+      throw new Error("couldn't push packet from App to IP");
+    }
 
-      for (Enumeration e=gcfg.find("ProtocolSession");
-                                             e.hasMoreElements() && !hasapp;) {
-        scfg = (Configuration)e.nextElement();
-        if (((String)scfg.findSingle("name")).equals("test")) {
-          hasapp = true;
-        }
-      }
-      if (hasapp) { // there is an AppSession running at the host
-        hostids = new idrange();
-        hostids.config(hcfg);
-        for (int hostid=hostids.minid; hostid<=hostids.maxid; hostid++) {
-          host_nh = cidrBlock.nhi_concat(parent_nh,hostid);
-          if (!host_nh.equals(((Host)inGraph()).nhi)) { // don't send to self
-            // Add the IP address of this host to table of destinations.
-            IPaddress ipa = new IPaddress(((Host)inGraph()).
-                                            global_nhi_to_ip(host_nh + "(1)"));
-            ipa.set_prefix_len(32);
-            dests.put(host_nh, ipa);
-          }
-        }
-      }
-    } catch (configException ce) {
-      Debug.gerr("problem setting up AppSession in searchHost(): " + ce);
+    if (verbose) {
+      System.out.println(hdr() + "--- sent msg to " + dest_nh);
     }
   }
 
@@ -390,7 +470,9 @@ public class AppSession extends ProtocolSession {
         bgp.debug.valid(Global.FORWARDING2, 1);
         bgp.debug.valid(Global.FORWARDING3, 1);
         bgp.debug.valid(Global.FORWARDING4, 1);
-        bgp.debug.valid(Global.BRITE, 1);
+      }
+      if (deliveries != null) {
+        deliveries.delivered(msg, now());
       }
     } else {
       if (verbose) {
@@ -0,0 +1,216 @@
+/**
+ * DeliveryMatrix.java
+ */
+
+
+package SSF.OS.BGP4.test.App;
+
+
+import java.util.concurrent.atomic.*;
+import SSF.Net.*;
+import SSF.OS.BGP4.*;
+
+
+// ===== class SSF.OS.BGP4.test.DeliveryMatrix ============================= //
+/**
+ * Keeps account of the messages sent between AppSessions during the BRITE
+ * validation test.  For each (source, destination) pair of hosts in the
+ * <code>AppDirectory</code>, the number of messages sent and the number
+ * delivered are kept in flat arrays of ints, indexed by
+ * <code>src*n + dst</code>, so counting a message is a single atomic
+ * increment and there is no need to print a line per message.  The delivery
+ * latency of every message is recorded in a histogram.
+ * <p>
+ * While the simulation runs, a one-line summary of progress is printed every
+ * <code>progress_interval</code> seconds of simulation time.  When it wraps
+ * up, a final report is printed, listing any pairs to which messages were
+ * sent but never delivered, any pairs to which more messages were delivered
+ * than were sent, and percentiles of the delivery latency.  The test is
+ * successful if every pair which was sent to received at least one message
+ * and there were no duplicate deliveries.
+ */
+public class DeliveryMatrix {
+
+  // ......................... constants ........................... //
+
+  /** The largest number of missing or duplicated pairs listed by name in
+   *  the final report. */
+  public static final int MAX_LISTED = 10;
+
+
+  // ........................ member data .......................... //
+
+  /** The number of seconds of simulation time between progress
+   *  summaries. */
+  public static double progress_interval = 10.0;
+
+  /** The matrix shared by all AppSessions in this JVM. */
+  private static DeliveryMatrix matrix = null;
+
+  /** The directory whose hosts index the matrix. */
+  private AppDirectory dir;
+
+  /** The number of hosts in the directory. */
+  private int n;
+
+  /** The number of messages sent from each source to each destination. */
+  private AtomicIntegerArray sent;
+
+  /** The number of messages delivered from each source to each
+   *  destination. */
+  private AtomicIntegerArray delivered;
+
+  /** The total number of messages sent. */
+  private AtomicLong numsent = new AtomicLong(0);
+
+  /** The total number of messages delivered. */
+  private AtomicLong numdelivered = new AtomicLong(0);
+
+  /** The delivery latencies, in microseconds of simulation time. */
+  private Metrics.Histogram latency = new Metrics.Histogram();
+
+  /** The simulation time at which the next progress summary is due. */
+  private volatile double nextreport = progress_interval;
+
+  /** The BGP speaker through which validation messages are printed. */
+  private BGPSession bgp;
+
+
+  // ----- constructor DeliveryMatrix -------------------------------------- //
+  /**
+   * Constructs a matrix for the hosts in the given directory.
+   */
+  private DeliveryMatrix(AppDirectory d, BGPSession b) {
+    dir = d;
+    n = d.size();
+    sent = new AtomicIntegerArray(n*n);
+    delivered = new AtomicIntegerArray(n*n);
+    bgp = b;
+  }
+
+  // ----- DeliveryMatrix.get ---------------------------------------------- //
+  /**
+   * Returns the matrix shared by all AppSessions in this JVM, creating it
+   * (and arranging for the final report to be printed when the simulation
+   * wraps up) if necessary.
+   *
+   * @param h    The host of the AppSession asking for the matrix.
+   * @param bgp  The BGP speaker attached to the host.
+   * @return the shared matrix
+   */
+  public static synchronized DeliveryMatrix get(Host h, BGPSession bgp) {
+    if (matrix == null) {
+      matrix = new DeliveryMatrix(AppDirectory.get(h), bgp);
+      bgp.topnet.wrapup(new Runnable()
+        {
+          public void run() {
+            matrix.report();
+          }
+        });
+    }
+    return matrix;
+  }
+
+  // ----- DeliveryMatrix.sent --------------------------------------------- //
+  /**
+   * Counts a message which has just been sent.
+   *
+   * @param src  The index of the source host in the directory.
+   * @param dst  The index of the destination host in the directory.
+   */
+  public final void sent(int src, int dst) {
+    if (src >= 0 && dst >= 0) {
+      sent.incrementAndGet(src*n + dst);
+    }
+    numsent.incrementAndGet();
+  }
+
+  // ----- DeliveryMatrix.delivered ---------------------------------------- //
+  /**
+   * Counts a message which has just been delivered, and prints a progress
+   * summary if one is due.
+   *
+   * @param msg  The message.
+   * @param now  The current simulation time, in seconds.
+   */
+  public final void delivered(AppMessage msg, double now) {
+    if (msg.srcidx >= 0 && msg.dstidx >= 0) {
+      delivered.incrementAndGet(msg.srcidx*n + msg.dstidx);
+    }
+    numdelivered.incrementAndGet();
+    latency.record((long)((now - msg.sendtime) * 1e6));
+    if (now >= nextreport) {
+      progress(now);
+    }
+  }
+
+  // ----- DeliveryMatrix.progress ----------------------------------------- //
+  /**
+   * Prints a one-line summary of progress, unless another thread has just
+   * done so.
+   */
+  private synchronized void progress(double now) {
+    if (now < nextreport) {
+      return;
+    }
+    while (nextreport <= now) {
+      nextreport += progress_interval;
+    }
+    bgp.debug.valid(Global.BRITE, 1, now + "s: " + numdelivered.get() +
+                    " of " + numsent.get() + " messages delivered, " +
+                    "median latency " + latency.percentile(50) + "us");
+  }
+
+  // ----- DeliveryMatrix.report ------------------------------------------- //
+  /**
+   * Prints the final completeness and latency report, and whether or not the
+   * test was successful.
+   */
+  public void report() {
+    long pairs = 0, missing = 0, duplicated = 0, lost = 0, dups = 0;
+    StringBuffer missed = new StringBuffer();
+    StringBuffer duped = new StringBuffer();
+    for (int src=0; src<n; src++) {
+      for (int dst=0; dst<n; dst++) {
+        int s = sent.get(src*n + dst);
+        int d = delivered.get(src*n + dst);
+        if (s > 0) {
+          pairs++;
+          if (d == 0) {
+            if (++missing <= MAX_LISTED) {
+              missed.append(" " + dir.nh(src) + "->" + dir.nh(dst));
+            }
+          }
+        }
+        if (d > s) {
+          dups += d - s;
+          if (++duplicated <= MAX_LISTED) {
+            duped.append(" " + dir.nh(src) + "->" + dir.nh(dst));
+          }
+        } else {
+          lost += s - d;
+        }
+      }
+    }
+
+    System.out.println("BRITE delivery report: " + numsent.get() +
+                       " messages sent, " + numdelivered.get() +
+                       " delivered, " + lost + " lost or in flight, " + dups +
+                       " duplicates");
+    System.out.println("  " + pairs + " pairs sent to, " + missing +
+                       " with no deliveries" +
+                       ((missing > 0) ? ":" + missed : ""));
+    if (duplicated > 0) {
+      System.out.println("  " + duplicated + " pairs with duplicates:" +
+                         duped);
+    }
+    System.out.println("  latency (us): mean " + (long)latency.mean() +
+                       ", p50 " + latency.percentile(50) +
+                       ", p90 " + latency.percentile(90) +
+                       ", p99 " + latency.percentile(99) +
+                       ", max " + latency.max());
+    bgp.debug.valid(Global.BRITE, 2,
+                    Boolean.valueOf(missing == 0 && duplicated == 0));
+  }
+
+} // end of class DeliveryMatrix
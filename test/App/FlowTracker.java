@@ -0,0 +1,382 @@
+/**
+ * FlowTracker.java
+ */
+
+
+package SSF.OS.BGP4.test.App;
+
+
+import java.util.*;
+import SSF.Net.*;
+import SSF.OS.BGP4.*;
+import SSF.OS.BGP4.Util.*;
+
+
+// ===== class SSF.OS.BGP4.test.FlowTracker ================================ //
+/**
+ * Tracks the reachability of flows between hosts without simulating their
+ * packets.  Each flow's path is found by walking the BGP speakers'
+ * forwarding tables hop by hop, starting at the speaker attached to the
+ * source host, until the speaker attached to the destination host is
+ * reached.  The path is only walked again when a route for a prefix covering
+ * the flow's destination is added to or removed from the forwarding table of
+ * a speaker on the path, which the tracker learns of by being the monitors'
+ * forwarding table listener.  Whenever a flow cannot be delivered, because
+ * some speaker on its path has no route (a blackhole) or because the path
+ * revisits a speaker (a loop), the length of time for which it stays that
+ * way is recorded.  A summary is printed when the simulation wraps up.
+ * <p>
+ * Since paths are found by reading other speakers' forwarding tables
+ * directly, flows can only be tracked in a simulation running on a single
+ * machine, in a single timeline, so that no forwarding table is read while
+ * another thread is changing it.  The <code>track_flows</code> BGP option
+ * must be set, so that every speaker's monitor reports its forwarding table
+ * changes.  There is one tracker per JVM, shared by all AppSessions.
+ * @see Monitor.FwdTableListener
+ */
+public class FlowTracker implements Monitor.FwdTableListener {
+
+  // ......................... constants ........................... //
+
+  /** Indicates that a flow is being delivered. */
+  public static final int OK         = 0;
+
+  /** Indicates that a flow reaches a BGP speaker with no route to its
+   *  destination. */
+  public static final int BLACKHOLE  = 1;
+
+  /** Indicates that a flow's path revisits a BGP speaker. */
+  public static final int LOOP       = 2;
+
+  /** Indicates that a flow's path leads to a BGP speaker which the tracker
+   *  doesn't know about yet. */
+  public static final int UNRESOLVED = 3;
+
+  /** The number of flow states. */
+  public static final int NUM_STATES = 4;
+
+  /** The name of each flow state. */
+  public static final String[] state_names = {
+    "ok", "blackhole", "loop", "unresolved"
+  };
+
+
+  // ........................ member data .......................... //
+
+  /** The tracker shared by all AppSessions in this JVM. */
+  private static FlowTracker tracker = null;
+
+  /** Each known BGP speaker, keyed by its NHI address. */
+  private HashMap speakers = new HashMap();
+
+  /** The NHI address of the BGP speaker at each known peering address, keyed
+   *  by the address (as an Integer). */
+  private HashMap peerips = new HashMap();
+
+  /** The BGP speaker attached to each host with an AppSession, keyed by the
+   *  host's IP address (as an Integer). */
+  private HashMap hostrouters = new HashMap();
+
+  /** The flows to each destination, as lists keyed by the destination
+   *  address as an unsigned Long, so that the flows to all of the addresses
+   *  in a prefix can be found with a range query. */
+  private TreeMap bydst = new TreeMap();
+
+  /** A BGP speaker from which to get the current simulation time. */
+  private BGPSession clock;
+
+  /** The timeline in which every known BGP speaker runs. */
+  private Object timeline;
+
+  /** The number of flows. */
+  private int numflows = 0;
+
+  /** The number of times a flow's path has been walked. */
+  private long numwalks = 0;
+
+  /** The number of flows in each state. */
+  private int[] numinstate = new int[NUM_STATES];
+
+  /** The number of times any flow entered each state. */
+  private long[] entered = new long[NUM_STATES];
+
+  /** The total time, in seconds, spent by all flows in each state, not
+   *  counting the time since each flow's last change of state. */
+  private double[] timeinstate = new double[NUM_STATES];
+
+
+  // ===== inner class Flow ================================================ //
+  /**
+   * A flow from one host to another.
+   */
+  private static class Flow {
+    /** The IP address of the source host. */
+    int src;
+    /** The IP address of the destination host. */
+    int dst;
+    /** The BGP speaker attached to the source host. */
+    BGPSession first;
+    /** The BGP speakers on the path, from the first one onward. */
+    BGPSession[] path = new BGPSession[8];
+    /** The number of speakers on the path. */
+    int pathlen = 0;
+    /** The state of the flow. */
+    int state = UNRESOLVED;
+    /** The simulation time at which the flow entered its current state. */
+    double since;
+
+    /** Indicates whether or not the given speaker is on the path. */
+    boolean on_path(BGPSession bgp) {
+      for (int i=0; i<pathlen; i++) {
+        if (path[i] == bgp) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /** Adds a speaker to the end of the path. */
+    void append(BGPSession bgp) {
+      if (pathlen == path.length) {
+        BGPSession[] newpath = new BGPSession[2*pathlen];
+        System.arraycopy(path, 0, newpath, 0, pathlen);
+        path = newpath;
+      }
+      path[pathlen++] = bgp;
+    }
+  } // end inner class Flow
+
+
+  // ----- FlowTracker.install --------------------------------------------- //
+  /**
+   * Creates the tracker shared by all AppSessions in this JVM, if it doesn't
+   * already exist, and makes it the forwarding table listener.  The
+   * <code>track_flows</code> option must be set, so that no monitor is
+   * created without reporting to the listener.
+   *
+   * @return the shared tracker
+   */
+  public static synchronized FlowTracker install() {
+    if (Global.distributed) {
+      throw new Error("flows can't be tracked in a distributed simulation");
+    }
+    if (!Global.track_flows) {
+      throw new Error("flows can't be tracked without track_flows");
+    }
+    if (tracker == null) {
+      tracker = new FlowTracker();
+      Monitor.fwd_listener = tracker;
+    }
+    return tracker;
+  }
+
+  // ----- FlowTracker.register -------------------------------------------- //
+  /**
+   * Makes a BGP speaker known to the tracker, so that paths can pass through
+   * it.  Speakers are registered automatically when they report a change to
+   * their forwarding tables and when an attached host registers.
+   *
+   * @param bgp  A BGP speaker.
+   */
+  public synchronized void register(BGPSession bgp) {
+    if (speakers.put(bgp.nh, bgp) != null) {
+      return; // already known
+    }
+    Object align = bgp.inGraph().alignment();
+    if (timeline == null) {
+      timeline = align;
+    } else if (align != timeline) {
+      throw new Error("flows can't be tracked when BGP speakers run in " +
+                      "more than one timeline");
+    }
+    if (clock == null) {
+      clock = bgp;
+      bgp.topnet.wrapup(new Runnable()
+        {
+          public void run() {
+            System.out.print(summary());
+          }
+        });
+    }
+    for (int i=0; i<bgp.nbs.length-1; i++) { // skip last nb ('self')
+      PeerEntry pe = bgp.nbs[i];
+      if (pe.ip_addr != null) {
+        peerips.put(new Integer(pe.ip_addr.intval()), pe.nh);
+      }
+    }
+  }
+
+  // ----- FlowTracker.register_host --------------------------------------- //
+  /**
+   * Records which BGP speaker a host is attached to, and walks the paths of
+   * any flows to the host.
+   *
+   * @param hostip  The IP address of the host.
+   * @param bgp     The BGP speaker to which the host is attached.
+   */
+  public synchronized void register_host(int hostip, BGPSession bgp) {
+    register(bgp);
+    hostrouters.put(new Integer(hostip), bgp);
+    ArrayList flows = (ArrayList)bydst.get(new Long(hostip & 0xffffffffL));
+    if (flows != null) {
+      double now = clock.nowsec();
+      for (int i=0; i<flows.size(); i++) {
+        walk((Flow)flows.get(i), now);
+      }
+    }
+  }
+
+  // ----- FlowTracker.add_flow -------------------------------------------- //
+  /**
+   * Adds a flow and walks its path.
+   *
+   * @param first  The BGP speaker attached to the source host.
+   * @param src    The IP address of the source host.
+   * @param dst    The IP address of the destination host.
+   */
+  public synchronized void add_flow(BGPSession first, int src, int dst) {
+    register(first);
+    Flow f = new Flow();
+    f.src = src;
+    f.dst = dst;
+    f.first = first;
+    f.since = clock.nowsec();
+    numinstate[f.state]++;
+    entered[f.state]++;
+    numflows++;
+
+    Long key = new Long(dst & 0xffffffffL);
+    ArrayList flows = (ArrayList)bydst.get(key);
+    if (flows == null) {
+      flows = new ArrayList();
+      bydst.put(key, flows);
+    }
+    flows.add(f);
+    walk(f, f.since);
+  }
+
+  // ----- FlowTracker.fwd_table_changed ----------------------------------- //
+  /**
+   * Walks again the path of each flow whose destination is in the given
+   * prefix and whose path passes through the BGP speaker whose forwarding
+   * table changed.  If the speaker isn't known, every flow whose destination
+   * is in the prefix is walked again.
+   *
+   * @param bgp     The BGP speaker whose forwarding table changed, or null.
+   * @param prefix  The destination prefix whose route changed.
+   * @param added   Whether the route was added or removed.
+   */
+  public synchronized void fwd_table_changed(BGPSession bgp, IPaddress prefix,
+                                             boolean added) {
+    if (bgp != null) {
+      register(bgp);
+    }
+    if (numflows == 0) {
+      return;
+    }
+    long lo = prefix.intval() & 0xffffffffL;
+    int len = prefix.prefix_len();
+    if (len < 32) {
+      lo &= ~((1L << (32 - len)) - 1) & 0xffffffffL;
+    }
+    long hi = lo + (1L << (32 - len));
+    double now = clock.nowsec();
+    for (Iterator it=bydst.subMap(new Long(lo), new Long(hi)).values().
+                                                 iterator(); it.hasNext();) {
+      ArrayList flows = (ArrayList)it.next();
+      for (int i=0; i<flows.size(); i++) {
+        Flow f = (Flow)flows.get(i);
+        if (bgp == null || f.state == UNRESOLVED || f.on_path(bgp)) {
+          walk(f, now);
+        }
+      }
+    }
+  }
+
+  // ----- FlowTracker.walk ------------------------------------------------ //
+  /**
+   * Walks a flow's path through the forwarding tables and updates its state.
+   */
+  private void walk(Flow f, double now) {
+    numwalks++;
+    f.pathlen = 0;
+    BGPSession last = (BGPSession)hostrouters.get(new Integer(f.dst));
+    BGPSession r = f.first;
+    int state;
+    while (true) {
+      if (r == null) {
+        state = UNRESOLVED;
+        break;
+      }
+      if (f.on_path(r)) {
+        state = LOOP;
+        break;
+      }
+      f.append(r);
+      if (r == last) {
+        state = OK;
+        break;
+      }
+      RoutingInfo ri = (RoutingInfo)r.fwd_table.find(f.dst);
+      if (ri == null) {
+        state = BLACKHOLE;
+        break;
+      }
+      String nh = (String)peerips.get(new Integer(ri.next_hop_ip()));
+      r = (nh == null) ? null : (BGPSession)speakers.get(nh);
+    }
+    if (last == null && state == BLACKHOLE) {
+      state = UNRESOLVED; // the destination host hasn't registered yet
+    }
+
+    if (state != f.state) {
+      timeinstate[f.state] += now - f.since;
+      numinstate[f.state]--;
+      numinstate[state]++;
+      entered[state]++;
+      f.state = state;
+      f.since = now;
+    }
+  }
+
+  // ----- FlowTracker.summary --------------------------------------------- //
+  /**
+   * Returns a summary of the flows' states and of how long they spent in
+   * each, up to the current simulation time.
+   *
+   * @return a summary of the flows
+   */
+  public synchronized String summary() {
+    double now = (clock == null) ? 0.0 : clock.nowsec();
+    double[] total = new double[NUM_STATES];
+    System.arraycopy(timeinstate, 0, total, 0, NUM_STATES);
+    for (Iterator it=bydst.values().iterator(); it.hasNext();) {
+      ArrayList flows = (ArrayList)it.next();
+      for (int i=0; i<flows.size(); i++) {
+        Flow f = (Flow)flows.get(i);
+        total[f.state] += now - f.since;
+      }
+    }
+
+    StringBuffer sb = new StringBuffer();
+    sb.append("flows: " + numflows + " flows, " + numwalks +
+              " path walks\n");
+    for (int s=0; s<NUM_STATES; s++) {
+      sb.append("  " + state_names[s] + ": " + numinstate[s] + " now, " +
+                entered[s] + " intervals, " + total[s] + " flow-seconds\n");
+    }
+    return sb.toString();
+  }
+
+  // ----- FlowTracker.num_in_state ---------------------------------------- //
+  /**
+   * Returns the number of flows currently in the given state.
+   *
+   * @param state  A flow state.
+   * @return the number of flows in the state
+   */
+  public synchronized int num_in_state(int state) {
+    return numinstate[state];
+  }
+
+} // end of class FlowTracker
@@ -0,0 +1,342 @@
+/**
+ * TrafficGenerator.java
+ */
+
+
+package SSF.OS.BGP4.test.App;
+
+
+import java.util.*;
+
+
+// ===== class SSF.OS.BGP4.test.TrafficGenerator =========================== //
+/**
+ * Decides when an <code>AppSession</code> sends a packet and to whom,
+ * according to a traffic matrix and an inter-arrival time distribution.  Each
+ * destination has its own schedule, and the time at which each destination
+ * is next due is kept in a heap, so the sending host need only wake up when
+ * the earliest of them comes due, rather than sending to every destination
+ * at every tick.
+ * <p>
+ * The traffic matrix determines what share of the host's total sending rate
+ * goes to each destination:
+ * <ul>
+ *   <li><code>uniform</code>: every destination gets the same share.</li>
+ *   <li><code>gravity</code>: each host has a "mass", drawn from a
+ *       heavy-tailed (Pareto) distribution, and the rate between two hosts
+ *       is proportional to the product of their masses.  The masses depend
+ *       only on the seed and the host's position in the directory, so all
+ *       hosts agree on them.</li>
+ *   <li><code>hotspot</code>: a fraction of the hosts (chosen the same way
+ *       by all hosts) receive a multiple of the traffic that the others
+ *       do.</li>
+ * </ul>
+ * Inter-arrival times for each destination are either exponential (so that
+ * arrivals are Poisson) or Pareto (heavy-tailed), with the mean set by the
+ * destination's share of the rate.
+ */
+public class TrafficGenerator {
+
+  // ......................... constants ........................... //
+
+  /** Indicates a traffic matrix in which all destinations are equal. */
+  public static final int UNIFORM = 0;
+
+  /** Indicates a gravity-model traffic matrix. */
+  public static final int GRAVITY = 1;
+
+  /** Indicates a traffic matrix with a few popular destinations. */
+  public static final int HOTSPOT = 2;
+
+  /** Indicates exponentially distributed inter-arrival times. */
+  public static final int POISSON = 0;
+
+  /** Indicates Pareto distributed inter-arrival times. */
+  public static final int PARETO = 1;
+
+
+  // ........................ member data .......................... //
+
+  /** The IP address of each destination, indexed by destination number. */
+  private int[] ips;
+
+  /** The index in the directory of each destination, indexed by destination
+   *  number. */
+  private int[] dirindex;
+
+  /** The mean inter-arrival time, in seconds, for each destination. */
+  private double[] mean;
+
+  /** The inter-arrival time distribution. */
+  private int arrivals;
+
+  /** The shape parameter of the Pareto distribution, which must be greater
+   *  than one so that the mean is finite. */
+  private double shape;
+
+  /** The source of randomness for inter-arrival times. */
+  private Random rand;
+
+  /** The time at which each destination in the heap is next due.  The heap
+   *  is ordered by time, with the earliest at index 0. */
+  private double[] heaptime;
+
+  /** The destination number of each entry in the heap. */
+  private int[] heapdest;
+
+  /** The number of entries in the heap. */
+  private int heapsize = 0;
+
+
+  // ----- constructor TrafficGenerator ------------------------------------ //
+  /**
+   * Constructs a generator for a host sending to all of the other hosts in a
+   * directory.
+   *
+   * @param dir       The directory of hosts.
+   * @param self      The index of the sending host in the directory, or -1
+   *                  if it isn't in it.
+   * @param matrix    The type of traffic matrix.
+   * @param rate      The total number of packets per second sent by the
+   *                  host.
+   * @param arrivals  The inter-arrival time distribution.
+   * @param shape     The shape parameter used for Pareto distributions.
+   * @param hotfrac   The fraction of hosts which are hot spots.
+   * @param hotmult   How many times more traffic a hot spot receives.
+   * @param seed      The seed from which all random choices are derived.
+   * @param start     The simulation time, in seconds, at which sending
+   *                  begins.
+   */
+  public TrafficGenerator(AppDirectory dir, int self, int matrix, double rate,
+                          int arrivals, double shape, double hotfrac,
+                          double hotmult, long seed, double start) {
+    this.arrivals = arrivals;
+    this.shape = shape;
+    if (arrivals == PARETO && shape <= 1.0) {
+      throw new Error("Pareto shape must be greater than 1");
+    }
+
+    int n = dir.size();
+    double[] weight = new double[n];
+    double total = 0.0;
+    for (int i=0; i<n; i++) {
+      if (i == self) { // don't send to self
+        continue;
+      }
+      switch (matrix) {
+      case GRAVITY:
+        weight[i] = mass(seed, i);
+        if (self >= 0) {
+          weight[i] *= mass(seed, self);
+        }
+        break;
+      case HOTSPOT:
+        weight[i] = (uniform(seed, i) < hotfrac) ? hotmult : 1.0;
+        break;
+      default:
+        weight[i] = 1.0;
+      }
+      total += weight[i];
+    }
+
+    int numdests = 0;
+    for (int i=0; i<n; i++) {
+      if (weight[i] > 0.0) {
+        numdests++;
+      }
+    }
+    ips = new int[numdests];
+    dirindex = new int[numdests];
+    mean = new double[numdests];
+    heaptime = new double[numdests];
+    heapdest = new int[numdests];
+    rand = new Random(seed ^ ((long)self << 32));
+
+    int d = 0;
+    for (int i=0; i<n; i++) {
+      if (weight[i] > 0.0) {
+        ips[d] = dir.ip(i);
+        dirindex[d] = i;
+        mean[d] = total / (weight[i] * rate);
+        push(start + interarrival(d), d);
+        d++;
+      }
+    }
+  }
+
+  // ----- TrafficGenerator.matrix_type ------------------------------------ //
+  /**
+   * Returns the traffic matrix type with the given name.
+   *
+   * @param name  The name of a traffic matrix type.
+   * @return the traffic matrix type
+   */
+  public static int matrix_type(String name) {
+    if (name.equals("uniform")) {
+      return UNIFORM;
+    } else if (name.equals("gravity")) {
+      return GRAVITY;
+    } else if (name.equals("hotspot")) {
+      return HOTSPOT;
+    }
+    throw new Error("unknown traffic matrix: " + name);
+  }
+
+  // ----- TrafficGenerator.arrival_type ----------------------------------- //
+  /**
+   * Returns the inter-arrival time distribution with the given name.
+   *
+   * @param name  The name of an inter-arrival time distribution.
+   * @return the inter-arrival time distribution
+   */
+  public static int arrival_type(String name) {
+    if (name.equals("poisson")) {
+      return POISSON;
+    } else if (name.equals("pareto")) {
+      return PARETO;
+    }
+    throw new Error("unknown inter-arrival distribution: " + name);
+  }
+
+  // ----- TrafficGenerator.uniform ---------------------------------------- //
+  /**
+   * Returns a number in [0,1) which depends only on the seed and the index.
+   * It is used for choices which every host must make the same way.
+   */
+  private static double uniform(long seed, int i) {
+    long z = seed + (i + 1) * 0x9e3779b97f4a7c15L;
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    z = z ^ (z >>> 31);
+    return (z >>> 11) * (1.0 / (1L << 53));
+  }
+
+  // ----- TrafficGenerator.mass ------------------------------------------- //
+  /**
+   * Returns the gravity-model mass of the host with the given index, drawn
+   * from a Pareto distribution with shape 1.5 and minimum 1.
+   */
+  private static double mass(long seed, int i) {
+    return Math.pow(1.0 - uniform(seed, i), -1.0 / 1.5);
+  }
+
+  // ----- TrafficGenerator.interarrival ----------------------------------- //
+  /**
+   * Returns a random inter-arrival time for the given destination.
+   */
+  private double interarrival(int d) {
+    double u = 1.0 - rand.nextDouble(); // in (0,1]
+    if (arrivals == PARETO) {
+      // the minimum which gives the wanted mean
+      double xm = mean[d] * (shape - 1.0) / shape;
+      return xm * Math.pow(u, -1.0 / shape);
+    }
+    return -mean[d] * Math.log(u);
+  }
+
+  // ----- TrafficGenerator.num_dests -------------------------------------- //
+  /**
+   * Returns the number of destinations.
+   *
+   * @return the number of destinations
+   */
+  public final int num_dests() {
+    return ips.length;
+  }
+
+  // ----- TrafficGenerator.next_time -------------------------------------- //
+  /**
+   * Returns the time at which the next packet is due to be sent.
+   *
+   * @return the time, in seconds, at which the next packet is due, or
+   *         infinity if there are no destinations
+   */
+  public final double next_time() {
+    return (heapsize == 0) ? Double.POSITIVE_INFINITY : heaptime[0];
+  }
+
+  // ----- TrafficGenerator.next ------------------------------------------- //
+  /**
+   * Takes the destination of the next packet due to be sent, and schedules
+   * the packet after it to the same destination.
+   *
+   * @return the destination number of the next packet
+   */
+  public final int next() {
+    double t = heaptime[0];
+    int d = heapdest[0];
+    pop();
+    push(t + interarrival(d), d);
+    return d;
+  }
+
+  // ----- TrafficGenerator.ip --------------------------------------------- //
+  /**
+   * Returns the IP address of the given destination.
+   *
+   * @param d  A destination number.
+   * @return the IP address of the destination, as an integer
+   */
+  public final int ip(int d) {
+    return ips[d];
+  }
+
+  // ----- TrafficGenerator.dir_index -------------------------------------- //
+  /**
+   * Returns the index in the directory of the given destination.
+   *
+   * @param d  A destination number.
+   * @return the index of the destination in the directory
+   */
+  public final int dir_index(int d) {
+    return dirindex[d];
+  }
+
+  // ----- TrafficGenerator.push ------------------------------------------- //
+  /**
+   * Adds an entry to the heap.
+   */
+  private void push(double t, int d) {
+    int i = heapsize++;
+    while (i > 0) {
+      int parent = (i - 1) / 2;
+      if (heaptime[parent] <= t) {
+        break;
+      }
+      heaptime[i] = heaptime[parent];
+      heapdest[i] = heapdest[parent];
+      i = parent;
+    }
+    heaptime[i] = t;
+    heapdest[i] = d;
+  }
+
+  // ----- TrafficGenerator.pop -------------------------------------------- //
+  /**
+   * Removes the earliest entry from the heap.
+   */
+  private void pop() {
+    heapsize--;
+    double t = heaptime[heapsize];
+    int d = heapdest[heapsize];
+    int i = 0;
+    while (true) {
+      int child = 2*i + 1;
+      if (child >= heapsize) {
+        break;
+      }
+      if (child+1 < heapsize && heaptime[child+1] < heaptime[child]) {
+        child++;
+      }
+      if (heaptime[child] >= t) {
+        break;
+      }
+      heaptime[i] = heaptime[child];
+      heapdest[i] = heapdest[child];
+      i = child;
+    }
+    heaptime[i] = t;
+    heapdest[i] = d;
+  }
+
+} // end of class TrafficGenerator